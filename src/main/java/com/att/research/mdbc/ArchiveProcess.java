@@ -1,43 +1,208 @@
 package com.att.research.mdbc;
 
-import org.json.JSONObject;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
-import com.att.research.mdbc.mixins.DBInterface;
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
 import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.redo.DefaultRedoManagerLogic;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.StagingTable;
+import com.att.research.mdbc.tables.TitReference;
+import com.att.research.mdbc.tables.TransactionInformationElement;
+import com.att.research.mdbc.tables.TxCommitProgress;
+
+/**
+ * Background process that moves the transactions of the redo log into the data tables in MUSIC.
+ * <p>
+ * It walks the <code>redo</code> list of the TIT row of the partition, starting after <code>latestapplied</code>.
+ * The digests of {@value Configuration#KEY_ARCHIVE_BATCH_SIZE} redo records are folded together into coalescing
+ * staging tables, so only the last version of each row is written, and then <code>latestapplied</code> is advanced
+ * as a checkpoint. A node that takes over the partition only has to replay the records after the checkpoint.
+ * TIT rows that were replaced by a rollover are archived first, then marked as applied and released.
+ * </p>
+ * <p>
+ * The process runs in a single low priority thread every {@value Configuration#KEY_ARCHIVE_INTERVAL} milliseconds,
+ * and only while this node holds the lease of the partition. It does not compete with the commit path: if
+ * transactions were committed while a batch was archived, it waits for the next interval before the next batch.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class ArchiveProcess implements Runnable {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(ArchiveProcess.class);
 
-public class ArchiveProcess {
 	protected MusicInterface mi;
-	protected DBInterface dbi;
+	private final DatabasePartition partition;
+	private final TxCommitProgress progress;
+	private final long interval;
+	private final int batchSize;
+	private volatile boolean running;
+	private volatile Thread thread;
+	private long archivedRecords;
+
+	/**
+	 * @param mi interface used to read the redo log and write the data tables
+	 * @param partition partition whose redo log is archived
+	 * @param progress commits of this node, used to detect when the node is busy
+	 * @param info properties with the configuration of the process
+	 */
+	public ArchiveProcess(MusicInterface mi, DatabasePartition partition, TxCommitProgress progress, Properties info) {
+		this.mi = mi;
+		this.partition = partition;
+		this.progress = progress;
+		this.interval = Long.parseLong(info.getProperty(Configuration.KEY_ARCHIVE_INTERVAL, Configuration.ARCHIVE_INTERVAL_DEFAULT));
+		this.batchSize = Math.max(1, Integer.parseInt(info.getProperty(Configuration.KEY_ARCHIVE_BATCH_SIZE, Configuration.ARCHIVE_BATCH_SIZE_DEFAULT)));
+		this.running = false;
+		this.archivedRecords = 0;
+	}
+
+	/**
+	 * Starts the background thread, it does nothing if the interval is 0
+	 */
+	public synchronized void start() {
+		if (interval <= 0 || thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "mdbc-archive");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				archive();
+			} catch (MDBCServiceException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Archive of the redo log failed, it is retried later: "+e.getMessage());
+			} catch (RuntimeException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Archive of the redo log failed: "+e);
+			}
+		}
+	}
 
-	//TODO: This is a place holder for taking snapshots and moving data from redo record into actual tables
-	
 	/**
-	 * This method is called whenever there is a DELETE on a local SQL table, and should be called by the underlying databases
-	 * triggering mechanism. It updates the MUSIC/Cassandra tables (both dirty bits and actual data) corresponding to the SQL DELETE.
-	 * Music propagates it to the other replicas.  If the local database is in the middle of a transaction, the DELETEs to MUSIC are
-	 * delayed until the transaction is either committed or rolled back.
-	 * @param tableName This is the table on which the select is being performed
-	 * @param oldRow This is information about the row that is being deleted
+	 * Archives the pending records of the TIT rows that were replaced by a rollover, and then of the TIT row of the
+	 * partition, if this node holds its lease
+	 * @return number of redo records that were archived
+	 * @throws MDBCServiceException if the redo log can not be read, or the data tables or checkpoint can not be written
 	 */
-	@SuppressWarnings("unused")
-	private void deleteFromEntityTableInMusic(String tableName, JSONObject oldRow) {
-			TableInfo ti = dbi.getTableInfo(tableName);
-			mi.deleteFromEntityTableInMusic(ti,tableName, oldRow);
+	public int archive() throws MDBCServiceException {
+		int archived = 0;
+		// the old rows go first, their records were committed before the ones in the current row
+		for (Map.Entry<TitReference,String> closed : mi.getClosedTransactionInformation().entrySet()) {
+			TitReference tit = closed.getKey();
+			archived += archive(tit, closed.getValue(), true);
+			TransactionInformationElement meta = mi.getTransactionInformation(tit);
+			if (meta == null || meta.applied) {
+				mi.releaseTransactionInformation(tit);
+			}
+		}
+		String index = partition.getTransactionInformationIndex();
+		String lockId = partition.getLockId();
+		if (index == null || index.isEmpty() || lockId == null || lockId.isEmpty()) {
+			// only the owner of the partition updates the TIT row
+			return archived;
+		}
+		return archived + archive(new TitReference(partition.getTransactionInformationTable(), index), lockId, false);
 	}
-	
+
+	/**
+	 * Archives the pending records of a TIT row
+	 * @param tit row in the TIT
+	 * @param lockId lease that is currently held for the partition that owns the row
+	 * @param closed true if no more records are going to be added to the row, it is then marked as applied
+	 * @return number of redo records that were archived
+	 * @throws MDBCServiceException if the redo log can not be read, or the data tables or checkpoint can not be written
+	 */
+	public int archive(TitReference tit, String lockId, boolean closed) throws MDBCServiceException {
+		TransactionInformationElement meta = mi.getTransactionInformation(tit);
+		if (meta == null || meta.applied) {
+			return 0;
+		}
+		List<RedoRecordId> pending = DefaultRedoManagerLogic.pendingRecords(meta);
+		int latestApplied = Math.max(-1, meta.latestApplied);
+		int archived = 0;
+		for (int start = 0; start < pending.size(); start += batchSize) {
+			BigInteger commitsBefore = progress.getNextCommitId();
+			List<RedoRecordId> batch = pending.subList(start, Math.min(pending.size(), start + batchSize));
+			mi.applyToDataTables(fold(batch));
+			latestApplied += batch.size();
+			archived += batch.size();
+			boolean done = start + batch.size() >= pending.size();
+			mi.updateLatestApplied(tit, lockId, latestApplied, closed && done);
+			logger.debug(EELFLoggerDelegate.applicationLogger, "Archived "+batch.size()+" records of "+tit.table+"."+tit.index+" up to "+latestApplied);
+			if (!done && !progress.getNextCommitId().equals(commitsBefore) && !waitForNextRun()) {
+				break;
+			}
+		}
+		if (closed && pending.isEmpty()) {
+			mi.updateLatestApplied(tit, lockId, latestApplied, true);
+		}
+		synchronized (this) {
+			archivedRecords += archived;
+		}
+		return archived;
+	}
+
+	/**
+	 * Folds the digests of a group of redo records, keeping only the net effect of the operations on each key
+	 */
+	private HashMap<Range,StagingTable> fold(List<RedoRecordId> records) throws MDBCServiceException {
+		HashMap<Range,StagingTable> folded = new HashMap<>();
+		for (RedoRecordId record : records) {
+			HashMap<Range,StagingTable> digest = mi.getTransactionDigest(record);
+			if (digest == null) {
+				throw new MDBCServiceException("Redo record "+record.leaseId+","+record.commitId+" does not exist");
+			}
+			for (Map.Entry<Range,StagingTable> entry : digest.entrySet()) {
+				folded.computeIfAbsent(entry.getKey(), (k) -> new StagingTable(true)).addAll(entry.getValue());
+			}
+		}
+		return folded;
+	}
+
+	/**
+	 * The node is committing transactions, the rest of the records are archived after an interval
+	 * @return false if the process was stopped meanwhile
+	 */
+	private boolean waitForNextRun() {
+		if (thread != Thread.currentThread()) {
+			// called directly, not from the background thread
+			return false;
+		}
+		try {
+			Thread.sleep(interval);
+		} catch (InterruptedException e) {
+			return false;
+		}
+		return running;
+	}
+
 	/**
-	 * This method is called whenever there is an INSERT or UPDATE to a local SQL table, and should be called by the underlying databases
-	 * triggering mechanism. It updates the MUSIC/Cassandra tables (both dirty bits and actual data) corresponding to the SQL write.
-	 * Music propagates it to the other replicas.  If the local database is in the middle of a transaction, the updates to MUSIC are
-	 * delayed until the transaction is either committed or rolled back.
-	 *
-	 * @param tableName This is the table that has changed.
-	 * @param changedRow This is information about the row that has changed, an array of objects representing the data being inserted/updated
+	 * @return number of redo records that were archived since the process was created
 	 */
-	@SuppressWarnings("unused")
-	private void updateDirtyRowAndEntityTableInMusic(String tableName, JSONObject changedRow) {
-		//TODO: is this right? should we be saving updates at the client? we should leverage JDBC to handle this
-			TableInfo ti = dbi.getTableInfo(tableName);
-			mi.updateDirtyRowAndEntityTableInMusic(ti,tableName, changedRow);
+	public synchronized long getArchivedRecords() {
+		return archivedRecords;
 	}
 }
@@ -0,0 +1,247 @@
+package com.att.research.mdbc;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Properties;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.redo.RedoManager;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.StagingTable;
+import com.att.research.mdbc.tables.TransactionDigestCodec;
+import com.att.research.mdbc.tables.TxCommitProgress;
+
+/**
+ * Background process that finishes the commits that were left half done.
+ * <p>
+ * A commit has two steps, the write of its digest into MUSIC and the commit of the local database, and the process
+ * can fail or stop between them. The progress of each commit is kept in {@link TxCommitProgress} (and in its
+ * journal, so it survives a restart); the commits that were not updated for
+ * {@value Configuration#KEY_COMMIT_COMPLETER_IDLE_TIME} milliseconds are completed here, once their connection was
+ * closed or removed from the registry. The connection of a client is never used by the completer: the client could be
+ * running a statement or retrying the commit, and a rollback underneath would discard its transaction without notice.
+ * The connection to the local database of the completer is used instead.
+ * <ul>
+ * <li>If the digest is in MUSIC but the local commit did not happen, the digest is read back from its redo record and
+ * applied into the local database; the local transaction was discarded when its connection was closed. The
+ * {@link RedoGarbageCollector} keeps the redo records of the commits that did not complete, even after they were
+ * archived.</li>
+ * <li>If the local commit happened but the digest is not in MUSIC, the digest that was kept for the commit is written
+ * into MUSIC. When the local commit is done first (see {@link MusicSqlManager#capturesOnLocalCommit()}) the digest
+ * may not have been collected yet; it is then collected again from the state of the capture journaled around the
+ * local commit, see {@link com.att.research.mdbc.mixins.DBInterface#recaptureTxDigest(String)}. A commit recovered
+ * from the journal with only that state is sent if its transaction is found, the node stopped during its local
+ * commit.</li>
+ * </ul>
+ * The commits recovered from the journal are completed by {@link #recover()}, before the node accepts new work.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class CommitCompleter implements Runnable {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(CommitCompleter.class);
+
+	protected MusicInterface mi;
+	private final DatabasePartition partition;
+	private final TxCommitProgress progressKeeper;
+	private final RedoManager.DigestApplier applier;
+	private final DigestRecapturer recapturer;
+	private final long interval;
+	private final long idleTime;
+	private volatile boolean running;
+	private volatile Thread thread;
+	private long completedCommits;
+
+	/**
+	 * Collects again the digest of a transaction that was committed locally before MUSIC
+	 * @see com.att.research.mdbc.mixins.DBInterface#recaptureTxDigest(String)
+	 */
+	public interface DigestRecapturer {
+		HashMap<Range,StagingTable> recapture(String captureState) throws MDBCServiceException;
+	}
+
+	public CommitCompleter(MusicInterface mi, DatabasePartition partition, TxCommitProgress progressKeeper,
+			RedoManager.DigestApplier applier, Properties info) {
+		this(mi, partition, progressKeeper, applier, null, info);
+	}
+
+	/**
+	 * @param mi interface used to read and write the redo log
+	 * @param partition partition where the commits are written
+	 * @param progressKeeper progress of the commits of this node
+	 * @param applier operation used to apply a digest into the local database, through a connection of the completer
+	 * @param recapturer operation used to collect again the digest of a local commit, null if it is not supported
+	 * @param info properties with the configuration of the process
+	 */
+	public CommitCompleter(MusicInterface mi, DatabasePartition partition, TxCommitProgress progressKeeper,
+			RedoManager.DigestApplier applier, DigestRecapturer recapturer, Properties info) {
+		this.mi = mi;
+		this.partition = partition;
+		this.progressKeeper = progressKeeper;
+		this.applier = applier;
+		this.recapturer = recapturer;
+		this.interval = Long.parseLong(info.getProperty(Configuration.KEY_COMMIT_COMPLETER_INTERVAL, Configuration.COMMIT_COMPLETER_INTERVAL_DEFAULT));
+		this.idleTime = Long.parseLong(info.getProperty(Configuration.KEY_COMMIT_COMPLETER_IDLE_TIME, Configuration.COMMIT_COMPLETER_IDLE_TIME_DEFAULT));
+		this.running = false;
+		this.completedCommits = 0;
+	}
+
+	/**
+	 * Starts the background thread, it does nothing if the interval is 0
+	 */
+	public synchronized void start() {
+		if (interval <= 0 || thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "mdbc-commit-completer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				complete();
+			} catch (RuntimeException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Completion of the pending commits failed: "+e);
+			}
+		}
+	}
+
+	/**
+	 * Completes all the commits that did not complete, without waiting for them to be idle. It is used at startup,
+	 * for the commits recovered from the journal.
+	 * @return number of commits that were completed
+	 */
+	public int recover() {
+		return complete(0);
+	}
+
+	/**
+	 * Completes the commits that were not updated for the idle time
+	 * @return number of commits that were completed
+	 */
+	public int complete() {
+		return complete(idleTime);
+	}
+
+	private synchronized int complete(long idle) {
+		int completed = 0;
+		for (String txId : progressKeeper.getIncompleteCommits(idle)) {
+			try {
+				if (complete(txId)) {
+					completed++;
+				}
+			} catch (MDBCServiceException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Commit of "+txId+" could not be completed, it is retried later: "+e.getMessage());
+			}
+		}
+		completedCommits += completed;
+		return completed;
+	}
+
+	/**
+	 * @return true if the commit was completed, or nothing can be done for it
+	 */
+	private boolean complete(String txId) throws MDBCServiceException {
+		if (isOpen(progressKeeper.getConnection(txId))) {
+			// the client can still commit or roll back the transaction, or is using the connection
+			return false;
+		}
+		boolean sqlDone = progressKeeper.isSQLDone(txId);
+		boolean musicDone = progressKeeper.isMusicDone(txId) || progressKeeper.isRecordIdAssigned(txId);
+		if (musicDone && !sqlDone) {
+			RedoRecordId record = progressKeeper.getRecordId(txId);
+			if (record == null) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Commit of "+txId+" is in MUSIC but its redo record is unknown, the local database needs to be synchronized");
+				progressKeeper.completed(txId);
+				return true;
+			}
+			// the redo record is the transaction that was committed, the local one was discarded with its connection
+			applier.apply(mi.getTransactionDigest(record));
+			progressKeeper.setSQLDone(txId);
+			if (!progressKeeper.isMusicDone(txId)) {
+				progressKeeper.setMusicDone(txId);
+			}
+		}
+		else if (sqlDone && !musicDone) {
+			HashMap<Range,StagingTable> digest;
+			byte[] encoded = progressKeeper.getDigest(txId);
+			String captureState = progressKeeper.getCaptureState(txId);
+			if (encoded != null) {
+				try {
+					digest = TransactionDigestCodec.decode(encoded);
+				} catch (IOException e) {
+					logger.error(EELFLoggerDelegate.errorLogger, "Digest of the commit of "+txId+" is not valid: "+e.getMessage());
+					progressKeeper.completed(txId);
+					return true;
+				}
+			}
+			else if (captureState != null && recapturer != null) {
+				// the local commit happened but its digest was not collected
+				digest = recapturer.recapture(captureState);
+			}
+			else {
+				//\TODO the digest of the local commit was lost, the changes can only be recovered from the local database
+				logger.error(EELFLoggerDelegate.errorLogger, "Commit of "+txId+" is only in the local database and its digest was lost, MUSIC needs to be synchronized");
+				progressKeeper.completed(txId);
+				return true;
+			}
+			mi.commitLog(null, partition, digest, txId, progressKeeper);
+			progressKeeper.setMusicDone(txId);
+		}
+		else if (sqlDone) {
+			// the redo record was written but the commit failed before it was marked as done
+			progressKeeper.setMusicDone(txId);
+		}
+		else if (progressKeeper.getCaptureState(txId) != null && recapturer != null) {
+			// the node stopped around the local commit, the transaction is in the capture only if it was committed
+			HashMap<Range,StagingTable> digest = recapturer.recapture(progressKeeper.getCaptureState(txId));
+			if (!digest.isEmpty()) {
+				mi.commitLog(null, partition, digest, txId, progressKeeper);
+				progressKeeper.setSQLDone(txId);
+				progressKeeper.setMusicDone(txId);
+			}
+		}
+		progressKeeper.completed(txId);
+		logger.info(EELFLoggerDelegate.applicationLogger, "Commit of "+txId+" was completed in the background");
+		return true;
+	}
+
+	/**
+	 * @return true if the commit belongs to a connection of a client that is still open
+	 */
+	private static boolean isOpen(Connection conn) {
+		if (conn == null) {
+			return false;
+		}
+		try {
+			return !conn.isClosed();
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	public synchronized long getCompletedCommits() {
+		return completedCommits;
+	}
+}
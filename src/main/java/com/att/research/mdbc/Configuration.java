@@ -13,6 +13,60 @@ public class Configuration {
     public static final String DB_MIXIN_DEFAULT     = "mysql";//"h2";
     /** The name of the default mixin to use for the MusicInterface. */
     public static final String MUSIC_MIXIN_DEFAULT  = "cassandra2";//"cassandra2";
+    /** The property name to use to enable/disable coalescing of the operations in the staging tables. */
+    public static final String KEY_COALESCE_STAGING = "staging_coalesce";
+    /** By default only the net effect of the operations on each key is kept in the staging tables */
+    public static final String COALESCE_STAGING_DEFAULT = "true";
+    /** The property name to use to set the minimum time (in milliseconds) between checks of the schema checksum. */
+    public static final String KEY_SCHEMA_CHECK_INTERVAL = "schema_check_interval";
+    /** By default the schema is checked for changes done outside of MDBC every 10 seconds, 0 disables the checks */
+    public static final String SCHEMA_CHECK_INTERVAL_DEFAULT = "10000";
+    /** The property name to use to set the number of threads used by the redo recovery. */
+    public static final String KEY_REDO_RECOVERY_THREADS = "redo_recovery_threads";
+    /** By default the redo recovery uses one thread per core */
+    public static final String REDO_RECOVERY_THREADS_DEFAULT = "0";
+    /** The property name to use to set the maximum memory (in bytes) used by the digests prefetched during the redo recovery. */
+    public static final String KEY_REDO_PREFETCH_MAX_BYTES = "redo_prefetch_max_bytes";
+    /** By default the prefetched digests use at most 256 MB, 0 removes the bound */
+    public static final String REDO_PREFETCH_MAX_BYTES_DEFAULT = "268435456";
+    /** The property name to use to set the time (in milliseconds) between runs of the archive process. */
+    public static final String KEY_ARCHIVE_INTERVAL = "archive_interval";
+    /** By default the redo records are archived into the data tables every 10 seconds, 0 disables the archive process */
+    public static final String ARCHIVE_INTERVAL_DEFAULT = "10000";
+    /** The property name to use to set the number of redo records that are folded together by the archive process. */
+    public static final String KEY_ARCHIVE_BATCH_SIZE = "archive_batch_size";
+    /** By default the archive process folds 100 redo records into each write of the data tables */
+    public static final String ARCHIVE_BATCH_SIZE_DEFAULT = "100";
+    /** The property name to use to set the time (in milliseconds) between runs of the garbage collection of the redo log. */
+    public static final String KEY_GC_INTERVAL = "gc_interval";
+    /** By default the archived redo records and applied TIT rows are deleted every minute, 0 disables the garbage collection */
+    public static final String GC_INTERVAL_DEFAULT = "60000";
+    /** The property name to use to set the number of redo records deleted together by the garbage collection. */
+    public static final String KEY_GC_BATCH_SIZE = "gc_batch_size";
+    /** By default the garbage collection deletes 100 redo records per batch */
+    public static final String GC_BATCH_SIZE_DEFAULT = "100";
+    /** The property name to use to set the maximum number of redo records deleted per second by the garbage collection. */
+    public static final String KEY_GC_MAX_DELETES_PER_SECOND = "gc_max_deletes_per_second";
+    /** By default the garbage collection deletes at most 1000 redo records per second, 0 removes the limit */
+    public static final String GC_MAX_DELETES_PER_SECOND_DEFAULT = "1000";
+    /** The property name to use to set the directory of the journal of the commit progress, the journal is disabled if it is not set. */
+    public static final String KEY_COMMIT_JOURNAL_DIRECTORY = "commit_journal_directory";
+    /** The property name to use to set the time (in milliseconds) between runs of the commit completer. */
+    public static final String KEY_COMMIT_COMPLETER_INTERVAL = "commit_completer_interval";
+    /** By default the commits left half done are checked every 10 seconds, 0 disables the background completion */
+    public static final String COMMIT_COMPLETER_INTERVAL_DEFAULT = "10000";
+    /** The property name to use to set the time (in milliseconds) that a commit needs to be idle before it is completed in the background. */
+    public static final String KEY_COMMIT_COMPLETER_IDLE_TIME = "commit_completer_idle_time";
+    /** By default a commit is completed in the background after 2 minutes without progress, longer than the lease acquire timeout */
+    public static final String COMMIT_COMPLETER_IDLE_TIME_DEFAULT = "120000";
+    /** The property name to use to set the time (in milliseconds) between runs of the reaper of idle connections. */
+    public static final String KEY_REAPER_INTERVAL = "connection_reaper_interval";
+    /** By default the idle connections are checked every minute, 0 disables the reaper */
+    public static final String REAPER_INTERVAL_DEFAULT = "60000";
+    /** The property name to use to set the time (in milliseconds) after which a connection without activity is rolled back and closed. */
+    public static final String KEY_CONNECTION_IDLE_TIMEOUT = "connection_idle_timeout";
+    /** By default a connection is closed after 30 minutes without activity */
+    public static final String CONNECTION_IDLE_TIMEOUT_DEFAULT = "1800000";
     /** Default cassandra ulr*/
     public static final String CASSANDRA_URL_DEFAULT = "localhost";//"cassandra2";
 }
@@ -0,0 +1,177 @@
+package com.att.research.mdbc;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.tables.TxCommitProgress;
+
+/**
+ * Background process that frees the connections and transactions abandoned by their clients.
+ * <p>
+ * The entries of {@link TxCommitProgress} and the connections to the local database are only released when the client
+ * closes its connection. A connection that is closed underneath, or that did not run a statement, a commit or a
+ * rollback for {@value Configuration#KEY_CONNECTION_IDLE_TIMEOUT} milliseconds, is closed (which discards its local
+ * transaction and its staging tables) and removed from the registry. The reaper never rolls back a connection that
+ * stays open: a client that is still using it would go on with a transaction discarded underneath, while after the
+ * close any use of the connection fails. Progress entries that do not belong to any registered
+ * connection, and were not updated for the same time, are deleted; the commits that did not complete are left to the
+ * {@link CommitCompleter}. The process runs every {@value Configuration#KEY_REAPER_INTERVAL} milliseconds, and the
+ * counts of each run are published in the metrics log.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class ConnectionReaper implements Runnable {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(ConnectionReaper.class);
+
+	/**
+	 * Connections that are open in the server
+	 */
+	public interface ConnectionRegistry {
+		/**
+		 * @return the open connections, indexed by their id
+		 */
+		Map<String,MdbcConnection> getConnections();
+
+		/**
+		 * Closes the connection and frees its resources
+		 */
+		void closeConnection(String id);
+	}
+
+	private final ConnectionRegistry registry;
+	private final TxCommitProgress progressKeeper;
+	private final Set<String> excluded;
+	private final long interval;
+	private final long idleTimeout;
+	private volatile boolean running;
+	private volatile Thread thread;
+	private long reapedConnections;
+	private long rolledBackTransactions;
+	private long removedProgressEntries;
+
+	/**
+	 * @param registry connections that are open in the server
+	 * @param progressKeeper progress of the transactions of the server
+	 * @param excluded ids of the internal connections that are never reaped
+	 * @param info properties with the configuration of the process
+	 */
+	public ConnectionReaper(ConnectionRegistry registry, TxCommitProgress progressKeeper, Set<String> excluded, Properties info) {
+		this.registry = registry;
+		this.progressKeeper = progressKeeper;
+		this.excluded = new HashSet<>(excluded);
+		this.interval = Long.parseLong(info.getProperty(Configuration.KEY_REAPER_INTERVAL, Configuration.REAPER_INTERVAL_DEFAULT));
+		this.idleTimeout = Long.parseLong(info.getProperty(Configuration.KEY_CONNECTION_IDLE_TIMEOUT, Configuration.CONNECTION_IDLE_TIMEOUT_DEFAULT));
+		this.running = false;
+		this.reapedConnections = 0;
+		this.rolledBackTransactions = 0;
+		this.removedProgressEntries = 0;
+	}
+
+	/**
+	 * Starts the background thread, it does nothing if the interval is 0
+	 */
+	public synchronized void start() {
+		if (interval <= 0 || thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "mdbc-connection-reaper");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				reap();
+			} catch (RuntimeException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Reaping of the idle connections failed: "+e);
+			}
+		}
+	}
+
+	/**
+	 * Closes the idle connections and deletes the progress entries that were abandoned
+	 * @return number of connections that were closed
+	 */
+	public synchronized int reap() {
+		long now = System.currentTimeMillis();
+		int connections = 0;
+		int rolledBack = 0;
+		for (Map.Entry<String,MdbcConnection> e : registry.getConnections().entrySet()) {
+			String id = e.getKey();
+			MdbcConnection conn = e.getValue();
+			if (excluded.contains(id) || !isAbandoned(conn, now)) {
+				continue;
+			}
+			if (conn.hasPendingChanges()) {
+				rolledBack++;
+			}
+			registry.closeConnection(id);
+			connections++;
+			logger.info(EELFLoggerDelegate.applicationLogger, "Idle connection "+id+" was closed");
+		}
+		int entries = 0;
+		Set<String> registered = registry.getConnections().keySet();
+		Set<String> incomplete = new HashSet<>(progressKeeper.getIncompleteCommits(0));
+		for (String txId : progressKeeper.getTransactionIds()) {
+			if (registered.contains(txId) || excluded.contains(txId) || incomplete.contains(txId)) {
+				continue;
+			}
+			if (now - progressKeeper.getLastUpdate(txId) >= idleTimeout) {
+				progressKeeper.deleteTxProgress(txId);
+				entries++;
+			}
+		}
+		reapedConnections += connections;
+		rolledBackTransactions += rolledBack;
+		removedProgressEntries += entries;
+		logger.info(EELFLoggerDelegate.metricsLogger, "Connection reaper closed "+connections+" connections, rolled back "+rolledBack
+				+" transactions and removed "+entries+" progress entries; open connections: "+registered.size()
+				+", totals: "+reapedConnections+" connections, "+rolledBackTransactions+" transactions, "+removedProgressEntries+" entries");
+		return connections;
+	}
+
+	private boolean isAbandoned(MdbcConnection conn, long now) {
+		try {
+			if (conn.isClosed()) {
+				return true;
+			}
+		} catch (SQLException e) {
+			return true;
+		}
+		return now - conn.getLastActivity() >= idleTimeout;
+	}
+
+	public synchronized long getReapedConnections() {
+		return reapedConnections;
+	}
+
+	public synchronized long getRolledBackTransactions() {
+		return rolledBackTransactions;
+	}
+
+	public synchronized long getRemovedProgressEntries() {
+		return removedProgressEntries;
+	}
+}
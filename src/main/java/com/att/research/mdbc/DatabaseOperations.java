@@ -2,6 +2,12 @@ package com.att.research.mdbc;
 
 import com.att.research.exceptions.MDBCServiceException;
 import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.TupleType;
+import com.datastax.driver.core.TupleValue;
 import org.onap.music.datastore.PreparedQueryObject;
 import org.onap.music.exceptions.MusicLockingException;
 import org.onap.music.exceptions.MusicQueryException;
@@ -10,10 +16,20 @@ import org.onap.music.main.MusicPureCassaCore;
 import org.onap.music.main.ResultType;
 import org.onap.music.main.ReturnType;
 
+import java.math.BigInteger;
 import java.util.*;
 
 public class DatabaseOperations {
     private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(DatabaseOperations.class);
+    //Types of the tuples of the redo history and transaction information tables, all the values are sent as bind
+    //parameters so the text of the statements never changes
+    private static final TupleType REDO_HISTORY_ENTRY = TupleType.of(ProtocolVersion.NEWEST_SUPPORTED, CodecRegistry.DEFAULT_INSTANCE,
+            DataType.text(), DataType.uuid());
+    private static final TupleType REDO_RECORD = TupleType.of(ProtocolVersion.NEWEST_SUPPORTED, CodecRegistry.DEFAULT_INSTANCE,
+            DataType.text(), DataType.varint());
+    private static final TupleType TIT_REDO_ENTRY = TupleType.of(ProtocolVersion.NEWEST_SUPPORTED, CodecRegistry.DEFAULT_INSTANCE,
+            DataType.text(), REDO_RECORD);
+
     /**
      * This functions is used to generate cassandra uuid
      * @return a random UUID that can be used for fields of type uuid
@@ -22,6 +38,24 @@ public class DatabaseOperations {
 		return UUID.randomUUID().toString();
 	}
 
+    /**
+     * @param redoTable name of the tit table
+     * @param redoIndex uuid of the tit row
+     * @return value of an element of the previousredo set in the redo history table
+     */
+    public static TupleValue createRedoHistoryEntry(String redoTable, String redoIndex) {
+        return REDO_HISTORY_ENTRY.newValue(redoTable, UUID.fromString(redoIndex));
+    }
+
+    /**
+     * @param redoRecordTable name of the redo records table
+     * @param record key of the row in the redo records table
+     * @return value of an element of the redo list in the transaction information table
+     */
+    public static TupleValue createTitRedoEntry(String redoRecordTable, RedoRecordId record) {
+        return TIT_REDO_ENTRY.newValue(redoRecordTable, REDO_RECORD.newValue(record.leaseId, new BigInteger(record.commitId)));
+    }
+
     /**
      * This functions returns the primary key used to managed a specific row in the TableToPartition tables in Music
      * @param namespace namespace where the TableToPartition resides
@@ -46,12 +80,10 @@ public class DatabaseOperations {
                 .append(namespace)
                 .append('.')
                 .append(tableToPartitionTableName)
-                .append(" (tablename) VALUES ")
-                .append("('")
-                .append(tableName)
-                .append("');");
+                .append(" (tablename) VALUES (?);");
         PreparedQueryObject query = new PreparedQueryObject();
         query.appendQueryString(insert.toString());
+        query.addValue(tableName);
         try {
             executedLockedPut(namespace,tableToPartitionTableName,tableName,query,lockId,null);
         } catch (MDBCServiceException e) {
@@ -75,14 +107,12 @@ public class DatabaseOperations {
                 .append(namespace)
                 .append('.')
                 .append(tableToPartitionTableName)
-                .append(" SET previouspartitions = previouspartitions + {")
-                .append(newPartition)
-                .append("}, partition = " )
-                .append(newPartition)
-                .append(" WHERE tablename = '")
-                .append(table)
-                .append("';");
+                .append(" SET previouspartitions = previouspartitions + ?, partition = ? WHERE tablename = ?;");
         query.appendQueryString(update.toString());
+        UUID partition = UUID.fromString(newPartition);
+        query.addValue(Collections.singleton(partition));
+        query.addValue(partition);
+        query.addValue(table);
         try {
             executedLockedPut(namespace,tableToPartitionTableName,table,query,lockId,null);
         } catch (MDBCServiceException e) {
@@ -112,25 +142,12 @@ public class DatabaseOperations {
                 .append(namespace)
                 .append('.')
                 .append(partitionInfoTableName)
-                .append(" (partition,replicationfactor,tables) VALUES ")
-                .append("(")
-                .append(id)
-                .append(",")
-                .append(replicationFactor)
-                .append(",{");
-        boolean first = true;
-        for(String table: tables){
-            if(!first){
-                insert.append(",");
-            }
-            first = false;
-            insert.append("'")
-                    .append(table)
-                    .append("'");
-        }
-        insert.append("});");
+                .append(" (partition,replicationfactor,tables) VALUES (?,?,?);");
         PreparedQueryObject query = new PreparedQueryObject();
         query.appendQueryString(insert.toString());
+        query.addValue(UUID.fromString(id));
+        query.addValue(replicationFactor);
+        query.addValue(new HashSet<>(tables));
         try {
             executedLockedPut(namespace,partitionInfoTableName,id,query,lockId,null);
         } catch (MDBCServiceException e) {
@@ -157,16 +174,12 @@ public class DatabaseOperations {
                 .append(namespace)
                 .append('.')
                 .append(partitionInfoTableName)
-                .append(" SET currentowner='")
-                .append(newOwner)
-                .append("', latesttitindex=")
-                .append(newTitRow.getRedoRowIndex())
-                .append(", latesttittable='")
-                .append(newTitRow.getRedoTableName())
-                .append("' WHERE partition = ")
-                .append(partitionId)
-                .append(";");
+                .append(" SET currentowner = ?, latesttitindex = ?, latesttittable = ? WHERE partition = ?;");
         query.appendQueryString(update.toString());
+        query.addValue(newOwner);
+        query.addValue(UUID.fromString(newTitRow.getRedoRowIndex()));
+        query.addValue(newTitRow.getRedoTableName());
+        query.addValue(UUID.fromString(partitionId));
         try {
             executedLockedPut(namespace,partitionInfoTableName,partitionId,query,lockId,null);
         } catch (MDBCServiceException e) {
@@ -200,31 +213,17 @@ public class DatabaseOperations {
                 .append(namespace)
                 .append('.')
                 .append(redoHistoryTableName)
-                .append(" (partition,redotable,redoindex,previousredo) VALUES ")
-                .append("(")
-                .append(partitionId)
-                .append(",'")
-                .append(currentRow.getRedoTableName())
-                .append("',")
-                .append(currentRow.getRedoRowIndex())
-                .append(",{");
-        boolean first = true;
+                .append(" (partition,redotable,redoindex,previousredo) VALUES (?,?,?,?);");
+        Set<TupleValue> parents = new HashSet<>();
         for(RedoRow parent: parentsRows){
-            if(!first){
-                insert.append(",");
-            }
-            else{
-                first = false;
-            }
-            insert.append("('")
-                    .append(parent.getRedoTableName())
-                    .append("',")
-                    .append(parent.getRedoRowIndex())
-                    .append("),");
+            parents.add(createRedoHistoryEntry(parent.getRedoTableName(), parent.getRedoRowIndex()));
         }
-        insert.append("});");
         PreparedQueryObject query = new PreparedQueryObject();
         query.appendQueryString(insert.toString());
+        query.addValue(UUID.fromString(partitionId));
+        query.addValue(currentRow.getRedoTableName());
+        query.addValue(UUID.fromString(currentRow.getRedoRowIndex()));
+        query.addValue(parents);
         try {
             executedLockedPut(namespace,redoHistoryTableName,primaryKey,query,lockId,null);
         } catch (MDBCServiceException e) {
@@ -246,14 +245,11 @@ public class DatabaseOperations {
                 .append(namespace)
                 .append('.')
                 .append(titTableName)
-                .append(" (id,applied,latestapplied,partition,redo) VALUES ")
-                .append("(")
-                .append(id)
-                .append(",false,-1,")
-                .append(partitionId)
-                .append(",[]);");
+                .append(" (id,applied,latestapplied,partition,redo) VALUES (?,false,-1,?,[]);");
         PreparedQueryObject query = new PreparedQueryObject();
         query.appendQueryString(insert.toString());
+        query.addValue(UUID.fromString(id));
+        query.addValue(UUID.fromString(partitionId));
         try {
             executedLockedPut(namespace,titTableName,id,query,lockId,null);
         } catch (MDBCServiceException e) {
@@ -297,7 +293,9 @@ public class DatabaseOperations {
 	 * This function creates the RedoRecords table. It contain information related to each transaction committed
 	 * 	* LeaseId: id associated with the lease, text
 	 * 	* LeaseCounter: transaction number under this lease, bigint \TODO this may need to be a varint later
-	 *  * TransactionDigest: text that contains all the changes in the transaction
+	 * 	* Chunk: index of this part of the transaction digest, big digests are split in multiple rows
+	 * 	* Chunks: total number of chunks for the transaction digest, static for each (leaseid,leasecounter)
+	 *  * TransactionDigest: blob that contains all the changes in the transaction (or a chunk of it)
 	 */
 	public static void CreateRedoRecordsTable(int redoTableNumber, String musicNamespace, String redoRecordTableName) throws MDBCServiceException {
 		String tableName = redoRecordTableName;
@@ -308,11 +306,13 @@ public class DatabaseOperations {
 			table.append(Integer.toString(redoTableNumber));
 			tableName=table.toString();
 		}
-		String priKey = "leaseid,leasecounter";
+		String priKey = "(leaseid,leasecounter),chunk";
 		StringBuilder fields = new StringBuilder();
 		fields.append("leaseid text, ");
 		fields.append("leasecounter varint, ");
-		fields.append("transactiondigest text ");//notice lack of ','
+		fields.append("chunk int, ");
+		fields.append("chunks int static, ");
+		fields.append("transactiondigest blob ");//notice lack of ','
 		String cql = String.format("CREATE TABLE IF NOT EXISTS %s.%s (%s, PRIMARY KEY (%s));", musicNamespace, tableName, fields, priKey);
         try {
             executeMusicWriteQuery(musicNamespace,tableName,cql);
@@ -322,6 +322,45 @@ public class DatabaseOperations {
         }
     }
 
+	/**
+	 * CREATE TABLE IF NOT EXISTS keeps a redo records table created by an older version of MDBC, which stored the
+	 * whole digest as text in a single row per (leaseid,leasecounter). The chunked records can not be written into
+	 * it, so the initialization fails instead of failing every commit
+	 * @param columns the type of each column of the existing table, by column name
+	 */
+	public static void checkRedoRecordsTable(String musicNamespace, String redoRecordTableName, Map<String,String> columns) throws MDBCServiceException {
+		String digestType = columns.get("transactiondigest");
+		if(!"blob".equals(digestType) || !"int".equals(columns.get("chunk")) || !"int".equals(columns.get("chunks"))) {
+			String msg = "Redo records table "+musicNamespace+"."+redoRecordTableName+" has the schema of an older version"
+				+" (transactiondigest "+digestType+", columns "+columns.keySet()+"); drop it, or move its records, before"
+				+" starting this version";
+			logger.error(EELFLoggerDelegate.errorLogger, msg);
+			throw new MDBCServiceException(msg);
+		}
+	}
+
+	/**
+	 * This function creates the Lease Heartbeat table. It contains the last heartbeat published by each lock reference
+	 * 	* LockKey: table and key of the locked row, text
+	 * 	* LockId: reference in the lock queue of the row, text
+	 * 	* Heartbeat: value published by the holder each time it renews its lease, bigint
+	 */
+	public static void CreateLeaseHeartbeatTable(String musicNamespace, String leaseHeartbeatTableName) throws MDBCServiceException {
+		String tableName = leaseHeartbeatTableName;
+		String priKey = "lockkey,lockid";
+		StringBuilder fields = new StringBuilder();
+		fields.append("lockkey text, ");
+		fields.append("lockid text, ");
+		fields.append("heartbeat bigint ");
+		String cql = String.format("CREATE TABLE IF NOT EXISTS %s.%s (%s, PRIMARY KEY (%s));", musicNamespace, tableName, fields, priKey);
+        try {
+            executeMusicWriteQuery(musicNamespace,tableName,cql);
+        } catch (MDBCServiceException e) {
+            logger.error("Initialization error: Failure to create lease heartbeat table");
+            throw(e);
+        }
+    }
+
 	/**
 	 * This function creates the Table To Partition table. It contain information related to
 	 */
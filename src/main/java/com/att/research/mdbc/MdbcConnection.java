@@ -15,6 +15,7 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
@@ -26,6 +27,7 @@ import com.att.research.logging.format.AppMessages;
 import com.att.research.logging.format.ErrorSeverity;
 import com.att.research.logging.format.ErrorTypes;
 import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.tables.StagingTable;
 import com.att.research.mdbc.tables.TxCommitProgress;
 
 
@@ -122,24 +124,34 @@ public class MdbcConnection implements Connection {
 		boolean b = conn.getAutoCommit();
 		if (b != autoCommit) {
 		    if(progressKeeper!=null) progressKeeper.commitRequested(id);
-			try {
-				mgr.setAutoCommit(autoCommit,id,progressKeeper,partition);
-				if(progressKeeper!=null)
-                    progressKeeper.setMusicDone(id);
-			} catch (MDBCServiceException e) {
-				logger.error(EELFLoggerDelegate.errorLogger, "Commit to music failed", AppMessages.UNKNOWNERROR, ErrorTypes.UNKNOWN, ErrorSeverity.FATAL);
-				throw new SQLException("Failure commiting to MUSIC");
+			if(mgr.capturesOnLocalCommit()) {
+				// the changes are only available to the mixin after the local commit
+				commitLocalFirst(() -> conn.setAutoCommit(autoCommit), () -> setAutoCommitInMusic(autoCommit));
+			}
+			else {
+				setAutoCommitInMusic(autoCommit);
+				conn.setAutoCommit(autoCommit);
+				if(progressKeeper!=null) {
+					progressKeeper.setSQLDone(id);
+				}
 			}
-			conn.setAutoCommit(autoCommit);
-            if(progressKeeper!=null) {
-                progressKeeper.setSQLDone(id);
-            }
             if(progressKeeper!=null&&progressKeeper.isComplete(id)){
                 progressKeeper.reinitializeTxProgress(id);
             }
 		}
 	}
 
+	private void setAutoCommitInMusic(boolean autoCommit) throws SQLException {
+		try {
+			mgr.setAutoCommit(autoCommit,id,progressKeeper,partition);
+			if(progressKeeper!=null)
+                progressKeeper.setMusicDone(id);
+		} catch (MDBCServiceException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Commit to music failed", AppMessages.UNKNOWNERROR, ErrorTypes.UNKNOWN, ErrorSeverity.FATAL);
+			throw new SQLException("Failure commiting to MUSIC: "+e.getMessage(), e);
+		}
+	}
+
 	@Override
 	public boolean getAutoCommit() throws SQLException {
 		return conn.getAutoCommit();
@@ -154,27 +166,104 @@ public class MdbcConnection implements Connection {
 			progressKeeper.commitRequested(id);
 		}
 
+		if(mgr.capturesOnLocalCommit()) {
+			// the changes are only available to the mixin after the local commit
+			commitLocalFirst(conn::commit, this::commitInMusic);
+		}
+		else {
+			commitInMusic();
+			conn.commit();
+			if(progressKeeper != null) {
+				progressKeeper.setSQLDone(id);
+			}
+		}
+		//MusicMixin.releaseZKLocks(MusicMixin.currentLockMap.get(getConnID()));
+        if(progressKeeper.isComplete(id)){
+		    progressKeeper.reinitializeTxProgress(id);
+        }
+	}
+
+	private interface SQLStep {
+		void run() throws SQLException;
+	}
+
+	/**
+	 * Commits the local database before MUSIC, for the mixins that only capture the changes on the local commit.
+	 * <p>
+	 * The state of the capture is journaled right before and after the local commit. Once the local commit is done
+	 * the transaction is not reported as failed: if the commit into MUSIC fails, it is handed over to the
+	 * {@link CommitCompleter}, which writes into MUSIC the digest kept by the commit, or collects it again from the
+	 * journaled state of the capture. Without a durable journal there is no completer and the failure is reported.
+	 * </p>
+	 */
+	private void commitLocalFirst(SQLStep localCommit, SQLStep musicCommit) throws SQLException {
+		try {
+			mgr.preLocalCommit(id, progressKeeper);
+		} catch (MDBCServiceException e) {
+			throw new SQLException("Failure preparing the local commit: "+e.getMessage(), e);
+		}
+		localCommit.run();
+		if(progressKeeper != null) {
+			progressKeeper.setSQLDone(id);
+		}
+		mgr.postLocalCommit(id, progressKeeper);
+		try {
+			musicCommit.run();
+		} catch (SQLException e) {
+			if(progressKeeper == null || !progressKeeper.isDurable()) {
+				throw e;
+			}
+			logger.error(EELFLoggerDelegate.errorLogger, "Commit of "+id+" is only in the local database, it is written into MUSIC in the background: "+e.getMessage());
+			progressKeeper.reinitializeTxProgress(id);
+		}
+	}
+
+	private void commitInMusic() throws SQLException {
 		try {
 			mgr.commit(id,progressKeeper,partition);
 		} catch (MDBCServiceException e) {
 			//If the commit fail, then a new commitId should be used 
 			logger.error(EELFLoggerDelegate.errorLogger, "Commit to music failed", AppMessages.UNKNOWNERROR, ErrorTypes.UNKNOWN, ErrorSeverity.FATAL);
-			throw new SQLException("Failure commiting to MUSIC");
+			throw new SQLException("Failure commiting to MUSIC: "+e.getMessage(), e);
 		}
 
 		if(progressKeeper != null) {
 			progressKeeper.setMusicDone(id);
 		}
+	}
 
-		conn.commit();
+	public String getId() {
+		return id;
+	}
 
-		if(progressKeeper != null) {
-			progressKeeper.setSQLDone(id);
-		}
-		//MusicMixin.releaseZKLocks(MusicMixin.currentLockMap.get(getConnID()));
-        if(progressKeeper.isComplete(id)){
-		    progressKeeper.reinitializeTxProgress(id);
-        }
+	/**
+	 * @return last time (ms since the epoch) that the connection ran a statement, a commit or a rollback
+	 */
+	public long getLastActivity() {
+		return mgr.getLastActivity();
+	}
+
+	/**
+	 * @return true if the connection has changes in its staging tables that were not committed
+	 */
+	public boolean hasPendingChanges() {
+		return mgr.hasPendingChanges();
+	}
+
+	/**
+	 * Applies a transaction digest read from MUSIC into the local database, see {@link MusicSqlManager#applyTxDigest(HashMap)}
+	 * @throws MDBCServiceException if the digest can not be applied
+	 */
+	public void applyTxDigest(HashMap<Range,StagingTable> digest) throws MDBCServiceException {
+		mgr.applyTxDigest(digest);
+	}
+
+	/**
+	 * Collects again the digest of a transaction committed locally, see {@link MusicSqlManager#recaptureTxDigest(String)}
+	 * @throws MDBCServiceException if the changes can not be read
+	 */
+	public HashMap<Range,StagingTable> recaptureTxDigest(String captureState) throws MDBCServiceException {
+		return mgr.recaptureTxDigest(captureState);
 	}
 
 	@Override
@@ -184,10 +273,14 @@ public class MdbcConnection implements Connection {
 		progressKeeper.reinitializeTxProgress(id);
 	}
 
+	/**
+	 * Closes the connection, its uncommitted transaction is discarded with its staged changes
+	 */
 	@Override
 	public void close() throws SQLException {
 	    logger.debug("Closing mdbc connection with id:"+id);
 		if (mgr != null) {
+			mgr.rollback();
             logger.debug("Closing mdbc manager with id:"+id);
 			mgr.close();
 		}
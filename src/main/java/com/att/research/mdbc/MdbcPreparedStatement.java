@@ -41,20 +41,31 @@ public class MdbcPreparedStatement extends MdbcStatement implements PreparedStat
 
 	final String sql;			// holds the sql statement if prepared statement
 	String[] params;			// holds the parameters if prepared statement, indexing starts at 1
+	final StatementInfo info;	// metadata of the prepared statement, kept for the lifetime of the statement
 
 
 	public MdbcPreparedStatement(Statement stmt, MusicSqlManager m) {
 		super(stmt, m);
 		this.sql = null;
+		this.info = null;
 	}
 
 	public MdbcPreparedStatement(Statement stmt, String sql, MusicSqlManager mgr) {
 		super(stmt, sql, mgr);
 		this.sql = sql;
+		this.info = StatementCache.get(sql);
 		//indexing starts at 1
 		params = new String[StringUtils.countMatches(sql, "?")+1];
 	}
 	
+	@Override
+	protected StatementInfo statementInfo(String sql) {
+		if (info != null && this.sql.equals(sql)) {
+			return info;
+		}
+		return super.statementInfo(sql);
+	}
+
 	@Override
 	public <T> T unwrap(Class<T> iface) throws SQLException {
 		return stmt.unwrap(iface);
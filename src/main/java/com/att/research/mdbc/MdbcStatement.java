@@ -402,8 +402,16 @@ public class MdbcStatement implements Statement {
 		return stmt.isCloseOnCompletion();
 	}
 	
+	/**
+	 * @param sql the statement
+	 * @return the metadata of the statement, from the {@link StatementCache}
+	 */
+	protected StatementInfo statementInfo(String sql) {
+		return StatementCache.get(sql);
+	}
+
 	protected void synchronizeTables(String sql)  {
-		if (sql == null || sql.trim().toLowerCase().startsWith("create")) {
+		if (sql == null || statementInfo(sql).isDDL()) {
 			if (mgr != null) {
 				try {
 					mgr.synchronizeTables();
@@ -1,10 +1,12 @@
 package com.att.research.mdbc;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -14,7 +16,9 @@ import com.att.research.mdbc.mixins.DBInterface;
 import com.att.research.mdbc.mixins.MixinFactory;
 import com.att.research.mdbc.mixins.MusicInterface;
 import com.att.research.mdbc.mixins.Utils;
+import com.att.research.mdbc.redo.RedoManager;
 import com.att.research.mdbc.tables.StagingTable;
+import com.att.research.mdbc.tables.TransactionDigestCodec;
 import com.att.research.mdbc.tables.TxCommitProgress;
 import com.att.research.exceptions.MDBCServiceException;
 import com.att.research.exceptions.QueryException;
@@ -47,6 +51,9 @@ public class MusicSqlManager {
 	private final Set<String> table_set;
 	private final HashMap<Range,StagingTable> transactionDigest;
 	private boolean autocommit;			// a copy of the autocommit flag from the JDBC Connection
+	private final int redoRecoveryThreads;
+	private final long redoPrefetchMaxBytes;
+	private volatile long lastActivity;	// last time (ms) that a statement, commit or rollback was run
 
 	/**
 	 * Build a MusicSqlManager for a DB connection.  This construct may only be called by getMusicSqlManager(),
@@ -72,6 +79,11 @@ public class MusicSqlManager {
 			this.table_set = Collections.synchronizedSet(new HashSet<String>());
 			this.autocommit = true;
 			this.transactionDigest = new HashMap<Range,StagingTable>();
+			this.redoRecoveryThreads = Integer.parseInt(
+				info.getProperty(Configuration.KEY_REDO_RECOVERY_THREADS, Configuration.REDO_RECOVERY_THREADS_DEFAULT));
+			this.redoPrefetchMaxBytes = Long.parseLong(
+				info.getProperty(Configuration.KEY_REDO_PREFETCH_MAX_BYTES, Configuration.REDO_PREFETCH_MAX_BYTES_DEFAULT));
+			this.lastActivity = System.currentTimeMillis();
 
 		}catch(Exception e) {
 			throw new MDBCServiceException(e.getMessage());
@@ -108,6 +120,7 @@ public class MusicSqlManager {
 	 * @param sql the SQL statement that is about to be executed
 	 */
 	public void preStatementHook(final String sql) {
+		lastActivity = System.currentTimeMillis();
 		dbi.preStatementHook(sql);
 	}
 	/**
@@ -118,6 +131,27 @@ public class MusicSqlManager {
 	public void postStatementHook(final String sql) {
 		dbi.postStatementHook(sql,transactionDigest);
 	}
+	/**
+	 * Returns the digest of the current transaction, for mixins that capture the changes directly from
+	 * the database (e.g. triggers that run in the same JVM)
+	 * @return the changes of the current transaction, by range
+	 */
+	public HashMap<Range,StagingTable> getTransactionDigest() {
+		return transactionDigest;
+	}
+	/**
+	 * @return last time (ms since the epoch) that this manager ran a statement, a commit or a rollback
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+	/**
+	 * @return true if the current transaction has changes in its staging tables that were not committed
+	 */
+	public boolean hasPendingChanges() {
+		// read without the lock, so the caller is not blocked by a commit in progress
+		return !transactionDigest.isEmpty();
+	}
 	/**
 	 * Synchronize the list of tables in SQL with the list in MUSIC. This function should be called when the
 	 * proxy first starts, and whenever there is the possibility that tables were created or dropped.  It is synchronized
@@ -209,13 +243,100 @@ public class MusicSqlManager {
 	 */
 	public synchronized void commit(String txId, TxCommitProgress progressKeeper, DatabasePartition partition) throws MDBCServiceException {
 		logger.debug(EELFLoggerDelegate.applicationLogger, " commit ");
+		lastActivity = System.currentTimeMillis();
 		// transaction was committed -- add all the updates into the REDO-Log in MUSIC
 		try {
+			dbi.preCommitHook(transactionDigest);
+			keepDigest(txId, progressKeeper);
 			mi.commitLog(dbi, partition, transactionDigest, txId, progressKeeper);
 		}catch(MDBCServiceException e) {
 			logger.error(EELFLoggerDelegate.errorLogger, e.getMessage(), AppMessages.QUERYERROR, ErrorTypes.QUERYERROR, ErrorSeverity.CRITICAL);
+			if(dbi.capturesOnLocalCommit()) {
+				// the transaction is committed locally, its digest is written into MUSIC by the CommitCompleter
+				transactionDigest.clear();
+			}
 			throw e;
 		}
+		// the changes are already in the redo log, the next transaction starts with an empty digest
+		transactionDigest.clear();
+	}
+
+	/**
+	 * If the local database already committed the transaction, its digest is kept in the commit progress so the
+	 * commit can be completed in the background if the write into MUSIC fails
+	 */
+	private void keepDigest(String txId, TxCommitProgress progressKeeper) throws MDBCServiceException {
+		if(progressKeeper == null || txId == null || !progressKeeper.isDurable() || !progressKeeper.isSQLDone(txId)) {
+			return;
+		}
+		try {
+			progressKeeper.setDigest(txId, new TransactionDigestCodec().encode(transactionDigest));
+		} catch (IOException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Digest of "+txId+" could not be encoded: "+e.getMessage());
+			throw new MDBCServiceException("Digest of "+txId+" could not be encoded: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Journals the state of the capture right before the local commit, see {@link DBInterface#preLocalCommitHook()}
+	 * @throws MDBCServiceException if the state can not be read, the local commit should not be done
+	 */
+	public synchronized void preLocalCommit(String txId, TxCommitProgress progressKeeper) throws MDBCServiceException {
+		String state = dbi.preLocalCommitHook();
+		if(state != null && progressKeeper != null && txId != null) {
+			progressKeeper.setCaptureState(txId, state);
+		}
+	}
+
+	/**
+	 * Journals the state of the capture right after the local commit, see {@link DBInterface#postLocalCommitHook()}.
+	 * A failure is only logged, the state journaled before the local commit is still enough to collect the changes.
+	 */
+	public synchronized void postLocalCommit(String txId, TxCommitProgress progressKeeper) {
+		try {
+			String state = dbi.postLocalCommitHook();
+			if(state != null && progressKeeper != null && txId != null) {
+				progressKeeper.setCaptureState(txId, state);
+			}
+		} catch (MDBCServiceException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Capture state after the local commit of "+txId+" could not be read: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Collects again the digest of a transaction that was committed locally, see {@link DBInterface#recaptureTxDigest(String)}
+	 * @throws MDBCServiceException if the changes can not be read
+	 */
+	public synchronized HashMap<Range,StagingTable> recaptureTxDigest(String captureState) throws MDBCServiceException {
+		return dbi.recaptureTxDigest(captureState);
+	}
+
+	/**
+	 * @return true if the local database has to commit before the transaction is committed into MUSIC
+	 * @see DBInterface#capturesOnLocalCommit()
+	 */
+	public boolean capturesOnLocalCommit() {
+		return dbi.capturesOnLocalCommit();
+	}
+
+	/**
+	 * Applies into the local database all the transactions in the redo log of the tables that were not yet applied
+	 * to the data tables in MUSIC. It is used when this node takes over the partitions of the tables.
+	 * @param tables tables to recover, the data tables should already be synchronized
+	 * @throws MDBCServiceException if the recovery failed
+	 */
+	public void recoverFromRedo(Set<String> tables) throws MDBCServiceException {
+		RedoManager redo = new RedoManager(mi, this::applyTxDigest, redoRecoveryThreads, redoPrefetchMaxBytes);
+		redo.recover(tables);
+	}
+
+	/**
+	 * Applies the changes of a transaction digest into the local database, see {@link DBInterface#applyTxDigest(Map)}
+	 * @param digest changes of a transaction, by range
+	 * @throws MDBCServiceException if the digest is not valid or can not be applied
+	 */
+	public synchronized void applyTxDigest(HashMap<Range,StagingTable> digest) throws MDBCServiceException {
+		dbi.applyTxDigest(digest);
 	}
 
 	/**
@@ -225,6 +346,8 @@ public class MusicSqlManager {
 	public synchronized void rollback() {
 		// transaction was rolled back - discard the updates
 		logger.debug(EELFLoggerDelegate.applicationLogger, "Rollback");;
+		lastActivity = System.currentTimeMillis();
+		dbi.rollbackHook();
 		transactionDigest.clear();
 	}
 
@@ -25,10 +25,27 @@ public class Range implements Serializable {
 	 * @return the equality result
 	 */
 	public boolean equal(Range other) {
-		return (table == other.table);
+		return equals(other);
 	}
 	
 	public boolean overlaps(Range other) {
-		return table == other.table;
+		return equals(other);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if(this == other) {
+			return true;
+		}
+		if(other == null || getClass() != other.getClass()) {
+			return false;
+		}
+		Range range = (Range) other;
+		return (table == null) ? range.table == null : table.equals(range.table);
+	}
+
+	@Override
+	public int hashCode() {
+		return (table == null) ? 0 : table.hashCode();
 	}
 }
\ No newline at end of file
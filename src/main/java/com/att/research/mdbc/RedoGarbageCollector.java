@@ -0,0 +1,288 @@
+package com.att.research.mdbc;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.tables.RedoHistoryElement;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.TitReference;
+import com.att.research.mdbc.tables.TransactionInformationElement;
+import com.att.research.mdbc.tables.TxCommitProgress;
+
+/**
+ * Background process that deletes the parts of the redo log that are no longer needed.
+ * <p>
+ * For each TIT row in the redo history of the partition, the redo records up to <code>latestapplied</code> are
+ * already in the data tables (see {@link ArchiveProcess}), so their rows in the RRT are deleted. Once a TIT row
+ * is marked as <code>applied</code> and all its records are gone, the row is retired: it is removed from the
+ * parents of the rows that point to it in the redo history, and then its TIT and redo history rows are deleted.
+ * The TIT row that is currently used by the partition is never retired.
+ * </p>
+ * <p>
+ * Records are deleted in the same order as they appear in the redo log, in batches of
+ * {@value Configuration#KEY_GC_BATCH_SIZE}, and never faster than {@value Configuration#KEY_GC_MAX_DELETES_PER_SECOND}
+ * records per second, so the tombstones do not compete with the commit path. The process runs every
+ * {@value Configuration#KEY_GC_INTERVAL} milliseconds, and only while this node holds the lease of the partition.
+ * </p>
+ * <p>
+ * The redo records of the commits of this node that did not complete are kept, even if they were already applied,
+ * because the {@link CommitCompleter} reads their digest back from the RRT. The deletes of a TIT row stop at the
+ * first of them, and continue once the commit completes.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class RedoGarbageCollector implements Runnable {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(RedoGarbageCollector.class);
+
+	protected MusicInterface mi;
+	private final DatabasePartition partition;
+	private final TxCommitProgress progressKeeper;
+	private final long interval;
+	private final int batchSize;
+	private final int maxDeletesPerSecond;
+	/**
+	 * Number of records at the beginning of the redo log of each TIT row that were already deleted
+	 */
+	private final Map<TitReference,Integer> marks;
+	private volatile boolean running;
+	private volatile Thread thread;
+	private long deletedRecords;
+	private long retiredRows;
+
+	/**
+	 * @param mi interface used to read and delete the redo log
+	 * @param partition partition whose redo log is collected
+	 * @param progressKeeper progress of the commits of this node, their redo records are kept until they complete
+	 * @param info properties with the configuration of the process
+	 */
+	public RedoGarbageCollector(MusicInterface mi, DatabasePartition partition, TxCommitProgress progressKeeper, Properties info) {
+		this.mi = mi;
+		this.partition = partition;
+		this.progressKeeper = progressKeeper;
+		this.interval = Long.parseLong(info.getProperty(Configuration.KEY_GC_INTERVAL, Configuration.GC_INTERVAL_DEFAULT));
+		this.batchSize = Math.max(1, Integer.parseInt(info.getProperty(Configuration.KEY_GC_BATCH_SIZE, Configuration.GC_BATCH_SIZE_DEFAULT)));
+		this.maxDeletesPerSecond = Integer.parseInt(info.getProperty(Configuration.KEY_GC_MAX_DELETES_PER_SECOND, Configuration.GC_MAX_DELETES_PER_SECOND_DEFAULT));
+		this.marks = new HashMap<>();
+		this.running = false;
+		this.deletedRecords = 0;
+		this.retiredRows = 0;
+	}
+
+	/**
+	 * Starts the background thread, it does nothing if the interval is 0
+	 */
+	public synchronized void start() {
+		if (interval <= 0 || thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "mdbc-redo-gc");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				collect();
+			} catch (MDBCServiceException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Garbage collection of the redo log failed, it is retried later: "+e.getMessage());
+			} catch (RuntimeException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Garbage collection of the redo log failed: "+e);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the applied redo records and retires the applied TIT rows of the partition, if this node holds its lease
+	 * @return number of redo records that were deleted
+	 * @throws MDBCServiceException if the redo log can not be read or modified
+	 */
+	public int collect() throws MDBCServiceException {
+		synchronized (marks) {
+			return collect(partition.getLockId());
+		}
+	}
+
+	private int collect(String lockId) throws MDBCServiceException {
+		if (lockId == null || lockId.isEmpty()) {
+			// only the owner of the partition modifies the redo log
+			return 0;
+		}
+		TitReference current = new TitReference(partition.getTransactionInformationTable(), partition.getTransactionInformationIndex());
+		Set<TitReference> closed = mi.getClosedTransactionInformation().keySet();
+		List<RedoHistoryElement> history = mi.getHistory(partition);
+		Set<RedoRecordId> pending = getPendingRecords();
+		int deleted = 0;
+		for (RedoHistoryElement element : history) {
+			TitReference tit = element.current;
+			TransactionInformationElement meta = mi.getTransactionInformation(tit);
+			if (meta == null) {
+				if (!tit.equals(current) && !closed.contains(tit)) {
+					// a previous run deleted the TIT row but failed before deleting the history
+					retire(tit, history, false);
+				}
+				continue;
+			}
+			int end = meta.applied ? meta.redoLog.size() : Math.min(meta.redoLog.size(), meta.latestApplied + 1);
+			end = firstPending(meta.redoLog, end, pending);
+			Integer mark = marks.get(tit);
+			if (mark == null) {
+				mark = findMark(meta.redoLog, end);
+			}
+			while (mark < end && !Thread.currentThread().isInterrupted()) {
+				long start = System.nanoTime();
+				List<RedoRecordId> batch = meta.redoLog.subList(mark, Math.min(end, mark + batchSize));
+				mi.deleteRedoRecords(batch);
+				mark += batch.size();
+				deleted += batch.size();
+				synchronized (this) {
+					deletedRecords += batch.size();
+				}
+				marks.put(tit, mark);
+				logger.debug(EELFLoggerDelegate.applicationLogger, "Deleted "+batch.size()+" redo records of "+tit+" up to "+mark);
+				if (!throttle(batch.size(), start)) {
+					return deleted;
+				}
+			}
+			if (meta.applied && mark >= meta.redoLog.size() && !tit.equals(current) && !closed.contains(tit)) {
+				retire(tit, history, true);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * @return the redo records of the commits that did not complete, the {@link CommitCompleter} may still read them
+	 */
+	private Set<RedoRecordId> getPendingRecords() {
+		Set<RedoRecordId> pending = new HashSet<>();
+		for (String txId : progressKeeper.getIncompleteCommits(0)) {
+			RedoRecordId record = progressKeeper.getRecordId(txId);
+			if (record != null) {
+				pending.add(record);
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * @return position of the first record of a pending commit before <i>end</i>, records are only deleted up to it
+	 */
+	private static int firstPending(List<RedoRecordId> redoLog, int end, Set<RedoRecordId> pending) {
+		if (pending.isEmpty()) {
+			return end;
+		}
+		for (int i = 0; i < end; i++) {
+			if (pending.contains(redoLog.get(i))) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Records are deleted in order, so the first record that still exists is found with a binary search. Only the
+	 * deletes of the last batch can be partially applied, so that batch is sent again.
+	 * @param end number of records at the beginning of the log that can be deleted
+	 * @return position in the redo log where the deletes continue
+	 */
+	private int findMark(List<RedoRecordId> redoLog, int end) throws MDBCServiceException {
+		int low = 0;
+		int high = end;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mi.redoRecordExists(redoLog.get(mid))) {
+				high = mid;
+			}
+			else {
+				low = mid + 1;
+			}
+		}
+		return Math.max(0, low - batchSize);
+	}
+
+	/**
+	 * Removes a completely applied TIT row from the redo history. The links are removed first, so the history
+	 * never points to a row that does not exist. The lease of the partition is held for its current TIT row, so
+	 * the rows that are modified here are locked just for each write.
+	 * @param deleteTit false if the TIT row was already deleted
+	 */
+	private void retire(TitReference tit, List<RedoHistoryElement> history, boolean deleteTit) throws MDBCServiceException {
+		for (RedoHistoryElement child : history) {
+			if (child.previous.contains(tit)) {
+				mi.removeRedoHistoryLink(partition, child.current, tit, null);
+			}
+		}
+		if (deleteTit) {
+			mi.deleteTransactionInformation(tit, null);
+		}
+		mi.deleteRedoHistory(partition, tit, null);
+		marks.remove(tit);
+		synchronized (this) {
+			retiredRows++;
+		}
+		logger.debug(EELFLoggerDelegate.applicationLogger, "Retired transaction information row "+tit);
+	}
+
+	/**
+	 * Waits until the deletes of the last batch fit in {@value Configuration#KEY_GC_MAX_DELETES_PER_SECOND}
+	 * @param start time when the batch was sent, from {@link System#nanoTime()}
+	 * @return false if the process was stopped meanwhile
+	 */
+	private boolean throttle(int deletes, long start) {
+		if (maxDeletesPerSecond <= 0) {
+			return true;
+		}
+		long budget = TimeUnit.SECONDS.toNanos(deletes) / maxDeletesPerSecond;
+		long wait = budget - (System.nanoTime() - start);
+		if (wait <= 0) {
+			return true;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of redo records that were deleted since the process was created
+	 */
+	public synchronized long getDeletedRecords() {
+		return deletedRecords;
+	}
+
+	/**
+	 * @return number of TIT rows that were retired since the process was created
+	 */
+	public synchronized long getRetiredRows() {
+		return retiredRows;
+	}
+}
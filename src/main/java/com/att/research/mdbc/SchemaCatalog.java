@@ -0,0 +1,160 @@
+package com.att.research.mdbc;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.att.research.logging.EELFLoggerDelegate;
+
+/**
+ * Cache of the schema of a database (set of tables and {@link TableInfo} of each table), shared by all the
+ * connections to the same database.
+ * <p>
+ * Every invalidation creates a new version of the catalog, the entries are loaded lazily from the database
+ * by the mixins through a {@link Loader}. The catalog is invalidated when a DDL statement goes through MDBC,
+ * and when the checksum of the schema changes, which is checked at most once per check interval to detect
+ * changes done outside of MDBC.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class SchemaCatalog {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(SchemaCatalog.class);
+
+	private static final Map<String,SchemaCatalog> catalogs = new ConcurrentHashMap<>();
+
+	/**
+	 * Reads the schema from the database, implemented by each mixin
+	 */
+	public interface Loader {
+		/**
+		 * @return the set of tables in the database
+		 */
+		Set<String> loadTableSet();
+		/**
+		 * @param tableName the table to look up
+		 * @return the information of the table, or null if it does not exist
+		 */
+		TableInfo loadTableInfo(String tableName);
+		/**
+		 * @return a value that changes when the schema of the database changes, or null if it can not be computed
+		 */
+		String loadChecksum();
+	}
+
+	/**
+	 * Entries of one version of the catalog
+	 */
+	private static class Snapshot {
+		final long version;
+		final Map<String,TableInfo> tables;
+		volatile Set<String> tableSet;
+
+		Snapshot(long version) {
+			this.version = version;
+			this.tables = new ConcurrentHashMap<>();
+			this.tableSet = null;
+		}
+	}
+
+	private final String database;
+	private final long checkInterval;
+	private volatile Snapshot snapshot;
+	private volatile String checksum;
+	private volatile long lastCheck;
+
+	SchemaCatalog(String database, long checkInterval) {
+		this.database = database;
+		this.checkInterval = checkInterval;
+		this.snapshot = new Snapshot(0);
+		this.checksum = null;
+		this.lastCheck = 0;
+	}
+
+	/**
+	 * Returns the catalog shared by all the connections to a database
+	 * @param database identifier of the database (e.g. the url and the database name)
+	 * @param checkInterval minimum time in milliseconds between checks of the schema checksum, 0 to disable them
+	 * @return the catalog
+	 */
+	public static SchemaCatalog getCatalog(String database, long checkInterval) {
+		return catalogs.computeIfAbsent(database, (db) -> new SchemaCatalog(db, checkInterval));
+	}
+
+	/**
+	 * @param sql statement that was executed
+	 * @return true if the statement can modify the schema of the database
+	 */
+	public static boolean isSchemaChange(String sql) {
+		return StatementCache.get(sql).isDDL();
+	}
+
+	/**
+	 * @return the set of tables in the database, this set can not be modified
+	 */
+	public Set<String> getTableSet(Loader loader) {
+		checkForChanges(loader);
+		Snapshot s = snapshot;
+		Set<String> tableSet = s.tableSet;
+		if (tableSet == null) {
+			tableSet = Collections.unmodifiableSet(new TreeSet<String>(loader.loadTableSet()));
+			s.tableSet = tableSet;
+		}
+		return tableSet;
+	}
+
+	/**
+	 * @param tableName the table to look up
+	 * @return the information of the table, or null if it does not exist
+	 */
+	public TableInfo getTableInfo(String tableName, Loader loader) {
+		checkForChanges(loader);
+		Snapshot s = snapshot;
+		TableInfo ti = s.tables.get(tableName);
+		if (ti == null) {
+			ti = loader.loadTableInfo(tableName);
+			if (ti != null) {
+				s.tables.put(tableName, ti);
+			}
+		}
+		return ti;
+	}
+
+	/**
+	 * Discards all the cached entries, they are loaded again on the next access
+	 */
+	public synchronized void invalidate() {
+		snapshot = new Snapshot(snapshot.version + 1);
+		logger.debug(EELFLoggerDelegate.applicationLogger, "Schema catalog of "+database+" invalidated, version "+snapshot.version);
+	}
+
+	/**
+	 * @return current version of the catalog, it changes every time the catalog is invalidated
+	 */
+	public long getVersion() {
+		return snapshot.version;
+	}
+
+	private void checkForChanges(Loader loader) {
+		if (checkInterval <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < checkInterval) {
+			return;
+		}
+		synchronized(this) {
+			if (now - lastCheck < checkInterval) {
+				return;
+			}
+			lastCheck = now;
+			String current = loader.loadChecksum();
+			if (current != null && checksum != null && !current.equals(checksum)) {
+				invalidate();
+			}
+			checksum = current;
+		}
+	}
+}
@@ -8,21 +8,26 @@ import com.att.research.logging.format.ErrorTypes;
 import com.att.research.mdbc.mixins.MixinFactory;
 import com.att.research.mdbc.mixins.MusicInterface;
 import com.att.research.mdbc.mixins.MusicMixin;
+import com.att.research.mdbc.tables.CommitJournal;
 import com.att.research.mdbc.tables.TxCommitProgress;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * \TODO Implement an interface for the server logic and a factory 
  * @author Enrique Saurez
  */
-public class StateManager {
+public class StateManager implements ConnectionReaper.ConnectionRegistry {
 
 	//\TODO We need to fix the auto-commit mode and multiple transactions with the same connection
 
@@ -41,7 +46,7 @@ public class StateManager {
      */
     private TxCommitProgress transactionInfo;
     
-    private Map<String,MdbcConnection> mdbcConnections;
+    private ConcurrentMap<String,MdbcConnection> mdbcConnections;
 
     private String sqlDatabase;
 
@@ -51,13 +56,34 @@ public class StateManager {
     
     @SuppressWarnings("unused")
 	private DatabasePartition ranges;
+
+    /**
+     * Moves the redo records of the partition into the data tables in MUSIC
+     */
+    private ArchiveProcess archiveProcess;
+    /**
+     * Deletes the redo records and TIT rows of the partition that were already archived
+     */
+    private RedoGarbageCollector garbageCollector;
+    /**
+     * Finishes the commits that were left half done, by a failure or before a restart
+     */
+    private CommitCompleter commitCompleter;
+    /**
+     * Id of the connection used by the commit completer to apply digests into the local database
+     */
+    private static final String COMMIT_COMPLETER_CONNECTION_ID = "mdbc-commit-completer";
+    /**
+     * Closes the connections and deletes the transaction progress abandoned by the clients
+     */
+    private ConnectionReaper connectionReaper;
     
     public StateManager(String url, Properties info, DatabasePartition ranges, String sqlDatabase) throws MDBCServiceException {
         this.sqlDatabase=sqlDatabase;
     	this.ranges=ranges;
     	this.url = url;
     	this.info = info;
-    	this.transactionInfo = new TxCommitProgress();
+    	this.transactionInfo = new TxCommitProgress(openCommitJournal(info));
     	//\fixme this is not really used, delete!
         String cassandraUrl  = info.getProperty(Configuration.KEY_CASSANDRA_URL, Configuration.CASSANDRA_URL_DEFAULT);
         String mixin  = info.getProperty(Configuration.KEY_MUSIC_MIXIN_NAME, Configuration.MUSIC_MIXIN_DEFAULT);
@@ -70,8 +96,52 @@ public class StateManager {
             throw(e);
         }
         MusicMixin.loadProperties();
-        this.mdbcConnections = new HashMap<>();
+        this.mdbcConnections = new ConcurrentHashMap<>();
         initSqlDatabase();
+        if(ranges != null) {
+            this.archiveProcess = new ArchiveProcess(this.musicManager, ranges, transactionInfo, info);
+            this.archiveProcess.start();
+            this.garbageCollector = new RedoGarbageCollector(this.musicManager, ranges, transactionInfo, info);
+            this.garbageCollector.start();
+            if(transactionInfo.isDurable()) {
+                startCommitCompleter();
+            }
+        }
+        this.connectionReaper = new ConnectionReaper(this, transactionInfo, Collections.singleton(COMMIT_COMPLETER_CONNECTION_ID), info);
+        this.connectionReaper.start();
+    }
+
+    private static CommitJournal openCommitJournal(Properties info) throws MDBCServiceException {
+        String directory = info.getProperty(Configuration.KEY_COMMIT_JOURNAL_DIRECTORY);
+        if(directory == null || directory.isEmpty()) {
+            return null;
+        }
+        try {
+            return new CommitJournal(new File(directory));
+        } catch (IOException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, "Commit journal in "+directory+" could not be opened: "+e.getMessage(),AppMessages.UNKNOWNERROR, ErrorSeverity.CRITICAL, ErrorTypes.GENERALSERVICEERROR);
+            throw new MDBCServiceException("Commit journal in "+directory+" could not be opened: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Completes the commits recovered from the journal before any connection is accepted, and then keeps completing
+     * the commits that are left half done in the background
+     */
+    private void startCommitCompleter() throws MDBCServiceException {
+        Connection conn = GetConnection(COMMIT_COMPLETER_CONNECTION_ID);
+        if(!(conn instanceof MdbcConnection)) {
+            logger.error(EELFLoggerDelegate.errorLogger, "Connection for the commit completer could not be created, half done commits are not completed");
+            return;
+        }
+        final MdbcConnection completerConnection = (MdbcConnection) conn;
+        this.commitCompleter = new CommitCompleter(this.musicManager, ranges, transactionInfo, completerConnection::applyTxDigest,
+                completerConnection::recaptureTxDigest, info);
+        int recovered = this.commitCompleter.recover();
+        if(recovered > 0) {
+            logger.info(EELFLoggerDelegate.applicationLogger, "Completed "+recovered+" commits recovered from the journal");
+        }
+        this.commitCompleter.start();
     }
 
     protected void initSqlDatabase() throws MDBCServiceException {
@@ -96,21 +166,57 @@ public class StateManager {
         }
     }
 
+    @Override
+    public Map<String,MdbcConnection> getConnections() {
+        return Collections.unmodifiableMap(mdbcConnections);
+    }
+
+    @Override
+    public void closeConnection(String id) {
+        CloseConnection(id);
+    }
+
     public void CloseConnection(String connectionId){
-        //\TODO check if there is a race condition
-        if(mdbcConnections.containsKey(connectionId)) {
+        // only the thread that removes the connection closes it, the client and the reaper can race here
+        Connection conn = mdbcConnections.remove(connectionId);
+        if(conn != null) {
             transactionInfo.deleteTxProgress(connectionId);
             try {
-                Connection conn = mdbcConnections.get(connectionId);
-                if(conn!=null)
-                    conn.close();
+                conn.close();
             } catch (SQLException e) {
                 logger.error(EELFLoggerDelegate.errorLogger, e.getMessage(),AppMessages.UNKNOWNERROR, ErrorSeverity.CRITICAL, ErrorTypes.GENERALSERVICEERROR);
             }
-            mdbcConnections.remove(connectionId);
         }
     }
 
+    private static void closeQuietly(Connection sqlConnection) {
+        if(sqlConnection == null) {
+            return;
+        }
+        try {
+            sqlConnection.close();
+        } catch (SQLException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, e.getMessage(),AppMessages.UNKNOWNERROR, ErrorSeverity.CRITICAL, ErrorTypes.GENERALSERVICEERROR);
+        }
+    }
+
+    /**
+     * Registers a new connection, unless another thread registered one with the same id first
+     * @return the connection that is registered for the id
+     */
+    private MdbcConnection register(String id, MdbcConnection newConnection) {
+        MdbcConnection previous = mdbcConnections.putIfAbsent(id, newConnection);
+        if(previous == null) {
+            return newConnection;
+        }
+        try {
+            newConnection.close();
+        } catch (SQLException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, e.getMessage(),AppMessages.UNKNOWNERROR, ErrorSeverity.CRITICAL, ErrorTypes.GENERALSERVICEERROR);
+        }
+        return previous;
+    }
+
     public void OpenConnection(String id, Properties information){
        if(!mdbcConnections.containsKey(id)){
            Connection sqlConnection;
@@ -137,13 +243,12 @@ public class StateManager {
                newConnection = new MdbcConnection(id, this.url+"/"+this.sqlDatabase, sqlConnection, info, this.musicManager, transactionInfo,ranges);
            } catch (MDBCServiceException e) {
                logger.error(EELFLoggerDelegate.errorLogger, e.getMessage(),AppMessages.UNKNOWNERROR, ErrorSeverity.CRITICAL, ErrorTypes.QUERYERROR);
-               newConnection = null;
+               closeQuietly(sqlConnection);
                return;
            }
            logger.info(EELFLoggerDelegate.applicationLogger,"Connection created for connection: "+id);
-           transactionInfo.createNewTransactionTracker(id, sqlConnection);
-           if(newConnection != null) {
-               mdbcConnections.put(id,newConnection);
+           if(register(id, newConnection) == newConnection) {
+               transactionInfo.createNewTransactionTracker(id, sqlConnection);
            }
        }
     }
@@ -154,13 +259,14 @@ public class StateManager {
      * @return
      */
     public Connection GetConnection(String id) {
-    	if(mdbcConnections.containsKey(id)) {
+    	MdbcConnection existing = mdbcConnections.get(id);
+    	if(existing != null) {
     		//\TODO: Verify if this make sense
     		// Intent: reinitialize transaction progress, when it already completed the previous tx for the same connection
     		if(transactionInfo.isComplete(id)) {
     			transactionInfo.reinitializeTxProgress(id);
     		}
-    		return mdbcConnections.get(id);
+    		return existing;
     	}
 
     	Connection sqlConnection;
@@ -191,11 +297,16 @@ public class StateManager {
 		}
 		logger.info(EELFLoggerDelegate.applicationLogger,"Connection created for connection: "+id);
 
-    	transactionInfo.createNewTransactionTracker(id, sqlConnection);
-    	if(newConnection != null) {
-            mdbcConnections.put(id,newConnection);
-        }
-    	return newConnection;
+    	if(newConnection == null) {
+    		// no tracker is kept for a connection that was not registered, it would never be deleted
+    		closeQuietly(sqlConnection);
+    		return null;
+    	}
+    	MdbcConnection registered = register(id, newConnection);
+    	if(registered == newConnection) {
+    		transactionInfo.createNewTransactionTracker(id, sqlConnection);
+    	}
+    	return registered;
     }
 
 	public void InitializeSystem() {
@@ -0,0 +1,296 @@
+package com.att.research.mdbc;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.tables.OperationType;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.parser.TokenMgrError;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.alter.Alter;
+import net.sf.jsqlparser.statement.create.index.CreateIndex;
+import net.sf.jsqlparser.statement.create.table.CreateTable;
+import net.sf.jsqlparser.statement.create.view.AlterView;
+import net.sf.jsqlparser.statement.create.view.CreateView;
+import net.sf.jsqlparser.statement.delete.Delete;
+import net.sf.jsqlparser.statement.drop.Drop;
+import net.sf.jsqlparser.statement.insert.Insert;
+import net.sf.jsqlparser.statement.replace.Replace;
+import net.sf.jsqlparser.statement.select.Select;
+import net.sf.jsqlparser.statement.truncate.Truncate;
+import net.sf.jsqlparser.statement.update.Update;
+import net.sf.jsqlparser.util.TablesNamesFinder;
+
+/**
+ * Bounded cache of {@link StatementInfo}, keyed by the text of the statement and shared by all the connections.
+ * <p>
+ * Statements are parsed with JSqlParser the first time they are seen. Statements that JSqlParser does not
+ * understand are classified by their first keyword, after skipping comments and whitespace. Very long statements
+ * (e.g. inserts with many literal values) are classified by their first keyword only and are not cached, they are
+ * unlikely to be executed again and would evict the useful entries.
+ * </p>
+ * <p>
+ * The cache is read by every statement of every connection, so lookups don't take any lock. The eviction is an
+ * approximation of LRU (the CLOCK algorithm): a lookup marks its entry as used, and when the cache is full the
+ * thread that inserts an entry sweeps the entries, clearing the mark of the used ones and removing the first one that
+ * was not used since the previous sweep. Only one thread sweeps at a time, the others just insert.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public final class StatementCache {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(StatementCache.class);
+
+	/** Maximum number of statements in the cache */
+	public static final int MAX_ENTRIES = 2048;
+	/** Statements longer than this are not parsed nor cached */
+	public static final int MAX_SQL_LENGTH = 8192;
+
+	private static final StatementInfo UNKNOWN = new StatementInfo(null, Collections.<String>emptySet(), false, false);
+
+	/**
+	 * A statement in the cache, with the mark of the CLOCK eviction
+	 */
+	private static final class Entry {
+		final StatementInfo info;
+		volatile boolean used;
+
+		Entry(StatementInfo info) {
+			this.info = info;
+			this.used = true;
+		}
+	}
+
+	private static final ConcurrentHashMap<String,Entry> cache = new ConcurrentHashMap<String,Entry>(256);
+	private static final ReentrantLock evictionLock = new ReentrantLock();
+	// position of the sweep of the eviction, guarded by evictionLock
+	private static Iterator<Map.Entry<String,Entry>> hand = null;
+
+	private StatementCache() {
+	}
+
+	/**
+	 * @param sql the statement
+	 * @return the metadata of the statement, never null
+	 */
+	public static StatementInfo get(String sql) {
+		if (sql == null) {
+			return UNKNOWN;
+		}
+		Entry entry = cache.get(sql);
+		if (entry != null) {
+			if (!entry.used) {
+				// only written when it changes, the entries that are used often are not written on each lookup
+				entry.used = true;
+			}
+			return entry.info;
+		}
+		if (sql.length() > MAX_SQL_LENGTH) {
+			return classify(sql);
+		}
+		StatementInfo info = parse(sql);
+		cache.putIfAbsent(sql, new Entry(info));
+		if (cache.size() > MAX_ENTRIES) {
+			evict();
+		}
+		return info;
+	}
+
+	/**
+	 * Removes entries until the cache is back to its maximum size, it does nothing if another thread is already
+	 * sweeping the cache
+	 */
+	private static void evict() {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			while (cache.size() > MAX_ENTRIES) {
+				if (hand == null || !hand.hasNext()) {
+					hand = cache.entrySet().iterator();
+					if (!hand.hasNext()) {
+						return;
+					}
+				}
+				Map.Entry<String,Entry> e = hand.next();
+				if (e.getValue().used) {
+					e.getValue().used = false;
+				}
+				else {
+					hand.remove();
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of statements in the cache
+	 */
+	public static int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Removes all the statements from the cache
+	 */
+	public static void clear() {
+		evictionLock.lock();
+		try {
+			cache.clear();
+			hand = null;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private static StatementInfo parse(String sql) {
+		String body = sql.substring(skipComments(sql));
+		Statement stmt;
+		try {
+			stmt = CCJSqlParserUtil.parse(body);
+		} catch (JSQLParserException | RuntimeException | TokenMgrError e) {
+			logger.debug(EELFLoggerDelegate.applicationLogger, "Statement not recognized by the parser, using its first keyword: "+e.getMessage());
+			return classify(sql);
+		}
+		Set<String> tables = new TreeSet<String>();
+		if (stmt instanceof Select) {
+			addTables(tables, stmt, null);
+			return new StatementInfo(OperationType.SELECT, tables, false, true);
+		} else if (stmt instanceof Insert) {
+			addTables(tables, stmt, ((Insert) stmt).getTable());
+			return new StatementInfo(OperationType.INSERT, tables, false, false);
+		} else if (stmt instanceof Replace) {
+			addTables(tables, stmt, ((Replace) stmt).getTable());
+			return new StatementInfo(OperationType.INSERT, tables, false, false);
+		} else if (stmt instanceof Update) {
+			addTables(tables, stmt, null);
+			return new StatementInfo(OperationType.UPDATE, tables, false, false);
+		} else if (stmt instanceof Delete) {
+			addTables(tables, stmt, ((Delete) stmt).getTable());
+			return new StatementInfo(OperationType.DELETE, tables, false, false);
+		} else if (stmt instanceof CreateTable) {
+			addTable(tables, ((CreateTable) stmt).getTable());
+		} else if (stmt instanceof Alter) {
+			addTable(tables, ((Alter) stmt).getTable());
+		} else if (stmt instanceof Drop) {
+			addTable(tables, ((Drop) stmt).getName());
+		} else if (stmt instanceof CreateIndex) {
+			addTable(tables, ((CreateIndex) stmt).getTable());
+		} else if (stmt instanceof CreateView) {
+			addTable(tables, ((CreateView) stmt).getView());
+		} else if (stmt instanceof AlterView) {
+			addTable(tables, ((AlterView) stmt).getView());
+		} else if (stmt instanceof Truncate) {
+			addTable(tables, ((Truncate) stmt).getTable());
+			return new StatementInfo(null, tables, false, false);
+		} else {
+			return classify(sql);
+		}
+		return new StatementInfo(null, tables, true, false);
+	}
+
+	private static void addTables(Set<String> tables, Statement stmt, Table target) {
+		try {
+			for (String name : new TablesNamesFinder().getTableList(stmt)) {
+				tables.add(unquote(name));
+			}
+		} catch (UnsupportedOperationException e) {
+			// the finder does not support every clause, at least keep the table that is modified
+			addTable(tables, target);
+		}
+	}
+
+	private static void addTable(Set<String> tables, Table table) {
+		if (table != null && table.getName() != null) {
+			tables.add(unquote(table.getName()));
+		}
+	}
+
+	/**
+	 * Removes the schema and the quotes from a table name
+	 */
+	static String unquote(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0) {
+			name = name.substring(dot + 1);
+		}
+		if (name.length() >= 2) {
+			char c = name.charAt(0);
+			if ((c == '`' || c == '"' || c == '[') && (name.charAt(name.length() - 1) == c || c == '[')) {
+				name = name.substring(1, name.length() - 1);
+			}
+		}
+		return name;
+	}
+
+	/**
+	 * Classifies a statement using only its first keyword
+	 */
+	static StatementInfo classify(String sql) {
+		int start = skipComments(sql);
+		int end = start;
+		while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+			end++;
+		}
+		String cmd = sql.substring(start, end).toLowerCase();
+		Set<String> none = Collections.emptySet();
+		switch (cmd) {
+			case "select":
+			case "with":
+				return new StatementInfo(OperationType.SELECT, none, false, true);
+			case "show":
+			case "describe":
+			case "desc":
+			case "explain":
+				return new StatementInfo(null, none, false, true);
+			case "insert":
+			case "replace":
+				return new StatementInfo(OperationType.INSERT, none, false, false);
+			case "update":
+				return new StatementInfo(OperationType.UPDATE, none, false, false);
+			case "delete":
+				return new StatementInfo(OperationType.DELETE, none, false, false);
+			case "create":
+			case "alter":
+			case "drop":
+			case "rename":
+				return new StatementInfo(null, none, true, false);
+			default:
+				return UNKNOWN;
+		}
+	}
+
+	/**
+	 * @return index of the first character that is not whitespace nor part of a comment
+	 */
+	static int skipComments(String sql) {
+		int i = 0;
+		int len = sql.length();
+		while (i < len) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+				int close = sql.indexOf("*/", i + 2);
+				i = (close < 0) ? len : close + 2;
+			} else if ((c == '-' && i + 1 < len && sql.charAt(i + 1) == '-') || c == '#') {
+				int eol = sql.indexOf('\n', i);
+				i = (eol < 0) ? len : eol + 1;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+}
@@ -0,0 +1,66 @@
+package com.att.research.mdbc;
+
+import java.util.Collections;
+import java.util.Set;
+
+import com.att.research.mdbc.tables.OperationType;
+
+/**
+ * Metadata of a SQL statement, obtained once by the {@link StatementCache} and used by the hooks of the mixins
+ * to decide what work has to be done for the statement.
+ *
+ * @author Enrique Saurez
+ */
+public final class StatementInfo {
+	private final OperationType operation;
+	private final Set<String> tables;
+	private final boolean ddl;
+	private final boolean readOnly;
+
+	StatementInfo(OperationType operation, Set<String> tables, boolean ddl, boolean readOnly) {
+		this.operation = operation;
+		this.tables = Collections.unmodifiableSet(tables);
+		this.ddl = ddl;
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * @return the operation done by the statement, or null if it is not a SELECT, INSERT, UPDATE or DELETE
+	 */
+	public OperationType getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return names of the tables referenced by the statement, without schema or quotes; empty if they are unknown
+	 */
+	public Set<String> getTables() {
+		return tables;
+	}
+
+	/**
+	 * @return true if the statement can modify the schema of the database
+	 */
+	public boolean isDDL() {
+		return ddl;
+	}
+
+	/**
+	 * @return true if the statement does not modify the database
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * @return true if the statement inserts, updates or deletes rows
+	 */
+	public boolean isWrite() {
+		return operation == OperationType.INSERT || operation == OperationType.UPDATE || operation == OperationType.DELETE;
+	}
+
+	@Override
+	public String toString() {
+		return "StatementInfo [operation=" + operation + ", tables=" + tables + ", ddl=" + ddl + ", readOnly=" + readOnly + "]";
+	}
+}
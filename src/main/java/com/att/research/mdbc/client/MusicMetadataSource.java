@@ -0,0 +1,83 @@
+package com.att.research.mdbc.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.mixins.CassandraMixin;
+import com.att.research.mdbc.mixins.PreparedStatementRegistry;
+import com.att.research.mdbc.tables.TablePartitionInformation;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+
+/**
+ * Reads the TableToPartition and PartitionInfo tables of MUSIC directly from Cassandra, for the routing of the clients.
+ * The clients do not hold any lock, the rows are read with consistency ONE and a stale owner is corrected by the
+ * server with an ownership error, see {@link PartitionRouter#isOwnershipError(java.sql.SQLException)}.
+ *
+ * @author Enrique Saurez
+ */
+public class MusicMetadataSource implements PartitionRouter.MetadataSource {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(MusicMetadataSource.class);
+
+	private final Cluster cluster;
+	private final Session session;
+	private final String tableToPartitionQuery;
+	private final String partitionOwnerQuery;
+
+	/**
+	 * @param address comma separated list of the Cassandra nodes of MUSIC
+	 * @param namespace keyspace where the MDBC tables are stored
+	 */
+	public MusicMetadataSource(String address, String namespace) {
+		logger.info(EELFLoggerDelegate.applicationLogger, "Connecting to MUSIC at "+address+" for the partition metadata");
+		this.cluster = Cluster.builder().addContactPoints(address.split(",")).build();
+		this.session = cluster.connect();
+		this.tableToPartitionQuery = String.format("SELECT partition, previouspartitions FROM %s.%s WHERE tablename = ?;",
+				namespace, CassandraMixin.TABLE_TO_PARTITION_TABLE_NAME);
+		this.partitionOwnerQuery = String.format("SELECT currentowner FROM %s.%s WHERE partition = ?;",
+				namespace, CassandraMixin.PARTITION_INFORMATION_TABLE_NAME);
+	}
+
+	@Override
+	public TablePartitionInformation getTablePartition(String table) throws MDBCServiceException {
+		Row row = readSingleRow(tableToPartitionQuery, table);
+		if (row == null) {
+			return null;
+		}
+		UUID partition = row.getUUID("partition");
+		List<String> oldPartitions = new ArrayList<>();
+		for (UUID old : row.getSet("previouspartitions", UUID.class)) {
+			oldPartitions.add(old.toString());
+		}
+		return new TablePartitionInformation(table, (partition == null) ? null : partition.toString(), oldPartitions);
+	}
+
+	@Override
+	public String getPartitionOwner(String partition) throws MDBCServiceException {
+		Row row = readSingleRow(partitionOwnerQuery, UUID.fromString(partition));
+		return (row == null) ? null : row.getString("currentowner");
+	}
+
+	private Row readSingleRow(String cql, Object key) throws MDBCServiceException {
+		try {
+			Statement stmt = PreparedStatementRegistry.forSession(session).get(cql).bind(key);
+			stmt.setConsistencyLevel(ConsistencyLevel.ONE);
+			return session.execute(stmt).one();
+		} catch (RuntimeException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Error when reading the partition metadata for "+key+": "+e.getMessage());
+			throw new MDBCServiceException("Error when reading the partition metadata for "+key+": "+e.getMessage());
+		}
+	}
+
+	public void close() {
+		PreparedStatementRegistry.release(session);
+		session.close();
+		cluster.close();
+	}
+}
@@ -0,0 +1,186 @@
+package com.att.research.mdbc.client;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.tables.TablePartitionInformation;
+
+/**
+ * Client side routing table, it finds the MDBC server that currently owns the tables used by a connection.
+ * <p>
+ * The owner of a table is found in two steps: the TableToPartition table gives the partition of the table, and the
+ * PartitionInfo table gives the current owner of the partition. Both are cached for {@link RoutingDriver#KEY_ROUTING_CACHE_TTL}
+ * milliseconds, and are read again right away when a server reports that it no longer owns the tables, see
+ * {@link #invalidate(Collection)}. The owner is mapped to the URL of its Avatica endpoint with the
+ * {@link RoutingDriver#KEY_OWNERS} property; an owner that is already a URL is used as it is.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class PartitionRouter {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(PartitionRouter.class);
+
+	/** Parts of the messages of the errors of a server that does not own the tables anymore */
+	private static final String[] OWNERSHIP_ERRORS = {
+		"could not be acquired, it is held by",
+		"Failure commiting to MUSIC"
+	};
+
+	/**
+	 * Reads the ownership metadata from MUSIC, see {@link MusicMetadataSource}
+	 */
+	public interface MetadataSource {
+		/**
+		 * @return the partition of the table, or null if the table is not assigned to any partition
+		 */
+		TablePartitionInformation getTablePartition(String table) throws MDBCServiceException;
+		/**
+		 * @return the current owner of the partition, or null if it has no owner
+		 */
+		String getPartitionOwner(String partition) throws MDBCServiceException;
+	}
+
+	private static class Entry {
+		private final String value;
+		private final long readTime;
+
+		private Entry(String value, long readTime) {
+			this.value = value;
+			this.readTime = readTime;
+		}
+	}
+
+	private final MetadataSource source;
+	private final Map<String,String> ownerUrls;
+	private final String defaultUrl;
+	private final long ttl;
+	private final Map<String,Entry> partitions;
+	private final Map<String,Entry> owners;
+
+	/**
+	 * @param source metadata of the partitions
+	 * @param ownerUrls url of the Avatica endpoint of each owner
+	 * @param defaultUrl url used for the tables without an owner, may be null
+	 * @param ttl time (ms) that the metadata is cached
+	 */
+	public PartitionRouter(MetadataSource source, Map<String,String> ownerUrls, String defaultUrl, long ttl) {
+		this.source = source;
+		this.ownerUrls = new HashMap<>(ownerUrls);
+		this.defaultUrl = defaultUrl;
+		this.ttl = ttl;
+		this.partitions = new ConcurrentHashMap<>();
+		this.owners = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @param tables tables used by the connection
+	 * @return the url of the owner of most of the tables, the default url if none of them has an owner
+	 * @throws SQLException if the metadata could not be read, or there is no url for the owner
+	 */
+	public String route(Collection<String> tables) throws SQLException {
+		Map<String,Integer> votes = new HashMap<>();
+		String best = null;
+		for (String table : tables) {
+			String owner = getOwner(table);
+			if (owner == null) {
+				continue;
+			}
+			int count = votes.merge(owner, 1, Integer::sum);
+			if (best == null || count > votes.get(best)) {
+				best = owner;
+			}
+		}
+		if (votes.size() > 1) {
+			//\TODO the server moves the other tables into its partition, the clients should use a single partition per connection
+			logger.warn("Tables "+tables+" are owned by "+votes.keySet()+", the connection is routed to "+best);
+		}
+		if (best == null) {
+			if (defaultUrl == null) {
+				throw new SQLException("None of the tables "+tables+" has an owner and there is no default url");
+			}
+			return defaultUrl;
+		}
+		return getUrl(best);
+	}
+
+	/**
+	 * @return url of the Avatica endpoint of an owner
+	 */
+	String getUrl(String owner) throws SQLException {
+		String url = ownerUrls.get(owner);
+		if (url != null) {
+			return url;
+		}
+		if (owner.startsWith("http://") || owner.startsWith("https://")) {
+			return owner;
+		}
+		if (defaultUrl == null) {
+			throw new SQLException("There is no url for the owner "+owner);
+		}
+		logger.warn("There is no url for the owner "+owner+", using the default url");
+		return defaultUrl;
+	}
+
+	/**
+	 * @return the current owner of the table, or null if the table is not assigned to a partition with an owner
+	 */
+	public String getOwner(String table) throws SQLException {
+		try {
+			long now = System.currentTimeMillis();
+			Entry partition = partitions.get(table);
+			if (partition == null || now - partition.readTime >= ttl) {
+				TablePartitionInformation info = source.getTablePartition(table);
+				partition = new Entry((info == null) ? null : info.partition, now);
+				partitions.put(table, partition);
+			}
+			if (partition.value == null) {
+				return null;
+			}
+			Entry owner = owners.get(partition.value);
+			if (owner == null || now - owner.readTime >= ttl) {
+				String current = source.getPartitionOwner(partition.value);
+				owner = new Entry((current == null || current.isEmpty()) ? null : current, now);
+				owners.put(partition.value, owner);
+			}
+			return owner.value;
+		} catch (MDBCServiceException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Owner of table "+table+" could not be read: "+e.getMessage());
+			throw new SQLException("Owner of table "+table+" could not be read: "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The owner of the tables changed, the next route reads their metadata again
+	 */
+	public void invalidate(Collection<String> tables) {
+		for (String table : tables) {
+			Entry partition = partitions.remove(table);
+			if (partition != null && partition.value != null) {
+				owners.remove(partition.value);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the error was raised because the server does not own the tables anymore
+	 */
+	public static boolean isOwnershipError(SQLException e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			String message = t.getMessage();
+			if (message == null) {
+				continue;
+			}
+			for (String error : OWNERSHIP_ERRORS) {
+				if (message.contains(error)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
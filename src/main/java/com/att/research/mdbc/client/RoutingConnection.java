@@ -0,0 +1,445 @@
+package com.att.research.mdbc.client;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import com.att.research.logging.EELFLoggerDelegate;
+
+/**
+ * Connection of a client that is routed to the MDBC server that currently owns its tables.
+ * <p>
+ * The owner is checked with the {@link PartitionRouter} when the connection is opened and at the start of each
+ * transaction (after a commit or a rollback, or for each statement when auto commit is enabled). If the owner
+ * changed, the connection to the old owner is closed and a new one is opened to the new owner, with the same
+ * settings. When a server fails a statement or a commit because it no longer owns the tables, the routing table is
+ * refreshed and the next transaction goes to the new owner; the failed transaction is not retried.
+ * </p>
+ * <p>
+ * The statements created before the connection is moved to another server are closed with the old connection.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class RoutingConnection implements Connection {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(RoutingConnection.class);
+
+	/**
+	 * Opens the connection to the server with a url returned by the {@link PartitionRouter}
+	 */
+	public interface Connector {
+		Connection connect(String url) throws SQLException;
+	}
+
+	private final PartitionRouter router;
+	private final List<String> tables;
+	private final Connector connector;
+	private Connection conn;		// the connection to the current owner
+	private String url;				// url of the current owner
+	private boolean autoCommit;
+	private volatile boolean misrouted;
+
+	public RoutingConnection(PartitionRouter router, List<String> tables, Connector connector) throws SQLException {
+		this.router = router;
+		this.tables = new ArrayList<>(tables);
+		this.connector = connector;
+		this.url = router.route(this.tables);
+		this.conn = connector.connect(url);
+		this.autoCommit = conn.getAutoCommit();
+		this.misrouted = false;
+	}
+
+	/**
+	 * @return url of the server that the connection is currently sent to
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Moves the connection to the current owner of the tables, if it is not already there
+	 */
+	private void checkRoute() throws SQLException {
+		String owner = router.route(tables);
+		if (!misrouted && owner.equals(url)) {
+			return;
+		}
+		logger.info(EELFLoggerDelegate.applicationLogger, "Owner of "+tables+" moved from "+url+" to "+owner);
+		Connection next = connector.connect(owner);
+		try {
+			next.setAutoCommit(autoCommit);
+			next.setReadOnly(conn.isReadOnly());
+			next.setTransactionIsolation(conn.getTransactionIsolation());
+		} catch (SQLException e) {
+			next.close();
+			throw e;
+		}
+		Connection old = conn;
+		String oldUrl = url;
+		conn = next;
+		url = owner;
+		misrouted = false;
+		try {
+			old.close();
+		} catch (SQLException e) {
+			logger.warn("Connection to "+oldUrl+" could not be closed: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * The server does not own the tables anymore, the next transaction reads the owner again
+	 */
+	private void ownershipLost(SQLException e) {
+		logger.warn("Server "+url+" does not own "+tables+" anymore: "+e.getMessage());
+		router.invalidate(tables);
+		misrouted = true;
+	}
+
+	private void checkOwnership(SQLException e) {
+		if (PartitionRouter.isOwnershipError(e)) {
+			ownershipLost(e);
+		}
+	}
+
+	/**
+	 * With auto commit each statement is a transaction, so the owner is checked before the statement is created
+	 */
+	private void beforeStatement() throws SQLException {
+		if (autoCommit) {
+			checkRoute();
+		}
+	}
+
+	/**
+	 * Reports the ownership errors of the statements to this connection
+	 */
+	private <T extends Statement> T wrap(final T stmt, Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+			if (method.getName().equals("getConnection")) {
+				return this;
+			}
+			try {
+				return method.invoke(stmt, args);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof SQLException) {
+					checkOwnership((SQLException) e.getCause());
+				}
+				throw e.getCause();
+			}
+		}));
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		return conn.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return conn.isWrapperFor(iface);
+	}
+
+	@Override
+	public Statement createStatement() throws SQLException {
+		beforeStatement();
+		return wrap(conn.createStatement(), Statement.class);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		beforeStatement();
+		return wrap(conn.prepareStatement(sql), PreparedStatement.class);
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql) throws SQLException {
+		beforeStatement();
+		return wrap(conn.prepareCall(sql), CallableStatement.class);
+	}
+
+	@Override
+	public String nativeSQL(String sql) throws SQLException {
+		return conn.nativeSQL(sql);
+	}
+
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		conn.setAutoCommit(autoCommit);
+		this.autoCommit = autoCommit;
+	}
+
+	@Override
+	public boolean getAutoCommit() throws SQLException {
+		return autoCommit;
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		try {
+			conn.commit();
+		} catch (SQLException e) {
+			checkOwnership(e);
+			throw e;
+		}
+		checkRoute();
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		try {
+			conn.rollback();
+		} catch (SQLException e) {
+			checkOwnership(e);
+			throw e;
+		}
+		checkRoute();
+	}
+
+	@Override
+	public void close() throws SQLException {
+		conn.close();
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return conn.isClosed();
+	}
+
+	@Override
+	public DatabaseMetaData getMetaData() throws SQLException {
+		return conn.getMetaData();
+	}
+
+	@Override
+	public void setReadOnly(boolean readOnly) throws SQLException {
+		conn.setReadOnly(readOnly);
+	}
+
+	@Override
+	public boolean isReadOnly() throws SQLException {
+		return conn.isReadOnly();
+	}
+
+	@Override
+	public void setCatalog(String catalog) throws SQLException {
+		conn.setCatalog(catalog);
+	}
+
+	@Override
+	public String getCatalog() throws SQLException {
+		return conn.getCatalog();
+	}
+
+	@Override
+	public void setTransactionIsolation(int level) throws SQLException {
+		conn.setTransactionIsolation(level);
+	}
+
+	@Override
+	public int getTransactionIsolation() throws SQLException {
+		return conn.getTransactionIsolation();
+	}
+
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		return conn.getWarnings();
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException {
+		conn.clearWarnings();
+	}
+
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+		beforeStatement();
+		return wrap(conn.createStatement(resultSetType, resultSetConcurrency), Statement.class);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		beforeStatement();
+		return wrap(conn.prepareStatement(sql, resultSetType, resultSetConcurrency), PreparedStatement.class);
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		beforeStatement();
+		return wrap(conn.prepareCall(sql, resultSetType, resultSetConcurrency), CallableStatement.class);
+	}
+
+	@Override
+	public Map<String, Class<?>> getTypeMap() throws SQLException {
+		return conn.getTypeMap();
+	}
+
+	@Override
+	public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+		conn.setTypeMap(map);
+	}
+
+	@Override
+	public void setHoldability(int holdability) throws SQLException {
+		conn.setHoldability(holdability);
+	}
+
+	@Override
+	public int getHoldability() throws SQLException {
+		return conn.getHoldability();
+	}
+
+	@Override
+	public Savepoint setSavepoint() throws SQLException {
+		return conn.setSavepoint();
+	}
+
+	@Override
+	public Savepoint setSavepoint(String name) throws SQLException {
+		return conn.setSavepoint(name);
+	}
+
+	@Override
+	public void rollback(Savepoint savepoint) throws SQLException {
+		conn.rollback(savepoint);
+	}
+
+	@Override
+	public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+		conn.releaseSavepoint(savepoint);
+	}
+
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		beforeStatement();
+		return wrap(conn.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability), Statement.class);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		beforeStatement();
+		return wrap(conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), PreparedStatement.class);
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		beforeStatement();
+		return wrap(conn.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability), CallableStatement.class);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		beforeStatement();
+		return wrap(conn.prepareStatement(sql, autoGeneratedKeys), PreparedStatement.class);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+		beforeStatement();
+		return wrap(conn.prepareStatement(sql, columnIndexes), PreparedStatement.class);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+		beforeStatement();
+		return wrap(conn.prepareStatement(sql, columnNames), PreparedStatement.class);
+	}
+
+	@Override
+	public Clob createClob() throws SQLException {
+		return conn.createClob();
+	}
+
+	@Override
+	public Blob createBlob() throws SQLException {
+		return conn.createBlob();
+	}
+
+	@Override
+	public NClob createNClob() throws SQLException {
+		return conn.createNClob();
+	}
+
+	@Override
+	public SQLXML createSQLXML() throws SQLException {
+		return conn.createSQLXML();
+	}
+
+	@Override
+	public boolean isValid(int timeout) throws SQLException {
+		return conn.isValid(timeout);
+	}
+
+	@Override
+	public void setClientInfo(String name, String value) throws SQLClientInfoException {
+		conn.setClientInfo(name, value);
+	}
+
+	@Override
+	public void setClientInfo(Properties properties) throws SQLClientInfoException {
+		conn.setClientInfo(properties);
+	}
+
+	@Override
+	public String getClientInfo(String name) throws SQLException {
+		return conn.getClientInfo(name);
+	}
+
+	@Override
+	public Properties getClientInfo() throws SQLException {
+		return conn.getClientInfo();
+	}
+
+	@Override
+	public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+		return conn.createArrayOf(typeName, elements);
+	}
+
+	@Override
+	public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+		return conn.createStruct(typeName, attributes);
+	}
+
+	@Override
+	public void setSchema(String schema) throws SQLException {
+		conn.setSchema(schema);
+	}
+
+	@Override
+	public String getSchema() throws SQLException {
+		return conn.getSchema();
+	}
+
+	@Override
+	public void abort(Executor executor) throws SQLException {
+		conn.abort(executor);
+	}
+
+	@Override
+	public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+		conn.setNetworkTimeout(executor, milliseconds);
+	}
+
+	@Override
+	public int getNetworkTimeout() throws SQLException {
+		return conn.getNetworkTimeout();
+	}
+}
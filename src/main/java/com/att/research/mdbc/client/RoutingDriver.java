@@ -0,0 +1,166 @@
+package com.att.research.mdbc.client;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.mixins.CassandraMixin;
+
+/**
+ * JDBC driver for the clients of a group of MDBC servers, it sends each connection to the Avatica endpoint of the
+ * server that currently owns its tables, see {@link RoutingConnection}.
+ * <p>
+ * The url has the form <code>jdbc:mdbc:routing:key=value;key=value</code>, the keys can also be given as properties
+ * of the connection. For example:
+ * </p>
+ * <pre>
+ * jdbc:mdbc:routing:music_address=10.0.0.1;music_namespace=namespace;tables=Persons;owners=node1=http://10.0.0.1:30000,node2=http://10.0.0.2:30000
+ * </pre>
+ * <p>
+ * All the connections with the same MUSIC address and namespace share a single routing table.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class RoutingDriver implements Driver {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(RoutingDriver.class);
+
+	/** The prefix of the urls accepted by this driver */
+	public static final String URL_PREFIX = "jdbc:mdbc:routing:";
+	/** The property name to use to set the comma separated list of tables used by the connection, they decide the server */
+	public static final String KEY_TABLES = "tables";
+	/** The property name to use to map the owners of the partitions to their Avatica url, as a list of owner=url separated by commas */
+	public static final String KEY_OWNERS = "owners";
+	/** The property name to use to set the Avatica url used for the tables without an owner */
+	public static final String KEY_DEFAULT_URL = "default_url";
+	/** The property name to use to set the serialization of the Avatica endpoints */
+	public static final String KEY_SERIALIZATION = "serialization";
+	/** The MDBC servers use protobuf, see {@link com.att.research.mdbc.MdbcServer} */
+	public static final String SERIALIZATION_DEFAULT = "protobuf";
+	/** The property name to use to set the time (in milliseconds) that the owner of a table is cached. */
+	public static final String KEY_ROUTING_CACHE_TTL = "routing_cache_ttl";
+	/** By default the owner of each table is read again from MUSIC every 30 seconds, or right after an ownership error */
+	public static final String ROUTING_CACHE_TTL_DEFAULT = "30000";
+
+	private static final Map<String, PartitionRouter> routers = new ConcurrentHashMap<>();
+
+	static {
+		try {
+			DriverManager.registerDriver(new RoutingDriver());
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Routing driver could not be registered: "+e.getMessage());
+		}
+	}
+
+	@Override
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(URL_PREFIX);
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (!acceptsURL(url)) {
+			return null;
+		}
+		Properties props = parseUrl(url, info);
+		List<String> tables = splitList(props.getProperty(KEY_TABLES, ""));
+		final String serialization = props.getProperty(KEY_SERIALIZATION, SERIALIZATION_DEFAULT);
+		final Properties credentials = new Properties();
+		for (String key : new String[]{"user", "password"}) {
+			if (props.getProperty(key) != null) {
+				credentials.setProperty(key, props.getProperty(key));
+			}
+		}
+		return new RoutingConnection(getRouter(props), tables,
+				(owner) -> DriverManager.getConnection("jdbc:avatica:remote:url="+owner+";serialization="+serialization, credentials));
+	}
+
+	private PartitionRouter getRouter(Properties props) {
+		final String address = props.getProperty(CassandraMixin.KEY_MUSIC_ADDRESS, CassandraMixin.DEFAULT_MUSIC_ADDRESS);
+		final String namespace = props.getProperty(CassandraMixin.KEY_MUSIC_NAMESPACE, CassandraMixin.DEFAULT_MUSIC_NAMESPACE);
+		final Map<String,String> owners = parseOwners(props.getProperty(KEY_OWNERS, ""));
+		final String defaultUrl = props.getProperty(KEY_DEFAULT_URL);
+		final long ttl = Long.parseLong(props.getProperty(KEY_ROUTING_CACHE_TTL, ROUTING_CACHE_TTL_DEFAULT));
+		return routers.computeIfAbsent(address+"/"+namespace, (k) -> {
+			logger.info(EELFLoggerDelegate.applicationLogger, "RoutingDriver: music_address="+address+", music_namespace="+namespace
+					+", owners="+owners+", routing_cache_ttl="+ttl);
+			return new PartitionRouter(new MusicMetadataSource(address, namespace), owners, defaultUrl, ttl);
+		});
+	}
+
+	/**
+	 * @return the properties of the connection, the values in the url replace the ones in info
+	 */
+	static Properties parseUrl(String url, Properties info) {
+		Properties props = new Properties();
+		if (info != null) {
+			props.putAll(info);
+		}
+		for (String part : url.substring(URL_PREFIX.length()).split(";")) {
+			int eq = part.indexOf('=');
+			if (eq > 0) {
+				props.setProperty(part.substring(0, eq).trim(), part.substring(eq + 1).trim());
+			}
+		}
+		return props;
+	}
+
+	static Map<String,String> parseOwners(String owners) {
+		Map<String,String> urls = new HashMap<>();
+		for (String owner : splitList(owners)) {
+			int eq = owner.indexOf('=');
+			if (eq <= 0) {
+				logger.warn("Invalid owner "+owner+", it should be owner=url");
+				continue;
+			}
+			urls.put(owner.substring(0, eq).trim(), owner.substring(eq + 1).trim());
+		}
+		return urls;
+	}
+
+	private static List<String> splitList(String list) {
+		List<String> values = new ArrayList<>();
+		for (String value : list.split(",")) {
+			if (!value.trim().isEmpty()) {
+				values.add(value.trim());
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 0;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 1;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
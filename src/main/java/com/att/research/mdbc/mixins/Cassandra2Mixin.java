@@ -2,11 +2,13 @@ package com.att.research.mdbc.mixins;
 
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -31,6 +33,8 @@ import com.datastax.driver.core.Row;
 public class Cassandra2Mixin extends CassandraMixin {
 	private static final String DIRTY_TABLE = "DIRTY____";	// it seems Cassandra won't allow __DIRTY__
 	private boolean dirty_table_created = false;
+	//Decoders of the keysets of each table, compiled from its TableInfo
+	private final Map<String, KeysetDecoder> keysetDecoders = new ConcurrentHashMap<>();
 	
 	private EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(Cassandra2Mixin.class);
 
@@ -98,6 +102,96 @@ public class Cassandra2Mixin extends CassandraMixin {
 		// no-op
 	}
 
+	/**
+	 * Reads the value of a key column from a keyset
+	 */
+	private interface KeyReader {
+		Object read(JSONObject jo, String colname);
+	}
+
+	/**
+	 * Converts the keysets of a table into maps of the key columns and their values, the reader of each key column
+	 * is chosen once from the {@link TableInfo} of the table
+	 */
+	private static class KeysetDecoder {
+		private final TableInfo ti;
+		private final String[] columns;
+		private final KeyReader[] readers;
+
+		@SuppressWarnings("deprecation")
+		private KeysetDecoder(TableInfo ti, EELFLoggerDelegate logger) {
+			this.ti = ti;
+			List<String> keyColumns = new ArrayList<>();
+			List<KeyReader> keyReaders = new ArrayList<>();
+			for (int i = 0; i < ti.columns.size(); i++) {
+				if (!ti.iskey.get(i)) {
+					continue;
+				}
+				keyColumns.add(ti.columns.get(i));
+				switch (ti.coltype.get(i)) {
+				case Types.BIGINT:
+					keyReaders.add((jo, col) -> jo.getLong(col));
+					break;
+				case Types.BOOLEAN:
+					keyReaders.add((jo, col) -> jo.getBoolean(col));
+					break;
+				case Types.BLOB:
+					logger.error(EELFLoggerDelegate.errorLogger,"WE DO NOT SUPPORT BLOBS AS PRIMARY KEYS!! COLUMN NAME="+ti.columns.get(i));
+					// throw an exception here???
+					keyReaders.add(null);
+					break;
+				case Types.DOUBLE:
+					keyReaders.add((jo, col) -> jo.getDouble(col));
+					break;
+				case Types.INTEGER:
+					keyReaders.add((jo, col) -> jo.getInt(col));
+					break;
+				case Types.TIMESTAMP:
+					keyReaders.add((jo, col) -> new Date(jo.getString(col)));
+					break;
+				case Types.VARCHAR:
+				default:
+					keyReaders.add((jo, col) -> jo.getString(col));
+					break;
+				}
+			}
+			this.columns = keyColumns.toArray(new String[0]);
+			this.readers = keyReaders.toArray(new KeyReader[0]);
+		}
+
+		private Map<String,Object> decode(JSONObject jo) {
+			Map<String,Object> objs = new HashMap<String,Object>();
+			for (int i = 0; i < columns.length; i++) {
+				if (readers[i] != null && jo.has(columns[i])) {
+					objs.put(columns[i], readers[i].read(jo, columns[i]));
+				}
+			}
+			return objs;
+		}
+	}
+
+	private KeysetDecoder getKeysetDecoder(TableInfo ti, String tableName) {
+		KeysetDecoder decoder = keysetDecoders.get(tableName);
+		if (decoder == null || decoder.ti != ti) {
+			decoder = new KeysetDecoder(ti, logger);
+			keysetDecoders.put(tableName, decoder);
+		}
+		return decoder;
+	}
+
+	/**
+	 * @return the keyset of a row, with only its key columns
+	 */
+	private String buildKeyset(TableInfo ti, JSONObject keys) {
+		JSONObject jo = new JSONObject();
+		for (int i = 0; i < ti.columns.size(); i++) {
+			if (ti.iskey.get(i)) {
+				jo.put(ti.columns.get(i), keys.opt(ti.columns.get(i)));
+			}
+		}
+		return jo.toString();
+	}
+
 	private String buildJSON(TableInfo ti, String tableName, Object[] keys) {
 		// Build JSON string representing this keyset
 		JSONObject jo = new JSONObject();
@@ -119,14 +213,16 @@ public class Cassandra2Mixin extends CassandraMixin {
 		String cql = String.format("DELETE FROM %s.%s WHERE tablename = ? AND replica = ? AND keyset = ?;", music_ns, DIRTY_TABLE);
 		//Session sess = getMusicSession();
 		//PreparedStatement ps = getPreparedStatementFromCache(cql);
-		Object[] values = new Object[] { tableName, myId, keys };
+		// the keyset must be the same string that was written by the marker
+		String keyset = buildKeyset(ti, keys);
+		Object[] values = new Object[] { tableName, myId, keyset };
 		logger.debug(EELFLoggerDelegate.applicationLogger,"Executing MUSIC write:"+ cql + " with values " + values[0] + " " + values[1] + " " + values[2]);
 		
 		PreparedQueryObject pQueryObject = new PreparedQueryObject();
 		pQueryObject.appendQueryString(cql);
 		pQueryObject.addValue(tableName);
 		pQueryObject.addValue(myId);
-		pQueryObject.addValue(keys);
+		pQueryObject.addValue(keyset);
 		ReturnType rt = MusicPureCassaCore.eventualPut(pQueryObject);
 		if(rt.getResult().getResult().toLowerCase().equals("failure")) {
 			logger.error(EELFLoggerDelegate.errorLogger, "Failure while eventualPut...: "+rt.getMessage());
@@ -143,7 +239,6 @@ public class Cassandra2Mixin extends CassandraMixin {
 	 * @param tableName the table we are querying for
 	 * @return a list of maps; each list item is a map of the primary key names and values for that "dirty row".
 	 */
-	@SuppressWarnings("deprecation")
 	@Override
 	public List<Map<String,Object>> getDirtyRows(TableInfo ti, String tableName) {
 		String cql = String.format("SELECT keyset FROM %s.%s WHERE tablename = ? AND replica = ?;", music_ns, DIRTY_TABLE);
@@ -167,40 +262,11 @@ public class Cassandra2Mixin extends CassandraMixin {
 		synchronized (sess) {
 			results = sess.execute(bound);
 		}*/
+		KeysetDecoder decoder = getKeysetDecoder(ti, tableName);
 		List<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
 		for (Row row : results) {
-			String json = row.getString("keyset");
-			JSONObject jo = new JSONObject(new JSONTokener(json));
-			Map<String,Object> objs = new HashMap<String,Object>();
-			for (String colname : jo.keySet()) {
-				int coltype = ti.getColType(colname);
-				switch (coltype) {
-				case Types.BIGINT:
-					objs.put(colname, jo.getLong(colname));
-					break;
-				case Types.BOOLEAN:
-					objs.put(colname, jo.getBoolean(colname));
-					break;
-				case Types.BLOB:
-					logger.error(EELFLoggerDelegate.errorLogger,"WE DO NOT SUPPORT BLOBS AS PRIMARY KEYS!! COLUMN NAME="+colname);
-					// throw an exception here???
-					break;
-				case Types.DOUBLE:
-					objs.put(colname, jo.getDouble(colname));
-					break;
-				case Types.INTEGER:
-					objs.put(colname, jo.getInt(colname));
-					break;
-				case Types.TIMESTAMP:
-					objs.put(colname, new Date(jo.getString(colname)));
-					break;
-				case Types.VARCHAR:
-				default:
-					objs.put(colname, jo.getString(colname));
-					break;
-				}
-			}
-			list.add(objs);
+			String json = row.getString(0);
+			list.add(decoder.decode(new JSONObject(new JSONTokener(json))));
 		}
 		return list;
 	}
@@ -256,32 +322,30 @@ public class Cassandra2Mixin extends CassandraMixin {
 	 */
 	@Deprecated
 	public void markDirtyRow(TableInfo ti, String tableName, Object[] keys) {
+		markDirtyRows(ti, tableName, Collections.singletonList(new JSONObject(buildJSON(ti, tableName, keys))));
+	}
+
+	/**
+	 * Adds the markers of a row for all the replicas into <i>batch</i>. The dirty rows of all the replicas for
+	 * <i>tableName</i> are in the same partition of the dirty table.
+	 * @param keys the row that changed, the values that correspond to the tables' primary key are copied into the
+	 * keyset of the marker.
+	 */
+	@Override
+	protected void addDirtyRowMarkers(DirtyRowBatch batch, TableInfo ti, String tableName, JSONObject keys) {
 		String cql = String.format("INSERT INTO %s.%s (tablename, replica, keyset) VALUES (?, ?, ?);", music_ns, DIRTY_TABLE);
-		/*Session sess = getMusicSession();
-		PreparedStatement ps = getPreparedStatementFromCache(cql);*/
-		@SuppressWarnings("unused")
-		Object[] values = new Object[] { tableName, "", buildJSON(ti, tableName, keys) };
-		PreparedQueryObject pQueryObject = null;
+		String keyset = buildKeyset(ti, keys);
 		for (String repl : allReplicaIds) {
-			/*if (!repl.equals(myId)) {
-				values[1] = repl;
-				logger.info(EELFLoggerDelegate.applicationLogger,"Executing MUSIC write:"+ cql + " with values " + values[0] + " " + values[1] + " " + values[2]);
-				
-				BoundStatement bound = ps.bind(values);
-				bound.setReadTimeoutMillis(60000);
-				synchronized (sess) {
-					sess.execute(bound);
-				}
-			}*/
-			pQueryObject = new PreparedQueryObject();
+			if (repl.equals(myId)) {
+				// this replica already has the data
+				continue;
+			}
+			PreparedQueryObject pQueryObject = new PreparedQueryObject();
 			pQueryObject.appendQueryString(cql);
 			pQueryObject.addValue(tableName);
 			pQueryObject.addValue(repl);
-			pQueryObject.addValue(buildJSON(ti, tableName, keys));
-			ReturnType rt = MusicPureCassaCore.eventualPut(pQueryObject);
-			if(rt.getResult().getResult().toLowerCase().equals("failure")) {
-				System.out.println("Failure while critical put..."+rt.getMessage());
-			}
+			pQueryObject.addValue(keyset);
+			batch.add(tableName, pQueryObject);
 		}
 	}
 }
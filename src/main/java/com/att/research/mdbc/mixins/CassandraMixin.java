@@ -1,32 +1,46 @@
 package com.att.research.mdbc.mixins;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
 
 import com.att.research.mdbc.*;
+import com.att.research.mdbc.tables.Operation;
 import com.att.research.mdbc.tables.PartitionInformation;
 import com.att.research.mdbc.tables.RedoHistoryElement;
 import com.att.research.mdbc.tables.RedoRecordId;
 import com.att.research.mdbc.tables.StagingTable;
 import com.att.research.mdbc.tables.TablePartitionInformation;
 import com.att.research.mdbc.tables.TitReference;
+import com.att.research.mdbc.tables.TransactionDigestCodec;
 import com.att.research.mdbc.tables.TransactionInformationElement;
 import com.att.research.mdbc.tables.TxCommitProgress;
 
+import org.apache.commons.lang3.tuple.Pair;
 import org.json.JSONObject;
-import org.onap.music.datastore.CassaLockStore;
 import org.onap.music.datastore.PreparedQueryObject;
 import org.onap.music.exceptions.MusicLockingException;
 import org.onap.music.exceptions.MusicQueryException;
@@ -37,13 +51,20 @@ import org.onap.music.main.ReturnType;
 
 import com.att.research.exceptions.MDBCServiceException;
 import com.att.research.logging.EELFLoggerDelegate;
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TupleValue;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * This class provides the methods that MDBC needs to access Cassandra directly in order to provide persistence
@@ -87,6 +108,64 @@ public class CassandraMixin implements MusicInterface {
 	public static final String MDBC_PRIMARYKEY_TYPE = "uuid";
 	/** Namespace for the tables in MUSIC (Cassandra) */
 	public static final String DEFAULT_MUSIC_NAMESPACE = "namespace";
+	/** The property name to use to provide the maximum number of transactions written in a single group commit. */
+	public static final String KEY_GROUP_COMMIT_SIZE  = "group_commit_size";
+	/** The property name to use to provide the time (ms) that a group commit waits for other transactions. */
+	public static final String KEY_GROUP_COMMIT_WINDOW = "group_commit_window";
+	/** The default maximum number of transactions in a group commit, 1 disables grouping */
+	public static final int    DEFAULT_GROUP_COMMIT_SIZE = 64;
+	/** The default time that a group commit waits for other transactions */
+	public static final long   DEFAULT_GROUP_COMMIT_WINDOW = 0;
+	/** The property name to use to select the compression of the transaction digests (none, lz4 or snappy). */
+	public static final String KEY_DIGEST_COMPRESSION = "digest_compression";
+	/** The property name to use to provide the maximum size (in bytes) of each chunk of a digest stored in the RRT. */
+	public static final String KEY_RRT_CHUNK_SIZE     = "rrt_chunk_size";
+	/** The property name to use to provide the number of threads used to write the chunks of a digest. */
+	public static final String KEY_RRT_WRITERS        = "rrt_writers";
+	/** The default maximum size of a chunk in the RRT */
+	public static final int    DEFAULT_RRT_CHUNK_SIZE = 512*1024;
+	/** The default number of threads used to write chunks into the RRT */
+	public static final int    DEFAULT_RRT_WRITERS    = 4;
+	/** The property name to use to provide the maximum number of asynchronous requests in flight to MUSIC, for all the hosts together. */
+	public static final String KEY_MUSIC_MAX_IN_FLIGHT = "music_max_in_flight";
+	/** The default maximum number of requests in flight to MUSIC */
+	public static final int    DEFAULT_MUSIC_MAX_IN_FLIGHT = 1024;
+	/** The property name to use to provide the maximum number of records in the redo list of a TIT row before a new row is started. */
+	public static final String KEY_TIT_MAX_REDO_RECORDS = "tit_max_redo_records";
+	/** The property name to use to provide the maximum estimated size (in bytes) of the redo list of a TIT row before a new row is started. */
+	public static final String KEY_TIT_MAX_REDO_BYTES   = "tit_max_redo_bytes";
+	/** The default maximum number of records in the redo list of a TIT row, 0 disables the limit */
+	public static final long   DEFAULT_TIT_MAX_REDO_RECORDS = 100000;
+	/** The default maximum size of the redo list of a TIT row, 0 disables the limit */
+	public static final long   DEFAULT_TIT_MAX_REDO_BYTES   = 8*1024*1024;
+	/** The property name to use to provide the time (ms) that the lease of a partition is valid after it was last renewed. */
+	public static final String KEY_LEASE_PERIOD          = "lease_period";
+	/** The property name to use to provide the maximum time (ms) that a commit waits for the lease of its partition. */
+	public static final String KEY_LEASE_ACQUIRE_TIMEOUT = "lease_acquire_timeout";
+	/** The default lease period, the lease is renewed every third of it */
+	public static final long   DEFAULT_LEASE_PERIOD          = 10000;
+	/** The default maximum time that a commit waits for the lease */
+	public static final long   DEFAULT_LEASE_ACQUIRE_TIMEOUT = 60000;
+	/** The property name to use to provide the directory of the local write-ahead log, if set commits return once they are in the log and are shipped to MUSIC in the background. */
+	public static final String KEY_WAL_DIRECTORY    = "wal_directory";
+	/** The property name to use to provide the size (in bytes) of each segment of the local write-ahead log. */
+	public static final String KEY_WAL_SEGMENT_SIZE = "wal_segment_size";
+	/** The property name to use to provide the maximum number of commits in the local write-ahead log that are not yet in MUSIC. */
+	public static final String KEY_WAL_MAX_PENDING  = "wal_max_pending";
+	/** The default size of a segment of the write-ahead log */
+	public static final int    DEFAULT_WAL_SEGMENT_SIZE = 64*1024*1024;
+	/** The default maximum replication lag, commits block when it is reached */
+	public static final int    DEFAULT_WAL_MAX_PENDING  = 10000;
+	/** The property name to use to provide the time (ms) between polls of the dirty rows of this replica, 0 reads them from MUSIC on every SELECT. */
+	public static final String KEY_DIRTY_POLL_INTERVAL = "dirty_poll_interval";
+	/** The default time between polls of the dirty rows, it bounds how stale a SELECT can be */
+	public static final long   DEFAULT_DIRTY_POLL_INTERVAL = 1000;
+	/** Time (ms) that the shipper waits before retrying a batch that could not be written into MUSIC */
+	private static final long  WAL_RETRY_WAIT         = 1000;
+	/** Maximum time (ms) that a writer waits for a request in flight to complete when the bound is reached */
+	private static final long  MUSIC_IN_FLIGHT_TIMEOUT = 60000;
+	/** Maximum size of a batch of RRT rows of a single digest, it needs to be under the batch_size_fail_threshold of Cassandra */
+	private static final int   RRT_BATCH_BYTES        = 32*1024;
 	
 	/** Name of the tables required for MDBC */
 	public static final String TABLE_TO_PARTITION_TABLE_NAME = "tabletopartition";
@@ -127,19 +206,67 @@ public class CassandraMixin implements MusicInterface {
 	protected final String[] allReplicaIds;
 	private final String musicAddress;
 	private final int    music_rfactor;
+	private final int    groupCommitSize;
+	private final long   groupCommitWindow;
+	private final TransactionDigestCodec.Compression digestCompression;
+	private final int    rrtChunkSize;
+	private final ExecutorService rrtWriters;
+	private final int    maxInFlight;
+	private final TitRollover titRollover;
+	private final long   leasePeriod;
+	private final long   leaseAcquireTimeout;
+	private final ScheduledExecutorService leaseRenewer;
+	private final LeaseManager.LockService lockService = new LeaseManager.MusicLockService(this::getMusicExecutor);
+	private final String walDirectory;
+	private final int    walSegmentSize;
+	private final int    walMaxPending;
+	private volatile WriteAheadLog wal = null;
+	private Thread walShipper = null;
+	private final DirtyKeyCache dirtyKeys;
 	private MusicConnector mCon        = null;
 	private Session musicSession       = null;
+	private MusicAsyncExecutor musicExecutor = null;
 	private boolean keyspace_created   = false;
-	private Map<String, PreparedStatement> ps_cache = new HashMap<>();
+	//Decoders of the rows read from MUSIC, compiled once for each query or table
+	private Map<String, RowDecoder> decoder_cache = new ConcurrentHashMap<>();
 	private Set<String> in_progress    = Collections.synchronizedSet(new HashSet<String>());
+	private Map<String, GroupCommit> groupCommits = new ConcurrentHashMap<>();
+	//TIT rows replaced by a rollover that are still being archived, with the lock held for each of them
+	private Map<String, String> closedTits = new ConcurrentHashMap<>();
+	private final Object rolloverLock = new Object();
+	private Map<String, LeaseManager> leases = new ConcurrentHashMap<>();
+	//The codec reuses its buffer, so there is one per committing thread
+	private final ThreadLocal<TransactionDigestCodec> digestCodec;
 
 	public CassandraMixin() {
+		this(null, null, (String[]) null);
+	}
+
+	/**
+	 * Creates a mixin that is not connected to MUSIC, only the queries can be built with it
+	 */
+	CassandraMixin(String music_ns, String myId, String[] allReplicaIds) {
 		//this.logger         = null;
 		this.musicAddress   = null;
-		this.music_ns       = null;
+		this.music_ns       = music_ns;
 		this.music_rfactor  = 0;
-		this.myId           = null;
-		this.allReplicaIds  = null;
+		this.groupCommitSize   = DEFAULT_GROUP_COMMIT_SIZE;
+		this.groupCommitWindow = DEFAULT_GROUP_COMMIT_WINDOW;
+		this.digestCompression = TransactionDigestCodec.Compression.NONE;
+		this.digestCodec    = null;
+		this.rrtChunkSize   = DEFAULT_RRT_CHUNK_SIZE;
+		this.rrtWriters     = null;
+		this.maxInFlight = DEFAULT_MUSIC_MAX_IN_FLIGHT;
+		this.titRollover    = null;
+		this.leasePeriod    = DEFAULT_LEASE_PERIOD;
+		this.leaseAcquireTimeout = DEFAULT_LEASE_ACQUIRE_TIMEOUT;
+		this.leaseRenewer   = null;
+		this.walDirectory   = null;
+		this.walSegmentSize = DEFAULT_WAL_SEGMENT_SIZE;
+		this.walMaxPending  = DEFAULT_WAL_MAX_PENDING;
+		this.dirtyKeys      = null;
+		this.myId           = myId;
+		this.allReplicaIds  = allReplicaIds;
     }
 
 	public CassandraMixin(String url, Properties info, DatabasePartition ranges) throws MusicServiceException {
@@ -161,6 +288,61 @@ public class CassandraMixin implements MusicInterface {
 
 		this.music_ns       = info.getProperty(KEY_MUSIC_NAMESPACE,DEFAULT_MUSIC_NAMESPACE);
 		logger.info(EELFLoggerDelegate.applicationLogger,"MusicSqlManager: music_ns="+music_ns);
+
+		s                      = info.getProperty(KEY_GROUP_COMMIT_SIZE);
+		this.groupCommitSize   = (s == null) ? DEFAULT_GROUP_COMMIT_SIZE : Integer.parseInt(s);
+		s                      = info.getProperty(KEY_GROUP_COMMIT_WINDOW);
+		this.groupCommitWindow = (s == null) ? DEFAULT_GROUP_COMMIT_WINDOW : Long.parseLong(s);
+		logger.info(EELFLoggerDelegate.applicationLogger,"MusicSqlManager: groupCommitSize="+groupCommitSize+" groupCommitWindow="+groupCommitWindow);
+
+		this.digestCompression = TransactionDigestCodec.Compression.fromName(info.getProperty(KEY_DIGEST_COMPRESSION));
+		logger.info(EELFLoggerDelegate.applicationLogger,"MusicSqlManager: digestCompression="+digestCompression);
+		final TransactionDigestCodec.Compression compression = this.digestCompression;
+		this.digestCodec = ThreadLocal.withInitial(
+				() -> new TransactionDigestCodec(compression, TransactionDigestCodec.DEFAULT_COMPRESSION_THRESHOLD));
+
+		s                   = info.getProperty(KEY_RRT_CHUNK_SIZE);
+		this.rrtChunkSize   = (s == null) ? DEFAULT_RRT_CHUNK_SIZE : Integer.parseInt(s);
+		s                   = info.getProperty(KEY_RRT_WRITERS);
+		int writers         = (s == null) ? DEFAULT_RRT_WRITERS : Integer.parseInt(s);
+		this.rrtWriters     = Executors.newFixedThreadPool(writers, (r) -> {
+			Thread t = new Thread(r, "mdbc-rrt-writer");
+			t.setDaemon(true);
+			return t;
+		});
+		logger.info(EELFLoggerDelegate.applicationLogger,"MusicSqlManager: rrtChunkSize="+rrtChunkSize+" rrtWriters="+writers);
+		s                   = info.getProperty(KEY_MUSIC_MAX_IN_FLIGHT);
+		this.maxInFlight = (s == null) ? DEFAULT_MUSIC_MAX_IN_FLIGHT : Integer.parseInt(s);
+		s                   = info.getProperty(KEY_TIT_MAX_REDO_RECORDS);
+		long maxRedoRecords = (s == null) ? DEFAULT_TIT_MAX_REDO_RECORDS : Long.parseLong(s);
+		s                   = info.getProperty(KEY_TIT_MAX_REDO_BYTES);
+		long maxRedoBytes   = (s == null) ? DEFAULT_TIT_MAX_REDO_BYTES : Long.parseLong(s);
+		this.titRollover    = new TitRollover(this::rolloverIfCurrent, maxRedoRecords, maxRedoBytes);
+		logger.info(EELFLoggerDelegate.applicationLogger,"MusicSqlManager: titMaxRedoRecords="+maxRedoRecords+" titMaxRedoBytes="+maxRedoBytes);
+		s                   = info.getProperty(KEY_LEASE_PERIOD);
+		this.leasePeriod    = (s == null) ? DEFAULT_LEASE_PERIOD : Long.parseLong(s);
+		s                   = info.getProperty(KEY_LEASE_ACQUIRE_TIMEOUT);
+		this.leaseAcquireTimeout = (s == null) ? DEFAULT_LEASE_ACQUIRE_TIMEOUT : Long.parseLong(s);
+		this.leaseRenewer   = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "mdbc-lease-renewer");
+			t.setDaemon(true);
+			return t;
+		});
+		logger.info(EELFLoggerDelegate.applicationLogger,"MusicSqlManager: leasePeriod="+leasePeriod+" leaseAcquireTimeout="+leaseAcquireTimeout);
+
+		this.walDirectory   = info.getProperty(KEY_WAL_DIRECTORY);
+		s                   = info.getProperty(KEY_WAL_SEGMENT_SIZE);
+		this.walSegmentSize = (s == null) ? DEFAULT_WAL_SEGMENT_SIZE : Integer.parseInt(s);
+		s                   = info.getProperty(KEY_WAL_MAX_PENDING);
+		this.walMaxPending  = (s == null) ? DEFAULT_WAL_MAX_PENDING : Integer.parseInt(s);
+		logger.info(EELFLoggerDelegate.applicationLogger,"MusicSqlManager: walDirectory="+walDirectory+" walSegmentSize="+walSegmentSize+" walMaxPending="+walMaxPending);
+		s                   = info.getProperty(KEY_DIRTY_POLL_INTERVAL);
+		long dirtyPollInterval = (s == null) ? DEFAULT_DIRTY_POLL_INTERVAL : Long.parseLong(s);
+		this.dirtyKeys      = (dirtyPollInterval > 0) ? new DirtyKeyCache(this::getDirtyRows, dirtyPollInterval) : null;
+		if (dirtyKeys != null) {
+			dirtyKeys.start();
+		}
+		logger.info(EELFLoggerDelegate.applicationLogger,"MusicSqlManager: dirtyPollInterval="+dirtyPollInterval);
         transactionInformationTableName = "transactioninformation";
         createMusicKeyspace();
     }
@@ -214,10 +396,29 @@ public class CassandraMixin implements MusicInterface {
 	 */
 	@Override
 	public void close() {
-		if (musicSession != null) {
-			musicSession.close();
-			musicSession = null;
+		if (walShipper != null) {
+			walShipper.interrupt();
+			walShipper = null;
+		}
+		if (wal != null) {
+			wal.close();
+			wal = null;
 		}
+		if (rrtWriters != null) {
+			rrtWriters.shutdown();
+		}
+		if (titRollover != null) {
+			titRollover.shutdown();
+		}
+		if (leaseRenewer != null) {
+			leaseRenewer.shutdownNow();
+		}
+		if (dirtyKeys != null) {
+			dirtyKeys.stop();
+		}
+		// the session is shared with MUSIC, it is not closed here
+		musicSession = null;
+		musicExecutor = null;
 	}
 	@Override
 	public void initializeMdbcDataStructures() throws MDBCServiceException {
@@ -227,12 +428,30 @@ public class CassandraMixin implements MusicInterface {
 			DatabaseOperations.CreateTableToPartitionTable(music_ns, TABLE_TO_PARTITION_TABLE_NAME);
 			DatabaseOperations.CreatePartitionInfoTable(music_ns, PARTITION_INFORMATION_TABLE_NAME);
 			DatabaseOperations.CreateRedoHistoryTable(music_ns, REDO_HISTORY_TABLE_NAME);
+			DatabaseOperations.CreateLeaseHeartbeatTable(music_ns, LeaseManager.HEARTBEAT_TABLE_NAME);
 		}
 		catch(MDBCServiceException e){
             logger.error(EELFLoggerDelegate.errorLogger,"Error creating tables in MUSIC");
         }
+		checkRedoRecordsTable();
+		if (walDirectory != null && !walDirectory.isEmpty()) {
+			openWriteAheadLog();
+		}
 	}
 	
+	private void checkRedoRecordsTable() throws MDBCServiceException {
+		KeyspaceMetadata keyspace = getMusicSession().getCluster().getMetadata().getKeyspace(music_ns);
+		TableMetadata table = (keyspace == null) ? null : keyspace.getTable(redoRecordTableName);
+		if(table == null) {
+			throw new MDBCServiceException("Redo records table "+music_ns+"."+redoRecordTableName+" does not exist");
+		}
+		Map<String,String> columns = new HashMap<>();
+		for(ColumnMetadata col : table.getColumns()) {
+			columns.put(col.getName(), col.getType().toString());
+		}
+		DatabaseOperations.checkRedoRecordsTable(music_ns, redoRecordTableName, columns);
+	}
+
 	/**
 	 * This method creates a keyspace in Music/Cassandra to store the data corresponding to the SQL tables.
 	 * The keyspace name comes from the initialization properties passed to the JDBC driver.
@@ -339,58 +558,93 @@ public class CassandraMixin implements MusicInterface {
 	 */
 	@Override
 	public void markDirtyRow(TableInfo ti, String tableName, JSONObject keys) {
-		Object[] keyObj = getObjects(ti,tableName, keys);
+		markDirtyRows(ti, tableName, Collections.singletonList(keys));
+	}
+
+	/**
+	 * Mark a set of rows as "dirty" in the dirty rows table for <i>tableName</i>. The markers of all the rows and
+	 * replicas are sent together, in unlogged batches grouped by the partition of the dirty table (see {@link DirtyRowBatch}).
+	 * @param tableName the table we are marking dirty
+	 * @param rows the rows that changed, the values of the primary key are copied into the dirty row table.
+	 */
+	@Override
+	public void markDirtyRows(TableInfo ti, String tableName, List<JSONObject> rows) {
+		List<ListenableFuture<ResultSet>> pending = new ArrayList<>();
+		markDirtyRows(ti, tableName, rows, pending);
+		waitForMusicWrites(pending, "markDirtyRows of "+tableName);
+	}
+
+	/**
+	 * Marks the rows as dirty for all the replicas, the batches that can be sent asynchronously are added to <i>pending</i>
+	 */
+	private void markDirtyRows(TableInfo ti, String tableName, List<JSONObject> rows, List<ListenableFuture<ResultSet>> pending) {
+		MusicAsyncExecutor executor = MusicMixin.criticalTables.contains(tableName) ? null : getMusicExecutor();
+		if (executor != null) {
+			DirtyRowBatch batch = new DirtyRowBatch();
+			for (JSONObject keys : rows) {
+				addDirtyRowMarkers(batch, ti, tableName, keys);
+			}
+			try {
+				for (List<PreparedQueryObject> markers : batch.getBatches()) {
+					pending.add(executor.executeAsync(createBatchStatement(executor, markers, ConsistencyLevel.ONE)));
+				}
+				return;
+			} catch (MDBCServiceException e) {
+				// the markers are idempotent, the ones that were already sent are written again
+				logger.error(EELFLoggerDelegate.errorLogger, "Asynchronous write of the dirty rows failed, retrying synchronously: "+e.getMessage());
+			}
+		}
+		// Rows of critical tables are marked one by one, with the lock of the row
+		for (JSONObject keys : rows) {
+			String primaryKey;
+			if(ti.hasKey()) {
+				primaryKey = getMusicKeyFromRow(ti,tableName, keys);
+			}
+			else {
+				primaryKey = getMusicKeyFromRowWithoutPrimaryIndexes(ti,tableName, keys);
+			}
+			DirtyRowBatch markers = new DirtyRowBatch();
+			addDirtyRowMarkers(markers, ti, tableName, keys);
+			for (PreparedQueryObject marker : markers.getMarkers()) {
+				updateMusicDB(tableName, primaryKey, marker);
+			}
+		}
+	}
+
+	/**
+	 * Adds the markers of a row for all the replicas into <i>batch</i>. The dirty table of <i>tableName</i> is
+	 * partitioned by replica.
+	 * @param keys the row that changed, the values that correspond to the tables' primary key are copied into the
+	 * dirty row table.
+	 */
+	protected void addDirtyRowMarkers(DirtyRowBatch batch, TableInfo ti, String tableName, JSONObject keys) {
 		StringBuilder cols = new StringBuilder("REPLICA__");
-		PreparedQueryObject pQueryObject = null;
 		StringBuilder vals = new StringBuilder("?");
-		List<Object> vallist = new ArrayList<Object>();
-		vallist.add(""); // placeholder for replica
+		List<Object> keyValues = new ArrayList<Object>();
 		for (int i = 0; i < ti.columns.size(); i++) {
 			if (ti.iskey.get(i)) {
 				cols.append(", ").append(ti.columns.get(i));
 				vals.append(", ").append("?");
-				vallist.add(keyObj[i]);
+				keyValues.add(keys.opt(ti.columns.get(i)));
 			}
 		}
-		if(cols.length()==0) {
+		if(keyValues.isEmpty()) {
 			//FIXME
-			System.err.println("markDIrtyRow need to fix primary key");
+			logger.error(EELFLoggerDelegate.errorLogger, "markDirtyRow of "+tableName+" need to fix primary key");
 		}
 		String cql = String.format("INSERT INTO %s.DIRTY_%s (%s) VALUES (%s);", music_ns, tableName, cols.toString(), vals.toString());
-		/*Session sess = getMusicSession();
-		PreparedStatement ps = getPreparedStatementFromCache(cql);*/
-		String primaryKey;
-		if(ti.hasKey()) {
-			primaryKey = getMusicKeyFromRow(ti,tableName, keys);
-		}
-		else {
-			primaryKey = getMusicKeyFromRowWithoutPrimaryIndexes(ti,tableName, keys);
-		}
-		System.out.println("markDirtyRow: PK value: "+primaryKey);
-		
-		Object pkObj = null;
-		for (int i = 0; i < ti.columns.size(); i++) {
-			if (ti.iskey.get(i)) {
-				pkObj = keyObj[i];
-			}
-		}
 		for (String repl : allReplicaIds) {
-			pQueryObject = new PreparedQueryObject();
+			if (repl.equals(myId)) {
+				// this replica already has the data
+				continue;
+			}
+			PreparedQueryObject pQueryObject = new PreparedQueryObject();
 			pQueryObject.appendQueryString(cql);
-			pQueryObject.addValue(tableName);
 			pQueryObject.addValue(repl);
-			pQueryObject.addValue(pkObj);
-			updateMusicDB(tableName, primaryKey, pQueryObject);
-			//if (!repl.equals(myId)) {
-				/*logger.info(EELFLoggerDelegate.applicationLogger,"Executing MUSIC write:"+ cql);
-				vallist.set(0, repl);
-				BoundStatement bound = ps.bind(vallist.toArray());
-				bound.setReadTimeoutMillis(60000);
-				synchronized (sess) {
-					sess.execute(bound);
-				}*/
-			//}
-			
+			for (Object value : keyValues) {
+				pQueryObject.addValue(value);
+			}
+			batch.add(repl, pQueryObject);
 		}
 	}
 	/**
@@ -400,33 +654,30 @@ public class CassandraMixin implements MusicInterface {
 	 */
 	@Override
 	public void cleanDirtyRow(TableInfo ti, String tableName, JSONObject keys) {
-		Object[] keysObjects = getObjects(ti,tableName,keys);
+		PreparedQueryObject pQueryObject = createCleanDirtyRowQuery(ti, tableName, keys);
+		logger.debug(EELFLoggerDelegate.applicationLogger,"Executing MUSIC write:"+ pQueryObject.getQuery());
+        ReturnType rt = MusicPureCassaCore.eventualPut(pQueryObject);
+		if(rt.getResult().getResult().toLowerCase().equals("failure")) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Failure while cleanDirtyRow..."+rt.getMessage());
+		}
+	}
+
+	/**
+	 * @return the DELETE of the marker of this replica for the row, with the same key values as its INSERT
+	 * (see {@link #addDirtyRowMarkers(DirtyRowBatch, TableInfo, String, JSONObject)})
+	 */
+	PreparedQueryObject createCleanDirtyRowQuery(TableInfo ti, String tableName, JSONObject keys) {
 		PreparedQueryObject pQueryObject = new PreparedQueryObject();
 		StringBuilder cols = new StringBuilder("REPLICA__=?");
-		List<Object> vallist = new ArrayList<Object>();
-		vallist.add(myId);
-		int n = 0;
+		pQueryObject.addValue(myId);
 		for (int i = 0; i < ti.columns.size(); i++) {
 			if (ti.iskey.get(i)) {
 				cols.append(" AND ").append(ti.columns.get(i)).append("=?");
-				vallist.add(keysObjects[n++]);
-				pQueryObject.addValue(keysObjects[n++]);
+				pQueryObject.addValue(keys.opt(ti.columns.get(i)));
 			}
 		}
-		String cql = String.format("DELETE FROM %s.DIRTY_%s WHERE %s;", music_ns, tableName, cols.toString());
-		logger.debug(EELFLoggerDelegate.applicationLogger,"Executing MUSIC write:"+ cql);
-		pQueryObject.appendQueryString(cql);
-        ReturnType rt = MusicPureCassaCore.eventualPut(pQueryObject);
-		if(rt.getResult().getResult().toLowerCase().equals("failure")) {
-			System.out.println("Failure while cleanDirtyRow..."+rt.getMessage());
-		}
-		/*Session sess = getMusicSession();
-		PreparedStatement ps = getPreparedStatementFromCache(cql);
-		BoundStatement bound = ps.bind(vallist.toArray());
-		bound.setReadTimeoutMillis(60000);
-		synchronized (sess) {
-			sess.execute(bound);
-		}*/
+		pQueryObject.appendQueryString(String.format("DELETE FROM %s.DIRTY_%s WHERE %s;", music_ns, tableName, cols.toString()));
+		return pQueryObject;
 	}
 	/**
 	 * Get a list of "dirty rows" for a table.  The dirty rows returned apply only to this replica,
@@ -449,6 +700,7 @@ public class CassandraMixin implements MusicInterface {
 		}*/
 		PreparedQueryObject pQueryObject = new PreparedQueryObject();
 		pQueryObject.appendQueryString(cql);
+		pQueryObject.addValue(myId);
 		try {
 			results = MusicPureCassaCore.get(pQueryObject);
 		} catch (MusicServiceException e) {
@@ -456,47 +708,11 @@ public class CassandraMixin implements MusicInterface {
 			e.printStackTrace();
 		}
 		
-		ColumnDefinitions cdef = results.getColumnDefinitions();
+		RowDecoder decoder = getRowDecoderFromCache(cql, results.getColumnDefinitions(),
+				(cdef) -> RowDecoder.compileAll(cdef, Collections.singleton("REPLICA__")));
 		List<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
 		for (Row row : results) {
-			Map<String,Object> objs = new HashMap<String,Object>();
-			for (int i = 0; i < cdef.size(); i++) {
-				String colname = cdef.getName(i).toUpperCase();
-				String coltype = cdef.getType(i).getName().toString().toUpperCase();
-				if (!colname.equals("REPLICA__")) {
-					switch (coltype) {
-					case "BIGINT":
-						objs.put(colname, row.getLong(colname));
-						break;
-					case "BOOLEAN":
-						objs.put(colname, row.getBool(colname));
-						break;
-					case "BLOB":
-						objs.put(colname, row.getString(colname));
-						break;
-					case "DATE":
-						objs.put(colname, row.getString(colname));
-						break;
-					case "DOUBLE":
-						objs.put(colname, row.getDouble(colname));
-						break;
-					case "DECIMAL":
-						objs.put(colname, row.getDecimal(colname));
-						break;
-					case "INT":
-						objs.put(colname, row.getInt(colname));
-						break;
-					case "TIMESTAMP":
-						objs.put(colname, row.getTimestamp(colname));
-						break;
-					case "VARCHAR":
-					default:
-						objs.put(colname, row.getString(colname));
-						break;
-					}
-				}
-			}
-			list.add(objs);
+			list.add(decoder.decode(row));
 		}
 		return list;
 	}
@@ -575,14 +791,15 @@ public class CassandraMixin implements MusicInterface {
             if(rt.getResult().getResult().toLowerCase().equals("failure")) {
 				System.out.println("Failure while critical put..."+rt.getMessage());
 			}
+			// Mark the dirty rows in music for all the replicas but us
+			markDirtyRow(ti,tableName, oldRow);
 		} else {
-			ReturnType rt = MusicPureCassaCore.eventualPut(pQueryObject);
-			if(rt.getResult().getResult().toLowerCase().equals("failure")) {
-				System.out.println("Failure while critical put..."+rt.getMessage());
-			}
+			// the delete and the dirty marks are independent, they are sent together
+			List<ListenableFuture<ResultSet>> pending = new ArrayList<>();
+			updateMusicDB(tableName, primaryKey, pQueryObject, pending);
+			markDirtyRows(ti,tableName, Collections.singletonList(oldRow), pending);
+			waitForMusicWrites(pending, "deleteFromEntityTableInMusic of "+tableName);
 		}
-		// Mark the dirty rows in music for all the replicas but us
-		markDirtyRow(ti,tableName, oldRow);
 	}
 
 	public Set<String> getMusicTableSet(String ns) {
@@ -596,14 +813,18 @@ public class CassandraMixin implements MusicInterface {
 	}
 	/**
 	 * This method is called whenever there is a SELECT on a local SQL table, wherein it first checks the local
-	 * dirty bits table to see if there are any keys in Cassandra whose value has not yet been sent to SQL
+	 * dirty bits table to see if there are any keys in Cassandra whose value has not yet been sent to SQL.
+	 * The dirty keys are taken from the {@link DirtyKeyCache}, so a table without dirty rows is not read from MUSIC.
 	 * @param tableName This is the table on which the select is being performed
 	 */
 	@Override
 	public void readDirtyRowsAndUpdateDb(DBInterface dbi, String tableName) {
 		// Read dirty rows of this table from Music
 		TableInfo ti = dbi.getTableInfo(tableName);
-		List<Map<String,Object>> objlist = getDirtyRows(ti,tableName);
+		List<Map<String,Object>> objlist = (dirtyKeys != null) ? dirtyKeys.getDirtyKeys(ti, tableName) : getDirtyRows(ti,tableName);
+		if (objlist.isEmpty()) {
+			return;
+		}
 		PreparedQueryObject pQueryObject = null;
 		String pre_cql = String.format("SELECT * FROM %s.%s WHERE ", music_ns, tableName);
 		List<Object> vallist = new ArrayList<Object>();
@@ -622,7 +843,7 @@ public class CassandraMixin implements MusicInterface {
 			}
 			
 			String cql = pre_cql + sb.toString();
-			System.out.println("readDirtyRowsAndUpdateDb: cql: "+cql);
+			logger.debug(EELFLoggerDelegate.applicationLogger, "readDirtyRowsAndUpdateDb: cql: "+cql);
 			pQueryObject.appendQueryString(cql);
 			ResultSet dirtyRows = null;
 			try {
@@ -651,20 +872,22 @@ public class CassandraMixin implements MusicInterface {
 				}
 			}
 		}
+		if (dirtyKeys != null) {
+			dirtyKeys.applied(tableName, objlist);
+		}
 	}
 
 	private void deleteRowFromSqlDb(DBInterface dbi, String tableName, Map<String, Object> map) {
 		dbi.deleteRowFromSqlDb(tableName, map);
 		TableInfo ti = dbi.getTableInfo(tableName);
-		List<Object> vallist = new ArrayList<Object>();
+		Map<String,Object> keys = new LinkedHashMap<String,Object>();
 		for (int i = 0; i < ti.columns.size(); i++) {
 			if (ti.iskey.get(i)) {
 				String col = ti.columns.get(i);
-				Object val = map.get(col);
-				vallist.add(val);
+				keys.put(col, map.get(col));
 			}
 		}
-		cleanDirtyRow(ti, tableName, new JSONObject(vallist));
+		cleanDirtyRow(ti, tableName, new JSONObject(keys));
 	}
 	/**
 	 * This functions copies the contents of a row in Music into the corresponding row in the SQL table
@@ -674,14 +897,16 @@ public class CassandraMixin implements MusicInterface {
 	private void writeMusicRowToSQLDb(DBInterface dbi, String tableName, Row musicRow) {
 		// First construct the map of columns and their values
 		TableInfo ti = dbi.getTableInfo(tableName);
-		Map<String, Object> map = new HashMap<String, Object>();
-		List<Object> vallist = new ArrayList<Object>();
+		final List<String> columns = ti.columns;
+		RowDecoder decoder = getRowDecoderFromCache(music_ns+"."+tableName, musicRow.getColumnDefinitions(),
+				(cdef) -> RowDecoder.compile(cdef, columns));
+		Map<String, Object> map = decoder.decode(musicRow);
+		Map<String,Object> keys = new LinkedHashMap<String,Object>();
 		String rowid = tableName;
-		for (String col : ti.columns) {
-			Object val = getValue(musicRow, col);
-			map.put(col, val);
-			if (ti.iskey(col)) {
-				vallist.add(val);
+		for (int i = 0; i < ti.columns.size(); i++) {
+			if (ti.iskey.get(i)) {
+				Object val = map.get(ti.columns.get(i));
+				keys.put(ti.columns.get(i), val);
 				rowid += "_" + val.toString();
 			}
 		}
@@ -709,7 +934,7 @@ public class CassandraMixin implements MusicInterface {
 //		}
 
 		ti = dbi.getTableInfo(tableName);
-		cleanDirtyRow(ti, tableName, new JSONObject(vallist));
+		cleanDirtyRow(ti, tableName, new JSONObject(keys));
 
 //		String selectQuery = "select "+ primaryKeyName+" FROM "+tableName+" WHERE "+primaryKeyName+"="+primaryKeyValue+";";
 //		java.sql.ResultSet rs = executeSQLRead(selectQuery);
@@ -740,33 +965,7 @@ public class CassandraMixin implements MusicInterface {
 			logger.warn("Colname is not part of table metadata: "+e);
 			throw e;
 		}
-		String typeStr = colType.getName().toString().toUpperCase();
-		switch (typeStr) {
-		case "BIGINT":
-			return musicRow.getLong(colname);
-		case "BOOLEAN":
-			return musicRow.getBool(colname);
-		case "BLOB":
-			return musicRow.getString(colname);
-		case "DATE":
-			return musicRow.getString(colname);
-		case "DECIMAL":
-			return musicRow.getDecimal(colname);
-		case "DOUBLE":
-			return musicRow.getDouble(colname);
-		case "SMALLINT":
-		case "INT":
-			return musicRow.getInt(colname);
-		case "TIMESTAMP":
-			return musicRow.getTimestamp(colname);
-		case "UUID":
-			return musicRow.getUUID(colname);
-		default:
-			logger.error(EELFLoggerDelegate.errorLogger, "UNEXPECTED COLUMN TYPE: columname="+colname+", columntype="+typeStr);
-			// fall thru
-		case "VARCHAR":
-			return musicRow.getString(colname);
-		}
+		return RowDecoder.getter(colType.getName(), colname).get(musicRow, cdef.getIndexOf(colname));
 	}
 
 	/**
@@ -829,7 +1028,9 @@ public class CassandraMixin implements MusicInterface {
 			
 			pQueryObject.appendQueryString(cql);
 			String primaryKey = getMusicKeyFromRow(ti,tableName, changedRow);
-			updateMusicDB(tableName, primaryKey, pQueryObject);
+			// the row and the dirty marks are independent, they are sent together
+			List<ListenableFuture<ResultSet>> pending = new ArrayList<>();
+			updateMusicDB(tableName, primaryKey, pQueryObject, pending);
 			
 			/*PreparedStatement ps = getPreparedStatementFromCache(cql);
 			BoundStatement bound = ps.bind(newrow);
@@ -839,7 +1040,8 @@ public class CassandraMixin implements MusicInterface {
 				sess.execute(bound);
 			}*/
 			// Mark the dirty rows in music for all the replicas but us
-			markDirtyRow(ti,tableName, changedRow);
+			markDirtyRows(ti,tableName, Collections.singletonList(changedRow), pending);
+			waitForMusicWrites(pending, "updateDirtyRowAndEntityTableInMusic of "+tableName);
 		}
 	}
 	
@@ -858,21 +1060,34 @@ public class CassandraMixin implements MusicInterface {
 		return sb.toString().getBytes();
 	}
 
+	/**
+	 * @param cql the CQL string, with a bind marker for each value
+	 * @return the prepared statement, shared by all the connections that use the same session to MUSIC
+	 */
 	protected PreparedStatement getPreparedStatementFromCache(String cql) {
-		// Note: have to hope that the Session never changes!
-		if (!ps_cache.containsKey(cql)) {
-			Session sess = getMusicSession();
-			PreparedStatement ps = sess.prepare(cql);
-			ps_cache.put(cql, ps);
+		return PreparedStatementRegistry.forSession(getMusicSession()).get(cql);
+	}
+
+	/**
+	 * @param key the query, or the table, that the rows are read from
+	 * @param cdef the columns of the result
+	 * @param compiler creates the decoder for the columns, it is called again if the columns changed
+	 * @return the decoder of the rows of the result
+	 */
+	protected RowDecoder getRowDecoderFromCache(String key, ColumnDefinitions cdef, Function<ColumnDefinitions, RowDecoder> compiler) {
+		RowDecoder decoder = decoder_cache.get(key);
+		if (decoder == null || !decoder.matches(cdef)) {
+			decoder = compiler.apply(cdef);
+			decoder_cache.put(key, decoder);
 		}
-		return ps_cache.get(cql);
+		return decoder;
 	}
 
 	/**
 	 * This method gets a connection to Music
 	 * @return the Cassandra Session to use
 	 */
-	protected Session getMusicSession() {
+	protected synchronized Session getMusicSession() {
 		// create cassandra session
 		if (musicSession == null) {
 			logger.info(EELFLoggerDelegate.applicationLogger, "Creating New Music Session");
@@ -882,6 +1097,20 @@ public class CassandraMixin implements MusicInterface {
 		return musicSession;
 	}
 
+	/**
+	 * Returns the executor used to send independent requests to MUSIC without blocking on each of them
+	 * @return the executor, or null if there is no session to MUSIC
+	 */
+	protected synchronized MusicAsyncExecutor getMusicExecutor() {
+		if (musicExecutor == null) {
+			Session sess = getMusicSession();
+			if (sess != null) {
+				musicExecutor = new MusicAsyncExecutor(sess, this::getPreparedStatementFromCache, maxInFlight, MUSIC_IN_FLIGHT_TIMEOUT);
+			}
+		}
+		return musicExecutor;
+	}
+
 	/**
 	 * This method executes a write query in Music
 	 * @param cql the CQL to be sent to Cassandra
@@ -994,7 +1223,8 @@ public class CassandraMixin implements MusicInterface {
 		String pfx = "";
 		for(String keyCol: keyCols) {
 			key.append(pfx);
-			key.append(row.getString(keyCol));
+			// key columns are not always strings (e.g. integer ids)
+			key.append(String.valueOf(row.get(keyCol)));
 			pfx = ",";
 		}
 		String keyStr = key.toString();
@@ -1025,113 +1255,355 @@ public class CassandraMixin implements MusicInterface {
 	}
 
 
-	private PreparedQueryObject createAppendRRTIndexToTitQuery(String titTable, String uuid, String table, String redoUuid){
+	/**
+	 * Writes a row into MUSIC. Rows of critical tables are written synchronously with a lock, the rest are sent
+	 * without waiting and their future is added to <i>pending</i>.
+	 * @param pending writes that are in flight, the caller has to wait for them with {@link #waitForMusicWrites}
+	 */
+	private void updateMusicDB(String tableName, String primaryKey, PreparedQueryObject pQObject, List<ListenableFuture<ResultSet>> pending) {
+		MusicAsyncExecutor executor = MusicMixin.criticalTables.contains(tableName) ? null : getMusicExecutor();
+		if (executor != null) {
+			try {
+				pending.add(executor.executeAsync(pQObject, ConsistencyLevel.ONE));
+				return;
+			} catch (MDBCServiceException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Asynchronous write failed, retrying synchronously: "+e.getMessage());
+			}
+		}
+		updateMusicDB(tableName, primaryKey, pQObject);
+	}
+
+	/**
+	 * @return the queries bound to their values, in an unlogged batch if there is more than one
+	 */
+	private com.datastax.driver.core.Statement createBatchStatement(MusicAsyncExecutor executor, List<PreparedQueryObject> queries, ConsistencyLevel consistency) {
+		com.datastax.driver.core.Statement stmt;
+		if (queries.size() == 1) {
+			stmt = executor.bind(queries.get(0));
+		}
+		else {
+			BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+			for (PreparedQueryObject query : queries) {
+				batch.add(executor.bind(query));
+			}
+			stmt = batch;
+		}
+		stmt.setConsistencyLevel(consistency);
+		return stmt;
+	}
+
+	private void waitForMusicWrites(List<ListenableFuture<ResultSet>> pending, String what) {
+		if (pending.isEmpty()) {
+			return;
+		}
+		try {
+			MusicAsyncExecutor.waitAll(pending, what);
+		} catch (MDBCServiceException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Failure while writing into MUSIC: "+e.getMessage());
+		}
+	}
+
+	private PreparedQueryObject createAppendRRTIndexToTitQuery(String titTable, String uuid, String table, List<RedoRecordId> records){
         PreparedQueryObject query = new PreparedQueryObject();
         StringBuilder appendBuilder = new StringBuilder();
         appendBuilder.append("UPDATE ")
                 .append(music_ns)
                 .append(".")
                 .append(titTable)
-                .append(" SET redo = redo +[('")
-                .append(table)
-                .append("',")
-                .append(redoUuid)
-                .append(")] WHERE id = ")
-                .append(uuid)
-                .append(";");
+                .append(" SET redo = redo + ? WHERE id = ?;");
+        List<TupleValue> redo = new ArrayList<>();
+        for(RedoRecordId record : records) {
+            redo.add(DatabaseOperations.createTitRedoEntry(table, record));
+        }
         query.appendQueryString(appendBuilder.toString());
+        query.addValue(redo);
+        query.addValue(UUID.fromString(uuid));
         return query;
     }
 
     protected String createAndAssignLock(String fullyQualifiedKey, DatabasePartition partition, String keyspace, String table, String key) throws MDBCServiceException {
-	    String lockId;
-        lockId = MusicPureCassaCore.createLockReference(fullyQualifiedKey);
-        ReturnType lockReturn;
-        try {
-            lockReturn = MusicPureCassaCore.acquireLock(fullyQualifiedKey,lockId);
-        } catch (MusicLockingException e) {
-            logger.error(EELFLoggerDelegate.errorLogger, "Lock was not acquire correctly for key "+fullyQualifiedKey);
-            throw new MDBCServiceException("Lock was not acquire correctly for key "+fullyQualifiedKey);
-        } catch (MusicServiceException e) {
-            logger.error(EELFLoggerDelegate.errorLogger, "Error in music, when locking key: "+fullyQualifiedKey);
-            throw new MDBCServiceException("Error in music, when locking: "+fullyQualifiedKey);
-        } catch (MusicQueryException e) {
-            logger.error(EELFLoggerDelegate.errorLogger, "Error in executing query music, when locking key: "+fullyQualifiedKey);
-            throw new MDBCServiceException("Error in executing query music, when locking: "+fullyQualifiedKey);
-        }
-        //\TODO this is wrong, we should have a better way to obtain a lock forcefully, clean the queue and obtain the lock
-        if(lockReturn.getResult().compareTo(ResultType.SUCCESS) != 0 ) {
-            try {
-                MusicPureCassaCore.releaseLock(fullyQualifiedKey,lockId,false);
-                CassaLockStore lockingServiceHandle = MusicPureCassaCore.getLockingServiceHandle();
-                UUID uuid = lockingServiceHandle.peekLockQueue(keyspace, table, key);
-                String uuidStr = uuid.toString();
-                while(uuidStr != lockId) {
-                    MusicPureCassaCore.releaseLock(fullyQualifiedKey, uuid.toString(), false);
-                    try {
-                        uuid = lockingServiceHandle.peekLockQueue(keyspace, table, key);
-                        uuidStr = uuid.toString();
-                    } catch(NullPointerException e){
-                       //Ignore null pointer exception
-                        lockId = MusicPureCassaCore.createLockReference(fullyQualifiedKey);
-                        uuidStr = lockId;
-                    }
-                }
-                lockReturn = MusicPureCassaCore.acquireLock(fullyQualifiedKey,lockId);
-
-            } catch (MusicLockingException e) {
-                throw new MDBCServiceException("Could not lock the corresponding lock");
-            } catch (MusicServiceException e) {
-                logger.error(EELFLoggerDelegate.errorLogger, "Error in music, when locking key: "+fullyQualifiedKey);
-                throw new MDBCServiceException("Error in music, when locking: "+fullyQualifiedKey);
-            } catch (MusicQueryException e) {
-                logger.error(EELFLoggerDelegate.errorLogger, "Error in executing query music, when locking key: "+fullyQualifiedKey);
-                throw new MDBCServiceException("Error in executing query music, when locking: "+fullyQualifiedKey);
-            }
-        }
-        if(lockReturn.getResult().compareTo(ResultType.SUCCESS) != 0 ) {
-            throw new MDBCServiceException("Could not lock the corresponding lock");
-        }
+        String lockId = createLock(fullyQualifiedKey, keyspace, table, key);
         //TODO: Java newbie here, verify that this lockId is actually assigned to the global DatabasePartition in the StateManager instance
         partition.setLockId(lockId);
         return lockId;
     }
 
-    protected void pushRowToRRT(String lockId, String commitId, HashMap<Range,StagingTable> transactionDigest) throws MDBCServiceException{
-		PreparedQueryObject query = new PreparedQueryObject();
+    /**
+     * Acquires the lock of a key through its {@link LeaseManager}, it returns right away while the lease is valid
+     * @return the id of the lock
+     */
+    protected String createLock(String fullyQualifiedKey, String keyspace, String table, String key) throws MDBCServiceException {
+        return getLease(keyspace, table, key, null).acquire();
+    }
+
+    /**
+     * @param lockId reference that this node already has in the queue of the key, or null
+     * @return the lease manager of a key, it is created the first time it is used
+     */
+    protected LeaseManager getLease(String keyspace, String table, String key, String lockId) {
+        return leases.computeIfAbsent(keyspace+"."+table+"."+key, (k) -> new LeaseManager(lockService, leaseRenewer,
+                keyspace, table, key, lockId, leasePeriod, leaseAcquireTimeout));
+    }
+
+    /**
+     * A row in the RRT, each digest is split into one or more chunks
+     */
+    static class RRTChunk {
+        final String lockId;
+        final String commitId;
+        final int chunk;
+        final int chunks;
+        final ByteBuffer data;
+
+        RRTChunk(String lockId, String commitId, int chunk, int chunks, ByteBuffer data) {
+            this.lockId = lockId;
+            this.commitId = commitId;
+            this.chunk = chunk;
+            this.chunks = chunks;
+            this.data = data;
+        }
+    }
+
+    private String createRRTInsertStatement() {
 	    StringBuilder cqlQuery = new StringBuilder("INSERT INTO ")
                   .append(music_ns)
                   .append('.')
 	    	      .append(redoRecordTableName)
-	    	      .append(" (leaseid,leasecounter,transactiondigest) ")
-	    	      .append("VALUES ('")
-	    	      .append( lockId ).append("',")
-	    	      .append( commitId ).append(",'");
+	    	      .append(" (leaseid,leasecounter,chunk,chunks,transactiondigest) ")
+	    	      .append("VALUES (?,?,?,?,?);");
+	    return cqlQuery.toString();
+    }
+
+    private byte[] serializeDigest(String commitId, HashMap<Range,StagingTable> transactionDigest) throws MDBCServiceException {
         try {
-            cqlQuery.append( MDBCUtils.toString(transactionDigest) );
+            return digestCodec.get().encode(transactionDigest);
         } catch (IOException e) {
             logger.error(EELFLoggerDelegate.errorLogger, "Transaction Digest serialization was invalid for commit "+commitId);
             throw new MDBCServiceException("Transaction Digest serialization was invalid for commit "+commitId);
         }
-        cqlQuery.append("');");
-	    query.appendQueryString(cqlQuery.toString());
-		//\TODO check if I am not shooting on my own foot
+    }
+
+    /**
+     * Splits an encoded digest into chunks of at most rrtChunkSize bytes, the chunks share the digest array
+     */
+    private void splitDigest(String lockId, String commitId, byte[] digest, List<RRTChunk> chunks) {
+        int total = Math.max(1, (digest.length + rrtChunkSize - 1) / rrtChunkSize);
+        for(int i = 0; i < total; i++) {
+            int offset = i * rrtChunkSize;
+            int length = Math.min(rrtChunkSize, digest.length - offset);
+            chunks.add(new RRTChunk(lockId, commitId, i, total, ByteBuffer.wrap(digest, offset, length).slice()));
+        }
+    }
+
+    /**
+     * Writes a group of RRT rows of the same digest, using an unlogged batch if there is more than one
+     */
+    private void writeRRTChunks(List<RRTChunk> chunks) throws MDBCServiceException {
+        PreparedQueryObject query = new PreparedQueryObject();
+        if(chunks.size() > 1) {
+            query.appendQueryString("BEGIN UNLOGGED BATCH ");
+        }
+        for(RRTChunk chunk : chunks) {
+            query.appendQueryString(createRRTInsertStatement());
+            query.addValue(chunk.lockId);
+            query.addValue(new BigInteger(chunk.commitId));
+            query.addValue(chunk.chunk);
+            query.addValue(chunk.chunks);
+            query.addValue(chunk.data);
+        }
+        if(chunks.size() > 1) {
+            query.appendQueryString(" APPLY BATCH;");
+        }
         try {
             MusicPureCassaCore.nonKeyRelatedPut(query,"critical");
         } catch (MusicServiceException e) {
-            logger.error(EELFLoggerDelegate.errorLogger, "Transaction Digest serialization was invalid for commit "+commitId);
-            throw new MDBCServiceException("Transaction Digest serialization for commit "+commitId);
+            logger.error(EELFLoggerDelegate.errorLogger, "Error when pushing "+chunks.size()+" rows into the RRT: "+e.getMessage());
+            throw new MDBCServiceException("Error when pushing "+chunks.size()+" rows into the RRT");
+        }
+    }
+
+    /**
+     * Creates the statement that writes a group of RRT rows of the same digest, an unlogged batch if there is more
+     * than one
+     */
+    private com.datastax.driver.core.Statement createRRTStatement(MusicAsyncExecutor executor, List<RRTChunk> chunks) {
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        for(RRTChunk chunk : chunks) {
+            PreparedQueryObject query = new PreparedQueryObject();
+            query.appendQueryString(createRRTInsertStatement());
+            query.addValue(chunk.lockId);
+            query.addValue(new BigInteger(chunk.commitId));
+            query.addValue(chunk.chunk);
+            query.addValue(chunk.chunks);
+            query.addValue(chunk.data);
+            batch.add(executor.bind(query));
+        }
+        com.datastax.driver.core.Statement stmt = (chunks.size() == 1) ? batch.getStatements().iterator().next() : batch;
+        stmt.setConsistencyLevel(ConsistencyLevel.QUORUM);
+        return stmt;
+    }
+
+    /**
+     * Groups the rows of the same partition of the RRT, i.e. the chunks of the same digest, into batches of at most
+     * maxBytes. A single chunk bigger than maxBytes is written on its own
+     */
+    static List<List<RRTChunk>> groupRRTChunks(List<RRTChunk> chunks, int maxBytes) {
+        List<List<RRTChunk>> writes = new ArrayList<>();
+        List<RRTChunk> current = new ArrayList<>();
+        int currentBytes = 0;
+        for(RRTChunk chunk : chunks) {
+            if(!current.isEmpty() && (currentBytes + chunk.data.remaining() > maxBytes
+                    || !isSameRRTPartition(current.get(0), chunk))) {
+                writes.add(current);
+                current = new ArrayList<>();
+                currentBytes = 0;
+            }
+            current.add(chunk);
+            currentBytes += chunk.data.remaining();
+        }
+        writes.add(current);
+        return writes;
+    }
+
+    private static boolean isSameRRTPartition(RRTChunk a, RRTChunk b) {
+        return a.lockId.equals(b.lockId) && a.commitId.equals(b.commitId);
+    }
+
+    protected void pushRowToRRT(String lockId, String commitId, HashMap<Range,StagingTable> transactionDigest) throws MDBCServiceException{
+        pushRowsToRRT(lockId, Collections.singletonList(new GroupCommit.PendingCommit(commitId, serializeDigest(commitId, transactionDigest))));
+    }
+
+    /**
+     * Pushes the digests of a group of transactions into the RRT. Big digests are split in chunks, and the chunks of
+     * a digest are grouped into unlogged batches. Each (leaseid,leasecounter) is its own partition of the RRT, so the
+     * digests of different transactions are never batched together: a multi-partition unlogged batch only moves the
+     * fan-out to the coordinator. Instead, when more than one write is required, they are sent asynchronously and are
+     * in flight at the same time.
+     * @param lockId lease that is currently held for the partition, used as the key of the commits without a lease
+     * @param batch transactions to be written
+     * @throws MDBCServiceException if any of the rows could not be written
+     */
+    protected void pushRowsToRRT(String lockId, List<GroupCommit.PendingCommit> batch) throws MDBCServiceException{
+        List<RRTChunk> chunks = new ArrayList<>();
+        for(GroupCommit.PendingCommit commit : batch) {
+            String leaseId = (commit.getLeaseId() != null) ? commit.getLeaseId() : lockId;
+            splitDigest(leaseId, commit.getCommitId(), commit.getDigest(), chunks);
+        }
+        List<List<RRTChunk>> writes = groupRRTChunks(chunks, RRT_BATCH_BYTES);
+        MusicAsyncExecutor executor = getMusicExecutor();
+        if(executor != null) {
+            // All the writes are sent together, the executor bounds the number of requests in flight
+            List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+            for(List<RRTChunk> write : writes) {
+                futures.add(executor.executeAsync(createRRTStatement(executor, write)));
+            }
+            MusicAsyncExecutor.waitAll(futures, "push of "+chunks.size()+" rows into the RRT");
+            return;
+        }
+        if(writes.size() == 1 || rrtWriters == null) {
+            for(List<RRTChunk> write : writes) {
+                writeRRTChunks(write);
+            }
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for(final List<RRTChunk> write : writes) {
+            futures.add(rrtWriters.submit(() -> {
+                writeRRTChunks(write);
+                return null;
+            }));
+        }
+        MDBCServiceException error = null;
+        for(Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new MDBCServiceException("Interrupted while pushing rows into the RRT");
+            } catch (ExecutionException e) {
+                logger.error(EELFLoggerDelegate.errorLogger, "Error when pushing rows into the RRT: "+e.getCause().getMessage());
+                error = new MDBCServiceException("Error when pushing rows into the RRT: "+e.getCause().getMessage());
+            }
+        }
+        if(error != null) {
+            throw error;
         }
     }
 
+    /**
+     * Reads all the chunks of a redo record and puts them back together
+     * @param id redo record to be read
+     * @return the encoded transaction digest
+     * @throws MDBCServiceException if the record is missing or incomplete
+     */
+    protected byte[] readDigestFromRRT(RedoRecordId id) throws MDBCServiceException {
+        String cql = String.format("SELECT chunk, chunks, transactiondigest FROM %s.%s WHERE leaseid = ? AND leasecounter = ?;",
+                music_ns, redoRecordTableName);
+        PreparedQueryObject pQueryObject = new PreparedQueryObject();
+        pQueryObject.appendQueryString(cql);
+        pQueryObject.addValue(id.leaseId);
+        pQueryObject.addValue(new BigInteger(id.commitId));
+        ResultSet results;
+        try {
+            results = MusicPureCassaCore.get(pQueryObject);
+        } catch (MusicServiceException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, "Error when reading redo record "+id.leaseId+","+id.commitId);
+            throw new MDBCServiceException("Error when reading redo record "+id.leaseId+","+id.commitId);
+        }
+        List<ByteBuffer> parts = new ArrayList<>();
+        int expected = -1;
+        int size = 0;
+        for (Row row : results) {
+            if(row.getInt("chunk") != parts.size()) {
+                throw new MDBCServiceException("Redo record "+id.leaseId+","+id.commitId+" is missing chunk "+parts.size());
+            }
+            expected = row.getInt("chunks");
+            ByteBuffer data = row.getBytes("transactiondigest");
+            parts.add(data);
+            size += data.remaining();
+        }
+        if(parts.isEmpty() || parts.size() != expected) {
+            throw new MDBCServiceException("Redo record "+id.leaseId+","+id.commitId+" is incomplete, "+parts.size()+" of "+expected+" chunks");
+        }
+        byte[] digest = new byte[size];
+        int offset = 0;
+        for(ByteBuffer part : parts) {
+            int length = part.remaining();
+            part.duplicate().get(digest, offset, length);
+            offset += length;
+        }
+        return digest;
+    }
+
     protected void appendIndexToTit(String lockId, String commitId, String TITIndex) throws MDBCServiceException{
-        StringBuilder redoUuidBuilder  = new StringBuilder();
-        redoUuidBuilder.append("('")
-                .append(lockId)
-                .append("',")
-                .append(commitId)
-                .append(")");
-        PreparedQueryObject appendQuery = createAppendRRTIndexToTitQuery(transactionInformationTableName, TITIndex, redoRecordTableName, redoUuidBuilder.toString());
+        appendIndexesToTit(lockId, Collections.singletonList(commitId), TITIndex);
+    }
+
+    /**
+     * Appends the RRT indexes of a group of transactions into the TIT row with a single operation
+     * @param lockId lease that is currently held for the partition
+     * @param commitIds commit ids in the order in which they should be applied
+     * @param TITIndex row in the TIT that is being modified
+     * @throws MDBCServiceException
+     */
+    protected void appendIndexesToTit(String lockId, List<String> commitIds, String TITIndex) throws MDBCServiceException{
+        List<RedoRecordId> records = new ArrayList<>();
+        for(String commitId : commitIds) {
+            records.add(new RedoRecordId(lockId, commitId));
+        }
+        appendRecordsToTit(lockId, records, TITIndex);
+    }
+
+    /**
+     * Appends a group of RRT indexes into the TIT row with a single operation, the records can be keyed by an older
+     * lease than the one currently held (e.g. commits replayed from the write-ahead log)
+     * @param lockId lease that is currently held for the partition
+     * @param records RRT indexes in the order in which they should be applied
+     * @param TITIndex row in the TIT that is being modified
+     * @throws MDBCServiceException
+     */
+    protected void appendRecordsToTit(String lockId, List<RedoRecordId> records, String TITIndex) throws MDBCServiceException{
+        PreparedQueryObject appendQuery = createAppendRRTIndexToTitQuery(transactionInformationTableName, TITIndex, redoRecordTableName, records);
         ReturnType returnType = MusicPureCassaCore.criticalPut(music_ns, transactionInformationTableName, TITIndex, appendQuery, lockId, null);
         if(returnType.getResult().compareTo(ResultType.SUCCESS) != 0 ){
             logger.error(EELFLoggerDelegate.errorLogger, "Error when executing append operation with return type: "+returnType.getMessage());
@@ -1139,20 +1611,267 @@ public class CassandraMixin implements MusicInterface {
         }
     }
 
+    /**
+     * Obtains the group commit stage associated with a TIT row, it is created the first time it is used
+     * @param partition partition that owns the TIT row
+     * @param TITIndex row in the TIT
+     * @return the group commit stage for the partition
+     */
+    private GroupCommit getGroupCommit(final DatabasePartition partition, final String TITIndex) {
+        return groupCommits.computeIfAbsent(TITIndex, (index) -> new GroupCommit((batch) -> writeCommits(partition, index, batch),
+                groupCommitSize, groupCommitWindow));
+    }
+
+    /**
+     * Writes a group of commits into the RRT and then appends them, in order, to a TIT row
+     * @param partition partition that owns the TIT row
+     * @param TITIndex row in the TIT
+     * @param batch commits to be written
+     * @throws MDBCServiceException if the commits could not be written
+     */
+    private void writeCommits(DatabasePartition partition, String TITIndex, List<GroupCommit.PendingCommit> batch) throws MDBCServiceException {
+        //The lock could have been reassigned since the stage was created, or the row replaced by a rollover
+        String closedLockId = closedTits.get(TITIndex);
+        String lockId = (closedLockId != null) ? closedLockId : partition.getLockId();
+        pushRowsToRRT(lockId, batch);
+        List<RedoRecordId> records = new ArrayList<>();
+        List<String> commitIds = new ArrayList<>();
+        for(GroupCommit.PendingCommit commit : batch) {
+            String leaseId = (commit.getLeaseId() != null) ? commit.getLeaseId() : lockId;
+            records.add(new RedoRecordId(leaseId, commit.getCommitId()));
+            commitIds.add(commit.getCommitId());
+        }
+        appendRecordsToTit(lockId, records, TITIndex);
+        trackRedoSize(partition, TITIndex, lockId, commitIds);
+    }
+
+    /**
+     * Takes the current TIT row of a partition for a write. The TIT row and its lock are read together as a rollover
+     * can switch them at any time; the caller needs to call {@link TitRollover#exit(String)} once the write is done.
+     * @return the TIT row and the lock that is held for it
+     * @throws MDBCServiceException if the lease of the row could not be acquired
+     */
+    private Pair<String,String> enterTransactionInformation(DatabasePartition partition) throws MDBCServiceException {
+        synchronized(partition) {
+            String TITIndex = partition.getTransactionInformationIndex();
+            if(TITIndex.isEmpty()) {
+                //\TODO Fetch TITIndex from the Range Information Table 
+                throw new MDBCServiceException("TIT Index retrieval not yet implemented");
+            }
+            //No round trip to MUSIC while the lease is valid, otherwise it is renewed or taken again
+            String lockId = getLease(music_ns, transactionInformationTableName, TITIndex, partition.getLockId()).acquire();
+            if(!lockId.equals(partition.getLockId())) {
+                partition.setLockId(lockId);
+            }
+            if(titRollover != null) {
+                titRollover.enter(TITIndex);
+            }
+            return Pair.of(TITIndex, lockId);
+        }
+    }
+
+    /**
+     * Opens the local write-ahead log. The commits that were not shipped before the last shutdown are written into
+     * MUSIC before returning, so no new commits are accepted until the log is replayed, and then the shipper starts.
+     * @throws MDBCServiceException if the log could not be opened or replayed
+     */
+    private void openWriteAheadLog() throws MDBCServiceException {
+        if(ranges == null) {
+            logger.error(EELFLoggerDelegate.errorLogger, "The write-ahead log in "+walDirectory+" requires the partition of this node");
+            throw new MDBCServiceException("The write-ahead log in "+walDirectory+" requires the partition of this node");
+        }
+        final WriteAheadLog log;
+        try {
+            log = new WriteAheadLog(new File(walDirectory), walSegmentSize, walMaxPending);
+        } catch (IOException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, "Write-ahead log in "+walDirectory+" could not be opened: "+e.getMessage());
+            throw new MDBCServiceException("Write-ahead log in "+walDirectory+" could not be opened: "+e.getMessage());
+        }
+        replayWriteAheadLog(log);
+        wal = log;
+        walShipper = new Thread(() -> shipWriteAheadLog(log), "mdbc-wal-shipper");
+        walShipper.setDaemon(true);
+        walShipper.start();
+    }
+
+    /**
+     * Ships all the pending commits of the log. Commits that are already in the TIT row (the node stopped after
+     * shipping them but before saving the checkpoint) are not appended again.
+     */
+    private void replayWriteAheadLog(WriteAheadLog log) throws MDBCServiceException {
+        if(log.getPendingCount() == 0) {
+            return;
+        }
+        TransactionInformationElement meta = getTransactionInformation(
+                new TitReference(transactionInformationTableName, ranges.getTransactionInformationIndex()));
+        Set<RedoRecordId> written = (meta == null) ? new HashSet<>() : new HashSet<>(meta.redoLog);
+        int replayed = 0;
+        try {
+            List<WriteAheadLog.Record> batch;
+            while(!(batch = log.peek(groupCommitSize, 0)).isEmpty()) {
+                List<WriteAheadLog.Record> missing = new ArrayList<>();
+                for(WriteAheadLog.Record record : batch) {
+                    if(!written.contains(new RedoRecordId(record.leaseId, record.commitId))) {
+                        missing.add(record);
+                    }
+                }
+                if(!missing.isEmpty()) {
+                    shipToMusic(ranges, missing);
+                }
+                log.shipped(batch);
+                replayed += missing.size();
+            }
+        } catch (IOException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, "Checkpoint of the write-ahead log in "+walDirectory+" could not be saved: "+e.getMessage());
+            throw new MDBCServiceException("Checkpoint of the write-ahead log in "+walDirectory+" could not be saved: "+e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MDBCServiceException("Interrupted while replaying the write-ahead log in "+walDirectory);
+        }
+        logger.info(EELFLoggerDelegate.applicationLogger, "Replayed "+replayed+" commits of the write-ahead log in "+walDirectory+" into MUSIC");
+    }
+
+    /**
+     * Background loop that ships the commits of the log into MUSIC in order, a batch that fails is retried until it
+     * is written, the commits behind it wait in the log
+     */
+    private void shipWriteAheadLog(WriteAheadLog log) {
+        while(!Thread.currentThread().isInterrupted()) {
+            try {
+                List<WriteAheadLog.Record> batch = log.peek(groupCommitSize, WAL_RETRY_WAIT);
+                if(batch.isEmpty()) {
+                    continue;
+                }
+                shipToMusic(ranges, batch);
+                log.shipped(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (MDBCServiceException | IOException e) {
+                logger.error(EELFLoggerDelegate.errorLogger, "Commits of the write-ahead log could not be shipped into MUSIC, retrying: "+e.getMessage());
+                try {
+                    Thread.sleep(WAL_RETRY_WAIT);
+                } catch (InterruptedException e1) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes commits of the write-ahead log into the current TIT row of the partition, under the lease held for it
+     */
+    private void shipToMusic(DatabasePartition partition, List<WriteAheadLog.Record> records) throws MDBCServiceException {
+        String TITIndex = enterTransactionInformation(partition).getLeft();
+        try {
+            List<GroupCommit.PendingCommit> batch = new ArrayList<>();
+            for(WriteAheadLog.Record record : records) {
+                batch.add(new GroupCommit.PendingCommit(record.leaseId, record.commitId, record.digest));
+            }
+            writeCommits(partition, TITIndex, batch);
+        }
+        finally {
+            if(titRollover != null) {
+                titRollover.exit(TITIndex);
+            }
+        }
+    }
+
+    /**
+     * Adds the records appended to a TIT row to its size, the first time the row is used the size is read from MUSIC
+     */
+    private void trackRedoSize(DatabasePartition partition, String TITIndex, String lockId, List<String> commitIds) throws MDBCServiceException {
+        if(titRollover == null) {
+            return;
+        }
+        if(!titRollover.isTracked(TITIndex)) {
+            TransactionInformationElement meta = getTransactionInformation(new TitReference(transactionInformationTableName, TITIndex));
+            long bytes = 0;
+            if(meta != null) {
+                for(RedoRecordId record : meta.redoLog) {
+                    bytes += TitRollover.recordBytes(redoRecordTableName, record.leaseId, record.commitId);
+                }
+            }
+            titRollover.track(TITIndex, (meta == null) ? 0 : meta.redoLog.size(), bytes);
+            titRollover.appended(partition, TITIndex, 0, 0);
+            return;
+        }
+        long bytes = 0;
+        for(String commitId : commitIds) {
+            bytes += TitRollover.recordBytes(redoRecordTableName, lockId, commitId);
+        }
+        titRollover.appended(partition, TITIndex, commitIds.size(), bytes);
+    }
+
+    /**
+     * Called by the {@link TitRollover} in the background, the row could have been replaced meanwhile
+     */
+    private void rolloverIfCurrent(DatabasePartition partition, String TITIndex) throws MDBCServiceException {
+        if(TITIndex.equals(partition.getTransactionInformationIndex())) {
+            rolloverTransactionInformation(partition);
+        }
+    }
+
+    /**
+     * Starts a new TIT row for the partition. The new row is created and locked, linked to the current one in the
+     * redo history and registered in the partition information table; only then is the partition switched to it.
+     * Commits that already took the old row finish on it with its old lock, which is kept until the row is archived.
+     */
+    @Override
+    public TitReference rolloverTransactionInformation(DatabasePartition partition) throws MDBCServiceException {
+        synchronized(rolloverLock) {
+            String oldIndex;
+            String oldLockId;
+            synchronized(partition) {
+                oldIndex = partition.getTransactionInformationIndex();
+                oldLockId = partition.getLockId();
+            }
+            if(oldLockId == null || oldLockId.isEmpty()) {
+                throw new MDBCServiceException("A new TIT row can only be started by the owner of partition "+partition.getPartitionId());
+            }
+            TitReference oldTit = new TitReference(transactionInformationTableName, oldIndex);
+            TitReference newTit = createTransactionInformationRow(
+                    new TransactionInformationElement(null, new ArrayList<>(), partition.getPartitionId(), -1, false));
+            String newLockId = createLock(music_ns+"."+newTit.table+"."+newTit.index, music_ns, newTit.table, newTit.index);
+            addRedoHistory(partition, newTit, Collections.singletonList(oldTit));
+            updateTitReference(partition.getPartitionId(), newTit);
+            closedTits.put(oldIndex, oldLockId);
+            synchronized(partition) {
+                partition.setTransactionInformationIndex(newTit.index);
+                partition.setLockId(newLockId);
+            }
+            logger.info(EELFLoggerDelegate.applicationLogger, "Partition "+partition.getPartitionId()+" moved from TIT row "+oldTit+" to "+newTit);
+            return oldTit;
+        }
+    }
+
+    @Override
+    public Map<TitReference,String> getClosedTransactionInformation() {
+        Map<TitReference,String> closed = new HashMap<>();
+        for(Map.Entry<String,String> entry : closedTits.entrySet()) {
+            if(titRollover == null || titRollover.isDrained(entry.getKey())) {
+                closed.put(new TitReference(transactionInformationTableName, entry.getKey()), entry.getValue());
+            }
+        }
+        return closed;
+    }
+
+    @Override
+    public void releaseTransactionInformation(TitReference tit) throws MDBCServiceException {
+        String lockId = closedTits.get(tit.index);
+        if(lockId == null) {
+            return;
+        }
+        getLease(music_ns, tit.table, tit.index, lockId).release();
+        leases.remove(music_ns+"."+tit.table+"."+tit.index);
+        closedTits.remove(tit.index);
+        groupCommits.remove(tit.index);
+        if(titRollover != null) {
+            titRollover.forget(tit.index);
+        }
+    }
+
 	@Override
 	public void commitLog(DBInterface dbi, DatabasePartition partition, HashMap<Range,StagingTable> transactionDigest, String txId ,TxCommitProgress progressKeeper) throws MDBCServiceException{
-		String TITIndex = partition.getTransactionInformationIndex();
-		if(TITIndex.isEmpty()) {
-			//\TODO Fetch TITIndex from the Range Information Table 
-			throw new MDBCServiceException("TIT Index retrieval not yet implemented");
-		}
-        String fullyQualifiedTitKey = music_ns+"."+ transactionInformationTableName +"."+TITIndex;
-		//0. See if reference to lock was already created
-		String lockId = partition.getLockId();
-		if(lockId == null || lockId.isEmpty()) {
-            lockId = createAndAssignLock(fullyQualifiedTitKey,partition,music_ns,transactionInformationTableName,TITIndex);
-		}
-
 		String commitId;
 		//Generate a local commit id
         if(progressKeeper.containsTx(txId)) {
@@ -1162,17 +1881,65 @@ public class CassandraMixin implements MusicInterface {
             logger.error(EELFLoggerDelegate.errorLogger, "Tx with id "+txId+" was not created in the TxCommitProgress ");
             throw new MDBCServiceException("Tx with id "+txId+" was not created in the TxCommitProgress ");
         }
+
+		WriteAheadLog log = wal;
+		if(log != null && partition == ranges) {
+			commitToWriteAheadLog(log, partition, transactionDigest, txId, progressKeeper, commitId);
+			return;
+		}
+
+		//0. See if reference to lock was already created
+		Pair<String,String> tit = enterTransactionInformation(partition);
+		String TITIndex = tit.getLeft();
+		String lockId = tit.getRight();
         //Add creation type of transaction digest
 
-		//1. Push new row to RRT and obtain its index
-        pushRowToRRT(lockId, commitId, transactionDigest);
+		//1. Push new row to RRT and 2. append RRT index into the corresponding TIT row array,
+		// both of them are done together with all the transactions committing concurrently on this partition
+		try {
+			//The row is keyed with the lease the commit id was generated under, the same one saved below, even if the
+			//lease is taken again before the group is flushed
+			GroupCommit.PendingCommit commit = new GroupCommit.PendingCommit(lockId, commitId, serializeDigest(commitId, transactionDigest));
+			getGroupCommit(partition, TITIndex).commit(commit);
+		}
+		finally {
+			if(titRollover != null) {
+				titRollover.exit(TITIndex);
+			}
+		}
 
-        //2. Save RRT index to RQ
+        //3. Save RRT index to RQ
 		if(progressKeeper!= null) {
 			progressKeeper.setRecordId(txId,new RedoRecordId(lockId, commitId));
 		}
-		//3. Append RRT index into the corresponding TIT row array
-        appendIndexToTit(lockId,commitId,TITIndex);
+    }
+
+    /**
+     * Commits a transaction into the local write-ahead log, it returns once the digest is on the local disk and the
+     * shipper writes it into MUSIC later. The commit id is only unique under the lease, so the lease is stored with it.
+     */
+    private void commitToWriteAheadLog(WriteAheadLog log, DatabasePartition partition, HashMap<Range,StagingTable> transactionDigest,
+                                       String txId, TxCommitProgress progressKeeper, String commitId) throws MDBCServiceException {
+        String lockId;
+        synchronized(partition) {
+            //No round trip to MUSIC while the lease is valid
+            lockId = getLease(music_ns, transactionInformationTableName, partition.getTransactionInformationIndex(), partition.getLockId()).acquire();
+            if(!lockId.equals(partition.getLockId())) {
+                partition.setLockId(lockId);
+            }
+        }
+        try {
+            log.append(new WriteAheadLog.Record(lockId, commitId, serializeDigest(commitId, transactionDigest)));
+        } catch (IOException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, "Commit "+commitId+" could not be written into the write-ahead log: "+e.getMessage());
+            throw new MDBCServiceException("Commit "+commitId+" could not be written into the write-ahead log: "+e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MDBCServiceException("Interrupted while waiting for the write-ahead log to ship commit "+commitId);
+        }
+        if(progressKeeper!= null) {
+            progressKeeper.setRecordId(txId,new RedoRecordId(lockId, commitId));
+        }
     }
 
     /**
@@ -1225,13 +1992,35 @@ public class CassandraMixin implements MusicInterface {
 	}
 
     @Override
-    public TransactionInformationElement getTransactionInformation(String id){
-        throw new UnsupportedOperationException();
+    public TransactionInformationElement getTransactionInformation(String id) throws MDBCServiceException {
+        return getTransactionInformation(new TitReference(transactionInformationTableName, id));
     }
 
     @Override
-    public TitReference createTransactionInformationRow(TransactionInformationElement info){
-        throw new UnsupportedOperationException();
+    public TransactionInformationElement getTransactionInformation(TitReference tit) throws MDBCServiceException {
+        String cql = String.format("SELECT applied, latestapplied, partition, redo FROM %s.%s WHERE id = ?;", music_ns, tit.table);
+        PreparedQueryObject pQueryObject = new PreparedQueryObject();
+        pQueryObject.appendQueryString(cql);
+        pQueryObject.addValue(UUID.fromString(tit.index));
+        Row row = readSingleRow(pQueryObject, "transaction information row "+tit.table+"."+tit.index);
+        if(row == null) {
+            return null;
+        }
+        List<RedoRecordId> redoLog = new ArrayList<>();
+        for(TupleValue redo : row.getList("redo", TupleValue.class)) {
+            //(redo record table,(lease id, lease counter))
+            TupleValue record = redo.getTupleValue(1);
+            redoLog.add(new RedoRecordId(record.getString(0), record.getVarint(1).toString()));
+        }
+        UUID partition = row.getUUID("partition");
+        return new TransactionInformationElement(tit.index, redoLog, (partition == null) ? null : partition.toString(),
+                row.getInt("latestapplied"), row.getBool("applied"));
+    }
+
+    @Override
+    public TitReference createTransactionInformationRow(TransactionInformationElement info) throws MDBCServiceException {
+        String index = DatabaseOperations.CreateEmptyTitRow(music_ns, transactionInformationTableName, info.partition, null);
+        return new TitReference(transactionInformationTableName, index);
     }
 
     @Override
@@ -1260,8 +2049,8 @@ public class CassandraMixin implements MusicInterface {
     }
 
     @Override
-    public void updateTitReference(String partition, TitReference tit){
-        throw new UnsupportedOperationException();
+    public void updateTitReference(String partition, TitReference tit) throws MDBCServiceException {
+        DatabaseOperations.updateRedoRow(music_ns, PARTITION_INFORMATION_TABLE_NAME, partition, new RedoRow(tit.table, tit.index), myId, null);
     }
 
     @Override
@@ -1270,13 +2059,39 @@ public class CassandraMixin implements MusicInterface {
     }
 
     @Override
-    public void addRedoHistory(DatabasePartition partition, TitReference newTit, List<TitReference> old){
-        throw new UnsupportedOperationException();
+    public void addRedoHistory(DatabasePartition partition, TitReference newTit, List<TitReference> old) throws MDBCServiceException {
+        List<RedoRow> parents = new ArrayList<>();
+        for(TitReference parent : old) {
+            parents.add(new RedoRow(parent.table, parent.index));
+        }
+        DatabaseOperations.createRedoHistoryRow(music_ns, REDO_HISTORY_TABLE_NAME, new RedoRow(newTit.table, newTit.index),
+                partition.getPartitionId(), parents, null);
     }
 
     @Override
-    public List<RedoHistoryElement> getHistory(DatabasePartition partition){
-        throw new UnsupportedOperationException();
+    public List<RedoHistoryElement> getHistory(DatabasePartition partition) throws MDBCServiceException {
+        String partitionId = partition.getPartitionId();
+        String cql = String.format("SELECT redotable, redoindex, previousredo FROM %s.%s WHERE partition = ?;", music_ns, REDO_HISTORY_TABLE_NAME);
+        PreparedQueryObject pQueryObject = new PreparedQueryObject();
+        pQueryObject.appendQueryString(cql);
+        pQueryObject.addValue(UUID.fromString(partitionId));
+        ResultSet results;
+        try {
+            results = MusicPureCassaCore.get(pQueryObject);
+        } catch (MusicServiceException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, "Error when reading redo history of partition "+partitionId);
+            throw new MDBCServiceException("Error when reading redo history of partition "+partitionId);
+        }
+        List<RedoHistoryElement> history = new ArrayList<>();
+        for(Row row : results) {
+            TitReference current = new TitReference(row.getString("redotable"), row.getUUID("redoindex").toString());
+            List<TitReference> previous = new ArrayList<>();
+            for(TupleValue redo : row.getSet("previousredo", TupleValue.class)) {
+                previous.add(new TitReference(redo.getString(0), redo.getUUID(1).toString()));
+            }
+            history.add(new RedoHistoryElement(partitionId, current, previous));
+        }
+        return history;
     }
 
     @Override
@@ -1285,13 +2100,299 @@ public class CassandraMixin implements MusicInterface {
     }
 
     @Override
-    public TablePartitionInformation getTablePartitionInformation(String table){
-        throw new UnsupportedOperationException();
+    public TablePartitionInformation getTablePartitionInformation(String table) throws MDBCServiceException {
+        String cql = String.format("SELECT partition, previouspartitions FROM %s.%s WHERE tablename = ?;", music_ns, TABLE_TO_PARTITION_TABLE_NAME);
+        PreparedQueryObject pQueryObject = new PreparedQueryObject();
+        pQueryObject.appendQueryString(cql);
+        pQueryObject.addValue(table);
+        Row row = readSingleRow(pQueryObject, "partition of table "+table);
+        if(row == null) {
+            return null;
+        }
+        UUID partition = row.getUUID("partition");
+        List<String> oldPartitions = new ArrayList<>();
+        for(UUID old : row.getSet("previouspartitions", UUID.class)) {
+            oldPartitions.add(old.toString());
+        }
+        return new TablePartitionInformation(table, (partition == null) ? null : partition.toString(), oldPartitions);
+    }
+
+    /**
+     * @param query query that selects at most one row
+     * @param what description of the row, used in the error message
+     * @return the row, or null if the query returned no rows
+     */
+    private Row readSingleRow(PreparedQueryObject query, String what) throws MDBCServiceException {
+        ResultSet results;
+        try {
+            results = MusicPureCassaCore.get(query);
+        } catch (MusicServiceException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, "Error when reading "+what);
+            throw new MDBCServiceException("Error when reading "+what);
+        }
+        return results.one();
     }
 
     @Override
-    public HashMap<Range,StagingTable> getTransactionDigest(RedoRecordId id){
-        throw new UnsupportedOperationException();
+    public HashMap<Range,StagingTable> getTransactionDigest(RedoRecordId id) throws MDBCServiceException {
+        byte[] digest = readDigestFromRRT(id);
+        try {
+            return TransactionDigestCodec.decode(digest);
+        } catch (IOException e) {
+            logger.error(EELFLoggerDelegate.errorLogger, "Invalid transaction digest in redo record "+id.leaseId+","+id.commitId+": "+e.getMessage());
+            throw new MDBCServiceException("Invalid transaction digest in redo record "+id.leaseId+","+id.commitId);
+        }
+    }
+
+    /**
+     * Writes the rows with QUORUM consistency, as the archive process moves the checkpoint of the TIT after this
+     * returns. All the writes are in flight at the same time, bounded by the {@link MusicAsyncExecutor}.
+     */
+    @Override
+    public void applyToDataTables(HashMap<Range,StagingTable> digest) throws MDBCServiceException {
+        MusicAsyncExecutor executor = getMusicExecutor();
+        if(executor == null) {
+            throw new MDBCServiceException("There is no session to MUSIC, the data tables can not be written");
+        }
+        List<ListenableFuture<ResultSet>> pending = new ArrayList<>();
+        for(Map.Entry<Range,StagingTable> entry : digest.entrySet()) {
+            String table = entry.getKey().table;
+            TableMetadata meta = getDataTableMetadata(table);
+            try {
+                for(Pair<String,Operation> p : entry.getValue().getIterableSnapshot()) {
+                    PreparedQueryObject query = createDataTableQuery(meta, p.getLeft(), p.getRight());
+                    if(query != null) {
+                        pending.add(executor.executeAsync(query, ConsistencyLevel.QUORUM));
+                    }
+                }
+            } catch (NoSuchFieldException e) {
+                logger.error(EELFLoggerDelegate.errorLogger, "Invalid digest for table "+table+": "+e.getMessage());
+                throw new MDBCServiceException("Invalid digest for table "+table);
+            }
+        }
+        MusicAsyncExecutor.waitAll(pending, "write of "+pending.size()+" rows into the data tables");
+    }
+
+    private TableMetadata getDataTableMetadata(String table) throws MDBCServiceException {
+        KeyspaceMetadata keyspace = getMusicSession().getCluster().getMetadata().getKeyspace(music_ns);
+        TableMetadata meta = (keyspace == null) ? null : keyspace.getTable(table);
+        if(meta == null) {
+            throw new MDBCServiceException("Data table "+music_ns+"."+table+" does not exist");
+        }
+        return meta;
+    }
+
+    /**
+     * @param musicKey key of the row in the staging table
+     * @return the CQL write that applies the operation into the data table, or null if there is nothing to write
+     */
+    private PreparedQueryObject createDataTableQuery(TableMetadata meta, String musicKey, Operation op) {
+        PreparedQueryObject query = new PreparedQueryObject();
+        switch(op.getOperationType()) {
+            case SELECT:
+                return null;
+            case DELETE: {
+                Map<String,Object> row = toLowerCaseKeys(op.isTyped() ? op.getOldRow() : op.getOldVal().toMap());
+                StringBuilder where = new StringBuilder();
+                String pfx = "";
+                for(ColumnMetadata col : meta.getPrimaryKey()) {
+                    where.append(pfx).append(col.getName()).append("=?");
+                    query.addValue(getDataTableValue(row, col, musicKey));
+                    pfx = " AND ";
+                }
+                query.appendQueryString(String.format("DELETE FROM %s.%s WHERE %s;", music_ns, meta.getName(), where));
+                return query;
+            }
+            default: {
+                Map<String,Object> row = toLowerCaseKeys(op.isTyped() ? op.getNewRow() : op.getNewVal().toMap());
+                StringBuilder fields = new StringBuilder();
+                StringBuilder values = new StringBuilder();
+                String pfx = "";
+                for(ColumnMetadata col : meta.getColumns()) {
+                    if(!row.containsKey(col.getName()) && !col.getName().equals(MDBC_PRIMARYKEY_NAME)) {
+                        continue;
+                    }
+                    fields.append(pfx).append(col.getName());
+                    values.append(pfx).append("?");
+                    query.addValue(getDataTableValue(row, col, musicKey));
+                    pfx = ", ";
+                }
+                query.appendQueryString(String.format("INSERT INTO %s.%s (%s) VALUES (%s);", music_ns, meta.getName(), fields, values));
+                return query;
+            }
+        }
+    }
+
+    private static Map<String,Object> toLowerCaseKeys(Map<String,Object> row) {
+        Map<String,Object> lower = new HashMap<>();
+        for(Map.Entry<String,Object> e : row.entrySet()) {
+            lower.put(e.getKey().toLowerCase(), e.getValue());
+        }
+        return lower;
+    }
+
+    private Object getDataTableValue(Map<String,Object> row, ColumnMetadata col, String musicKey) {
+        Object value = row.get(col.getName());
+        if(value == null && col.getName().equals(MDBC_PRIMARYKEY_NAME)) {
+            //\FIXME the rows of tables without primary key don't contain the uuid of the row in MUSIC
+            value = musicKey;
+        }
+        return toCassandraValue(value, col.getType());
+    }
+
+    /**
+     * Converts a value of a digest (a json value, or a Java object if the row is typed) into the Java type
+     * expected by the codec of the column
+     */
+    static Object toCassandraValue(Object value, DataType type) {
+        if(value == null || value == JSONObject.NULL) {
+            return null;
+        }
+        boolean number = value instanceof Number;
+        switch(type.getName()) {
+            case ASCII:
+            case TEXT:
+            case VARCHAR:
+                return value.toString();
+            case INT:
+                return number ? ((Number) value).intValue() : Integer.valueOf(value.toString());
+            case BIGINT:
+            case COUNTER:
+                return number ? ((Number) value).longValue() : Long.valueOf(value.toString());
+            case SMALLINT:
+                return number ? ((Number) value).shortValue() : Short.valueOf(value.toString());
+            case TINYINT:
+                return number ? ((Number) value).byteValue() : Byte.valueOf(value.toString());
+            case DOUBLE:
+                return number ? ((Number) value).doubleValue() : Double.valueOf(value.toString());
+            case FLOAT:
+                return number ? ((Number) value).floatValue() : Float.valueOf(value.toString());
+            case DECIMAL:
+                return (value instanceof BigDecimal) ? value : new BigDecimal(value.toString());
+            case VARINT:
+                return (value instanceof BigInteger) ? value : new BigInteger(value.toString());
+            case BOOLEAN:
+                return (value instanceof Boolean) ? value : Boolean.valueOf(value.toString());
+            case UUID:
+            case TIMEUUID:
+                return (value instanceof UUID) ? value : UUID.fromString(value.toString());
+            case BLOB:
+                if(value instanceof ByteBuffer) {
+                    return value;
+                }
+                return ByteBuffer.wrap((value instanceof byte[]) ? (byte[]) value : value.toString().getBytes(StandardCharsets.UTF_8));
+            default:
+                return value;
+        }
+    }
+
+    @Override
+    public void updateLatestApplied(TitReference tit, String lockId, int latestApplied, boolean applied) throws MDBCServiceException {
+        PreparedQueryObject query = new PreparedQueryObject();
+        query.appendQueryString(String.format("UPDATE %s.%s SET latestapplied = ?, applied = ? WHERE id = ?;", music_ns, tit.table));
+        query.addValue(latestApplied);
+        query.addValue(applied);
+        query.addValue(UUID.fromString(tit.index));
+        ReturnType returnType = MusicPureCassaCore.criticalPut(music_ns, tit.table, tit.index, query, lockId, null);
+        if(returnType.getResult().compareTo(ResultType.SUCCESS) != 0 ){
+            logger.error(EELFLoggerDelegate.errorLogger, "Error when updating the latest applied record of "+tit.table+"."+tit.index+": "+returnType.getMessage());
+            throw new MDBCServiceException("Error when updating the latest applied record of "+tit.table+"."+tit.index+": "+returnType.getMessage());
+        }
+    }
+
+    @Override
+    public boolean redoRecordExists(RedoRecordId id) throws MDBCServiceException {
+        String cql = String.format("SELECT chunks FROM %s.%s WHERE leaseid = ? AND leasecounter = ? LIMIT 1;", music_ns, redoRecordTableName);
+        PreparedQueryObject pQueryObject = new PreparedQueryObject();
+        pQueryObject.appendQueryString(cql);
+        pQueryObject.addValue(id.leaseId);
+        pQueryObject.addValue(new BigInteger(id.commitId));
+        return readSingleRow(pQueryObject, "redo record "+id.leaseId+","+id.commitId) != null;
+    }
+
+    /**
+     * Deletes the whole partition of each record, so all its chunks go with a single tombstone. The deletes are
+     * idempotent, they are sent together through the {@link MusicAsyncExecutor}.
+     */
+    @Override
+    public void deleteRedoRecords(List<RedoRecordId> records) throws MDBCServiceException {
+        String cql = String.format("DELETE FROM %s.%s WHERE leaseid = ? AND leasecounter = ?;", music_ns, redoRecordTableName);
+        MusicAsyncExecutor executor = getMusicExecutor();
+        List<ListenableFuture<ResultSet>> pending = new ArrayList<>();
+        for(RedoRecordId id : records) {
+            PreparedQueryObject query = new PreparedQueryObject();
+            query.appendQueryString(cql);
+            query.addValue(id.leaseId);
+            query.addValue(new BigInteger(id.commitId));
+            if(executor != null) {
+                pending.add(executor.executeAsync(query, ConsistencyLevel.QUORUM));
+                continue;
+            }
+            try {
+                MusicPureCassaCore.nonKeyRelatedPut(query, "critical");
+            } catch (MusicServiceException e) {
+                logger.error(EELFLoggerDelegate.errorLogger, "Error when deleting redo record "+id.leaseId+","+id.commitId+": "+e.getMessage());
+                throw new MDBCServiceException("Error when deleting redo record "+id.leaseId+","+id.commitId);
+            }
+        }
+        MusicAsyncExecutor.waitAll(pending, "delete of "+pending.size()+" redo records");
+    }
+
+    @Override
+    public void deleteTransactionInformation(TitReference tit, String lockId) throws MDBCServiceException {
+        PreparedQueryObject query = new PreparedQueryObject();
+        query.appendQueryString(String.format("DELETE FROM %s.%s WHERE id = ?;", music_ns, tit.table));
+        query.addValue(UUID.fromString(tit.index));
+        executeCriticalPut(tit.table, tit.index, query, lockId, "delete of the transaction information row "+tit.table+"."+tit.index);
+    }
+
+    @Override
+    public void removeRedoHistoryLink(DatabasePartition partition, TitReference child, TitReference parent, String lockId) throws MDBCServiceException {
+        String partitionId = partition.getPartitionId();
+        String cql = String.format("UPDATE %s.%s SET previousredo = previousredo - ? WHERE partition = ? AND redotable = ? AND redoindex = ?;",
+                music_ns, REDO_HISTORY_TABLE_NAME);
+        PreparedQueryObject query = new PreparedQueryObject();
+        query.appendQueryString(cql);
+        query.addValue(Collections.singleton(DatabaseOperations.createRedoHistoryEntry(parent.table, parent.index)));
+        query.addValue(UUID.fromString(partitionId));
+        query.addValue(child.table);
+        query.addValue(UUID.fromString(child.index));
+        executeCriticalPut(REDO_HISTORY_TABLE_NAME, partitionId+"-"+child.table+"-"+child.index, query, lockId,
+                "removal of "+parent+" from the redo history of "+child);
+    }
+
+    @Override
+    public void deleteRedoHistory(DatabasePartition partition, TitReference tit, String lockId) throws MDBCServiceException {
+        String partitionId = partition.getPartitionId();
+        PreparedQueryObject query = new PreparedQueryObject();
+        query.appendQueryString(String.format("DELETE FROM %s.%s WHERE partition = ? AND redotable = ? AND redoindex = ?;", music_ns, REDO_HISTORY_TABLE_NAME));
+        query.addValue(UUID.fromString(partitionId));
+        query.addValue(tit.table);
+        query.addValue(UUID.fromString(tit.index));
+        executeCriticalPut(REDO_HISTORY_TABLE_NAME, partitionId+"-"+tit.table+"-"+tit.index, query, lockId,
+                "delete of the redo history of "+tit);
+    }
+
+    /**
+     * @param lockId lock held for the key, or null to take it just for this write
+     */
+    private void executeCriticalPut(String table, String key, PreparedQueryObject query, String lockId, String what) throws MDBCServiceException {
+        ReturnType returnType;
+        if(lockId == null) {
+            try {
+                returnType = MusicPureCassaCore.atomicPut(music_ns, table, key, query, null);
+            } catch (MusicLockingException | MusicServiceException | MusicQueryException e) {
+                logger.error(EELFLoggerDelegate.errorLogger, "Error in the "+what+": "+e.getMessage());
+                throw new MDBCServiceException("Error in the "+what+": "+e.getMessage());
+            }
+        }
+        else {
+            returnType = MusicPureCassaCore.criticalPut(music_ns, table, key, query, lockId, null);
+        }
+        if(returnType.getResult().compareTo(ResultType.SUCCESS) != 0 ){
+            logger.error(EELFLoggerDelegate.errorLogger, "Error in the "+what+": "+returnType.getMessage());
+            throw new MDBCServiceException("Error in the "+what+": "+returnType.getMessage());
+        }
     }
 
         }
@@ -1,10 +1,12 @@
 package com.att.research.mdbc.mixins;
 
 import java.sql.ResultSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.att.research.exceptions.MDBCServiceException;
 import com.att.research.mdbc.Range;
 import com.att.research.mdbc.TableInfo;
 import com.att.research.mdbc.tables.StagingTable;
@@ -63,6 +65,14 @@ public interface DBInterface {
 	 * @param map map of column names &rarr; values to use for the keys when deleting the row
 	 */
 	void deleteRowFromSqlDb(String tableName, Map<String, Object> map);
+	/**
+	 * Applies all the changes of a transaction digest (e.g. downloaded from the redo log) into the SQL database,
+	 * using bulk statements and a single local transaction. The changes are not captured again into the digest
+	 * of the connection. It should not be called while the connection has an open transaction.
+	 * @param digest changes of a transaction, by range
+	 * @throws MDBCServiceException if the changes can not be applied, in which case none of them is applied
+	 */
+	void applyTxDigest(Map<Range,StagingTable> digest) throws MDBCServiceException;
 	/**
 	 * Code to be run within the DB driver before a SQL statement is executed.  This is where tables
 	 * can be synchronized before a SELECT, for those databases that do not support SELECT triggers.
@@ -76,6 +86,46 @@ public interface DBInterface {
 	 * @param transactionDigest
 	 */
 	void postStatementHook(final String sql,Map<Range,StagingTable> transactionDigest);
+	/**
+	 * Code to be run before the transaction digest is committed into MUSIC. Mixins that do not capture the
+	 * changes in the statement hooks have to add the changes of the transaction into the digest here.
+	 * @param transactionDigest the digest of the transaction that is being committed
+	 * @throws MDBCServiceException if the changes of the transaction can not be collected
+	 */
+	void preCommitHook(Map<Range,StagingTable> transactionDigest) throws MDBCServiceException;
+	/**
+	 * Code to be run when the transaction is rolled back, before the database discards its changes. The changes
+	 * that were captured but not yet added into the digest have to be discarded here.
+	 */
+	void rollbackHook();
+	/**
+	 * Indicates if the changes of a transaction are only available after it is committed in the database.
+	 * In that case the local commit has to be executed before the commit into MUSIC.
+	 * @return true if the local commit has to be executed first
+	 */
+	boolean capturesOnLocalCommit();
+	/**
+	 * Code to be run right before the local commit, when the changes are captured on the local commit. The returned
+	 * state is journaled with the commit, so the changes can be collected again with {@link #recaptureTxDigest(String)}
+	 * if the commit into MUSIC does not complete.
+	 * @return the state of the capture, or null if the transaction did not change anything
+	 * @throws MDBCServiceException if the state can not be read, the transaction is not committed
+	 */
+	String preLocalCommitHook() throws MDBCServiceException;
+	/**
+	 * Code to be run right after the local commit, when the changes are captured on the local commit.
+	 * @return the state of the capture that replaces the one returned by {@link #preLocalCommitHook()}, null to keep it
+	 * @throws MDBCServiceException if the state can not be read
+	 */
+	String postLocalCommitHook() throws MDBCServiceException;
+	/**
+	 * Collects again the changes of a transaction that was committed locally but whose digest was not written into
+	 * MUSIC, e.g. because the commit into MUSIC failed or the process stopped after the local commit.
+	 * @param captureState state returned by {@link #preLocalCommitHook()} or {@link #postLocalCommitHook()}
+	 * @return the digest of the transaction, empty if the local commit did not happen
+	 * @throws MDBCServiceException if the changes can not be read
+	 */
+	HashMap<Range,StagingTable> recaptureTxDigest(String captureState) throws MDBCServiceException;
 	/**
 	 * This method executes a read query in the SQL database.  Methods that call this method should be sure
 	 * to call resultset.getStatement().close() when done in order to free up resources.
@@ -0,0 +1,180 @@
+package com.att.research.mdbc.mixins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.TableInfo;
+
+/**
+ * Local copy of the dirty rows of this replica, so a SELECT only reads from MUSIC when its table has rows that
+ * changed in another replica.
+ * <p>
+ * The dirty rows of each table are read from the <code>DIRTY_</code> tables of MUSIC by a background poller every
+ * {@link CassandraMixin#KEY_DIRTY_POLL_INTERVAL} milliseconds. The first time a table is used its dirty rows are read
+ * synchronously, after that a SELECT on a table without dirty rows is fully local. The rows that are copied into the
+ * local database are removed from the cache right away, so they are not fetched again before the next poll.
+ * </p>
+ * <p>
+ * A row that is marked dirty after the last poll is not seen until the next one, so the staleness of a SELECT is
+ * bounded by the poll interval instead of being zero.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class DirtyKeyCache implements Runnable {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(DirtyKeyCache.class);
+
+	/**
+	 * Reads the dirty rows of a table for this replica from MUSIC, see {@link MusicInterface#getDirtyRows(TableInfo, String)}
+	 */
+	public interface Source {
+		List<Map<String,Object>> getDirtyRows(TableInfo ti, String tableName);
+	}
+
+	private static class TableState {
+		private final TableInfo ti;
+		private final String tableName;
+		private final Set<Map<String,Object>> keys = new LinkedHashSet<>();
+		private boolean loaded = false;
+
+		private TableState(TableInfo ti, String tableName) {
+			this.ti = ti;
+			this.tableName = tableName;
+		}
+	}
+
+	private final Source source;
+	private final long interval;
+	private final Map<String,TableState> tables;
+	private final AtomicLong localReads;
+	private final AtomicLong remoteReads;
+	private volatile boolean running;
+	private volatile Thread thread;
+
+	/**
+	 * @param source operation used to read the dirty rows from MUSIC
+	 * @param interval time (ms) between polls of the dirty rows
+	 */
+	public DirtyKeyCache(Source source, long interval) {
+		this.source = source;
+		this.interval = interval;
+		this.tables = new ConcurrentHashMap<>();
+		this.localReads = new AtomicLong();
+		this.remoteReads = new AtomicLong();
+		this.running = false;
+	}
+
+	/**
+	 * Starts the background poller, it does nothing if the interval is 0
+	 */
+	public synchronized void start() {
+		if (interval <= 0 || thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "mdbc-dirty-poller");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			poll();
+		}
+	}
+
+	/**
+	 * Reads again the dirty rows of all the tables that were used
+	 */
+	public void poll() {
+		for (Map.Entry<String,TableState> e : tables.entrySet()) {
+			try {
+				load(e.getValue());
+			} catch (RuntimeException ex) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Dirty rows of "+e.getKey()+" could not be read, they are read again in the next poll: "+ex);
+			}
+		}
+	}
+
+	private void load(TableState state) {
+		List<Map<String,Object>> rows = source.getDirtyRows(state.ti, state.tableName);
+		synchronized (state) {
+			state.keys.clear();
+			if (rows != null) {
+				state.keys.addAll(rows);
+			}
+			state.loaded = true;
+		}
+	}
+
+	/**
+	 * @return the dirty rows of the table for this replica, as maps of the primary key names and values. If the table
+	 * was not polled yet, its dirty rows are read first.
+	 */
+	public List<Map<String,Object>> getDirtyKeys(TableInfo ti, String tableName) {
+		TableState state = tables.computeIfAbsent(tableName.toUpperCase(), t -> new TableState(ti, tableName));
+		boolean loaded;
+		synchronized (state) {
+			loaded = state.loaded;
+		}
+		if (!loaded) {
+			load(state);
+		}
+		synchronized (state) {
+			if (state.keys.isEmpty()) {
+				localReads.incrementAndGet();
+				return new ArrayList<>();
+			}
+			remoteReads.incrementAndGet();
+			return new ArrayList<>(state.keys);
+		}
+	}
+
+	/**
+	 * The rows were copied into the local database, they are no longer dirty
+	 */
+	public void applied(String tableName, Collection<Map<String,Object>> keys) {
+		TableState state = tables.get(tableName.toUpperCase());
+		if (state == null) {
+			return;
+		}
+		synchronized (state) {
+			state.keys.removeAll(keys);
+		}
+	}
+
+	/**
+	 * @return number of lookups on tables without dirty rows, that did not read from MUSIC
+	 */
+	public long getLocalReads() {
+		return localReads.get();
+	}
+
+	/**
+	 * @return number of lookups on tables with dirty rows, that had to read the rows from MUSIC
+	 */
+	public long getRemoteReads() {
+		return remoteReads.get();
+	}
+}
@@ -0,0 +1,100 @@
+package com.att.research.mdbc.mixins;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onap.music.datastore.PreparedQueryObject;
+
+/**
+ * Dirty row markers of a set of changed rows, grouped by the partition of the dirty table they are written into.
+ * <p>
+ * Each changed row needs one marker per replica, so marking them one by one costs one round trip to MUSIC per
+ * replica and row. The markers are instead collected here and sent as unlogged batches: the markers of the same
+ * partition always go together in the same batch, and small partitions are packed into a batch until it has
+ * {@link #getMaxStatements()} statements, so the markers of a single row for all the replicas usually need only one
+ * request. A partition with more markers than the maximum is split over several batches.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class DirtyRowBatch {
+	/** Default maximum number of markers in a batch, it keeps the batches under the batch_size_warn_threshold of Cassandra */
+	public static final int DEFAULT_MAX_STATEMENTS = 64;
+
+	private final int maxStatements;
+	private final Map<Object,List<PreparedQueryObject>> partitions;
+	private int size;
+
+	public DirtyRowBatch() {
+		this(DEFAULT_MAX_STATEMENTS);
+	}
+
+	/**
+	 * @param maxStatements maximum number of markers in each batch
+	 */
+	public DirtyRowBatch(int maxStatements) {
+		this.maxStatements = Math.max(1, maxStatements);
+		this.partitions = new LinkedHashMap<>();
+		this.size = 0;
+	}
+
+	/**
+	 * @param partition value of the partition key of the dirty table the marker is written into
+	 * @param marker insert of the marker
+	 */
+	public void add(Object partition, PreparedQueryObject marker) {
+		partitions.computeIfAbsent(partition, p -> new ArrayList<>()).add(marker);
+		size++;
+	}
+
+	/**
+	 * @return the markers grouped in batches of at most {@link #getMaxStatements()}, the markers of a partition are
+	 * kept together unless there are more of them than the maximum
+	 */
+	public List<List<PreparedQueryObject>> getBatches() {
+		List<List<PreparedQueryObject>> batches = new ArrayList<>();
+		List<PreparedQueryObject> current = new ArrayList<>();
+		for (List<PreparedQueryObject> markers : partitions.values()) {
+			if (!current.isEmpty() && current.size() + markers.size() > maxStatements) {
+				batches.add(current);
+				current = new ArrayList<>();
+			}
+			for (PreparedQueryObject marker : markers) {
+				if (current.size() == maxStatements) {
+					batches.add(current);
+					current = new ArrayList<>();
+				}
+				current.add(marker);
+			}
+		}
+		if (!current.isEmpty()) {
+			batches.add(current);
+		}
+		return batches;
+	}
+
+	/**
+	 * @return all the markers, grouped by partition
+	 */
+	public List<PreparedQueryObject> getMarkers() {
+		List<PreparedQueryObject> markers = new ArrayList<>(size);
+		for (List<PreparedQueryObject> partition : partitions.values()) {
+			markers.addAll(partition);
+		}
+		return markers;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int getMaxStatements() {
+		return maxStatements;
+	}
+}
@@ -0,0 +1,176 @@
+package com.att.research.mdbc.mixins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+
+/**
+ * Group commit stage for a single transaction information row (i.e. a single DatabasePartition).
+ * <p>
+ * Transactions that commit at the same time on the same partition are queued here. The first thread
+ * that finds the stage idle becomes the leader: it takes every pending commit (up to the max batch size),
+ * flushes them to MUSIC with a single call to the {@link Flusher}, and then wakes up all the waiting threads
+ * together. Commits that arrive while a flush is in progress are picked up by the next leader.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class GroupCommit {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(GroupCommit.class);
+
+	/**
+	 * Operation used by the leader to write a group of commits into MUSIC
+	 */
+	public interface Flusher {
+		/**
+		 * Write all the pending commits at once, the order of the list is the order of arrival
+		 * @param batch commits to be written
+		 * @throws MDBCServiceException if the batch could not be written, all the commits in the batch fail
+		 */
+		void flush(List<PendingCommit> batch) throws MDBCServiceException;
+	}
+
+	/**
+	 * A commit that is waiting to be written to MUSIC
+	 */
+	public static class PendingCommit {
+		private final String leaseId;
+		private final String commitId;
+		private final byte[] digest;
+		private boolean done;
+		private MDBCServiceException error;
+
+		public PendingCommit(String commitId, byte[] digest) {
+			this(null, commitId, digest);
+		}
+
+		/**
+		 * @param leaseId lease under which the commit id was generated, null if it is the lease held when written
+		 */
+		public PendingCommit(String leaseId, String commitId, byte[] digest) {
+			this.leaseId = leaseId;
+			this.commitId = commitId;
+			this.digest = digest;
+			this.done = false;
+			this.error = null;
+		}
+
+		public String getLeaseId() {
+			return leaseId;
+		}
+
+		public String getCommitId() {
+			return commitId;
+		}
+
+		public byte[] getDigest() {
+			return digest;
+		}
+	}
+
+	private final Flusher flusher;
+	private final int maxBatchSize;
+	private final long windowMillis;
+	private final List<PendingCommit> pending;
+	private boolean flushing;
+
+	/**
+	 * @param flusher operation used to write a batch of commits
+	 * @param maxBatchSize maximum number of commits written in a single flush
+	 * @param windowMillis time that a leader waits for more commits to arrive before flushing, 0 to flush right away
+	 */
+	public GroupCommit(Flusher flusher, int maxBatchSize, long windowMillis) {
+		this.flusher = flusher;
+		this.maxBatchSize = (maxBatchSize < 1) ? 1 : maxBatchSize;
+		this.windowMillis = windowMillis;
+		this.pending = new ArrayList<>();
+		this.flushing = false;
+	}
+
+	/**
+	 * Enqueues a commit and blocks until it is written into MUSIC, either by this thread or by the
+	 * leader of the group in which it was included. An interrupt received once a leader took the commit does not
+	 * stop the wait, the result of the commit has to be known; the interrupt is restored once it is.
+	 * @param commit the commit to be written
+	 * @throws MDBCServiceException if the batch containing this commit failed
+	 */
+	public void commit(PendingCommit commit) throws MDBCServiceException {
+		synchronized(this) {
+			pending.add(commit);
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while(true) {
+			List<PendingCommit> batch;
+			synchronized(this) {
+				while(!commit.done && flushing) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						//If the commit was already taken by a leader, we need to wait for its result
+						if(pending.remove(commit)) {
+							Thread.currentThread().interrupt();
+							throw new MDBCServiceException("Interrupted while waiting for group commit "+commit.commitId);
+						}
+						interrupted = true;
+					}
+				}
+				if(commit.done) {
+					break;
+				}
+				flushing = true;
+				batch = nextBatch();
+			}
+			MDBCServiceException error = null;
+			try {
+				flusher.flush(batch);
+			} catch(MDBCServiceException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Group commit of "+batch.size()+" transactions failed: "+e.getMessage());
+				error = e;
+			} catch(RuntimeException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Group commit of "+batch.size()+" transactions failed: "+e.getMessage());
+				error = new MDBCServiceException("Group commit failed: "+e.getMessage());
+			}
+			synchronized(this) {
+				for(PendingCommit c : batch) {
+					c.error = error;
+					c.done = true;
+				}
+				flushing = false;
+				notifyAll();
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if(commit.error != null) {
+			throw commit.error;
+		}
+	}
+
+	/**
+	 * Must be called holding the monitor, optionally waits for the commit window to collect more commits
+	 * @return the next group of commits to be flushed
+	 */
+	private List<PendingCommit> nextBatch() {
+		if(windowMillis > 0 && pending.size() < maxBatchSize) {
+			long deadline = System.currentTimeMillis() + windowMillis;
+			long remaining = windowMillis;
+			while(remaining > 0 && pending.size() < maxBatchSize) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+		int size = Math.min(pending.size(), maxBatchSize);
+		List<PendingCommit> batch = new ArrayList<>(pending.subList(0, size));
+		pending.subList(0, size).clear();
+		return batch;
+	}
+}
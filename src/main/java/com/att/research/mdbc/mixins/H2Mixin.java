@@ -0,0 +1,647 @@
+package com.att.research.mdbc.mixins;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.h2.api.Trigger;
+import org.h2.jdbc.JdbcConnection;
+import org.json.JSONObject;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.Configuration;
+import com.att.research.mdbc.MusicSqlManager;
+import com.att.research.mdbc.Range;
+import com.att.research.mdbc.SchemaCatalog;
+import com.att.research.mdbc.TableInfo;
+import com.att.research.mdbc.tables.OperationType;
+import com.att.research.mdbc.tables.StagingTable;
+
+/**
+ * This class provides the methods that MDBC needs in order to mirror data to/from an
+ * <a href="http://www.h2database.com/">H2</a> database running in the same JVM, either in memory
+ * (<code>jdbc:h2:mem:...</code>) or file based (<code>jdbc:h2:path_to_file</code>).
+ * <p>
+ * The changes are captured with Java triggers ({@link CaptureTrigger}), which run in the session of the connection
+ * that executed the statement and keep the typed row images of each statement until it completes; only the rows
+ * of the statements that succeed are added into the transaction digest of its {@link MusicSqlManager}. There is no
+ * transaction log table and no extra SQL is executed per statement.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class H2Mixin implements DBInterface {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(H2Mixin.class);
+
+	public static final String MIXIN_NAME = "h2";
+	private static final String TRIGGER_PREFIX = "MDBC_";
+	// maximum number of rows written by a single statement of applyTxDigest
+	private static final int APPLY_BATCH_ROWS = 500;
+
+	// H2 session -> mixin of the connection that owns the session, used by the triggers to find their digest
+	private static final Map<Object,H2Mixin> sessions = new ConcurrentHashMap<>();
+
+	private final MusicSqlManager msm;
+	private final Object session;
+	private final String dbName;
+	private final Connection dbConnection;
+	private final SchemaCatalog catalog;
+	private final SchemaCatalog.Loader catalogLoader;
+	private final boolean coalesceStaging;
+	// true while this mixin writes rows that come from MUSIC, those changes must not be captured
+	private volatile boolean suppressCapture;
+	// rows captured for the statement that is running, they are added to the digest only if the statement succeeds
+	private final Map<Range,StagingTable> statementChanges = new HashMap<>();
+	// true between the pre and post statement hooks
+	private boolean inStatement;
+
+	public H2Mixin() {
+		this.msm = null;
+		this.session = null;
+		this.dbName = null;
+		this.dbConnection = null;
+		this.catalog = null;
+		this.catalogLoader = null;
+		this.coalesceStaging = false;
+	}
+	public H2Mixin(MusicSqlManager msm, String url, Connection conn, Properties info) {
+		this.msm = msm;
+		this.dbConnection = conn;
+		this.session = getSession(conn);
+		this.dbName = getDBName(conn);
+		this.catalog = SchemaCatalog.getCatalog(MIXIN_NAME+":"+url+":"+dbName,
+			Long.parseLong(info.getProperty(Configuration.KEY_SCHEMA_CHECK_INTERVAL, Configuration.SCHEMA_CHECK_INTERVAL_DEFAULT)));
+		this.catalogLoader = new SchemaCatalog.Loader() {
+			@Override
+			public Set<String> loadTableSet() {
+				return loadSQLTableSet();
+			}
+			@Override
+			public TableInfo loadTableInfo(String tableName) {
+				return H2Mixin.this.loadTableInfo(tableName);
+			}
+			@Override
+			public String loadChecksum() {
+				return loadSchemaChecksum();
+			}
+		};
+		this.coalesceStaging = Boolean.parseBoolean(info.getProperty(Configuration.KEY_COALESCE_STAGING, Configuration.COALESCE_STAGING_DEFAULT));
+		this.suppressCapture = false;
+		if (session != null) {
+			sessions.put(session, this);
+		}
+	}
+
+	private Object getSession(Connection conn) {
+		try {
+			JdbcConnection h2conn = (conn instanceof JdbcConnection) ? (JdbcConnection) conn : conn.unwrap(JdbcConnection.class);
+			Object s = h2conn.getSession();
+			if (!(s instanceof org.h2.engine.Session)) {
+				logger.error(EELFLoggerDelegate.errorLogger, "H2 database is not running in this JVM, changes can not be captured");
+				return null;
+			}
+			return s;
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Connection is not an H2 connection: "+e);
+			return null;
+		}
+	}
+
+	private String getDBName(Connection conn) {
+		String dbname = "mdbc"; //default name
+		try {
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT DATABASE() AS DB");
+			if (rs.next()) {
+				dbname = rs.getString("DB");
+			}
+			stmt.close();
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "getDBName: problem getting database name from h2");
+		}
+		return dbname;
+	}
+
+	@Override
+	public String getMixinName() {
+		return MIXIN_NAME;
+	}
+
+	@Override
+	public void close() {
+		if (session != null) {
+			sessions.remove(session);
+		}
+	}
+
+	@Override
+	public String getDatabaseName() {
+		return this.dbName;
+	}
+
+	/**
+	 * Get a set of the table names in the database.
+	 * The set is cached in the {@link SchemaCatalog} shared by all the connections to the database.
+	 * @return the set
+	 */
+	@Override
+	public Set<String> getSQLTableSet() {
+		return catalog.getTableSet(catalogLoader);
+	}
+	private Set<String> loadSQLTableSet() {
+		Set<String> set = new TreeSet<String>();
+		String sql = "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA=SCHEMA() AND TABLE_TYPE='TABLE'";
+		try {
+			Statement stmt = dbConnection.createStatement();
+			ResultSet rs = stmt.executeQuery(sql);
+			while (rs.next()) {
+				set.add(rs.getString("TABLE_NAME"));
+			}
+			stmt.close();
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"getSQLTableSet: "+e);
+		}
+		logger.debug(EELFLoggerDelegate.applicationLogger,"getSQLTableSet returning: "+ set);
+		return set;
+	}
+
+	/**
+	 * Return a TableInfo object for the specified table, from the {@link SchemaCatalog} or, if it is not
+	 * cached, from the JDBC metadata of the connection.
+	 * The column types reported by H2 are already {@link java.sql.Types} values.
+	 * @param tableName the table to look up
+	 * @return a TableInfo object containing the info we need, or null if the table does not exist
+	 */
+	@Override
+	public TableInfo getTableInfo(String tableName) {
+		return catalog.getTableInfo(tableName, catalogLoader);
+	}
+	private TableInfo loadTableInfo(String tableName) {
+		TableInfo ti;
+		try {
+			DatabaseMetaData md = dbConnection.getMetaData();
+			String schema = dbConnection.getSchema();
+			Set<String> keys = new TreeSet<String>();
+			ResultSet rs = md.getPrimaryKeys(null, schema, tableName);
+			while (rs.next()) {
+				keys.add(rs.getString("COLUMN_NAME"));
+			}
+			rs.close();
+			ti = new TableInfo();
+			rs = md.getColumns(null, schema, tableName, null);
+			while (rs.next()) {
+				String name = rs.getString("COLUMN_NAME");
+				ti.columns.add(name);
+				ti.coltype.add(rs.getInt("DATA_TYPE"));
+				ti.iskey.add(keys.contains(name));
+			}
+			rs.close();
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"Cannot retrieve table info for table "+tableName+" from H2: "+e);
+			return null;
+		}
+		if (ti.columns.isEmpty()) {
+			logger.error(EELFLoggerDelegate.errorLogger,"Cannot retrieve table info for table "+tableName+" from H2.");
+			return null;
+		}
+		return ti;
+	}
+
+	/**
+	 * Computes a checksum of the column definitions of all the tables, used by the {@link SchemaCatalog}
+	 * to detect changes of the schema done outside of MDBC.
+	 * @return the checksum, or null if it can not be computed
+	 */
+	private String loadSchemaChecksum() {
+		String sql = "SELECT TABLE_NAME, COLUMN_NAME, TYPE_NAME, ORDINAL_POSITION FROM INFORMATION_SCHEMA.COLUMNS"
+			+ " WHERE TABLE_SCHEMA=SCHEMA() ORDER BY TABLE_NAME, ORDINAL_POSITION";
+		CRC32 crc = new CRC32();
+		try {
+			Statement stmt = dbConnection.createStatement();
+			ResultSet rs = stmt.executeQuery(sql);
+			while (rs.next()) {
+				String col = rs.getString(1)+"."+rs.getString(2)+":"+rs.getString(3)+":"+rs.getInt(4)+";";
+				crc.update(col.getBytes(StandardCharsets.UTF_8));
+			}
+			stmt.close();
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"loadSchemaChecksum: "+e);
+			return null;
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	private String getTriggerName(String tableName) {
+		return TRIGGER_PREFIX + tableName;
+	}
+
+	@Override
+	public void createSQLTriggers(String tableName) {
+		String sql = "CREATE TRIGGER IF NOT EXISTS " + getTriggerName(tableName)
+			+ " AFTER INSERT, UPDATE, DELETE ON " + tableName
+			+ " FOR EACH ROW CALL \"" + CaptureTrigger.class.getName() + "\"";
+		try {
+			executeSQLWrite(sql);
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"createSQLTriggers: "+e);
+		}
+	}
+
+	@Override
+	public void dropSQLTriggers(String tableName) {
+		try {
+			executeSQLWrite("DROP TRIGGER IF EXISTS " + getTriggerName(tableName));
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"dropSQLTriggers: "+e);
+		}
+	}
+
+	/**
+	 * Writes a row that comes from MUSIC, with a single MERGE statement. The change is not captured.
+	 */
+	@Override
+	public void insertRowIntoSqlDb(String tableName, Map<String, Object> map) {
+		TableInfo ti = getTableInfo(tableName);
+		StringBuilder fields = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		StringBuilder keys = new StringBuilder();
+		String pfx = "";
+		String keypfx = "";
+		for (String col : ti.columns) {
+			fields.append(pfx).append(col);
+			values.append(pfx).append("?");
+			pfx = ", ";
+			if (ti.iskey(col)) {
+				keys.append(keypfx).append(col);
+				keypfx = ", ";
+			}
+		}
+		String sql = ti.hasKey()
+			? String.format("MERGE INTO %s (%s) KEY (%s) VALUES (%s)", tableName, fields, keys, values)
+			: String.format("INSERT INTO %s (%s) VALUES (%s)", tableName, fields, values);
+		List<Object> args = new ArrayList<Object>();
+		for (String col : ti.columns) {
+			args.add(map.get(col));
+		}
+		try {
+			executeUncaptured(sql, args);
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"insertRowIntoSqlDb: "+e);
+		}
+	}
+
+	/**
+	 * Deletes a row that was deleted in MUSIC. The change is not captured.
+	 */
+	@Override
+	public void deleteRowFromSqlDb(String tableName, Map<String, Object> map) {
+		TableInfo ti = getTableInfo(tableName);
+		StringBuilder where = new StringBuilder();
+		List<Object> args = new ArrayList<Object>();
+		String pfx = "";
+		for (int i = 0; i < ti.columns.size(); i++) {
+			if (ti.iskey.get(i) || !ti.hasKey()) {
+				String col = ti.columns.get(i);
+				where.append(pfx).append(col).append("=?");
+				args.add(map.get(col));
+				pfx = " AND ";
+			}
+		}
+		try {
+			executeUncaptured(String.format("DELETE FROM %s WHERE %s", tableName, where), args);
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"deleteRowFromSqlDb: "+e);
+		}
+	}
+
+	/**
+	 * Applies the digest with one multi-row MERGE per table and batched deletes, in a single transaction. The
+	 * changes are not captured.
+	 */
+	@Override
+	public void applyTxDigest(Map<Range,StagingTable> digest) throws MDBCServiceException {
+		List<TableChanges> changes = TableChanges.decode(digest, this);
+		if (changes.isEmpty()) {
+			return;
+		}
+		boolean autoCommit = true;
+		suppressCapture = true;
+		try {
+			autoCommit = dbConnection.getAutoCommit();
+			dbConnection.setAutoCommit(false);
+			for (TableChanges tc : changes) {
+				applyDeletes(tc);
+				applyUpserts(tc);
+			}
+			dbConnection.commit();
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "applyTxDigest: "+e);
+			try {
+				dbConnection.rollback();
+			} catch (SQLException e1) {
+				logger.error(EELFLoggerDelegate.errorLogger, "applyTxDigest: rollback failed "+e1);
+			}
+			throw new MDBCServiceException("Cannot apply transaction digest: "+e.getMessage());
+		} finally {
+			suppressCapture = false;
+			try {
+				dbConnection.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "applyTxDigest: "+e);
+			}
+		}
+	}
+
+	private void applyDeletes(TableChanges tc) throws SQLException {
+		if (tc.deletes.isEmpty()) {
+			return;
+		}
+		TableInfo ti = tc.info;
+		List<String> cols = ti.hasKey() ? ti.getKeyColumns() : ti.columns;
+		StringBuilder where = new StringBuilder();
+		String pfx = "";
+		for (String col : cols) {
+			where.append(pfx).append(col).append(ti.hasKey() ? "=?" : " IS ?");
+			pfx = " AND ";
+		}
+		String sql = String.format("DELETE FROM %s WHERE %s", tc.table, where);
+		if (!ti.hasKey()) {
+			// only one of the identical rows
+			sql += " LIMIT 1";
+		}
+		logger.debug(EELFLoggerDelegate.applicationLogger, "Executing SQL write batch of "+tc.deletes.size()+":"+ sql);
+		PreparedStatement ps = dbConnection.prepareStatement(sql);
+		for (Map<String,Object> row : tc.deletes) {
+			for (int i = 0; i < cols.size(); i++) {
+				ps.setObject(i + 1, row.get(cols.get(i)));
+			}
+			ps.addBatch();
+		}
+		ps.executeBatch();
+		ps.close();
+	}
+
+	private void applyUpserts(TableChanges tc) throws SQLException {
+		if (tc.upserts.isEmpty()) {
+			return;
+		}
+		TableInfo ti = tc.info;
+		StringBuilder fields = new StringBuilder();
+		StringBuilder row = new StringBuilder("(");
+		String pfx = "";
+		for (String col : ti.columns) {
+			fields.append(pfx).append(col);
+			row.append(pfx).append("?");
+			pfx = ", ";
+		}
+		row.append(")");
+		String prefix = ti.hasKey()
+			? String.format("MERGE INTO %s (%s) KEY (%s) VALUES ", tc.table, fields, String.join(", ", ti.getKeyColumns()))
+			: String.format("INSERT INTO %s (%s) VALUES ", tc.table, fields);
+		for (int start = 0; start < tc.upserts.size(); start += APPLY_BATCH_ROWS) {
+			List<Map<String,Object>> rows = tc.upserts.subList(start, Math.min(tc.upserts.size(), start + APPLY_BATCH_ROWS));
+			StringBuilder sql = new StringBuilder(prefix);
+			for (int i = 0; i < rows.size(); i++) {
+				sql.append((i == 0) ? "" : ", ").append(row);
+			}
+			logger.debug(EELFLoggerDelegate.applicationLogger, "Executing SQL write of "+rows.size()+" rows:"+ prefix);
+			PreparedStatement ps = dbConnection.prepareStatement(sql.toString());
+			int ix = 1;
+			for (Map<String,Object> values : rows) {
+				for (String col : ti.columns) {
+					ps.setObject(ix++, values.get(col));
+				}
+			}
+			ps.execute();
+			ps.close();
+		}
+	}
+
+	private void executeUncaptured(String sql, List<Object> args) throws SQLException {
+		logger.debug(EELFLoggerDelegate.applicationLogger, "Executing SQL write:"+ sql);
+		suppressCapture = true;
+		try {
+			PreparedStatement ps = dbConnection.prepareStatement(sql);
+			for (int i = 0; i < args.size(); i++) {
+				ps.setObject(i + 1, args.get(i));
+			}
+			ps.execute();
+			ps.close();
+		} finally {
+			suppressCapture = false;
+		}
+	}
+
+	@Override
+	public void preStatementHook(final String sql) {
+		// the rows of a previous statement that failed are dropped, H2 already undid them
+		statementChanges.clear();
+		inStatement = true;
+	}
+
+	@Override
+	public void postStatementHook(final String sql, Map<Range,StagingTable> transactionDigest) {
+		if (SchemaCatalog.isSchemaChange(sql)) {
+			catalog.invalidate();
+		}
+		// the statement succeeded, its rows become part of the transaction
+		mergeStatementChanges(transactionDigest);
+		inStatement = false;
+	}
+
+	@Override
+	public void preCommitHook(Map<Range,StagingTable> transactionDigest) throws MDBCServiceException {
+		// the rows left in the buffer belong to the last statement, and it failed
+		statementChanges.clear();
+		inStatement = false;
+	}
+
+	@Override
+	public void rollbackHook() {
+		statementChanges.clear();
+		inStatement = false;
+	}
+
+	@Override
+	public boolean capturesOnLocalCommit() {
+		return false;
+	}
+
+	@Override
+	public String preLocalCommitHook() {
+		return null;
+	}
+
+	@Override
+	public String postLocalCommitHook() {
+		return null;
+	}
+
+	@Override
+	public HashMap<Range,StagingTable> recaptureTxDigest(String captureState) throws MDBCServiceException {
+		throw new MDBCServiceException("The changes of "+MIXIN_NAME+" are captured before the local commit");
+	}
+
+	/**
+	 * Adds a row changed in this session into the digest of the current transaction
+	 * @param tableName table that was modified
+	 * @param oldRow row before the change, null for inserts
+	 * @param newRow row after the change, null for deletes
+	 */
+	void capture(String tableName, Object[] oldRow, Object[] newRow) throws SQLException {
+		if (suppressCapture) {
+			return;
+		}
+		TableInfo ti = getTableInfo(tableName);
+		if (ti == null) {
+			throw new SQLException("MDBC can not capture changes of unknown table "+tableName);
+		}
+		OperationType type = (oldRow == null) ? OperationType.INSERT : (newRow == null) ? OperationType.DELETE : OperationType.UPDATE;
+		Object[] newData = (type == OperationType.DELETE) ? oldRow : newRow;
+		Object[] keyData = (type == OperationType.INSERT) ? newRow : oldRow;
+		Map<String,Object> newValues = new LinkedHashMap<String,Object>();
+		Map<String,Object> keyValues = new LinkedHashMap<String,Object>();
+		for (int i = 0; i < ti.columns.size(); i++) {
+			String col = ti.columns.get(i);
+			newValues.put(col, captureValue(newData[i]));
+			if (ti.iskey.get(i) || !ti.hasKey()) {
+				keyValues.put(col, captureValue(keyData[i]));
+			}
+		}
+		String musicKey;
+		if (!ti.hasKey()) {
+			//\TODO same limitation as the MySQL mixin, updates and deletes of tables without key get a new key
+			musicKey = msm.generateUniqueKey();
+			newValues.put(msm.getMusicDefaultPrimaryKeyName(), musicKey);
+		}
+		else {
+			JSONObject key = new JSONObject();
+			for (String col : ti.getKeyColumns()) {
+				key.put(col, newValues.get(col));
+			}
+			musicKey = msm.getMusicKeyFromRow(tableName, key);
+		}
+		// rows changed by a statement are kept apart until it completes, outside of a statement (e.g. in a batch)
+		// they go directly into the transaction
+		Map<Range,StagingTable> digest = inStatement ? statementChanges : msm.getTransactionDigest();
+		Range range = new Range(tableName);
+		StagingTable staging = digest.get(range);
+		if (staging == null) {
+			staging = new StagingTable(!inStatement && coalesceStaging);
+			digest.put(range, staging);
+		}
+		staging.addRowOperation(musicKey, type, keyValues, newValues);
+	}
+
+	private void mergeStatementChanges(Map<Range,StagingTable> transactionDigest) {
+		for (Map.Entry<Range,StagingTable> e : statementChanges.entrySet()) {
+			StagingTable staging = transactionDigest.get(e.getKey());
+			if (staging == null) {
+				staging = new StagingTable(coalesceStaging);
+				transactionDigest.put(e.getKey(), staging);
+			}
+			staging.addAll(e.getValue());
+		}
+		statementChanges.clear();
+	}
+
+	/**
+	 * Converts the values that are only valid while the statement runs (LOBs) into values that can be encoded
+	 * in the digest
+	 */
+	private static Object captureValue(Object value) throws SQLException {
+		if (value instanceof Blob) {
+			Blob blob = (Blob) value;
+			return blob.getBytes(1, (int) blob.length());
+		}
+		if (value instanceof Clob) {
+			Clob clob = (Clob) value;
+			return clob.getSubString(1, (int) clob.length());
+		}
+		return value;
+	}
+
+	/**
+	 * Trigger installed on every table, it forwards the changes to the mixin of the connection that made them
+	 */
+	public static class CaptureTrigger implements Trigger {
+		private String tableName;
+
+		@Override
+		public void init(Connection conn, String schemaName, String triggerName, String tableName, boolean before, int type) throws SQLException {
+			this.tableName = tableName;
+		}
+
+		@Override
+		public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+			H2Mixin mixin = sessions.get(((JdbcConnection) conn).getSession());
+			if (mixin == null) {
+				// a connection that is not managed by MDBC
+				return;
+			}
+			mixin.capture(tableName, oldRow, newRow);
+		}
+
+		@Override
+		public void close() throws SQLException {
+			// nothing to release
+		}
+
+		@Override
+		public void remove() throws SQLException {
+			// nothing to release
+		}
+	}
+
+	@Override
+	public ResultSet executeSQLRead(String sql) {
+		logger.debug(EELFLoggerDelegate.applicationLogger,"Executing SQL read:"+ sql);
+		ResultSet rs = null;
+		try {
+			Statement stmt = dbConnection.createStatement();
+			rs = stmt.executeQuery(sql);
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"executeSQLRead"+e);
+		}
+		return rs;
+	}
+
+	protected void executeSQLWrite(String sql) throws SQLException {
+		logger.debug(EELFLoggerDelegate.applicationLogger, "Executing SQL write:"+ sql);
+		Statement stmt = dbConnection.createStatement();
+		stmt.execute(sql);
+		stmt.close();
+	}
+
+	@Override
+	public void synchronizeData(String tableName) {
+		//\TODO the initial content of the table is uploaded by the archival process
+	}
+
+	@Override
+	public List<String> getReservedTblNames() {
+		return new ArrayList<String>();
+	}
+
+	@Override
+	public String getPrimaryKey(String sql, String tableName) {
+		return null;
+	}
+}
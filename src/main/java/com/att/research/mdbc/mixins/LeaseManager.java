@@ -0,0 +1,377 @@
+package com.att.research.mdbc.mixins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.onap.music.datastore.CassaLockStore;
+import org.onap.music.datastore.PreparedQueryObject;
+import org.onap.music.exceptions.MusicLockingException;
+import org.onap.music.exceptions.MusicQueryException;
+import org.onap.music.exceptions.MusicServiceException;
+import org.onap.music.main.MusicPureCassaCore;
+import org.onap.music.main.ResultType;
+import org.onap.music.main.ReturnType;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Holds the MUSIC lock of a TIT row (the lease of its partition) for this node.
+ * <p>
+ * The lock is acquired once and then renewed in the background every third of the lease period, by checking that
+ * this node is still at the head of the lock queue and publishing a new heartbeat for its reference. The lease is
+ * only extended when both succeed. While the lease is valid, {@link #acquire()} returns without going to MUSIC, so
+ * commits don't pay any round trip for the lock.
+ * </p>
+ * <p>
+ * If another reference is at the head of the queue, the manager waits with exponential backoff for the queue to
+ * change. MUSIC does not expire the locks, so a holder whose heartbeat does not change for a whole lease period, as
+ * measured by the clock of the waiting node, is considered dead and its reference is removed from the queue. Only
+ * changes of the heartbeat are compared, the clocks of the nodes don't need to be synchronized.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class LeaseManager {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(LeaseManager.class);
+
+	/** First wait (ms) when the lock is held by someone else */
+	static final long MIN_BACKOFF = 10;
+	/** Maximum wait (ms) between two checks of the lock queue */
+	static final long MAX_BACKOFF = 1000;
+	/** Table, in the keyspace of the locked row, with the last heartbeat of each lock reference */
+	public static final String HEARTBEAT_TABLE_NAME = "leaseheartbeats";
+
+	/**
+	 * Operations on the lock queues of MUSIC
+	 */
+	public interface LockService {
+		String createLockReference(String fullyQualifiedKey) throws MDBCServiceException;
+
+		/**
+		 * @return true if the reference is at the head of the queue, and therefore holds the lock
+		 */
+		boolean acquireLock(String fullyQualifiedKey, String lockId) throws MDBCServiceException;
+
+		/**
+		 * @return the reference at the head of the queue, or null if the queue is empty
+		 */
+		String peekLockQueue(String keyspace, String table, String key) throws MDBCServiceException;
+
+		/**
+		 * Removes a reference from the queue
+		 * @param voluntary true if the reference is owned by this node, false if it is forcefully removed
+		 */
+		void releaseLock(String fullyQualifiedKey, String lockId, boolean voluntary) throws MDBCServiceException;
+
+		/**
+		 * Records that the holder of a reference is alive, the heartbeat must be visible to the other nodes when it
+		 * returns
+		 * @param heartbeat value that is different from the previous heartbeat of the reference
+		 */
+		void publishHeartbeat(String keyspace, String table, String key, String lockId, long heartbeat) throws MDBCServiceException;
+
+		/**
+		 * @return the last heartbeat published for a reference, or null if it never published one
+		 */
+		Long readHeartbeat(String keyspace, String table, String key, String lockId) throws MDBCServiceException;
+	}
+
+	/**
+	 * Lock queues of the MUSIC instance used by this process
+	 */
+	public static class MusicLockService implements LockService {
+		private final Supplier<MusicAsyncExecutor> executor;
+
+		/**
+		 * @param executor session used to read and write the heartbeats at QUORUM
+		 */
+		public MusicLockService(Supplier<MusicAsyncExecutor> executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public String createLockReference(String fullyQualifiedKey) throws MDBCServiceException {
+			String lockId = MusicPureCassaCore.createLockReference(fullyQualifiedKey);
+			if (lockId == null) {
+				throw new MDBCServiceException("Lock reference could not be created for key "+fullyQualifiedKey);
+			}
+			return lockId;
+		}
+
+		@Override
+		public boolean acquireLock(String fullyQualifiedKey, String lockId) throws MDBCServiceException {
+			ReturnType lockReturn;
+			try {
+				lockReturn = MusicPureCassaCore.acquireLock(fullyQualifiedKey, lockId);
+			} catch (MusicLockingException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Lock was not acquire correctly for key "+fullyQualifiedKey);
+				throw new MDBCServiceException("Lock was not acquire correctly for key "+fullyQualifiedKey);
+			} catch (MusicServiceException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Error in music, when locking key: "+fullyQualifiedKey);
+				throw new MDBCServiceException("Error in music, when locking: "+fullyQualifiedKey);
+			} catch (MusicQueryException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Error in executing query music, when locking key: "+fullyQualifiedKey);
+				throw new MDBCServiceException("Error in executing query music, when locking: "+fullyQualifiedKey);
+			}
+			return lockReturn != null && lockReturn.getResult().compareTo(ResultType.SUCCESS) == 0;
+		}
+
+		@Override
+		public String peekLockQueue(String keyspace, String table, String key) throws MDBCServiceException {
+			CassaLockStore lockingServiceHandle = MusicPureCassaCore.getLockingServiceHandle();
+			try {
+				UUID head = lockingServiceHandle.peekLockQueue(keyspace, table, key);
+				return (head == null) ? null : head.toString();
+			} catch (MusicServiceException | MusicQueryException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Error in music, when reading the lock queue of "+keyspace+"."+table+"."+key);
+				throw new MDBCServiceException("Error in music, when reading the lock queue of "+keyspace+"."+table+"."+key);
+			} catch (NullPointerException e) {
+				// the queue is empty
+				return null;
+			}
+		}
+
+		@Override
+		public void releaseLock(String fullyQualifiedKey, String lockId, boolean voluntary) throws MDBCServiceException {
+			try {
+				if (voluntary) {
+					MusicPureCassaCore.voluntaryReleaseLock(fullyQualifiedKey, lockId);
+					MusicPureCassaCore.destroyLockRef(fullyQualifiedKey, lockId);
+				}
+				else {
+					MusicPureCassaCore.releaseLock(fullyQualifiedKey, lockId, false);
+				}
+			} catch (MusicLockingException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Error when releasing lock "+lockId+" of key "+fullyQualifiedKey);
+				throw new MDBCServiceException("Error when releasing lock "+lockId+" of key "+fullyQualifiedKey);
+			}
+			String[] parts = fullyQualifiedKey.split("\\.", 3);
+			if (parts.length == 3) {
+				PreparedQueryObject query = new PreparedQueryObject();
+				query.appendQueryString("DELETE FROM "+parts[0]+"."+HEARTBEAT_TABLE_NAME+" WHERE lockkey=? AND lockid=?;");
+				query.addValue(parts[1]+"."+parts[2]);
+				query.addValue(lockId);
+				execute(query, "removal of the heartbeat of "+lockId);
+			}
+		}
+
+		@Override
+		public void publishHeartbeat(String keyspace, String table, String key, String lockId, long heartbeat) throws MDBCServiceException {
+			PreparedQueryObject query = new PreparedQueryObject();
+			query.appendQueryString("INSERT INTO "+keyspace+"."+HEARTBEAT_TABLE_NAME+" (lockkey,lockid,heartbeat) VALUES (?,?,?);");
+			query.addValue(table+"."+key);
+			query.addValue(lockId);
+			query.addValue(heartbeat);
+			execute(query, "heartbeat of "+lockId);
+		}
+
+		@Override
+		public Long readHeartbeat(String keyspace, String table, String key, String lockId) throws MDBCServiceException {
+			PreparedQueryObject query = new PreparedQueryObject();
+			query.appendQueryString("SELECT heartbeat FROM "+keyspace+"."+HEARTBEAT_TABLE_NAME+" WHERE lockkey=? AND lockid=?;");
+			query.addValue(table+"."+key);
+			query.addValue(lockId);
+			Row row = execute(query, "read of the heartbeat of "+lockId).one();
+			return (row == null || row.isNull("heartbeat")) ? null : row.getLong("heartbeat");
+		}
+
+		private ResultSet execute(PreparedQueryObject query, String what) throws MDBCServiceException {
+			MusicAsyncExecutor exec = executor.get();
+			if (exec == null) {
+				throw new MDBCServiceException("No MUSIC session for the "+what);
+			}
+			List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+			futures.add(exec.executeAsync(query, ConsistencyLevel.QUORUM));
+			return MusicAsyncExecutor.waitAll(futures, what).get(0);
+		}
+	}
+
+	private final LockService locks;
+	private final ScheduledExecutorService renewer;
+	private final String keyspace;
+	private final String table;
+	private final String key;
+	private final String fullyQualifiedKey;
+	private final long leasePeriod;
+	private final long acquireTimeout;
+	private String lockId;
+	private volatile long expiry;
+	private ScheduledFuture<?> renewal;
+
+	/**
+	 * @param locks lock queues used to take the lease
+	 * @param renewer thread used to renew the lease in the background
+	 * @param keyspace keyspace of the row that is locked
+	 * @param table table of the row that is locked
+	 * @param key primary key of the row that is locked
+	 * @param lockId reference that this node already has in the queue, or null to create one
+	 * @param leasePeriod time (ms) that the lease is valid after it was last confirmed
+	 * @param acquireTimeout maximum time (ms) that {@link #acquire()} waits for the lock
+	 */
+	public LeaseManager(LockService locks, ScheduledExecutorService renewer, String keyspace, String table, String key,
+			String lockId, long leasePeriod, long acquireTimeout) {
+		this.locks = locks;
+		this.renewer = renewer;
+		this.keyspace = keyspace;
+		this.table = table;
+		this.key = key;
+		this.fullyQualifiedKey = keyspace+"."+table+"."+key;
+		this.lockId = (lockId == null || lockId.isEmpty()) ? null : lockId;
+		this.leasePeriod = leasePeriod;
+		this.acquireTimeout = acquireTimeout;
+		this.expiry = 0;
+		this.renewal = null;
+	}
+
+	/**
+	 * @return true if the lease is held and was confirmed less than a lease period ago
+	 */
+	public boolean isValid() {
+		return System.currentTimeMillis() < expiry;
+	}
+
+	/**
+	 * @return time (ms since the epoch) when the lease expires if it is not renewed, 0 if it is not held
+	 */
+	public long getExpiry() {
+		return expiry;
+	}
+
+	public String getFullyQualifiedKey() {
+		return fullyQualifiedKey;
+	}
+
+	/**
+	 * Returns the lock reference of this node, taking the lock first if the lease is not valid
+	 * @return the lock reference, that holds the lock
+	 * @throws MDBCServiceException if the lock could not be taken before the timeout
+	 */
+	public synchronized String acquire() throws MDBCServiceException {
+		if (lockId != null && isValid()) {
+			return lockId;
+		}
+		long deadline = System.currentTimeMillis() + acquireTimeout;
+		long backoff = MIN_BACKOFF;
+		String observedHead = null;
+		Long observedHeartbeat = null;
+		long observedSince = 0;
+		while (true) {
+			if (lockId == null) {
+				lockId = locks.createLockReference(fullyQualifiedKey);
+			}
+			long now = System.currentTimeMillis();
+			if (locks.acquireLock(fullyQualifiedKey, lockId)) {
+				locks.publishHeartbeat(keyspace, table, key, lockId, now);
+				expiry = now + leasePeriod;
+				scheduleRenewal();
+				logger.debug(EELFLoggerDelegate.applicationLogger, "Lease of "+fullyQualifiedKey+" acquired with "+lockId);
+				return lockId;
+			}
+			String head = locks.peekLockQueue(keyspace, table, key);
+			if (head == null) {
+				// our reference is not in the queue anymore
+				lockId = null;
+				continue;
+			}
+			if (!head.equals(lockId)) {
+				Long heartbeat = locks.readHeartbeat(keyspace, table, key, head);
+				if (!head.equals(observedHead) || !Objects.equals(heartbeat, observedHeartbeat)) {
+					// the queue moved or the holder renewed its lease, it gets a whole lease period from now
+					observedHead = head;
+					observedHeartbeat = heartbeat;
+					observedSince = now;
+				}
+				else if (now - observedSince >= leasePeriod) {
+					logger.info(EELFLoggerDelegate.applicationLogger, "Lock "+head+" of "+fullyQualifiedKey+" expired, its heartbeat "
+							+heartbeat+" did not change for "+(now - observedSince)+" ms, removing it from the queue");
+					locks.releaseLock(fullyQualifiedKey, head, false);
+					observedHead = null;
+					backoff = MIN_BACKOFF;
+					continue;
+				}
+			}
+			if (now + backoff > deadline) {
+				throw new MDBCServiceException("Lease of "+fullyQualifiedKey+" could not be acquired, it is held by "+head);
+			}
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MDBCServiceException("Interrupted while waiting for the lease of "+fullyQualifiedKey);
+			}
+			backoff = Math.min(MAX_BACKOFF, backoff * 2);
+		}
+	}
+
+	private void scheduleRenewal() {
+		if (renewal != null || renewer == null) {
+			return;
+		}
+		long period = Math.max(1, leasePeriod / 3);
+		renewal = renewer.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Confirms that this node still holds the lock and publishes its heartbeat, otherwise the lease is lost. The lease
+	 * is not extended if the heartbeat could not be published, the other nodes would consider this node dead
+	 */
+	void renew() {
+		String current;
+		synchronized (this) {
+			current = lockId;
+		}
+		if (current == null) {
+			return;
+		}
+		try {
+			long now = System.currentTimeMillis();
+			boolean held = locks.acquireLock(fullyQualifiedKey, current);
+			if (held) {
+				locks.publishHeartbeat(keyspace, table, key, current, now);
+			}
+			synchronized (this) {
+				if (!current.equals(lockId)) {
+					return;
+				}
+				if (held) {
+					expiry = now + leasePeriod;
+				}
+				else {
+					logger.error(EELFLoggerDelegate.errorLogger, "Lease of "+fullyQualifiedKey+" was lost by "+current);
+					expiry = 0;
+					lockId = null;
+				}
+			}
+		} catch (MDBCServiceException e) {
+			// the lease expires by itself if MUSIC keeps failing
+			logger.error(EELFLoggerDelegate.errorLogger, "Renewal of the lease of "+fullyQualifiedKey+" failed: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops renewing the lease and removes the reference of this node from the queue
+	 */
+	public synchronized void release() throws MDBCServiceException {
+		if (renewal != null) {
+			renewal.cancel(false);
+			renewal = null;
+		}
+		expiry = 0;
+		if (lockId != null) {
+			String released = lockId;
+			lockId = null;
+			locks.releaseLock(fullyQualifiedKey, released, true);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package com.att.research.mdbc.mixins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.onap.music.datastore.PreparedQueryObject;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Non-blocking execution of statements in MUSIC (Cassandra).
+ * <p>
+ * The DataStax {@link Session} is thread safe, so the statements are sent with {@link Session#executeAsync}
+ * without any lock, and independent writes can be in flight at the same time. The number of requests in flight
+ * is bounded globally, for all the hosts together: the coordinator of a request is only chosen by the driver when
+ * it is sent, and each host is already bounded by the requests per connection of the driver. When the bound is
+ * reached the caller waits until a request completes, instead of queuing an unbounded number of requests in the
+ * driver.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class MusicAsyncExecutor {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(MusicAsyncExecutor.class);
+
+	private final Session session;
+	private final Function<String, PreparedStatement> preparer;
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+	private final long acquireTimeout;
+
+	/**
+	 * @param session session used to send the statements
+	 * @param preparer returns the prepared statement of a cql string, usually from a cache
+	 * @param maxInFlight maximum number of requests in flight, for all the hosts together
+	 * @param acquireTimeout maximum time in milliseconds that a caller waits for a request to complete when the bound is reached
+	 */
+	public MusicAsyncExecutor(Session session, Function<String, PreparedStatement> preparer, int maxInFlight, long acquireTimeout) {
+		this.session = session;
+		this.preparer = preparer;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.acquireTimeout = acquireTimeout;
+		logger.info(EELFLoggerDelegate.applicationLogger, "MusicAsyncExecutor: maxInFlight="+maxInFlight);
+	}
+
+	/**
+	 * Sends a statement to MUSIC without waiting for its result
+	 * @param stmt the statement
+	 * @return future that completes when the statement is executed
+	 * @throws MDBCServiceException if the request could not be sent because too many requests are in flight
+	 */
+	public ListenableFuture<ResultSet> executeAsync(Statement stmt) throws MDBCServiceException {
+		try {
+			if (!inFlight.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Timeout waiting for one of the "+maxInFlight+" requests in flight to MUSIC");
+				throw new MDBCServiceException("Timeout waiting for one of the "+maxInFlight+" requests in flight to MUSIC");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MDBCServiceException("Interrupted while waiting to send a request to MUSIC");
+		}
+		ResultSetFuture future;
+		try {
+			future = session.executeAsync(stmt);
+		} catch (RuntimeException e) {
+			inFlight.release();
+			logger.error(EELFLoggerDelegate.errorLogger, "Error sending request to MUSIC: "+e.getMessage());
+			throw new MDBCServiceException("Error sending request to MUSIC: "+e.getMessage());
+		}
+		future.addListener(inFlight::release, MoreExecutors.directExecutor());
+		return future;
+	}
+
+	/**
+	 * Sends a query to MUSIC without waiting for its result, the query string is prepared once and then bound
+	 * to the values of the query object
+	 * @param query the query and its values
+	 * @param consistency consistency level of the request
+	 * @return future that completes when the query is executed
+	 * @throws MDBCServiceException if the request could not be sent
+	 */
+	public ListenableFuture<ResultSet> executeAsync(PreparedQueryObject query, ConsistencyLevel consistency) throws MDBCServiceException {
+		Statement stmt = bind(query);
+		stmt.setConsistencyLevel(consistency);
+		return executeAsync(stmt);
+	}
+
+	/**
+	 * @param query the query and its values
+	 * @return the query bound to its values, using the prepared statement of the query string
+	 */
+	public Statement bind(PreparedQueryObject query) {
+		PreparedStatement ps = preparer.apply(query.getQuery());
+		return ps.bind(query.getValues().toArray());
+	}
+
+	/**
+	 * Waits until all the requests complete
+	 * @param futures requests that were sent
+	 * @param what description of the requests, used in the error message
+	 * @return the results of the requests, in the same order
+	 * @throws MDBCServiceException if any of the requests failed, after all of them completed
+	 */
+	public static List<ResultSet> waitAll(List<ListenableFuture<ResultSet>> futures, String what) throws MDBCServiceException {
+		List<ResultSet> results = new ArrayList<>(futures.size());
+		MDBCServiceException error = null;
+		for (ListenableFuture<ResultSet> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				error = new MDBCServiceException("Interrupted while waiting for "+what);
+			} catch (ExecutionException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Error in "+what+": "+e.getCause().getMessage());
+				error = new MDBCServiceException("Error in "+what+": "+e.getCause().getMessage());
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		return results;
+	}
+
+	/**
+	 * @return number of requests that are currently in flight
+	 */
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	/**
+	 * @return maximum number of requests in flight
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+}
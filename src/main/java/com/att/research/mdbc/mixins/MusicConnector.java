@@ -15,6 +15,7 @@ import com.datastax.driver.core.Metadata;
 import com.datastax.driver.core.PoolingOptions;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import org.onap.music.datastore.MusicDataStore;
 import org.onap.music.main.MusicPureCassaCore;
 
 /**
@@ -43,6 +44,7 @@ public class MusicConnector {
 	}
 
 	public void close() {
+		PreparedStatementRegistry.release(session);
 		if (session != null)
 			session.close();
 		session = null;
@@ -70,7 +72,9 @@ public class MusicConnector {
 	}
 	
 	private void connectToMultipleAddresses(String address) {
-		MusicPureCassaCore.getDSHandle(address);
+		// reuse the session of MUSIC, it is thread safe and shared by all the connections
+		MusicDataStore ds = MusicPureCassaCore.getDSHandle(address);
+		session = (ds == null) ? null : ds.getSession();
 	/*
 	PoolingOptions poolingOptions =
 		new PoolingOptions()
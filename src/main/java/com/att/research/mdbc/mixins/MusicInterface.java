@@ -96,6 +96,14 @@ public interface MusicInterface {
 	 * primary key are copied into the dirty row table.
 	 */
 	void markDirtyRow(TableInfo ti, String tableName, JSONObject keys);
+	/**
+	 * Mark a set of rows as "dirty" in the dirty rows table for <i>tableName</i>, the markers of all the rows are
+	 * written together.
+	 * @param tableName the table we are marking dirty
+	 * @param rows the rows that changed, the values that correspond to the tables' primary key are copied into the
+	 * dirty row table.
+	 */
+	void markDirtyRows(TableInfo ti, String tableName, List<JSONObject> rows);
 	/**
 	 * Remove the entries from the dirty row (for this replica) that correspond to a set of primary keys
 	 * @param tableName the table we are removing dirty entries from
@@ -154,9 +162,17 @@ public interface MusicInterface {
 	 */
 	void commitLog(DBInterface dbi, DatabasePartition partition, HashMap<Range,StagingTable> transactionDigest, String txId,TxCommitProgress progressKeeper) throws MDBCServiceException;
 	
-	TransactionInformationElement getTransactionInformation(String id);
+	TransactionInformationElement getTransactionInformation(String id) throws MDBCServiceException;
 
-	TitReference createTransactionInformationRow(TransactionInformationElement info);
+	/**
+	 * Reads a row of the transaction information table (TIT)
+	 * @param tit table and index of the row
+	 * @return the row, or null if it doesn't exist
+	 * @throws MDBCServiceException
+	 */
+	TransactionInformationElement getTransactionInformation(TitReference tit) throws MDBCServiceException;
+
+	TitReference createTransactionInformationRow(TransactionInformationElement info) throws MDBCServiceException;
 	
 	void appendToRedoLog(TitReference titRow, DatabasePartition partition, RedoRecordId newRecord);
 	
@@ -168,19 +184,111 @@ public interface MusicInterface {
 	
 	void updatePartitionOwner(String partition, String owner);
 
-	void updateTitReference(String partition, TitReference tit);
+	void updateTitReference(String partition, TitReference tit) throws MDBCServiceException;
 	
 	void updatePartitionReplicationFactor(String partition, int replicationFactor);
 	
-	void addRedoHistory(DatabasePartition partition, TitReference newTit, List<TitReference> old);
+	void addRedoHistory(DatabasePartition partition, TitReference newTit, List<TitReference> old) throws MDBCServiceException;
 	
-	List<RedoHistoryElement> getHistory(DatabasePartition partition);
+	/**
+	 * Reads all the rows of the redo history table for a partition
+	 * @param partition partition whose id is used
+	 * @return the history of the partition, each element contains the TIT row and its previous TIT rows
+	 * @throws MDBCServiceException
+	 */
+	List<RedoHistoryElement> getHistory(DatabasePartition partition) throws MDBCServiceException;
 
 	List<PartitionInformation> getPartitionInformation(DatabasePartition partition);
 	
-	TablePartitionInformation getTablePartitionInformation(String table);
+	/**
+	 * @param table name of the table
+	 * @return the current and previous partitions of the table, or null if the table is not assigned to a partition
+	 * @throws MDBCServiceException
+	 */
+	TablePartitionInformation getTablePartitionInformation(String table) throws MDBCServiceException;
 	
-	HashMap<Range,StagingTable> getTransactionDigest(RedoRecordId id);
+	HashMap<Range,StagingTable> getTransactionDigest(RedoRecordId id) throws MDBCServiceException;
+
+	/**
+	 * Writes the net effect of a group of transactions into the data tables in MUSIC, used by the
+	 * {@link com.att.research.mdbc.ArchiveProcess}. It returns once all the writes were acknowledged.
+	 * @param digest changes by range, with a single operation for each key
+	 * @throws MDBCServiceException if any of the writes failed
+	 */
+	void applyToDataTables(HashMap<Range,StagingTable> digest) throws MDBCServiceException;
+
+	/**
+	 * Records how much of the redo log of a TIT row was already applied into the data tables
+	 * @param tit row in the TIT
+	 * @param lockId lease that is currently held for the partition that owns the row
+	 * @param latestApplied index in the redo log of the last record that was applied
+	 * @param applied true if all the records were applied and no more records are going to be added
+	 * @throws MDBCServiceException if the row could not be updated
+	 */
+	void updateLatestApplied(TitReference tit, String lockId, int latestApplied, boolean applied) throws MDBCServiceException;
+
+	/**
+	 * @param id redo record
+	 * @return true if the RRT still contains the record
+	 * @throws MDBCServiceException if the RRT can not be read
+	 */
+	boolean redoRecordExists(RedoRecordId id) throws MDBCServiceException;
+
+	/**
+	 * Deletes redo records that were already applied into the data tables, with all their chunks
+	 * @param records records to delete
+	 * @throws MDBCServiceException if any of the deletes failed
+	 */
+	void deleteRedoRecords(List<RedoRecordId> records) throws MDBCServiceException;
+
+	/**
+	 * Deletes a TIT row whose redo log was completely applied into the data tables
+	 * @param tit row in the TIT
+	 * @param lockId lease that is currently held for the row, or null if it is not held
+	 * @throws MDBCServiceException if the row could not be deleted
+	 */
+	void deleteTransactionInformation(TitReference tit, String lockId) throws MDBCServiceException;
+
+	/**
+	 * Removes a TIT row from the parents of a row in the redo history
+	 * @param partition partition that owns the history
+	 * @param child TIT row whose history is modified
+	 * @param parent TIT row that is removed from the parents
+	 * @param lockId lease that is currently held for the history row, or null if it is not held
+	 * @throws MDBCServiceException if the history could not be modified
+	 */
+	void removeRedoHistoryLink(DatabasePartition partition, TitReference child, TitReference parent, String lockId) throws MDBCServiceException;
+
+	/**
+	 * Deletes the row of a TIT row in the redo history
+	 * @param partition partition that owns the history
+	 * @param tit TIT row whose history is deleted
+	 * @param lockId lease that is currently held for the history row, or null if it is not held
+	 * @throws MDBCServiceException if the history could not be modified
+	 */
+	void deleteRedoHistory(DatabasePartition partition, TitReference tit, String lockId) throws MDBCServiceException;
+
+	/**
+	 * Replaces the TIT row of a partition by a new empty row, that is linked to the old one in the redo history.
+	 * Commits that already started keep using the old row.
+	 * @param partition partition whose row is replaced, this node must hold its lease
+	 * @return the old row, it is closed once all the commits in flight were written into it
+	 * @throws MDBCServiceException if the new row could not be created
+	 */
+	TitReference rolloverTransactionInformation(DatabasePartition partition) throws MDBCServiceException;
+
+	/**
+	 * @return TIT rows replaced by a rollover that don't receive more commits, with the lease that is still held for
+	 * each of them. They need to be archived and then released with {@link #releaseTransactionInformation(TitReference)}
+	 */
+	Map<TitReference,String> getClosedTransactionInformation();
+
+	/**
+	 * Releases the lease of a closed TIT row after it was completely applied into the data tables
+	 * @param tit row returned by {@link #getClosedTransactionInformation()}
+	 * @throws MDBCServiceException if the lease could not be released
+	 */
+	void releaseTransactionInformation(TitReference tit) throws MDBCServiceException;
 
 
 }
@@ -104,6 +104,12 @@ public class MusicMixin implements MusicInterface {
 		
 	}
 
+	@Override
+	public void markDirtyRows(TableInfo ti, String tableName, List<JSONObject> rows) {
+		//
+
+	}
+
 	@Override
 	public void cleanDirtyRow(TableInfo ti, String tableName, JSONObject keys) {
 		// 
@@ -212,9 +218,50 @@ public class MusicMixin implements MusicInterface {
 	    return null;
     }
 
+    @Override
+    public 	TransactionInformationElement getTransactionInformation(TitReference tit){
+	    return null;
+    }
+
     @Override
     public 	void updateTitReference(String partition, TitReference tit){}
 
+    @Override
+    public void applyToDataTables(HashMap<Range,StagingTable> digest){}
+
+    @Override
+    public void updateLatestApplied(TitReference tit, String lockId, int latestApplied, boolean applied){}
+
+    @Override
+    public boolean redoRecordExists(RedoRecordId id){
+        return false;
+    }
+
+    @Override
+    public void deleteRedoRecords(List<RedoRecordId> records){}
+
+    @Override
+    public void deleteTransactionInformation(TitReference tit, String lockId){}
+
+    @Override
+    public void removeRedoHistoryLink(DatabasePartition partition, TitReference child, TitReference parent, String lockId){}
+
+    @Override
+    public void deleteRedoHistory(DatabasePartition partition, TitReference tit, String lockId){}
+
+    @Override
+    public TitReference rolloverTransactionInformation(DatabasePartition partition){
+        return null;
+    }
+
+    @Override
+    public Map<TitReference,String> getClosedTransactionInformation(){
+        return new HashMap<>();
+    }
+
+    @Override
+    public void releaseTransactionInformation(TitReference tit){}
+
     @Override
     public 	List<RedoHistoryElement> getHistory(DatabasePartition partition){
 	   return null;
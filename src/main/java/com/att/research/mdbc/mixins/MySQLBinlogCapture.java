@@ -0,0 +1,389 @@
+package com.att.research.mdbc.mixins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.tables.OperationType;
+
+/**
+ * Tails the binlog files of a MySQL/MariaDB server and routes the committed row changes to the connection
+ * (thread id) that generated them.
+ * <p>
+ * There is a single capture per binlog directory, shared by all the connections to that server. Only the changes
+ * of registered connections are kept; the changes of each transaction are made available once its commit is read
+ * from the binlog.
+ * </p>
+ * <p>
+ * A transaction that can not be attributed to a thread (MariaDB writes a GTID event instead of the BEGIN query)
+ * fails the capture, so the commits that wait for it fail instead of writing an incomplete digest into MUSIC.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class MySQLBinlogCapture implements MySQLBinlogReader.Listener, Runnable {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(MySQLBinlogCapture.class);
+
+	private static final Map<String,MySQLBinlogCapture> captures = new HashMap<>();
+
+	/**
+	 * A row changed by a transaction
+	 */
+	public static class RowChange {
+		public final String database;
+		public final String table;
+		public final OperationType type;
+		/** Row before the change, null for inserts */
+		public final Object[] before;
+		/** Row after the change, null for deletes */
+		public final Object[] after;
+
+		public RowChange(String database, String table, OperationType type, Object[] before, Object[] after) {
+			this.database = database;
+			this.table = table;
+			this.type = type;
+			this.before = before;
+			this.after = after;
+		}
+	}
+
+	private final File directory;
+	private final long pollInterval;
+	private final Map<Long,List<RowChange>> inFlight;
+	private final Map<Long,List<RowChange>> committed;
+	private final Map<Long,String[]> fences;
+	private MySQLBinlogReader reader;
+	private String currentFile;
+	private long currentPosition;
+	private int users;
+	private volatile boolean running;
+	private IOException failure;
+	private Thread thread;
+
+	MySQLBinlogCapture(File directory, long pollInterval) {
+		this.directory = directory;
+		this.pollInterval = pollInterval;
+		this.inFlight = new HashMap<>();
+		this.committed = new HashMap<>();
+		this.fences = new HashMap<>();
+		this.users = 0;
+		this.running = false;
+		this.failure = null;
+	}
+
+	/**
+	 * Returns the capture for the binlog directory, starting it at the given position if it is not running yet
+	 * @param directory directory that contains the binlog files of the server
+	 * @param file binlog file to start reading, as returned by <code>SHOW MASTER STATUS</code>
+	 * @param position position to start reading, as returned by <code>SHOW MASTER STATUS</code>
+	 * @param pollInterval time in milliseconds to wait for new events when the end of the binlog is reached
+	 * @return the capture, the caller has to call {@link #release()} when it is not required anymore
+	 * @throws IOException if the binlog file can not be read
+	 */
+	public static MySQLBinlogCapture acquire(String directory, String file, long position, long pollInterval) throws IOException {
+		File dir = new File(directory).getAbsoluteFile();
+		synchronized(captures) {
+			MySQLBinlogCapture capture = captures.get(dir.getPath());
+			if(capture == null) {
+				capture = new MySQLBinlogCapture(dir, pollInterval);
+				capture.start(file, position);
+				captures.put(dir.getPath(), capture);
+			}
+			capture.users++;
+			return capture;
+		}
+	}
+
+	/**
+	 * Stops the capture when it is not used by any connection
+	 */
+	public void release() {
+		synchronized(captures) {
+			users--;
+			if(users > 0) {
+				return;
+			}
+			captures.remove(directory.getPath());
+		}
+		stop();
+	}
+
+	void start(String file, long position) throws IOException {
+		openFile(file, position);
+		running = true;
+		thread = new Thread(this, "mdbc-binlog-"+directory.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() {
+		running = false;
+		if(thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private synchronized void openFile(String file, long position) throws IOException {
+		if(reader != null) {
+			reader.close();
+		}
+		reader = new MySQLBinlogReader(new File(directory, file), this);
+		reader.seek(position);
+		currentFile = file;
+		currentPosition = reader.getPosition();
+	}
+
+	/**
+	 * Starts keeping the changes of a connection
+	 * @param threadId the connection id, as returned by <code>CONNECTION_ID()</code>
+	 */
+	public synchronized void register(long threadId) {
+		committed.put(threadId, new ArrayList<RowChange>());
+	}
+
+	public synchronized void unregister(long threadId) {
+		committed.remove(threadId);
+		inFlight.remove(threadId);
+		fences.remove(threadId);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns and removes the committed changes of a connection, in binlog order
+	 * @param threadId the connection id
+	 * @return list of changes, empty if there is none
+	 */
+	public synchronized List<RowChange> drain(long threadId) {
+		List<RowChange> changes = committed.get(threadId);
+		if(changes == null || changes.isEmpty()) {
+			return Collections.emptyList();
+		}
+		committed.put(threadId, new ArrayList<RowChange>());
+		return changes;
+	}
+
+	/**
+	 * Discards the changes of a connection that are committed before the given position, including the ones that
+	 * were not read yet. It is used when a commit fails after the local commit, so its changes are not added to the
+	 * next commit of the connection; they are collected again with {@link #read}.
+	 * @param threadId the connection id
+	 * @param file binlog file of the end of the failed commit, null if it is unknown
+	 * @param position position of the end of the failed commit
+	 */
+	public synchronized void discard(long threadId, String file, long position) {
+		if(!committed.containsKey(threadId)) {
+			return;
+		}
+		committed.put(threadId, new ArrayList<RowChange>());
+		if(file != null) {
+			fences.put(threadId, new String[] {file, Long.toString(position)});
+		}
+	}
+
+	/**
+	 * Reads the committed changes of a connection directly from the binlog files, without a running capture
+	 * @param directory directory that contains the binlog files of the server
+	 * @param threadId the connection id
+	 * @param file binlog file where the changes start
+	 * @param position position where the changes start
+	 * @param endFile binlog file where the changes end, null to read only the first transaction of the connection
+	 * @param endPosition position where the changes end
+	 * @return list of changes, in binlog order
+	 * @throws IOException if the binlog files can not be read, e.g. because they were purged
+	 */
+	static List<RowChange> read(File directory, long threadId, String file, long position, String endFile, long endPosition) throws IOException {
+		MySQLBinlogCapture capture = new MySQLBinlogCapture(directory, 0);
+		capture.register(threadId);
+		capture.openFile(file, position);
+		try {
+			while(endFile == null || compare(capture.currentFile, capture.currentPosition, endFile, endPosition) < 0) {
+				if(endFile == null && !capture.committed.get(threadId).isEmpty()) {
+					break;
+				}
+				if(!capture.step()) {
+					if(endFile != null) {
+						throw new IOException("Binlog ends at "+capture.currentFile+":"+capture.currentPosition+" before "+endFile+":"+endPosition);
+					}
+					break;
+				}
+			}
+			return capture.drain(threadId);
+		} finally {
+			capture.reader.close();
+		}
+	}
+
+	/**
+	 * Waits until the capture read all the events before the given position
+	 * @param file binlog file, as returned by <code>SHOW MASTER STATUS</code>
+	 * @param position position in the file, as returned by <code>SHOW MASTER STATUS</code>
+	 * @param timeout maximum time to wait in milliseconds
+	 * @return true if the position was reached before the timeout
+	 * @throws IOException if the capture failed reading the binlog, or found changes it can not route
+	 */
+	public synchronized boolean awaitPosition(String file, long position, long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while(true) {
+			// the failure can be found by an event before the position, checked before the position is compared
+			if(failure != null) {
+				throw failure;
+			}
+			if(compare(currentFile, currentPosition, file, position) >= 0) {
+				return true;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				return false;
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Compares two binlog positions, the files are ordered by their numeric extension
+	 */
+	static int compare(String fileA, long positionA, String fileB, long positionB) {
+		long indexA = fileIndex(fileA);
+		long indexB = fileIndex(fileB);
+		if(indexA != indexB) {
+			return Long.compare(indexA, indexB);
+		}
+		return Long.compare(positionA, positionB);
+	}
+
+	static long fileIndex(String file) {
+		int dot = file.lastIndexOf('.');
+		try {
+			return Long.parseLong(file.substring(dot + 1));
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Name of the binlog file that follows the given one, when the server restarted without a rotate event
+	 */
+	static String nextFileName(String file) {
+		int dot = file.lastIndexOf('.');
+		String suffix = file.substring(dot + 1);
+		String next = Long.toString(fileIndex(file) + 1);
+		while(next.length() < suffix.length()) {
+			next = "0" + next;
+		}
+		return file.substring(0, dot + 1) + next;
+	}
+
+	@Override
+	public void run() {
+		while(running) {
+			try {
+				if(!step()) {
+					Thread.sleep(pollInterval);
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Binlog capture failed on "+currentFile+": "+e.getMessage());
+				synchronized(this) {
+					failure = e;
+					notifyAll();
+				}
+				break;
+			}
+		}
+		synchronized(this) {
+			try {
+				if(reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Error closing binlog file: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Reads the next event, moving to the next binlog file when the current one is finished
+	 * @return false if there was no new event available
+	 */
+	synchronized boolean step() throws IOException {
+		if(reader.next()) {
+			currentPosition = reader.getPosition();
+			notifyAll();
+			return true;
+		}
+		if(!reader.isFinished()) {
+			return false;
+		}
+		String next = (reader.getNextFile() != null) ? reader.getNextFile() : nextFileName(currentFile);
+		if(!new File(directory, next).exists()) {
+			return false;
+		}
+		logger.debug(EELFLoggerDelegate.applicationLogger, "Binlog capture moving to file "+next);
+		openFile(next, 0);
+		notifyAll();
+		return true;
+	}
+
+	@Override
+	public synchronized void onRows(long threadId, String database, String table, OperationType type, List<Object[]> before, List<Object[]> after) {
+		if(threadId == -1) {
+			if(!committed.isEmpty() && failure == null) {
+				// the changes could belong to any of the connections, their commits can not be completed
+				logger.error(EELFLoggerDelegate.errorLogger, "Binlog transaction without thread id (GTID event), changes to "
+						+table+" can not be routed to a connection");
+				failure = new IOException("Binlog transaction without thread id at "+currentFile+":"+reader.getPosition()
+						+", the changes can not be routed to a connection");
+				notifyAll();
+			}
+			return;
+		}
+		if(!committed.containsKey(threadId)) {
+			return;
+		}
+		List<RowChange> changes = inFlight.get(threadId);
+		if(changes == null) {
+			changes = new ArrayList<>();
+			inFlight.put(threadId, changes);
+		}
+		int rows = Math.max(before.size(), after.size());
+		for(int i = 0; i < rows; i++) {
+			changes.add(new RowChange(database, table, type,
+					(before.isEmpty()) ? null : before.get(i),
+					(after.isEmpty()) ? null : after.get(i)));
+		}
+	}
+
+	@Override
+	public synchronized void onCommit(long threadId) {
+		List<RowChange> changes = inFlight.remove(threadId);
+		if(changes == null) {
+			return;
+		}
+		String[] fence = fences.get(threadId);
+		if(fence != null) {
+			if(compare(currentFile, reader.getPosition(), fence[0], Long.parseLong(fence[1])) < 0) {
+				// the transaction of a commit that failed
+				return;
+			}
+			fences.remove(threadId);
+		}
+		List<RowChange> connectionChanges = committed.get(threadId);
+		if(connectionChanges != null) {
+			connectionChanges.addAll(changes);
+		}
+	}
+}
@@ -0,0 +1,730 @@
+package com.att.research.mdbc.mixins;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.tables.OperationType;
+
+/**
+ * Reader for MySQL/MariaDB binary log files (format version 4) written with <code>binlog_format=ROW</code>.
+ * <p>
+ * It reads one event at a time from a file that may still be written by the server, so it can be used both to tail
+ * the binlog of a running server and to replay recorded binlog files. Only the events required to capture the row
+ * changes of each transaction are decoded: transaction boundaries (BEGIN/COMMIT queries and XID events), table maps
+ * and the write/update/delete row events (v1 and v2).
+ * </p>
+ * <p>
+ * Each transaction is attributed to the thread (connection) id found in its BEGIN query event, this is the same value
+ * returned by <code>CONNECTION_ID()</code>. MariaDB 10 writes a GTID event instead of the BEGIN query, such
+ * transactions are reported with thread id -1, so the binlog of MariaDB can not be used to capture the changes of a
+ * connection. Binlog events do not contain the column names, so the rows are
+ * returned as arrays in the order of the columns in the table. Integer columns are decoded as unsigned only when the
+ * table map has the signedness of the columns (optional metadata, MySQL 8 with <code>binlog_row_metadata</code>),
+ * otherwise they are decoded as signed and the caller has to fix the values of the unsigned columns. They do not
+ * contain the character set of the columns either, so string and blob columns are returned as the raw bytes
+ * (<code>byte[]</code>) and only the caller, that knows the definition of the table, can convert them into text.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class MySQLBinlogReader implements Closeable {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(MySQLBinlogReader.class);
+
+	/**
+	 * Receives the changes found in the binlog
+	 */
+	public interface Listener {
+		/**
+		 * A row event was found
+		 * @param threadId connection that executed the transaction, -1 if unknown
+		 * @param database database of the table
+		 * @param table table that was modified
+		 * @param type INSERT, UPDATE or DELETE
+		 * @param before images of the rows before the change, empty for inserts
+		 * @param after images of the rows after the change, empty for deletes
+		 */
+		void onRows(long threadId, String database, String table, OperationType type, List<Object[]> before, List<Object[]> after);
+		/**
+		 * The transaction of the thread was committed
+		 * @param threadId connection that executed the transaction, -1 if unknown
+		 */
+		void onCommit(long threadId);
+	}
+
+	static final byte[] BINLOG_MAGIC = {(byte)0xfe, 'b', 'i', 'n'};
+	static final int HEADER_SIZE = 19;
+
+	// Event types
+	static final int QUERY_EVENT = 2;
+	static final int STOP_EVENT = 3;
+	static final int ROTATE_EVENT = 4;
+	static final int FORMAT_DESCRIPTION_EVENT = 15;
+	static final int XID_EVENT = 16;
+	static final int TABLE_MAP_EVENT = 19;
+	static final int WRITE_ROWS_EVENT_V1 = 23;
+	static final int UPDATE_ROWS_EVENT_V1 = 24;
+	static final int DELETE_ROWS_EVENT_V1 = 25;
+	static final int WRITE_ROWS_EVENT = 30;
+	static final int UPDATE_ROWS_EVENT = 31;
+	static final int DELETE_ROWS_EVENT = 32;
+	static final int MARIADB_GTID_EVENT = 162;
+
+	// Column types
+	static final int TYPE_DECIMAL = 0;
+	static final int TYPE_TINY = 1;
+	static final int TYPE_SHORT = 2;
+	static final int TYPE_LONG = 3;
+	static final int TYPE_FLOAT = 4;
+	static final int TYPE_DOUBLE = 5;
+	static final int TYPE_NULL = 6;
+	static final int TYPE_TIMESTAMP = 7;
+	static final int TYPE_LONGLONG = 8;
+	static final int TYPE_INT24 = 9;
+	static final int TYPE_DATE = 10;
+	static final int TYPE_TIME = 11;
+	static final int TYPE_DATETIME = 12;
+	static final int TYPE_YEAR = 13;
+	static final int TYPE_VARCHAR = 15;
+	static final int TYPE_BIT = 16;
+	static final int TYPE_TIMESTAMP2 = 17;
+	static final int TYPE_DATETIME2 = 18;
+	static final int TYPE_TIME2 = 19;
+	static final int TYPE_NEWDECIMAL = 246;
+	static final int TYPE_ENUM = 247;
+	static final int TYPE_SET = 248;
+	static final int TYPE_TINY_BLOB = 249;
+	static final int TYPE_MEDIUM_BLOB = 250;
+	static final int TYPE_LONG_BLOB = 251;
+	static final int TYPE_BLOB = 252;
+	static final int TYPE_VAR_STRING = 253;
+	static final int TYPE_STRING = 254;
+	static final int TYPE_GEOMETRY = 255;
+
+	// Optional metadata of the table map
+	static final int METADATA_SIGNEDNESS = 1;
+
+	private static final int[] DIG2BYTES = {0, 1, 1, 2, 2, 3, 3, 4, 4, 4};
+
+	/**
+	 * Information from a table map event
+	 */
+	private static class TableMap {
+		final String database;
+		final String table;
+		final int[] types;
+		final int[] metadata;
+		/** unsigned numeric columns, null if the signedness is unknown */
+		final BitSet unsigned;
+
+		TableMap(String database, String table, int[] types, int[] metadata, BitSet unsigned) {
+			this.database = database;
+			this.table = table;
+			this.types = types;
+			this.metadata = metadata;
+			this.unsigned = unsigned;
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final Listener listener;
+	private final Map<Long,TableMap> tableMaps;
+	private long position;
+	private boolean checksum;
+	private long currentThreadId;
+	private String nextFile;
+	private boolean stopped;
+
+	/**
+	 * Opens a binlog file and reads its format description event
+	 * @param file binlog file
+	 * @param listener receives the changes
+	 * @throws IOException if the file is not a valid binlog file
+	 */
+	public MySQLBinlogReader(File file, Listener listener) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		this.listener = listener;
+		this.tableMaps = new HashMap<>();
+		this.currentThreadId = -1;
+		this.nextFile = null;
+		this.stopped = false;
+		byte[] magic = new byte[BINLOG_MAGIC.length];
+		raf.readFully(magic);
+		for(int i = 0; i < magic.length; i++) {
+			if(magic[i] != BINLOG_MAGIC[i]) {
+				raf.close();
+				throw new IOException("Invalid binlog file: "+file);
+			}
+		}
+		this.position = BINLOG_MAGIC.length;
+		this.checksum = false;
+		if(!next()) {
+			raf.close();
+			throw new IOException("Missing format description event in binlog file: "+file);
+		}
+	}
+
+	/**
+	 * Moves the reader to the start of an event, usually the position returned by <code>SHOW MASTER STATUS</code>
+	 * @param position offset of the event in the file
+	 */
+	public void seek(long position) {
+		if(position > this.position) {
+			this.position = position;
+		}
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return name of the next binlog file, if a rotate event was found, otherwise null
+	 */
+	public String getNextFile() {
+		return nextFile;
+	}
+
+	/**
+	 * @return true if the server stopped writing into this file (rotate or stop event)
+	 */
+	public boolean isFinished() {
+		return nextFile != null || stopped;
+	}
+
+	/**
+	 * Reads the next event from the file
+	 * @return false if there is not a complete event available yet
+	 * @throws IOException if the file can not be read or the event is invalid
+	 */
+	public boolean next() throws IOException {
+		long length = raf.length();
+		if(length < position + HEADER_SIZE) {
+			return false;
+		}
+		byte[] header = new byte[HEADER_SIZE];
+		raf.seek(position);
+		raf.readFully(header);
+		int type = header[4] & 0xFF;
+		long eventSize = readLong(header, 9, 4);
+		if(eventSize < HEADER_SIZE) {
+			throw new IOException("Invalid event size "+eventSize+" at position "+position+" of "+file);
+		}
+		if(length < position + eventSize) {
+			return false;
+		}
+		byte[] event = new byte[(int) eventSize];
+		System.arraycopy(header, 0, event, 0, HEADER_SIZE);
+		raf.readFully(event, HEADER_SIZE, (int) eventSize - HEADER_SIZE);
+		int end = (int) eventSize;
+		if(type == FORMAT_DESCRIPTION_EVENT) {
+			end = readFormatDescription(event);
+		}
+		else if(checksum) {
+			end -= 4;
+			CRC32 crc = new CRC32();
+			crc.update(event, 0, end);
+			if(crc.getValue() != readLong(event, end, 4)) {
+				throw new IOException("Invalid checksum for event at position "+position+" of "+file);
+			}
+		}
+		processEvent(type, event, end);
+		position += eventSize;
+		return true;
+	}
+
+	/**
+	 * Reads the format description, to know if the events contain a checksum
+	 * @return end of the data in the event
+	 */
+	private int readFormatDescription(byte[] event) {
+		String version = readNullTerminated(event, HEADER_SIZE + 2, 50);
+		if(supportsChecksum(version)) {
+			int alg = event[event.length - 5] & 0xFF;
+			checksum = (alg == 1);
+			return event.length - 5;
+		}
+		checksum = false;
+		return event.length;
+	}
+
+	/**
+	 * The checksum algorithm is included in the format description event since MySQL 5.6.1 (and MariaDB 5.3)
+	 */
+	static boolean supportsChecksum(String version) {
+		String[] parts = version.split("[.-]");
+		try {
+			int major = Integer.parseInt(parts[0]);
+			int minor = (parts.length > 1) ? Integer.parseInt(parts[1]) : 0;
+			int patch = (parts.length > 2) ? Integer.parseInt(parts[2]) : 0;
+			if(major != 5) {
+				return major > 5;
+			}
+			return minor > 6 || (minor == 6 && patch >= 1) || version.toLowerCase().contains("mariadb") && minor >= 3;
+		} catch(NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private void processEvent(int type, byte[] event, int end) throws IOException {
+		switch(type) {
+			case QUERY_EVENT:
+				processQuery(event, end);
+				break;
+			case XID_EVENT:
+				listener.onCommit(currentThreadId);
+				currentThreadId = -1;
+				break;
+			case MARIADB_GTID_EVENT:
+				currentThreadId = -1;
+				break;
+			case TABLE_MAP_EVENT:
+				processTableMap(event, end);
+				break;
+			case WRITE_ROWS_EVENT_V1:
+			case WRITE_ROWS_EVENT:
+				processRows(event, end, OperationType.INSERT, type == WRITE_ROWS_EVENT);
+				break;
+			case UPDATE_ROWS_EVENT_V1:
+			case UPDATE_ROWS_EVENT:
+				processRows(event, end, OperationType.UPDATE, type == UPDATE_ROWS_EVENT);
+				break;
+			case DELETE_ROWS_EVENT_V1:
+			case DELETE_ROWS_EVENT:
+				processRows(event, end, OperationType.DELETE, type == DELETE_ROWS_EVENT);
+				break;
+			case ROTATE_EVENT:
+				// position (8 bytes) followed by the name of the next file
+				nextFile = new String(event, HEADER_SIZE + 8, end - HEADER_SIZE - 8, StandardCharsets.UTF_8);
+				break;
+			case STOP_EVENT:
+				stopped = true;
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void processQuery(byte[] event, int end) {
+		int pos = HEADER_SIZE;
+		long threadId = readLong(event, pos, 4);
+		int dbLength = event[pos + 8] & 0xFF;
+		int statusLength = (int) readLong(event, pos + 11, 2);
+		pos += 13 + statusLength + dbLength + 1;
+		String query = new String(event, pos, end - pos, StandardCharsets.UTF_8).trim();
+		if(query.equalsIgnoreCase("BEGIN")) {
+			currentThreadId = threadId;
+		}
+		else if(query.equalsIgnoreCase("COMMIT") || query.equalsIgnoreCase("ROLLBACK")) {
+			// ROLLBACK is only logged when non transactional tables were modified, and those changes persist
+			listener.onCommit((currentThreadId == -1) ? threadId : currentThreadId);
+			currentThreadId = -1;
+		}
+		else {
+			// DDL and other statements are logged outside of a transaction
+			currentThreadId = -1;
+		}
+	}
+
+	private void processTableMap(byte[] event, int end) throws IOException {
+		int[] pos = {HEADER_SIZE};
+		long tableId = readLong(event, pos[0], 6);
+		pos[0] += 8;
+		int dbLength = event[pos[0]++] & 0xFF;
+		String database = new String(event, pos[0], dbLength, StandardCharsets.UTF_8);
+		pos[0] += dbLength + 1;
+		int tableLength = event[pos[0]++] & 0xFF;
+		String table = new String(event, pos[0], tableLength, StandardCharsets.UTF_8);
+		pos[0] += tableLength + 1;
+		int columns = (int) readPackedInt(event, pos);
+		int[] types = new int[columns];
+		for(int i = 0; i < columns; i++) {
+			types[i] = event[pos[0]++] & 0xFF;
+		}
+		int metadataEnd = (int) readPackedInt(event, pos);
+		metadataEnd += pos[0];
+		int[] metadata = new int[columns];
+		for(int i = 0; i < columns; i++) {
+			switch(types[i]) {
+				case TYPE_FLOAT:
+				case TYPE_DOUBLE:
+				case TYPE_BLOB:
+				case TYPE_TINY_BLOB:
+				case TYPE_MEDIUM_BLOB:
+				case TYPE_LONG_BLOB:
+				case TYPE_GEOMETRY:
+				case TYPE_TIMESTAMP2:
+				case TYPE_DATETIME2:
+				case TYPE_TIME2:
+				case 245: // JSON
+					metadata[i] = event[pos[0]++] & 0xFF;
+					break;
+				case TYPE_VARCHAR:
+				case TYPE_VAR_STRING:
+				case TYPE_BIT:
+					metadata[i] = (int) readLong(event, pos[0], 2);
+					pos[0] += 2;
+					break;
+				case TYPE_NEWDECIMAL:
+				case TYPE_STRING:
+				case TYPE_ENUM:
+				case TYPE_SET:
+					// these two are stored in big endian order
+					metadata[i] = ((event[pos[0]] & 0xFF) << 8) | (event[pos[0] + 1] & 0xFF);
+					pos[0] += 2;
+					break;
+				default:
+					metadata[i] = 0;
+			}
+		}
+		// null bitmap, followed by the optional metadata
+		pos[0] = metadataEnd + (columns + 7) / 8;
+		BitSet unsigned = null;
+		while(pos[0] < end) {
+			int field = event[pos[0]++] & 0xFF;
+			int length = (int) readPackedInt(event, pos);
+			if(field == METADATA_SIGNEDNESS) {
+				unsigned = readSignedness(event, pos[0], types);
+			}
+			pos[0] += length;
+		}
+		tableMaps.put(tableId, new TableMap(database, table, types, metadata, unsigned));
+	}
+
+	/**
+	 * Reads the signedness of the numeric columns, one bit per numeric column starting with the most significant one
+	 * @return the columns that are unsigned
+	 */
+	private static BitSet readSignedness(byte[] event, int offset, int[] types) {
+		BitSet unsigned = new BitSet(types.length);
+		int numeric = 0;
+		for(int i = 0; i < types.length; i++) {
+			switch(types[i]) {
+				case TYPE_TINY:
+				case TYPE_SHORT:
+				case TYPE_INT24:
+				case TYPE_LONG:
+				case TYPE_LONGLONG:
+				case TYPE_FLOAT:
+				case TYPE_DOUBLE:
+				case TYPE_NEWDECIMAL:
+					if((event[offset + (numeric >> 3)] & (0x80 >> (numeric & 7))) != 0) {
+						unsigned.set(i);
+					}
+					numeric++;
+					break;
+				default:
+					break;
+			}
+		}
+		return unsigned;
+	}
+
+	private void processRows(byte[] event, int end, OperationType type, boolean v2) throws IOException {
+		int[] pos = {HEADER_SIZE};
+		long tableId = readLong(event, pos[0], 6);
+		pos[0] += 8;
+		if(v2) {
+			int extra = (int) readLong(event, pos[0], 2);
+			pos[0] += extra;
+		}
+		TableMap map = tableMaps.get(tableId);
+		if(map == null) {
+			throw new IOException("Row event for unknown table id "+tableId+" at position "+position+" of "+file);
+		}
+		int columns = (int) readPackedInt(event, pos);
+		BitSet present = readBitSet(event, pos, columns);
+		BitSet presentAfter = (type == OperationType.UPDATE) ? readBitSet(event, pos, columns) : null;
+		List<Object[]> before = new ArrayList<>();
+		List<Object[]> after = new ArrayList<>();
+		while(pos[0] < end) {
+			if(type == OperationType.INSERT) {
+				after.add(readRow(event, pos, map, present));
+			}
+			else if(type == OperationType.DELETE) {
+				before.add(readRow(event, pos, map, present));
+			}
+			else {
+				before.add(readRow(event, pos, map, present));
+				after.add(readRow(event, pos, map, presentAfter));
+			}
+		}
+		listener.onRows(currentThreadId, map.database, map.table, type, before, after);
+	}
+
+	private Object[] readRow(byte[] event, int[] pos, TableMap map, BitSet present) throws IOException {
+		Object[] row = new Object[map.types.length];
+		BitSet nulls = readBitSet(event, pos, present.cardinality());
+		int index = 0;
+		for(int i = 0; i < map.types.length; i++) {
+			if(!present.get(i)) {
+				continue;
+			}
+			if(!nulls.get(index++)) {
+				row[i] = readValue(event, pos, map.types[i], map.metadata[i], map.unsigned != null && map.unsigned.get(i));
+			}
+		}
+		return row;
+	}
+
+	private Object readValue(byte[] event, int[] pos, int type, int meta, boolean unsigned) throws IOException {
+		int p = pos[0];
+		switch(type) {
+			case TYPE_TINY:
+				pos[0] += 1;
+				return unsigned ? event[p] & 0xFF : (int) event[p];
+			case TYPE_SHORT:
+				pos[0] += 2;
+				return unsigned ? (int) readLong(event, p, 2) : (int) (short) readLong(event, p, 2);
+			case TYPE_INT24:
+				pos[0] += 3;
+				int v24 = (int) readLong(event, p, 3);
+				return unsigned ? v24 : (v24 << 8) >> 8;
+			case TYPE_LONG:
+				pos[0] += 4;
+				return unsigned ? (Object) readLong(event, p, 4) : (Object) (int) readLong(event, p, 4);
+			case TYPE_LONGLONG:
+				pos[0] += 8;
+				long v64 = readLong(event, p, 8);
+				return (unsigned && v64 < 0) ? (Object) new BigInteger(Long.toUnsignedString(v64)) : (Object) v64;
+			case TYPE_FLOAT:
+				pos[0] += 4;
+				return Float.intBitsToFloat((int) readLong(event, p, 4));
+			case TYPE_DOUBLE:
+				pos[0] += 8;
+				return Double.longBitsToDouble(readLong(event, p, 8));
+			case TYPE_YEAR:
+				pos[0] += 1;
+				return 1900 + (event[p] & 0xFF);
+			case TYPE_DATE:
+				pos[0] += 3;
+				int date = (int) readLong(event, p, 3);
+				return String.format("%04d-%02d-%02d", date >> 9, (date >> 5) & 15, date & 31);
+			case TYPE_TIMESTAMP:
+				pos[0] += 4;
+				return new Timestamp(readLong(event, p, 4) * 1000L).toString();
+			case TYPE_TIMESTAMP2:
+				pos[0] += 4;
+				long seconds = readBigEndian(event, p, 4);
+				int fraction = readFraction(event, pos, meta);
+				Timestamp ts = new Timestamp(seconds * 1000L);
+				ts.setNanos(fraction * 1000);
+				return ts.toString();
+			case TYPE_DATETIME:
+				pos[0] += 8;
+				long dt = readLong(event, p, 8);
+				long d = dt / 1000000L;
+				long t = dt % 1000000L;
+				return String.format("%04d-%02d-%02d %02d:%02d:%02d", d / 10000, (d / 100) % 100, d % 100,
+						t / 10000, (t / 100) % 100, t % 100);
+			case TYPE_DATETIME2:
+				pos[0] += 5;
+				long packed = readBigEndian(event, p, 5) - 0x8000000000L;
+				int frac = readFraction(event, pos, meta);
+				long ymd = packed >> 17;
+				long ym = ymd >> 5;
+				long hms = packed & 0x1FFFF;
+				String datetime = String.format("%04d-%02d-%02d %02d:%02d:%02d", ym / 13, ym % 13, ymd & 31,
+						hms >> 12, (hms >> 6) & 63, hms & 63);
+				return (meta > 0) ? datetime + String.format(".%06d", frac) : datetime;
+			case TYPE_TIME:
+				pos[0] += 3;
+				int time = (int) readLong(event, p, 3);
+				return String.format("%02d:%02d:%02d", time / 10000, (time / 100) % 100, time % 100);
+			case TYPE_TIME2:
+				pos[0] += 3;
+				long time2 = readBigEndian(event, p, 3) - 0x800000L;
+				readFraction(event, pos, meta);
+				String sign = (time2 < 0) ? "-" : "";
+				time2 = Math.abs(time2);
+				return String.format("%s%02d:%02d:%02d", sign, (time2 >> 12) & 0x3FF, (time2 >> 6) & 63, time2 & 63);
+			case TYPE_NEWDECIMAL:
+				return readDecimal(event, pos, meta >> 8, meta & 0xFF);
+			case TYPE_BIT:
+				int bits = ((meta >> 8) & 0xFF) * 8 + (meta & 0xFF);
+				int bitBytes = (bits + 7) / 8;
+				pos[0] += bitBytes;
+				return readBigEndian(event, p, bitBytes);
+			case TYPE_VARCHAR:
+			case TYPE_VAR_STRING:
+				return readBytes(event, pos, (meta < 256) ? 1 : 2);
+			case TYPE_STRING:
+			case TYPE_ENUM:
+			case TYPE_SET:
+				int realType = meta >> 8;
+				int maxLength = meta & 0xFF;
+				if((realType & 0x30) != 0x30) {
+					maxLength |= ((realType & 0x30) ^ 0x30) << 4;
+					realType |= 0x30;
+				}
+				if(realType == TYPE_ENUM) {
+					pos[0] += maxLength;
+					return (int) readLong(event, p, maxLength);
+				}
+				if(realType == TYPE_SET) {
+					pos[0] += maxLength;
+					return readLong(event, p, maxLength);
+				}
+				return readBytes(event, pos, (maxLength < 256) ? 1 : 2);
+			case TYPE_BLOB:
+			case TYPE_TINY_BLOB:
+			case TYPE_MEDIUM_BLOB:
+			case TYPE_LONG_BLOB:
+				return readBytes(event, pos, meta);
+			case TYPE_NULL:
+				return null;
+			default:
+				throw new IOException("Unsupported column type "+type+" at position "+position+" of "+file);
+		}
+	}
+
+	/**
+	 * Reads a value prefixed by its length, the bytes are in the character set of the column (if any)
+	 */
+	private static byte[] readBytes(byte[] event, int[] pos, int lengthBytes) {
+		int length = (int) readLong(event, pos[0], lengthBytes);
+		pos[0] += lengthBytes;
+		byte[] value = new byte[length];
+		System.arraycopy(event, pos[0], value, 0, length);
+		pos[0] += length;
+		return value;
+	}
+
+	/**
+	 * Reads the fractional seconds of the temporal types, in microseconds
+	 */
+	private static int readFraction(byte[] event, int[] pos, int fsp) {
+		int length = (fsp + 1) / 2;
+		if(length == 0) {
+			return 0;
+		}
+		int value = (int) readBigEndian(event, pos[0], length);
+		pos[0] += length;
+		for(int i = length * 2; i < 6; i++) {
+			value *= 10;
+		}
+		return value;
+	}
+
+	private static BigDecimal readDecimal(byte[] event, int[] pos, int precision, int scale) {
+		int intg = precision - scale;
+		int intg0 = intg / 9;
+		int intg0x = intg % 9;
+		int frac0 = scale / 9;
+		int frac0x = scale % 9;
+		int size = intg0 * 4 + DIG2BYTES[intg0x] + frac0 * 4 + DIG2BYTES[frac0x];
+		byte[] buf = new byte[size];
+		System.arraycopy(event, pos[0], buf, 0, size);
+		pos[0] += size;
+		boolean positive = (buf[0] & 0x80) != 0;
+		buf[0] ^= 0x80;
+		if(!positive) {
+			for(int i = 0; i < size; i++) {
+				buf[i] ^= 0xFF;
+			}
+		}
+		StringBuilder sb = new StringBuilder(positive ? "" : "-");
+		int p = 0;
+		if(intg0x > 0) {
+			sb.append(readBigEndian(buf, p, DIG2BYTES[intg0x]));
+			p += DIG2BYTES[intg0x];
+		}
+		for(int i = 0; i < intg0; i++) {
+			sb.append(String.format("%09d", readBigEndian(buf, p, 4)));
+			p += 4;
+		}
+		sb.append('.');
+		for(int i = 0; i < frac0; i++) {
+			sb.append(String.format("%09d", readBigEndian(buf, p, 4)));
+			p += 4;
+		}
+		if(frac0x > 0) {
+			sb.append(String.format("%0"+frac0x+"d", readBigEndian(buf, p, DIG2BYTES[frac0x])));
+		}
+		String value = sb.toString();
+		if(value.endsWith(".")) {
+			value = value.substring(0, value.length() - 1);
+		}
+		if(value.isEmpty() || value.equals("-")) {
+			value = "0";
+		}
+		return new BigDecimal(value);
+	}
+
+	private static BitSet readBitSet(byte[] event, int[] pos, int bits) {
+		int length = (bits + 7) / 8;
+		BitSet set = new BitSet(bits);
+		for(int i = 0; i < bits; i++) {
+			if((event[pos[0] + (i >> 3)] & (1 << (i & 7))) != 0) {
+				set.set(i);
+			}
+		}
+		pos[0] += length;
+		return set;
+	}
+
+	/**
+	 * Reads a length encoded integer
+	 */
+	private static long readPackedInt(byte[] event, int[] pos) {
+		int first = event[pos[0]++] & 0xFF;
+		if(first < 251) {
+			return first;
+		}
+		int length = (first == 252) ? 2 : (first == 253) ? 3 : 8;
+		long value = readLong(event, pos[0], length);
+		pos[0] += length;
+		return value;
+	}
+
+	/**
+	 * Reads a little endian integer
+	 */
+	static long readLong(byte[] data, int offset, int length) {
+		long value = 0;
+		for(int i = length - 1; i >= 0; i--) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static long readBigEndian(byte[] data, int offset, int length) {
+		long value = 0;
+		for(int i = 0; i < length; i++) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static String readNullTerminated(byte[] data, int offset, int maxLength) {
+		int end = offset;
+		while(end < offset + maxLength && data[end] != 0) {
+			end++;
+		}
+		return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		logger.debug(EELFLoggerDelegate.applicationLogger, "Closing binlog file "+file+" at position "+position);
+		raf.close();
+	}
+}
@@ -1,5 +1,9 @@
 package com.att.research.mdbc.mixins;
 
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -7,19 +11,26 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.WeakHashMap;
 
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import com.att.research.exceptions.MDBCServiceException;
 import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.Configuration;
 import com.att.research.mdbc.MusicSqlManager;
 import com.att.research.mdbc.Range;
+import com.att.research.mdbc.SchemaCatalog;
+import com.att.research.mdbc.StatementCache;
+import com.att.research.mdbc.StatementInfo;
 import com.att.research.mdbc.TableInfo;
 import com.att.research.mdbc.tables.OperationType;
 import com.att.research.mdbc.tables.StagingTable;
@@ -40,6 +51,23 @@ import net.sf.jsqlparser.statement.update.Update;
  * <tr><td>MySQL</td><td>5.7.8</td></tr>
  * <tr><td>MariaDB</td><td>10.2.3 (Note: 10.2.3 is currently (July 2017) a <i>beta</i> release)</td></tr>
  * </table>
+ * <p>
+ * The changes are captured by default with triggers that write into the {@value #TRANS_TBL} table. When the
+ * property {@value #KEY_CAPTURE_MODE} is set to {@value #CAPTURE_MODE_BINLOG}, the changes are instead read from
+ * the row based binlog of the server (see {@link MySQLBinlogCapture}), which requires <code>binlog_format=ROW</code>
+ * and read access to the binlog files. In that mode the changes of a transaction are collected when it commits.
+ * MariaDB servers always use the triggers, their binlog does not tell which connection ran each transaction.
+ * </p>
+ * <p>
+ * With triggers, the property {@value #KEY_TRANSLOG_DRAIN} set to {@value #TRANSLOG_DRAIN_COMMIT} defers copying the
+ * {@value #TRANS_TBL} rows into the transaction digest until the transaction commits, or until
+ * {@value #KEY_TRANSLOG_DRAIN_THRESHOLD} DML statements were executed, instead of doing it after every statement.
+ * </p>
+ * <p>
+ * The transaction digests that come from MUSIC are applied with {@link #applyTxDigest(Map)}, using multi-row
+ * <code>INSERT ... ON DUPLICATE KEY UPDATE</code> and <code>DELETE ... IN</code> statements in a single local
+ * transaction, while the capture triggers of the connection are disabled.
+ * </p>
  *
  * @author Robert P. Eby
  */
@@ -51,12 +79,82 @@ public class MySQLMixin implements DBInterface {
 	private static final String CREATE_TBL_SQL =
 		"CREATE TABLE IF NOT EXISTS "+TRANS_TBL+
 		" (IX INT AUTO_INCREMENT, OP CHAR(1), TABLENAME VARCHAR(255), NEWROWDATA VARCHAR(1024), KEYDATA VARCHAR(1024), CONNECTION_ID INT,PRIMARY KEY (IX))";
+	public static final String KEY_CAPTURE_MODE = "capture_mode";
+	public static final String CAPTURE_MODE_TRIGGERS = "triggers";
+	public static final String CAPTURE_MODE_BINLOG = "binlog";
+	/** Directory with the binlog files, by default the directory of <code>@@log_bin_basename</code> */
+	public static final String KEY_BINLOG_DIR = "binlog_dir";
+	/** Maximum time in milliseconds that a commit waits for the binlog capture */
+	public static final String KEY_BINLOG_TIMEOUT = "binlog_timeout";
+	public static final String BINLOG_TIMEOUT_DEFAULT = "5000";
+	/** Time in milliseconds between reads when the end of the binlog was reached */
+	public static final String KEY_BINLOG_POLL_INTERVAL = "binlog_poll_interval";
+	public static final String BINLOG_POLL_INTERVAL_DEFAULT = "5";
+	/** When the rows written by the triggers are copied into the transaction digest */
+	public static final String KEY_TRANSLOG_DRAIN = "translog_drain";
+	public static final String TRANSLOG_DRAIN_STATEMENT = "statement";
+	public static final String TRANSLOG_DRAIN_COMMIT = "commit";
+	/** Number of DML statements after which the translog is drained, even if the transaction did not commit yet */
+	public static final String KEY_TRANSLOG_DRAIN_THRESHOLD = "translog_drain_threshold";
+	public static final String TRANSLOG_DRAIN_THRESHOLD_DEFAULT = "500";
+	/** Session variable that disables the capture triggers of the connection while it is not null */
+	private static final String CAPTURE_OFF_VAR = "@MDBC_CAPTURE_OFF";
+	// maximum number of rows written or deleted by a single statement of applyTxDigest, bounded by max_allowed_packet
+	private static final int APPLY_BATCH_ROWS = 500;
+	// field types of the binary string columns, used by JSON_OBJECT() in the triggers to encode them (base64:typeN:)
+	private static final Map<String,Integer> BINARY_TYPES = new HashMap<>();
+	static {
+		BINARY_TYPES.put("binary", 254);
+		BINARY_TYPES.put("varbinary", 15);
+		BINARY_TYPES.put("tinyblob", 249);
+		BINARY_TYPES.put("blob", 252);
+		BINARY_TYPES.put("mediumblob", 250);
+		BINARY_TYPES.put("longblob", 251);
+	}
+	// size in bits of the integer types, to convert the unsigned values that the binlog reader decoded as signed
+	private static final Map<String,Integer> INTEGER_BITS = new HashMap<>();
+	static {
+		INTEGER_BITS.put("tinyint", 8);
+		INTEGER_BITS.put("smallint", 16);
+		INTEGER_BITS.put("mediumint", 24);
+		INTEGER_BITS.put("int", 32);
+		INTEGER_BITS.put("bigint", 64);
+	}
+
+	/**
+	 * Types of the columns of a table that are required to convert the values read from the binlog
+	 */
+	private static class BinlogColumns {
+		/** field type of the binary string columns, 0 for the other columns */
+		final int[] binaryType;
+		/** size in bits of the unsigned integer columns, 0 for the other columns */
+		final int[] unsignedBits;
+
+		BinlogColumns(int columns) {
+			binaryType = new int[columns];
+			unsignedBits = new int[columns];
+		}
+	}
 
 	private final MusicSqlManager msm;
 	private final int connId;
 	private final String dbName;
 	private final Connection dbConnection;
-	private final Map<String, TableInfo> tables;
+	private final SchemaCatalog catalog;
+	private final SchemaCatalog.Loader catalogLoader;
+	private final boolean coalesceStaging;
+	private final MySQLBinlogCapture binlogCapture;
+	private final long binlogTimeout;
+	private final boolean drainOnCommit;
+	private final int drainThreshold;
+	private int pendingStatements;
+	// error of a drain of the translog done after a statement, the transaction can not be committed
+	private String drainFailure;
+	private boolean binlogWrites;
+	private String captureState;
+	private String[] localCommitPosition;
+	// by definition of the table, a new one is loaded when the table is altered
+	private final Map<TableInfo,BinlogColumns> binlogColumns = new WeakHashMap<>();
 	private boolean server_tbl_created = false;
 
 	public MySQLMixin() {
@@ -64,14 +162,104 @@ public class MySQLMixin implements DBInterface {
 		this.connId = 0;
 		this.dbName = null;
 		this.dbConnection = null;
-		this.tables = null;
+		this.catalog = null;
+		this.catalogLoader = null;
+		this.coalesceStaging = false;
+		this.binlogCapture = null;
+		this.binlogTimeout = 0;
+		this.drainOnCommit = false;
+		this.drainThreshold = 0;
 	}
 	public MySQLMixin(MusicSqlManager msm, String url, Connection conn, Properties info) {
 		this.msm = msm;
 		this.connId = generateConnID(conn);
 		this.dbName = getDBName(conn);
 		this.dbConnection = conn;
-		this.tables = new HashMap<String, TableInfo>();
+		this.catalog = SchemaCatalog.getCatalog(MIXIN_NAME+":"+url+":"+dbName,
+			Long.parseLong(info.getProperty(Configuration.KEY_SCHEMA_CHECK_INTERVAL, Configuration.SCHEMA_CHECK_INTERVAL_DEFAULT)));
+		this.catalogLoader = new SchemaCatalog.Loader() {
+			@Override
+			public Set<String> loadTableSet() {
+				return loadSQLTableSet();
+			}
+			@Override
+			public TableInfo loadTableInfo(String tableName) {
+				return MySQLMixin.this.loadTableInfo(tableName);
+			}
+			@Override
+			public String loadChecksum() {
+				return loadSchemaChecksum();
+			}
+		};
+		this.coalesceStaging = Boolean.parseBoolean(info.getProperty(Configuration.KEY_COALESCE_STAGING, Configuration.COALESCE_STAGING_DEFAULT));
+		this.binlogTimeout = Long.parseLong(info.getProperty(KEY_BINLOG_TIMEOUT, BINLOG_TIMEOUT_DEFAULT));
+		this.drainOnCommit = TRANSLOG_DRAIN_COMMIT.equalsIgnoreCase(info.getProperty(KEY_TRANSLOG_DRAIN, TRANSLOG_DRAIN_STATEMENT));
+		this.drainThreshold = Integer.parseInt(info.getProperty(KEY_TRANSLOG_DRAIN_THRESHOLD, TRANSLOG_DRAIN_THRESHOLD_DEFAULT));
+		this.pendingStatements = 0;
+		if (CAPTURE_MODE_BINLOG.equalsIgnoreCase(info.getProperty(KEY_CAPTURE_MODE, CAPTURE_MODE_TRIGGERS))) {
+			this.binlogCapture = startBinlogCapture(info);
+		} else {
+			this.binlogCapture = null;
+		}
+	}
+	/**
+	 * Starts reading the binlog of the server from its current position
+	 * @return the capture, or null if the binlog can not be used and the triggers have to be used instead
+	 */
+	private MySQLBinlogCapture startBinlogCapture(Properties info) {
+		try {
+			Statement stmt = dbConnection.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT @@binlog_format AS FMT, @@log_bin_basename AS BASENAME, VERSION() AS VERSION");
+			String format = null;
+			String basename = null;
+			String version = "";
+			if (rs.next()) {
+				format = rs.getString("FMT");
+				basename = rs.getString("BASENAME");
+				version = rs.getString("VERSION");
+			}
+			rs.close();
+			if (version != null && version.toLowerCase().contains("mariadb")) {
+				// the transactions of MariaDB start with a GTID event, without the thread id of the connection
+				stmt.close();
+				logger.error(EELFLoggerDelegate.errorLogger, "Binlog capture is not supported on "+version+", using triggers instead");
+				return null;
+			}
+			String[] position = getBinlogPosition(stmt);
+			stmt.close();
+			if (position == null || !"ROW".equalsIgnoreCase(format)) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Binlog capture requires log_bin and binlog_format=ROW, using triggers instead");
+				return null;
+			}
+			String dir = info.getProperty(KEY_BINLOG_DIR);
+			if (dir == null && basename != null) {
+				dir = new File(basename).getParent();
+			}
+			if (dir == null) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Binlog directory is unknown, set "+KEY_BINLOG_DIR+", using triggers instead");
+				return null;
+			}
+			long pollInterval = Long.parseLong(info.getProperty(KEY_BINLOG_POLL_INTERVAL, BINLOG_POLL_INTERVAL_DEFAULT));
+			MySQLBinlogCapture capture = MySQLBinlogCapture.acquire(dir, position[0], Long.parseLong(position[1]), pollInterval);
+			capture.register(connId);
+			logger.info(EELFLoggerDelegate.applicationLogger, "Binlog capture for connection "+connId+" started at "+position[0]+":"+position[1]);
+			return capture;
+		} catch (SQLException | IOException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Cannot start binlog capture, using triggers instead: "+e);
+			return null;
+		}
+	}
+	/**
+	 * @return the current binlog file and position, or null if the binlog is not enabled
+	 */
+	private String[] getBinlogPosition(Statement stmt) throws SQLException {
+		ResultSet rs = stmt.executeQuery("SHOW MASTER STATUS");
+		String[] position = null;
+		if (rs.next()) {
+			position = new String[] { rs.getString("File"), rs.getString("Position") };
+		}
+		rs.close();
+		return position;
 	}
 	// This is used to generate a unique connId for this connection to the DB.
 	private int generateConnID(Connection conn) {
@@ -100,7 +288,10 @@ public class MySQLMixin implements DBInterface {
 
 	@Override
 	public void close() {
-		// nothing yet
+		if (binlogCapture != null) {
+			binlogCapture.unregister(connId);
+			binlogCapture.release();
+		}
 	}
 
 	/**
@@ -129,10 +320,14 @@ public class MySQLMixin implements DBInterface {
 	}
 	/**
 	 * Get a set of the table names in the database.
+	 * The set is cached in the {@link SchemaCatalog} shared by all the connections to the database.
 	 * @return the set
 	 */
 	@Override
 	public Set<String> getSQLTableSet() {
+		return catalog.getTableSet(catalogLoader);
+	}
+	private Set<String> loadSQLTableSet() {
 		Set<String> set = new TreeSet<String>();
 		String sql = "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA=DATABASE() AND TABLE_TYPE='BASE TABLE'";
 		try {
@@ -179,7 +374,7 @@ mysql> describe tables;
  */
 	/**
 	 * Return a TableInfo object for the specified table.
-	 * This method first looks in a cache of previously constructed TableInfo objects for the table.
+	 * This method first looks in the {@link SchemaCatalog} of previously constructed TableInfo objects for the table.
 	 * If not found, it queries the INFORMATION_SCHEMA.COLUMNS table to obtain the column names, types, and indexes of the table.
 	 * It creates a new TableInfo object with the results.
 	 * @param tableName the table to look up
@@ -187,34 +382,56 @@ mysql> describe tables;
 	 */
 	@Override
 	public TableInfo getTableInfo(String tableName) {
-		TableInfo ti = tables.get(tableName);
-		if (ti == null) {
-			try {
-				String tbl = tableName;//.toUpperCase();
-				String sql = "SELECT COLUMN_NAME, DATA_TYPE, COLUMN_KEY FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME='"+tbl+"'";
-				ResultSet rs = executeSQLRead(sql);
-				if (rs != null) {
-					ti = new TableInfo();
-					while (rs.next()) {
-						String name = rs.getString("COLUMN_NAME");
-						String type = rs.getString("DATA_TYPE");
-						String ckey = rs.getString("COLUMN_KEY");
-						ti.columns.add(name);
-						ti.coltype.add(mapDatatypeNameToType(type));
-						ti.iskey.add(ckey != null && !ckey.equals(""));
-					}
-					rs.getStatement().close();
-				} else {
-					logger.error(EELFLoggerDelegate.errorLogger,"Cannot retrieve table info for table "+tableName+" from MySQL.");
+		return catalog.getTableInfo(tableName, catalogLoader);
+	}
+	private TableInfo loadTableInfo(String tableName) {
+		TableInfo ti = null;
+		try {
+			String tbl = tableName;//.toUpperCase();
+			String sql = "SELECT COLUMN_NAME, DATA_TYPE, COLUMN_KEY FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME='"+tbl+"' ORDER BY ORDINAL_POSITION";
+			ResultSet rs = executeSQLRead(sql);
+			if (rs != null) {
+				ti = new TableInfo();
+				while (rs.next()) {
+					String name = rs.getString("COLUMN_NAME");
+					String type = rs.getString("DATA_TYPE");
+					String ckey = rs.getString("COLUMN_KEY");
+					ti.columns.add(name);
+					ti.coltype.add(mapDatatypeNameToType(type));
+					ti.iskey.add(ckey != null && !ckey.equals(""));
 				}
-			} catch (SQLException e) {
-				logger.error(EELFLoggerDelegate.errorLogger,"Cannot retrieve table info for table "+tableName+" from MySQL: "+e);
-				return null;
+				rs.getStatement().close();
+			} else {
+				logger.error(EELFLoggerDelegate.errorLogger,"Cannot retrieve table info for table "+tableName+" from MySQL.");
 			}
-			tables.put(tableName, ti);
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"Cannot retrieve table info for table "+tableName+" from MySQL: "+e);
+			return null;
 		}
 		return ti;
 	}
+
+	/**
+	 * Computes a checksum of the columns of all the tables in the database, to detect schema changes done outside of MDBC
+	 * @return the checksum, or null if it can not be computed
+	 */
+	private String loadSchemaChecksum() {
+		String sql = "SELECT COUNT(*) AS N, COALESCE(SUM(CRC32(CONCAT_WS(',', TABLE_NAME, COLUMN_NAME, ORDINAL_POSITION, DATA_TYPE, COLUMN_KEY))), 0) AS S "
+			+ "FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA=DATABASE()";
+		try {
+			Statement stmt = dbConnection.createStatement();
+			ResultSet rs = stmt.executeQuery(sql);
+			String checksum = null;
+			if (rs.next()) {
+				checksum = rs.getLong("N") + ":" + rs.getLong("S");
+			}
+			stmt.close();
+			return checksum;
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger,"loadSchemaChecksum: "+e);
+			return null;
+		}
+	}
 	// Map MySQL data type names to the java.sql.Types equivalent
 	private int mapDatatypeNameToType(String nm) {
 		switch (nm) {
@@ -246,6 +463,9 @@ mysql> describe tables;
 		// Don't create triggers for the table the triggers write into!!!
 		if (tableName.equals(TRANS_TBL))
 			return;
+		// The changes are read from the binlog
+		if (binlogCapture != null)
+			return;
 		try {
 			if (!server_tbl_created) {
 				try {
@@ -319,7 +539,9 @@ NEW.field refers to the new value
 		  .append(op)
 		  .append(" ON ")
 		  .append(tableName)
-		  .append(" FOR EACH ROW INSERT INTO ")
+		  .append(" FOR EACH ROW BEGIN IF ")
+		  .append(CAPTURE_OFF_VAR)
+		  .append(" IS NULL THEN INSERT INTO ")
 		  .append(TRANS_TBL)
 		  .append(" (TABLENAME, OP, NEWROWDATA, KEYDATA, CONNECTION_ID) VALUES('")
 		  .append(tableName)
@@ -331,7 +553,7 @@ NEW.field refers to the new value
 		  .append(keyJson.toString())
 		  .append(", ")
 		  .append("CONNECTION_ID()")
-		  .append(")");
+		  .append("); END IF; END");
 		return sb.toString();
 	}
 	private String[] getTriggerNames(String tableName) {
@@ -443,6 +665,206 @@ NEW.field refers to the new value
 		}
 	}
 
+	/**
+	 * Applies the digest in a single local transaction, with one multi-row <code>INSERT ... ON DUPLICATE KEY UPDATE</code>
+	 * and one <code>DELETE ... IN</code> per table and batch of {@value #APPLY_BATCH_ROWS} rows. Instead of checking
+	 * if each row exists first, the server decides between the insert and the update.
+	 * <p>
+	 * The triggers are disabled with the session variable {@value #CAPTURE_OFF_VAR}, and the rows written into
+	 * {@value #TRANS_TBL} by triggers created before that check existed are deleted before the commit. In binlog
+	 * capture mode, the changes of this connection read from the binlog are discarded after the commit.
+	 * </p>
+	 */
+	@Override
+	public void applyTxDigest(Map<Range,StagingTable> digest) throws MDBCServiceException {
+		List<TableChanges> changes = TableChanges.decode(digest, this);
+		if (changes.isEmpty()) {
+			return;
+		}
+		boolean autoCommit = true;
+		try {
+			autoCommit = dbConnection.getAutoCommit();
+			dbConnection.setAutoCommit(false);
+			int translogMark = -1;
+			if (binlogCapture == null) {
+				executeSQLWrite("SET "+CAPTURE_OFF_VAR+" = 1");
+				translogMark = getTranslogMark();
+			}
+			for (TableChanges tc : changes) {
+				applyDeletes(tc);
+				applyUpserts(tc);
+			}
+			if (translogMark >= 0) {
+				PreparedStatement ps = dbConnection.prepareStatement("DELETE FROM "+TRANS_TBL+" WHERE CONNECTION_ID = ? AND IX > ?");
+				ps.setInt(1, connId);
+				ps.setInt(2, translogMark);
+				ps.execute();
+				ps.close();
+			}
+			dbConnection.commit();
+		} catch (SQLException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "applyTxDigest: "+e);
+			try {
+				dbConnection.rollback();
+			} catch (SQLException e1) {
+				logger.error(EELFLoggerDelegate.errorLogger, "applyTxDigest: rollback failed "+e1);
+			}
+			throw new MDBCServiceException("Cannot apply transaction digest: "+e.getMessage());
+		} finally {
+			try {
+				if (binlogCapture == null) {
+					executeSQLWrite("SET "+CAPTURE_OFF_VAR+" = NULL");
+				}
+				dbConnection.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "applyTxDigest: "+e);
+			}
+		}
+		if (binlogCapture != null) {
+			discardBinlogChanges();
+		}
+	}
+
+	/**
+	 * @return the last row written into the translog by this connection, 0 if there is none, or -1 if the translog
+	 * table does not exist
+	 */
+	private int getTranslogMark() {
+		try {
+			PreparedStatement ps = dbConnection.prepareStatement("SELECT COALESCE(MAX(IX), 0) FROM "+TRANS_TBL+" WHERE CONNECTION_ID = ?");
+			ps.setInt(1, connId);
+			ResultSet rs = ps.executeQuery();
+			int mark = rs.next() ? rs.getInt(1) : 0;
+			rs.close();
+			ps.close();
+			return mark;
+		} catch (SQLException e) {
+			// the triggers were never created
+			return -1;
+		}
+	}
+
+	/**
+	 * Waits until the binlog capture read the changes that were just committed, and discards them
+	 */
+	private void discardBinlogChanges() {
+		try {
+			Statement stmt = dbConnection.createStatement();
+			String[] position = getBinlogPosition(stmt);
+			stmt.close();
+			if (position == null || !binlogCapture.awaitPosition(position[0], Long.parseLong(position[1]), binlogTimeout)) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Binlog capture did not reach the applied digest, its changes could be captured again");
+				return;
+			}
+			binlogCapture.drain(connId);
+		} catch (SQLException | IOException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "discardBinlogChanges: "+e);
+		}
+	}
+
+	private void applyDeletes(TableChanges tc) throws SQLException {
+		if (tc.deletes.isEmpty()) {
+			return;
+		}
+		TableInfo ti = tc.info;
+		if (!ti.hasKey()) {
+			// rows without a key are identified by all their columns, and only one of the identical rows is deleted
+			StringBuilder where = new StringBuilder();
+			String pfx = "";
+			for (String col : ti.columns) {
+				where.append(pfx).append(col).append(" <=> ?");
+				pfx = " AND ";
+			}
+			String sql = String.format("DELETE FROM %s WHERE %s LIMIT 1", tc.table, where);
+			logger.debug(EELFLoggerDelegate.applicationLogger, "Executing SQL write batch of "+tc.deletes.size()+":"+ sql);
+			PreparedStatement ps = dbConnection.prepareStatement(sql);
+			for (Map<String,Object> row : tc.deletes) {
+				for (int i = 0; i < ti.columns.size(); i++) {
+					ps.setObject(i + 1, row.get(ti.columns.get(i)));
+				}
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			ps.close();
+			return;
+		}
+		List<String> keys = ti.getKeyColumns();
+		StringBuilder tuple = new StringBuilder("(");
+		String pfx = "";
+		for (int i = 0; i < keys.size(); i++) {
+			tuple.append(pfx).append("?");
+			pfx = ", ";
+		}
+		tuple.append(")");
+		String prefix = String.format("DELETE FROM %s WHERE (%s) IN (", tc.table, String.join(", ", keys));
+		for (int start = 0; start < tc.deletes.size(); start += APPLY_BATCH_ROWS) {
+			List<Map<String,Object>> rows = tc.deletes.subList(start, Math.min(tc.deletes.size(), start + APPLY_BATCH_ROWS));
+			StringBuilder sql = new StringBuilder(prefix);
+			for (int i = 0; i < rows.size(); i++) {
+				sql.append((i == 0) ? "" : ", ").append(tuple);
+			}
+			sql.append(")");
+			logger.debug(EELFLoggerDelegate.applicationLogger, "Executing SQL write of "+rows.size()+" rows:"+ prefix);
+			PreparedStatement ps = dbConnection.prepareStatement(sql.toString());
+			int ix = 1;
+			for (Map<String,Object> row : rows) {
+				for (String key : keys) {
+					ps.setObject(ix++, row.get(key));
+				}
+			}
+			ps.execute();
+			ps.close();
+		}
+	}
+
+	private void applyUpserts(TableChanges tc) throws SQLException {
+		if (tc.upserts.isEmpty()) {
+			return;
+		}
+		TableInfo ti = tc.info;
+		StringBuilder fields = new StringBuilder();
+		StringBuilder tuple = new StringBuilder("(");
+		StringBuilder update = new StringBuilder();
+		String pfx = "";
+		String updpfx = "";
+		for (int i = 0; i < ti.columns.size(); i++) {
+			String col = ti.columns.get(i);
+			fields.append(pfx).append(col);
+			tuple.append(pfx).append("?");
+			pfx = ", ";
+			if (!ti.iskey.get(i)) {
+				update.append(updpfx).append(col).append("=VALUES(").append(col).append(")");
+				updpfx = ", ";
+			}
+		}
+		tuple.append(")");
+		if (update.length() == 0) {
+			// all the columns are part of the key, there is nothing to update
+			String key = ti.columns.get(0);
+			update.append(key).append("=").append(key);
+		}
+		String prefix = String.format("INSERT INTO %s (%s) VALUES ", tc.table, fields);
+		String suffix = ti.hasKey() ? " ON DUPLICATE KEY UPDATE "+update : "";
+		for (int start = 0; start < tc.upserts.size(); start += APPLY_BATCH_ROWS) {
+			List<Map<String,Object>> rows = tc.upserts.subList(start, Math.min(tc.upserts.size(), start + APPLY_BATCH_ROWS));
+			StringBuilder sql = new StringBuilder(prefix);
+			for (int i = 0; i < rows.size(); i++) {
+				sql.append((i == 0) ? "" : ", ").append(tuple);
+			}
+			sql.append(suffix);
+			logger.debug(EELFLoggerDelegate.applicationLogger, "Executing SQL write of "+rows.size()+" rows:"+ prefix);
+			PreparedStatement ps = dbConnection.prepareStatement(sql.toString());
+			int ix = 1;
+			for (Map<String,Object> row : rows) {
+				for (String col : ti.columns) {
+					ps.setObject(ix++, row.get(col));
+				}
+			}
+			ps.execute();
+			ps.close();
+		}
+	}
+
 	/**
 	 * This method executes a read query in the SQL database.  Methods that call this method should be sure
 	 * to call resultset.getStatement().close() when done in order to free up resources.
@@ -484,17 +906,14 @@ NEW.field refers to the new value
 	 */
 	@Override
 	public void preStatementHook(final String sql) {
-		if (sql == null) {
-			return;
-		}
-		String cmd = sql.trim().toLowerCase();
-		if (cmd.startsWith("select")) {
-			String[] parts = sql.trim().split(" ");
+		StatementInfo info = StatementCache.get(sql);
+		if (info.getOperation() == OperationType.SELECT) {
 			Set<String> set = getSQLTableSet();
-			for (String part : parts) {
-				if (set.contains(part.toUpperCase())) {
+			for (String table : info.getTables()) {
+				if (set.contains(table.toUpperCase())) {
 					// Found a candidate table name in the SELECT SQL -- update this table
-					//msm.readDirtyRowsAndUpdateDb(part);
+					// only the tables with dirty rows are read from MUSIC, see DirtyKeyCache
+					msm.readDirtyRowsAndUpdateDb(table);
 				}
 			}
 		}
@@ -502,23 +921,254 @@ NEW.field refers to the new value
 
 	/**
 	 * Code to be run within the DB driver after a SQL statement has been executed.  This is where remote
-	 * statement actions can be copied back to Cassandra/MUSIC.
+	 * statement actions can be copied back to Cassandra/MUSIC. If the translog can not be copied into the
+	 * digest, the failure is recorded and the commit of the transaction fails in {@link #preCommitHook(Map)}.
 	 * @param sql the SQL statement that was executed
 	 */
 	@Override
 	public void postStatementHook(final String sql,Map<Range,StagingTable> transactionDigest) {
-		if (sql != null) {
-			String[] parts = sql.trim().split(" ");
-			String cmd = parts[0].toLowerCase();
-			if ("delete".equals(cmd) || "insert".equals(cmd) || "update".equals(cmd)) {
+		StatementInfo info = StatementCache.get(sql);
+		if (info.isDDL()) {
+			catalog.invalidate();
+		}
+		if (binlogCapture == null) {
+			if (info.isWrite()) {
+				pendingStatements++;
+				if (drainOnCommit && pendingStatements < drainThreshold && !isAutoCommit()) {
+					return;
+				}
 				try {
 					this.updateStagingTable(transactionDigest);
-				} catch (NoSuchFieldException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+				} catch (NoSuchFieldException | SQLException e) {
+					logger.error(EELFLoggerDelegate.errorLogger, "Cannot copy "+TRANS_TBL+" into the transaction digest: "+e.getMessage());
+					if (drainFailure == null) {
+						drainFailure = e.getMessage();
+					}
+				}
+			}
+		}
+		else if (info.isWrite()) {
+			binlogWrites = true;
+		}
+	}
+
+	/**
+	 * In binlog capture mode, waits until the capture read the commit of the transaction and adds the changes
+	 * of this connection into the digest. With triggers, copies the rows that were not drained yet from the
+	 * translog when the drain is deferred until commit.
+	 * @param transactionDigest digest of the transaction that is being committed
+	 */
+	@Override
+	public void preCommitHook(Map<Range,StagingTable> transactionDigest) throws MDBCServiceException {
+		if (binlogCapture == null) {
+			if (drainFailure != null) {
+				throw new MDBCServiceException("Cannot copy "+TRANS_TBL+" into the transaction digest: "+drainFailure);
+			}
+			if (drainOnCommit && pendingStatements > 0) {
+				try {
+					updateStagingTable(transactionDigest);
+				} catch (NoSuchFieldException | SQLException e) {
+					throw new MDBCServiceException("Cannot copy "+TRANS_TBL+" into the transaction digest: "+e.getMessage());
+				}
+			}
+			return;
+		}
+		String[] position = localCommitPosition;
+		localCommitPosition = null;
+		binlogWrites = false;
+		try {
+			if (position == null) {
+				position = readBinlogPosition();
+			}
+			try {
+				if (!binlogCapture.awaitPosition(position[0], Long.parseLong(position[1]), binlogTimeout)) {
+					throw new MDBCServiceException("Timeout waiting for the binlog capture to reach "+position[0]+":"+position[1]);
+				}
+			} catch (IOException e) {
+				throw new MDBCServiceException("Binlog capture failed: "+e.getMessage());
+			}
+		} catch (MDBCServiceException e) {
+			// the changes of this commit are collected again from its capture state, not in the next commit
+			binlogCapture.discard(connId, (position == null) ? null : position[0], (position == null) ? 0 : Long.parseLong(position[1]));
+			throw e;
+		}
+		try {
+			for (MySQLBinlogCapture.RowChange change : binlogCapture.drain(connId)) {
+				addBinlogChange(transactionDigest, change);
+			}
+		} catch (NoSuchFieldException e) {
+			throw new MDBCServiceException(e.getMessage());
+		}
+	}
+
+	/**
+	 * In binlog capture mode, the state of the capture is the thread id of this connection and the binlog position
+	 * before the local commit; the position after it is added by {@link #postLocalCommitHook()}. The changes of the
+	 * transaction are the only ones of this thread between both positions. Without the end position, the first
+	 * transaction of the thread after the start is taken, which is only safe because the state is only used once the
+	 * connection is gone.
+	 */
+	@Override
+	public String preLocalCommitHook() throws MDBCServiceException {
+		captureState = null;
+		localCommitPosition = null;
+		if (binlogCapture == null || !binlogWrites) {
+			return null;
+		}
+		String[] position = readBinlogPosition();
+		captureState = connId+":"+position[0]+":"+position[1];
+		return captureState;
+	}
+
+	@Override
+	public String postLocalCommitHook() throws MDBCServiceException {
+		if (captureState == null) {
+			return null;
+		}
+		// it is also the position that the commit waits for in preCommitHook
+		localCommitPosition = readBinlogPosition();
+		return captureState+":"+localCommitPosition[0]+":"+localCommitPosition[1];
+	}
+
+	/**
+	 * Reads the changes of a transaction from the binlog files, see {@link #preLocalCommitHook()}
+	 */
+	@Override
+	public HashMap<Range,StagingTable> recaptureTxDigest(String state) throws MDBCServiceException {
+		if (binlogCapture == null) {
+			throw new MDBCServiceException("Binlog capture is not enabled, the changes of "+state+" can not be read");
+		}
+		String[] parts = state.split(":");
+		HashMap<Range,StagingTable> digest = new HashMap<>();
+		try {
+			List<MySQLBinlogCapture.RowChange> changes = MySQLBinlogCapture.read(binlogCapture.getDirectory(), Long.parseLong(parts[0]),
+					parts[1], Long.parseLong(parts[2]), (parts.length > 3) ? parts[3] : null, (parts.length > 3) ? Long.parseLong(parts[4]) : 0);
+			for (MySQLBinlogCapture.RowChange change : changes) {
+				addBinlogChange(digest, change);
+			}
+		} catch (IOException e) {
+			throw new MDBCServiceException("Cannot read the changes of "+state+" from the binlog: "+e.getMessage());
+		} catch (NoSuchFieldException e) {
+			throw new MDBCServiceException(e.getMessage());
+		}
+		return digest;
+	}
+
+	private String[] readBinlogPosition() throws MDBCServiceException {
+		String[] position;
+		try {
+			Statement stmt = dbConnection.createStatement();
+			position = getBinlogPosition(stmt);
+			stmt.close();
+		} catch (SQLException e) {
+			throw new MDBCServiceException("Cannot read the binlog position: "+e.getMessage());
+		}
+		if (position == null) {
+			throw new MDBCServiceException("Binlog is not enabled in the server");
+		}
+		return position;
+	}
+
+	/**
+	 * The translog rows of the transaction are rolled back with it, so there is nothing left to drain
+	 */
+	@Override
+	public void rollbackHook() {
+		pendingStatements = 0;
+		drainFailure = null;
+		binlogWrites = false;
+		captureState = null;
+		localCommitPosition = null;
+	}
+
+	@Override
+	public boolean capturesOnLocalCommit() {
+		return binlogCapture != null;
+	}
+
+	/**
+	 * Converts a row read from the binlog into the same json representation generated by the triggers
+	 */
+	private void addBinlogChange(Map<Range,StagingTable> transactionDigest, MySQLBinlogCapture.RowChange change) throws MDBCServiceException, NoSuchFieldException {
+		if (!change.database.equals(dbName) || getReservedTblNames().contains(change.table)) {
+			return;
+		}
+		Object[] newData = (change.type == OperationType.DELETE) ? change.before : change.after;
+		Object[] keyData = (change.type == OperationType.INSERT) ? change.after : change.before;
+		TableInfo ti = getTableInfo(change.table);
+		if (ti == null || ti.columns.size() != newData.length) {
+			// the table could have been altered after its definition was cached
+			catalog.invalidate();
+			ti = getTableInfo(change.table);
+		}
+		if (ti == null || ti.columns.size() != newData.length) {
+			throw new MDBCServiceException("Binlog row does not match the definition of table "+change.table);
+		}
+		BinlogColumns types = getBinlogColumns(change.table, ti);
+		JSONObject newRow = new JSONObject();
+		JSONObject keyJson = new JSONObject();
+		for (int i = 0; i < ti.columns.size(); i++) {
+			String col = ti.columns.get(i);
+			newRow.put(col, toJsonValue(newData[i], types, i));
+			if (ti.iskey.get(i) || !ti.hasKey()) {
+				keyJson.put(col, toJsonValue(keyData[i], types, i));
+			}
+		}
+		addToStagingTable(transactionDigest, change.table, change.type, keyJson.toString(), newRow);
+	}
+
+	private BinlogColumns getBinlogColumns(String tableName, TableInfo ti) throws MDBCServiceException {
+		BinlogColumns types = binlogColumns.get(ti);
+		if (types != null) {
+			return types;
+		}
+		types = new BinlogColumns(ti.columns.size());
+		String sql = "SELECT DATA_TYPE, COLUMN_TYPE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME='"+tableName+"' ORDER BY ORDINAL_POSITION";
+		try {
+			Statement stmt = dbConnection.createStatement();
+			ResultSet rs = stmt.executeQuery(sql);
+			for (int i = 0; i < ti.columns.size() && rs.next(); i++) {
+				String dataType = rs.getString("DATA_TYPE").toLowerCase();
+				Integer binaryType = BINARY_TYPES.get(dataType);
+				types.binaryType[i] = (binaryType == null) ? 0 : binaryType;
+				String columnType = rs.getString("COLUMN_TYPE");
+				if (columnType != null && columnType.toLowerCase().contains("unsigned") && INTEGER_BITS.containsKey(dataType)) {
+					types.unsignedBits[i] = INTEGER_BITS.get(dataType);
 				}
 			}
+			stmt.close();
+		} catch (SQLException e) {
+			throw new MDBCServiceException("Cannot read the column types of "+tableName+": "+e.getMessage());
+		}
+		binlogColumns.put(ti, types);
+		return types;
+	}
+
+	/**
+	 * Converts a value read from the binlog into its json value. Strings are read as bytes, only the text columns are
+	 * decoded and the binary ones are encoded as JSON_OBJECT() does in the triggers. Unsigned integers that were read
+	 * as negative numbers are converted back.
+	 */
+	private static Object toJsonValue(Object value, BinlogColumns types, int column) {
+		if (value == null) {
+			return JSONObject.NULL;
+		}
+		if (types.unsignedBits[column] != 0 && value instanceof Number && ((Number) value).longValue() < 0) {
+			// decoded as signed, the table map did not have the signedness of the columns
+			long signed = ((Number) value).longValue();
+			if (types.unsignedBits[column] == 64) {
+				return new BigInteger(Long.toUnsignedString(signed));
+			}
+			return signed + (1L << types.unsignedBits[column]);
 		}
+		if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			if (types.binaryType[column] != 0) {
+				return "base64:type"+types.binaryType[column]+":"+Base64.getEncoder().encodeToString(bytes);
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		return value;
 	}
 
 	private OperationType toOpEnum(String operation) throws NoSuchFieldException {
@@ -537,73 +1187,94 @@ NEW.field refers to the new value
 		}
 
 	}
+	/**
+	 * Adds a changed row into the staging table of its table
+	 * @param transactionDigests digest of the current transaction
+	 * @param tbl table that was modified
+	 * @param opType type of the change
+	 * @param keydataStr json with the key columns (all the columns if the table has no key) before the change
+	 * @param newRow json with the row after the change (before the change, for deletes)
+	 * @throws NoSuchFieldException if the key of the row is invalid
+	 */
+	private void addToStagingTable(Map<Range,StagingTable> transactionDigests, String tbl, OperationType opType, String keydataStr, JSONObject newRow) throws NoSuchFieldException {
+		String musicKey;
+		TableInfo ti = getTableInfo(tbl);
+		if (!ti.hasKey()) {
+			//create music key
+            //\TODO fix, this is completely broken
+			//if (op.startsWith("I")) {
+				//\TODO Improve the generation of primary key, it should be generated using 
+				// the actual columns, otherwise performance when doing range queries are going 
+				// to be even worse (see the else bracket down)
+                //
+				musicKey = msm.generateUniqueKey();
+			/*} else {
+				//get key from data
+				musicKey = msm.getMusicKeyFromRowWithoutPrimaryIndexes(tbl,newRow);
+			}*/
+			newRow.put(msm.getMusicDefaultPrimaryKeyName(), musicKey);
+		}
+		else {
+			//Use the keys 
+			musicKey = msm.getMusicKeyFromRow(tbl, newRow);
+			if(musicKey.isEmpty()) {
+				logger.error(EELFLoggerDelegate.errorLogger,"Primary key is invalid: ["+tbl+","+opType+"]");
+				throw new NoSuchFieldException("Invalid operation enum");
+			}
+		}
+		Range range = new Range(tbl);
+		if(!transactionDigests.containsKey(range)) {
+			transactionDigests.put(range, new StagingTable(coalesceStaging));
+		}
+		transactionDigests.get(range).addOperation(musicKey, opType, keydataStr, newRow.toString());
+	}
 	/**
 	 * Copy data that is in transaction table into music interface
 	 * @param transactionDigests
 	 * @throws NoSuchFieldException 
+	 * @throws SQLException if the translog can not be read or deleted
 	 */
-	private void updateStagingTable(Map<Range,StagingTable> transactionDigests) throws NoSuchFieldException {
-		// copy from DB.MDBC_TRANSLOG where connid == myconnid
-		// then delete from MDBC_TRANSLOG
-		String sql2 = "SELECT IX, TABLENAME, OP, KEYDATA, NEWROWDATA FROM "+TRANS_TBL +" WHERE CONNECTION_ID = " + this.connId;
+	private void updateStagingTable(Map<Range,StagingTable> transactionDigests) throws NoSuchFieldException, SQLException {
+		// copy from DB.MDBC_TRANSLOG where connid == myconnid, in the order the rows were written
+		// then delete everything up to the last copied row with a single statement
+		String sql2 = "SELECT IX, TABLENAME, OP, KEYDATA, NEWROWDATA FROM "+TRANS_TBL +" WHERE CONNECTION_ID = ? ORDER BY IX";
+		PreparedStatement ps = dbConnection.prepareStatement(sql2);
+		ps.setInt(1, this.connId);
+		ResultSet rs = ps.executeQuery();
+		int highWaterMark = -1;
+		int rows = 0;
+		while (rs.next()) {
+			int ix      = rs.getInt("IX");
+			String op   = rs.getString("OP");
+			OperationType opType = toOpEnum(op);
+			String tbl  = rs.getString("TABLENAME");
+			String keydataStr = rs.getString("KEYDATA");
+			String newRowStr = rs.getString("NEWROWDATA");
+			JSONObject newRow  = new JSONObject(new JSONTokener(newRowStr));
+			addToStagingTable(transactionDigests, tbl, opType, keydataStr, newRow);
+			highWaterMark = ix;
+			rows++;
+		}
+		rs.close();
+		ps.close();
+		if (rows > 0) {
+			sql2 = "DELETE FROM "+TRANS_TBL+" WHERE CONNECTION_ID = ? AND IX <= ?";
+			ps = dbConnection.prepareStatement(sql2);
+			logger.debug("Executing: "+sql2);
+			logger.debug("  For "+rows+" rows up to ix = "+highWaterMark);
+			ps.setInt(1, this.connId);
+			ps.setInt(2, highWaterMark);
+			ps.execute();
+			ps.close();
+		}
+		pendingStatements = 0;
+	}
+
+	private boolean isAutoCommit() {
 		try {
-			ResultSet rs = executeSQLRead(sql2);
-			Set<Integer> rows = new TreeSet<Integer>();
-			while (rs.next()) {
-				int ix      = rs.getInt("IX");
-				String op   = rs.getString("OP");
-				OperationType opType = toOpEnum(op);
-				String tbl  = rs.getString("TABLENAME");
-				String keydataStr = rs.getString("KEYDATA");
-				String newRowStr = rs.getString("NEWROWDATA");
-				JSONObject newRow  = new JSONObject(new JSONTokener(newRowStr));
-				String musicKey;
-				TableInfo ti = getTableInfo(tbl);
-				if (!ti.hasKey()) {
-					//create music key
-                    //\TODO fix, this is completely broken
-					//if (op.startsWith("I")) {
-						//\TODO Improve the generation of primary key, it should be generated using 
-						// the actual columns, otherwise performance when doing range queries are going 
-						// to be even worse (see the else bracket down)
-                        //
-						musicKey = msm.generateUniqueKey();
-					/*} else {
-						//get key from data
-						musicKey = msm.getMusicKeyFromRowWithoutPrimaryIndexes(tbl,newRow);
-					}*/
-					newRow.put(msm.getMusicDefaultPrimaryKeyName(), musicKey);
-				}
-				else {
-					//Use the keys 
-					musicKey = msm.getMusicKeyFromRow(tbl, newRow);
-					if(musicKey.isEmpty()) {
-						logger.error(EELFLoggerDelegate.errorLogger,"Primary key is invalid: ["+tbl+","+op+"]");
-						throw new NoSuchFieldException("Invalid operation enum");
-					}
-				}
-				Range range = new Range(tbl);
-				if(!transactionDigests.containsKey(range)) {
-					transactionDigests.put(range, new StagingTable());
-				}
-				transactionDigests.get(range).addOperation(musicKey, opType, keydataStr, newRow.toString());
-				rows.add(ix);
-			}
-			rs.getStatement().close();
-			if (rows.size() > 0) {
-				sql2 = "DELETE FROM "+TRANS_TBL+" WHERE IX = ?";
-				PreparedStatement ps = dbConnection.prepareStatement(sql2);
-				logger.debug("Executing: "+sql2);
-				logger.debug("  For ix = "+rows);
-				for (int ix : rows) {
-					ps.setInt(1, ix);
-					ps.execute();
-				}
-				ps.close();
-			}
+			return dbConnection.getAutoCommit();
 		} catch (SQLException e) {
-			logger.warn("Exception in postStatementHook: "+e);
-			e.printStackTrace();
+			return true;
 		}
 	}
 
@@ -0,0 +1,106 @@
+package com.att.research.mdbc.mixins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+
+/**
+ * Process-wide cache of the prepared statements sent to MUSIC (Cassandra).
+ * <p>
+ * The session of MUSIC is shared by all the connections of the process (see {@link MusicConnector}), so there is a
+ * single registry for each session instead of one cache per mixin. Each CQL string is prepared once, the first time
+ * it is used by any connection, and every later use only binds the values. The statements are parameterized (the
+ * values are never part of the CQL string), so the number of entries is bounded by the number of different queries
+ * and not by the number of commits.
+ * </p>
+ * <p>
+ * The registry is safe to use from any thread: two threads preparing the same statement at the same time wait for
+ * a single prepare.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class PreparedStatementRegistry {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(PreparedStatementRegistry.class);
+
+	private static final Map<Session, PreparedStatementRegistry> registries = new ConcurrentHashMap<>();
+
+	private final Function<String, PreparedStatement> preparer;
+	private final Map<String, PreparedStatement> statements;
+	private final AtomicLong prepares;
+	private final AtomicLong hits;
+
+	/**
+	 * @param preparer prepares a CQL string, usually {@link Session#prepare(String)}
+	 */
+	PreparedStatementRegistry(Function<String, PreparedStatement> preparer) {
+		this.preparer = preparer;
+		this.statements = new ConcurrentHashMap<>();
+		this.prepares = new AtomicLong();
+		this.hits = new AtomicLong();
+	}
+
+	/**
+	 * @param session session to MUSIC
+	 * @return the registry shared by all the users of the session
+	 */
+	public static PreparedStatementRegistry forSession(final Session session) {
+		return registries.computeIfAbsent(session, s -> {
+			logger.info(EELFLoggerDelegate.applicationLogger, "Creating prepared statement registry for a new MUSIC session");
+			return new PreparedStatementRegistry(s::prepare);
+		});
+	}
+
+	/**
+	 * Removes the registry of a session that is being closed
+	 * @param session session to MUSIC
+	 */
+	public static void release(Session session) {
+		if (session != null) {
+			registries.remove(session);
+		}
+	}
+
+	/**
+	 * @param cql the CQL string, with a bind marker for each value
+	 * @return the prepared statement of the string, it is prepared if this is the first time it is used
+	 */
+	public PreparedStatement get(String cql) {
+		PreparedStatement ps = statements.get(cql);
+		if (ps != null) {
+			hits.incrementAndGet();
+			return ps;
+		}
+		return statements.computeIfAbsent(cql, q -> {
+			prepares.incrementAndGet();
+			logger.debug(EELFLoggerDelegate.applicationLogger, "Preparing MUSIC statement: "+q);
+			return preparer.apply(q);
+		});
+	}
+
+	/**
+	 * @return number of different statements that are prepared
+	 */
+	public int size() {
+		return statements.size();
+	}
+
+	/**
+	 * @return number of times a statement was prepared
+	 */
+	public long getPrepares() {
+		return prepares.get();
+	}
+
+	/**
+	 * @return number of times a statement was found already prepared
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+}
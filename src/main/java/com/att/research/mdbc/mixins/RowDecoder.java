@@ -0,0 +1,195 @@
+package com.att.research.mdbc.mixins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Row;
+
+/**
+ * Converts the rows of a Cassandra result into maps of column names and values.
+ * <p>
+ * The decoder is compiled once for a set of columns: the position of each column in the result, the name it is stored
+ * with in the map and the typed getter of the row are all resolved at that point. Decoding a row is then a loop
+ * over arrays, without looking up the columns by name, converting their names or comparing type names. Decoders are
+ * cached by the mixins for each query, see {@link CassandraMixin}, and are compiled again when the columns of the
+ * result change.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class RowDecoder {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(RowDecoder.class);
+
+	/**
+	 * Reads the value of the column at a position of the row
+	 */
+	public interface Getter {
+		Object get(Row row, int index);
+	}
+
+	private final String[] names;
+	private final int[] indexes;
+	private final Getter[] getters;
+	/** Definitions the decoder was compiled from, used to detect a change of the columns */
+	private final ColumnDefinitions definitions;
+	private final String[] sourceNames;
+	private final DataType.Name[] sourceTypes;
+
+	private RowDecoder(ColumnDefinitions definitions, String[] sourceNames, DataType.Name[] sourceTypes, String[] names, int[] indexes) {
+		this.definitions = definitions;
+		this.sourceNames = sourceNames;
+		this.sourceTypes = sourceTypes;
+		this.names = names;
+		this.indexes = indexes;
+		this.getters = new Getter[names.length];
+		for (int i = 0; i < names.length; i++) {
+			getters[i] = getter(sourceTypes[indexes[i]], names[i]);
+		}
+	}
+
+	/**
+	 * @return the getter for a type of column, the same mapping that is used for all the values read from MUSIC
+	 */
+	public static Getter getter(DataType.Name type, String column) {
+		switch (type) {
+		case BIGINT:
+			return (row, i) -> row.getLong(i);
+		case BOOLEAN:
+			return (row, i) -> row.getBool(i);
+		case BLOB:
+		case DATE:
+			return (row, i) -> row.getString(i);
+		case DECIMAL:
+			return (row, i) -> row.getDecimal(i);
+		case DOUBLE:
+			return (row, i) -> row.getDouble(i);
+		case SMALLINT:
+		case INT:
+			return (row, i) -> row.getInt(i);
+		case TIMESTAMP:
+			return (row, i) -> row.getTimestamp(i);
+		case UUID:
+			return (row, i) -> row.getUUID(i);
+		case VARCHAR:
+		case TEXT:
+			return (row, i) -> row.getString(i);
+		default:
+			logger.error(EELFLoggerDelegate.errorLogger, "UNEXPECTED COLUMN TYPE: columname="+column+", columntype="+type);
+			return (row, i) -> row.getString(i);
+		}
+	}
+
+	/**
+	 * Compiles a decoder for all the columns of a result but the excluded ones, the values are stored with the name
+	 * of the column in upper case
+	 * @param cdef the columns of the result
+	 * @param excluded names (upper case) of the columns that are not decoded
+	 */
+	public static RowDecoder compileAll(ColumnDefinitions cdef, Collection<String> excluded) {
+		String[] sourceNames = new String[cdef.size()];
+		DataType.Name[] sourceTypes = new DataType.Name[cdef.size()];
+		for (int i = 0; i < cdef.size(); i++) {
+			sourceNames[i] = cdef.getName(i);
+			sourceTypes[i] = cdef.getType(i).getName();
+		}
+		return compileAll(cdef, sourceNames, sourceTypes, excluded);
+	}
+
+	static RowDecoder compileAll(ColumnDefinitions cdef, String[] sourceNames, DataType.Name[] sourceTypes, Collection<String> excluded) {
+		List<String> names = new ArrayList<>();
+		List<Integer> indexes = new ArrayList<>();
+		for (int i = 0; i < sourceNames.length; i++) {
+			String name = sourceNames[i].toUpperCase();
+			if (!excluded.contains(name)) {
+				names.add(name);
+				indexes.add(i);
+			}
+		}
+		return new RowDecoder(cdef, sourceNames, sourceTypes, names.toArray(new String[0]), toArray(indexes));
+	}
+
+	/**
+	 * Compiles a decoder for a list of columns, the values are stored with the names as they are given
+	 * @param cdef the columns of the result
+	 * @param columns names of the columns to decode, usually from the {@link com.att.research.mdbc.TableInfo} of the table
+	 * @throws IllegalArgumentException if one of the columns is not in the result
+	 */
+	public static RowDecoder compile(ColumnDefinitions cdef, List<String> columns) {
+		String[] sourceNames = new String[cdef.size()];
+		DataType.Name[] sourceTypes = new DataType.Name[cdef.size()];
+		for (int i = 0; i < cdef.size(); i++) {
+			sourceNames[i] = cdef.getName(i);
+			sourceTypes[i] = cdef.getType(i).getName();
+		}
+		return compile(cdef, sourceNames, sourceTypes, columns);
+	}
+
+	static RowDecoder compile(ColumnDefinitions cdef, String[] sourceNames, DataType.Name[] sourceTypes, List<String> columns) {
+		int[] indexes = new int[columns.size()];
+		for (int c = 0; c < columns.size(); c++) {
+			indexes[c] = -1;
+			for (int i = 0; i < sourceNames.length; i++) {
+				// Cassandra stores the names of the columns in lower case
+				if (sourceNames[i].equalsIgnoreCase(columns.get(c))) {
+					indexes[c] = i;
+					break;
+				}
+			}
+			if (indexes[c] < 0) {
+				logger.warn("Colname is not part of table metadata: "+columns.get(c));
+				throw new IllegalArgumentException(columns.get(c)+" is not a column in this result");
+			}
+		}
+		return new RowDecoder(cdef, sourceNames, sourceTypes, columns.toArray(new String[0]), indexes);
+	}
+
+	private static int[] toArray(List<Integer> values) {
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * @return true if the decoder can be used for a result with these columns
+	 */
+	public boolean matches(ColumnDefinitions cdef) {
+		if (cdef == definitions) {
+			return true;
+		}
+		if (cdef == null || cdef.size() != sourceNames.length) {
+			return false;
+		}
+		for (int i = 0; i < sourceNames.length; i++) {
+			if (!sourceNames[i].equals(cdef.getName(i)) || sourceTypes[i] != cdef.getType(i).getName()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the values of the decoded columns of the row, indexed by their names
+	 */
+	public Map<String,Object> decode(Row row) {
+		Map<String,Object> values = new HashMap<>((int) (names.length / 0.75f) + 1);
+		for (int i = 0; i < names.length; i++) {
+			values.put(names[i], getters[i].get(row, indexes[i]));
+		}
+		return values;
+	}
+
+	/**
+	 * @return names of the decoded columns, in the order they are decoded
+	 */
+	public String[] getNames() {
+		return names.clone();
+	}
+}
@@ -0,0 +1,114 @@
+package com.att.research.mdbc.mixins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.Range;
+import com.att.research.mdbc.TableInfo;
+import com.att.research.mdbc.tables.Operation;
+import com.att.research.mdbc.tables.OperationType;
+import com.att.research.mdbc.tables.StagingTable;
+
+/**
+ * Changes of a transaction digest for a single table, decoded into the rows that have to be deleted and the rows
+ * that have to be written (inserted or updated), such that a mixin can apply them with a few bulk statements.
+ * <p>
+ * Only the last operation of each key is kept (see {@link StagingTable#getIterableSnapshot()}), so the deletes and
+ * the writes of a table are independent of each other, as long as the deletes are executed first.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class TableChanges {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(TableChanges.class);
+
+	public final String table;
+	public final TableInfo info;
+	/** Key columns (all the columns if the table has no key) of the rows to delete */
+	public final List<Map<String,Object>> deletes;
+	/** Complete rows to insert, or to update if a row with the same key exists */
+	public final List<Map<String,Object>> upserts;
+
+	private TableChanges(String table, TableInfo info) {
+		this.table = table;
+		this.info = info;
+		this.deletes = new ArrayList<>();
+		this.upserts = new ArrayList<>();
+	}
+
+	public boolean isEmpty() {
+		return deletes.isEmpty() && upserts.isEmpty();
+	}
+
+	/**
+	 * Decodes a transaction digest
+	 * @param digest changes of a transaction, by range
+	 * @param dbi used to get the definition of the tables
+	 * @return the changes of each table in the digest
+	 * @throws MDBCServiceException if a table is unknown or the digest is not valid
+	 */
+	public static List<TableChanges> decode(Map<Range,StagingTable> digest, DBInterface dbi) throws MDBCServiceException {
+		List<TableChanges> changes = new ArrayList<>();
+		for (Map.Entry<Range,StagingTable> entry : digest.entrySet()) {
+			String table = entry.getKey().table;
+			TableInfo ti = dbi.getTableInfo(table);
+			if (ti == null) {
+				throw new MDBCServiceException("Transaction digest modifies unknown table "+table);
+			}
+			TableChanges tc = new TableChanges(table, ti);
+			try {
+				for (Pair<String,Operation> p : entry.getValue().getIterableSnapshot()) {
+					tc.add(p.getRight());
+				}
+			} catch (NoSuchFieldException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Invalid transaction digest for table "+table+": "+e.getMessage());
+				throw new MDBCServiceException("Invalid transaction digest for table "+table);
+			}
+			if (!tc.isEmpty()) {
+				changes.add(tc);
+			}
+		}
+		return changes;
+	}
+
+	private void add(Operation op) {
+		switch (op.getOperationType()) {
+			case SELECT:
+				return;
+			case DELETE:
+				deletes.add(op.isTyped() ? op.getOldRow() : op.getOldVal().toMap());
+				return;
+			case UPDATE: {
+				Map<String,Object> oldRow = op.isTyped() ? op.getOldRow() : op.getOldVal().toMap();
+				Map<String,Object> newRow = op.isTyped() ? op.getNewRow() : op.getNewVal().toMap();
+				if (oldRow != null && keyChanged(oldRow, newRow)) {
+					// without a key the old row is identified by all its columns
+					deletes.add(oldRow);
+				}
+				upserts.add(newRow);
+				return;
+			}
+			case INSERT:
+			default:
+				upserts.add(op.isTyped() ? op.getNewRow() : op.getNewVal().toMap());
+		}
+	}
+
+	private boolean keyChanged(Map<String,Object> oldRow, Map<String,Object> newRow) {
+		if (!info.hasKey()) {
+			return true;
+		}
+		for (String col : info.getKeyColumns()) {
+			if (oldRow.containsKey(col) && !Objects.equals(String.valueOf(oldRow.get(col)), String.valueOf(newRow.get(col)))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,171 @@
+package com.att.research.mdbc.mixins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.DatabasePartition;
+
+/**
+ * Tracks the size of the <code>redo</code> list of the TIT rows that are written by this node, and starts a new
+ * row when the list of one of them grows too large.
+ * <p>
+ * Every commit appends to the list of a single TIT row, so on a busy partition the collection keeps growing and
+ * every read and append of it gets slower. Once a row passes the maximum number of records or the maximum
+ * estimated size, the {@link Roller} is called once for that row in a background thread. Commits keep going to the
+ * old row until the roller switches the partition, so they are never blocked by the rollover.
+ * </p>
+ * <p>
+ * It also counts the commits that are being written into each row, so the caller can tell when a row that was
+ * replaced has no more writes in flight and can be closed.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class TitRollover {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(TitRollover.class);
+
+	/** Estimated overhead (bytes) of each element of the redo list: the tuples, the varint and the cell metadata */
+	static final int RECORD_OVERHEAD_BYTES = 32;
+
+	/**
+	 * Operation that replaces a TIT row by a new one
+	 */
+	public interface Roller {
+		/**
+		 * @param partition partition that owns the row
+		 * @param titIndex row that passed the limits
+		 * @throws MDBCServiceException if the new row could not be created, the rollover is retried on the next append
+		 */
+		void rollover(DatabasePartition partition, String titIndex) throws MDBCServiceException;
+	}
+
+	private static class Size {
+		private long records;
+		private long bytes;
+		private boolean scheduled;
+	}
+
+	private final Roller roller;
+	private final long maxRecords;
+	private final long maxBytes;
+	private final Map<String,Size> sizes;
+	private final Map<String,Integer> writers;
+	private final ExecutorService executor;
+
+	/**
+	 * @param roller operation used to replace a row
+	 * @param maxRecords maximum number of records in the redo list of a row, 0 to disable the limit
+	 * @param maxBytes maximum estimated size (bytes) of the redo list of a row, 0 to disable the limit
+	 */
+	public TitRollover(Roller roller, long maxRecords, long maxBytes) {
+		this.roller = roller;
+		this.maxRecords = maxRecords;
+		this.maxBytes = maxBytes;
+		this.sizes = new ConcurrentHashMap<>();
+		this.writers = new ConcurrentHashMap<>();
+		this.executor = Executors.newSingleThreadExecutor((r) -> {
+			Thread t = new Thread(r, "mdbc-tit-rollover");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * @return estimated size of an element of the redo list
+	 */
+	public static long recordBytes(String redoTable, String lockId, String commitId) {
+		return redoTable.getBytes(StandardCharsets.UTF_8).length + lockId.getBytes(StandardCharsets.UTF_8).length
+				+ commitId.length() / 2 + RECORD_OVERHEAD_BYTES;
+	}
+
+	public boolean isTracked(String titIndex) {
+		return sizes.containsKey(titIndex);
+	}
+
+	/**
+	 * Sets the current size of a row, read from MUSIC the first time this node writes into it
+	 */
+	public void track(String titIndex, long records, long bytes) {
+		Size size = sizes.computeIfAbsent(titIndex, (k) -> new Size());
+		synchronized (size) {
+			size.records = records;
+			size.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Adds the records that were appended to a row, and schedules its rollover if it passed any of the limits
+	 */
+	public void appended(DatabasePartition partition, String titIndex, long records, long bytes) {
+		Size size = sizes.computeIfAbsent(titIndex, (k) -> new Size());
+		synchronized (size) {
+			size.records += records;
+			size.bytes += bytes;
+			if (size.scheduled || !overLimit(size)) {
+				return;
+			}
+			size.scheduled = true;
+		}
+		logger.debug(EELFLoggerDelegate.applicationLogger, "Redo list of "+titIndex+" passed the limits, starting a new row");
+		try {
+			executor.execute(() -> rollover(partition, titIndex, size));
+		} catch (RejectedExecutionException e) {
+			synchronized (size) {
+				size.scheduled = false;
+			}
+		}
+	}
+
+	private boolean overLimit(Size size) {
+		return (maxRecords > 0 && size.records >= maxRecords) || (maxBytes > 0 && size.bytes >= maxBytes);
+	}
+
+	private void rollover(DatabasePartition partition, String titIndex, Size size) {
+		try {
+			roller.rollover(partition, titIndex);
+		} catch (MDBCServiceException | RuntimeException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Rollover of transaction information row "+titIndex+" failed, it is retried later: "+e.getMessage());
+			synchronized (size) {
+				size.scheduled = false;
+			}
+		}
+	}
+
+	/**
+	 * Registers a commit that is going to be written into a row, must be called before the row can be replaced
+	 */
+	public void enter(String titIndex) {
+		writers.merge(titIndex, 1, Integer::sum);
+	}
+
+	/**
+	 * The commit registered with {@link #enter(String)} was written, or failed
+	 */
+	public void exit(String titIndex) {
+		writers.computeIfPresent(titIndex, (k, v) -> (v <= 1) ? null : v - 1);
+	}
+
+	/**
+	 * @return true if there are no commits being written into the row
+	 */
+	public boolean isDrained(String titIndex) {
+		return !writers.containsKey(titIndex);
+	}
+
+	/**
+	 * Stops tracking a row that was closed
+	 */
+	public void forget(String titIndex) {
+		sizes.remove(titIndex);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,361 @@
+package com.att.research.mdbc.mixins;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.att.research.logging.EELFLoggerDelegate;
+
+/**
+ * Local write-ahead log of the transactions that were committed but not yet written into MUSIC.
+ * <p>
+ * The log is a sequence of segment files of a fixed size in a directory (see {@link CassandraMixin#KEY_WAL_SEGMENT_SIZE}).
+ * Each segment is memory mapped, and records are appended with their length and a CRC32 of their content; a
+ * zero length marks the end of the written part of a segment. {@link #append(Record)} returns once the record
+ * was forced to disk. Threads that append at the same time share the same force, as in a group commit.
+ * </p>
+ * <p>
+ * Records are shipped to MUSIC in order. After each shipped batch the position of its last record is saved in the
+ * checkpoint file, and the segments before it are deleted. On restart the records after the checkpoint are loaded
+ * again as pending. The number of pending records is bounded, appends block when the shipper falls behind.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class WriteAheadLog implements Closeable {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(WriteAheadLog.class);
+
+	static final String SEGMENT_PREFIX = "wal-";
+	static final String SEGMENT_SUFFIX = ".log";
+	static final String CHECKPOINT_FILE = "checkpoint";
+	/** Length and CRC of each record */
+	private static final int RECORD_HEADER = 8;
+
+	/**
+	 * A committed transaction in the log
+	 */
+	public static class Record {
+		public final String leaseId;
+		public final String commitId;
+		public final byte[] digest;
+		private long segment;
+		private int end;
+
+		public Record(String leaseId, String commitId, byte[] digest) {
+			this.leaseId = leaseId;
+			this.commitId = commitId;
+			this.digest = digest;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxPending;
+	private final Deque<Record> pending;
+	private final Object writeLock = new Object();
+	private final Object syncLock = new Object();
+	private long segment;
+	private MappedByteBuffer buffer;
+	private long appended;
+	private long synced;
+	private boolean closed;
+
+	/**
+	 * Opens the log, the records that were not shipped before are loaded as pending
+	 * @param directory directory of the segments, it is created if it doesn't exist
+	 * @param segmentSize size of each segment, bigger records get a segment of their own size
+	 * @param maxPending maximum number of records that are not yet shipped
+	 * @throws IOException if the log can not be read or created
+	 */
+	public WriteAheadLog(File directory, int segmentSize, int maxPending) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxPending = Math.max(1, maxPending);
+		this.pending = new ArrayDeque<>();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Directory "+directory+" for the write-ahead log could not be created");
+		}
+		recover();
+	}
+
+	private static String segmentName(long segment) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX);
+	}
+
+	private long[] listSegments() {
+		String[] names = directory.list((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (names == null) {
+			return new long[0];
+		}
+		long[] segments = new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			segments[i] = Long.parseLong(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length()));
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+		}
+	}
+
+	/**
+	 * Loads the records after the checkpoint, and positions the writer after the last valid record
+	 */
+	private void recover() throws IOException {
+		long[] checkpoint = readCheckpoint();
+		long[] segments = listSegments();
+		for (long s : segments) {
+			if (s < checkpoint[0]) {
+				deleteSegment(s);
+				continue;
+			}
+			MappedByteBuffer mapped = map(new File(directory, segmentName(s)), 0);
+			int start = (s == checkpoint[0]) ? (int) checkpoint[1] : 0;
+			int end = scan(s, mapped, start);
+			segment = s;
+			buffer = mapped;
+			buffer.position(end);
+		}
+		if (buffer == null) {
+			openSegment(Math.max(checkpoint[0], 1), segmentSize);
+		}
+		if (!pending.isEmpty()) {
+			logger.info(EELFLoggerDelegate.applicationLogger, "Write-ahead log in "+directory+" has "+pending.size()+" records that were not shipped");
+		}
+	}
+
+	/**
+	 * Reads the valid records of a segment, the records after the position are added to the pending list
+	 * @return position after the last valid record
+	 */
+	private int scan(long s, ByteBuffer mapped, int start) {
+		int position = 0;
+		while (position + RECORD_HEADER <= mapped.limit()) {
+			int length = mapped.getInt(position);
+			if (length <= 0 || position + RECORD_HEADER + length > mapped.limit()) {
+				break;
+			}
+			byte[] payload = new byte[length];
+			ByteBuffer view = mapped.duplicate();
+			view.position(position + RECORD_HEADER);
+			view.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if ((int) crc.getValue() != mapped.getInt(position + 4)) {
+				// torn write of the last record before a crash
+				logger.error(EELFLoggerDelegate.errorLogger, "Invalid record in "+segmentName(s)+" at "+position+", the rest of the segment is ignored");
+				break;
+			}
+			position += RECORD_HEADER + length;
+			if (position > start) {
+				Record record = decode(payload);
+				record.segment = s;
+				record.end = position;
+				pending.add(record);
+			}
+		}
+		return position;
+	}
+
+	private static byte[] encode(Record record) {
+		byte[] lease = record.leaseId.getBytes(StandardCharsets.UTF_8);
+		byte[] commit = record.commitId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(12 + lease.length + commit.length + record.digest.length);
+		payload.putInt(lease.length).put(lease);
+		payload.putInt(commit.length).put(commit);
+		payload.putInt(record.digest.length).put(record.digest);
+		return payload.array();
+	}
+
+	private static Record decode(byte[] data) {
+		ByteBuffer payload = ByteBuffer.wrap(data);
+		byte[] lease = new byte[payload.getInt()];
+		payload.get(lease);
+		byte[] commit = new byte[payload.getInt()];
+		payload.get(commit);
+		byte[] digest = new byte[payload.getInt()];
+		payload.get(digest);
+		return new Record(new String(lease, StandardCharsets.UTF_8), new String(commit, StandardCharsets.UTF_8), digest);
+	}
+
+	private void openSegment(long s, int size) throws IOException {
+		segment = s;
+		buffer = map(new File(directory, segmentName(s)), size);
+		buffer.position(0);
+	}
+
+	/**
+	 * Appends a record and forces it to disk
+	 * @throws IOException if the record could not be written
+	 * @throws InterruptedException if interrupted while waiting for the shipper to make room
+	 */
+	public void append(Record record) throws IOException, InterruptedException {
+		byte[] payload = encode(record);
+		synchronized (pending) {
+			while (pending.size() >= maxPending && !closed) {
+				pending.wait();
+			}
+		}
+		long sequence;
+		synchronized (writeLock) {
+			if (closed) {
+				throw new IOException("Write-ahead log in "+directory+" is closed");
+			}
+			// a zero length after the record marks the end of the segment
+			int needed = RECORD_HEADER + payload.length + 4;
+			if (buffer.remaining() < needed) {
+				buffer.force();
+				openSegment(segment + 1, Math.max(segmentSize, needed));
+				synced = appended;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			int position = buffer.position();
+			buffer.position(position + 4);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(payload);
+			buffer.putInt(buffer.position(), 0);
+			// the length goes last, a record is not valid until it is complete
+			buffer.putInt(position, payload.length);
+			record.segment = segment;
+			record.end = buffer.position();
+			sequence = ++appended;
+			// queued under the write lock, so the shipper sees the records in the order of the log
+			synchronized (pending) {
+				pending.add(record);
+				pending.notifyAll();
+			}
+		}
+		sync(sequence);
+	}
+
+	/**
+	 * Forces the current segment, unless another thread already forced it after the record was written
+	 */
+	private void sync(long sequence) {
+		synchronized (syncLock) {
+			if (synced >= sequence) {
+				return;
+			}
+			long target;
+			MappedByteBuffer current;
+			synchronized (writeLock) {
+				target = appended;
+				current = buffer;
+			}
+			current.force();
+			synchronized (writeLock) {
+				if (target > synced) {
+					synced = target;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param max maximum number of records
+	 * @param timeoutMillis maximum time to wait if there are no pending records
+	 * @return the oldest records that were not shipped yet, they stay pending until {@link #shipped(List)} is called
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public List<Record> peek(int max, long timeoutMillis) throws InterruptedException {
+		synchronized (pending) {
+			if (pending.isEmpty() && timeoutMillis > 0) {
+				pending.wait(timeoutMillis);
+			}
+			List<Record> batch = new ArrayList<>();
+			for (Record record : pending) {
+				if (batch.size() >= max) {
+					break;
+				}
+				batch.add(record);
+			}
+			return batch;
+		}
+	}
+
+	/**
+	 * Marks the oldest pending records as written into MUSIC, the checkpoint is saved before they are removed
+	 * @param batch records returned by {@link #peek(int, long)}
+	 * @throws IOException if the checkpoint could not be saved
+	 */
+	public void shipped(List<Record> batch) throws IOException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		Record last = batch.get(batch.size() - 1);
+		writeCheckpoint(last.segment, last.end);
+		synchronized (pending) {
+			for (int i = 0; i < batch.size() && !pending.isEmpty(); i++) {
+				pending.removeFirst();
+			}
+			pending.notifyAll();
+		}
+		for (long s : listSegments()) {
+			if (s < last.segment) {
+				deleteSegment(s);
+			}
+		}
+	}
+
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	private long[] readCheckpoint() throws IOException {
+		File file = new File(directory, CHECKPOINT_FILE);
+		if (!file.exists()) {
+			return new long[] {0, 0};
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return new long[] {raf.readLong(), raf.readInt()};
+		}
+	}
+
+	private void writeCheckpoint(long s, int end) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw")) {
+			raf.writeLong(s);
+			raf.writeInt(end);
+			raf.getFD().sync();
+		}
+	}
+
+	private void deleteSegment(long s) {
+		File file = new File(directory, segmentName(s));
+		if (file.exists() && !file.delete()) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Segment "+file+" of the write-ahead log could not be deleted");
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			buffer.force();
+		}
+		synchronized (pending) {
+			pending.notifyAll();
+		}
+	}
+}
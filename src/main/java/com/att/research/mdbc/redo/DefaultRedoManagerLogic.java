@@ -0,0 +1,137 @@
+package com.att.research.mdbc.redo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.TransactionInformationElement;
+
+/**
+ * Default logic of the redo recovery, see docs/specs.md.
+ * <p>
+ * The digests are downloaded two levels ahead of the nodes that are being applied: initially for the roots and
+ * their children, and each time a node is applied for its grandchildren. A node is applied as soon as all its parents
+ * were applied and all its digests were downloaded.
+ * </p>
+ * <p>
+ * The digests of the nodes in the frontier (all their parents were applied) are pinned in the {@link PrefetchedData},
+ * such that only digests of nodes further away are deleted when the memory is bounded.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class DefaultRedoManagerLogic implements RedoManagerLogic {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(DefaultRedoManagerLogic.class);
+
+	private HistoryGraph history;
+	private PrefetchedData data;
+	private long restored;
+
+	@Override
+	public void init(HistoryGraph history, PrefetchedData data) {
+		this.history = history;
+		this.data = data;
+		this.restored = 0;
+	}
+
+	@Override
+	public List<Task> getInitialTasks() {
+		List<HistoryGraph.Node> roots = history.getRoots();
+		for (HistoryGraph.Node root : roots) {
+			data.pin(root.getId());
+		}
+		List<HistoryGraph.Node> firstTwoLevels = new ArrayList<>(roots);
+		firstTwoLevels.addAll(history.getChildren(roots));
+		List<Task> tasks = new ArrayList<>();
+		for (HistoryGraph.Node node : firstTwoLevels) {
+			scheduleDigests(node, tasks);
+		}
+		return tasks;
+	}
+
+	@Override
+	public List<Task> setCompleted(Task completedTask) {
+		List<Task> tasks = new ArrayList<>();
+		switch (completedTask.getType()) {
+			case APPLY_DIGEST: {
+				HistoryGraph.Node node = history.getNode(completedTask.getNodeId());
+				history.setRestored(node.getId());
+				restored++;
+				List<HistoryGraph.Node> children = history.getChildren(node);
+				for (HistoryGraph.Node grandchild : history.getChildren(children)) {
+					scheduleDigests(grandchild, tasks);
+				}
+				for (HistoryGraph.Node child : children) {
+					history.increaseParentCompleted(child.getId());
+					if (history.parentsRestored(child.getId())) {
+						//The child is now in the frontier, its digests should not be deleted to bound the memory
+						data.pin(child.getId());
+					}
+					//Only needed if a child was not reachable two levels ahead, e.g. roots added out of order
+					scheduleDigests(child, tasks);
+					scheduleApplyIfReady(child, tasks);
+				}
+				break;
+			}
+			case DOWNLOAD_DIGESTS: {
+				if (history.setDigestDownloaded(completedTask.getNodeId())) {
+					scheduleApplyIfReady(history.getNode(completedTask.getNodeId()), tasks);
+				}
+				break;
+			}
+			case DOWNLOAD_METADATA:
+				history.setMetadataDownloaded(completedTask.getNodeId());
+				break;
+			case DOWNLOAD_HISTORY:
+			default:
+				break;
+		}
+		return tasks;
+	}
+
+	@Override
+	public boolean isDone() {
+		return restored >= history.getSize();
+	}
+
+	/**
+	 * Creates a download task for each of the digests of the node that was not applied yet
+	 */
+	private void scheduleDigests(HistoryGraph.Node node, List<Task> tasks) {
+		if (!node.scheduleDigests()) {
+			return;
+		}
+		List<RedoRecordId> records = pendingRecords(data.getMetadata(node.getId()));
+		history.setPendingDigests(node.getId(), records.size());
+		for (RedoRecordId record : records) {
+			tasks.add(Task.downloadDigest(node, record));
+		}
+		if (records.isEmpty()) {
+			logger.debug(EELFLoggerDelegate.applicationLogger, "Node " + node + " doesn't have digests to apply");
+			scheduleApplyIfReady(node, tasks);
+		}
+	}
+
+	private void scheduleApplyIfReady(HistoryGraph.Node node, List<Task> tasks) {
+		if (history.readyToRun(node.getId(), data) && node.scheduleApply()) {
+			tasks.add(Task.forNode(Task.Type.APPLY_DIGEST, node));
+		}
+	}
+
+	/**
+	 * @param meta row of the TIT
+	 * @return the redo records of the row that were not applied to the data tables yet
+	 */
+	public static List<RedoRecordId> pendingRecords(TransactionInformationElement meta) {
+		if (meta == null || meta.applied || meta.redoLog == null) {
+			return Collections.emptyList();
+		}
+		int first = Math.max(0, meta.latestApplied + 1);
+		if (first >= meta.redoLog.size()) {
+			return Collections.emptyList();
+		}
+		return meta.redoLog.subList(first, meta.redoLog.size());
+	}
+}
@@ -0,0 +1,327 @@
+package com.att.research.mdbc.redo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.tables.RedoHistoryElement;
+import com.att.research.mdbc.tables.TitReference;
+
+/**
+ * Model of the REDO history of a set of partitions, used to create the plan for the redo recovery.
+ * <p>
+ * Each node is a row of the transaction information table (TIT), and there is an edge from each of the
+ * previous TIT rows of the redo history table to the current row. A node can only be applied after all its parents
+ * were applied.
+ * </p>
+ * The graph is built by a single thread (see {@link RedoManager#recover}), after that the state of the nodes is
+ * updated concurrently by the tasks.
+ *
+ * @author Enrique Saurez
+ */
+public class HistoryGraph {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(HistoryGraph.class);
+
+	/**
+	 * A row of the TIT in the history
+	 */
+	public static class Node {
+		private final String id;
+		private final String redoTable;
+		private final String redoIndex;
+		private final String partition;
+		private final Set<Node> parents;
+		private final Set<Node> children;
+		private int number;
+		private final AtomicInteger parentsDone;
+		private final AtomicInteger pendingDigests;
+		private volatile boolean metadataDownloaded;
+		private volatile boolean restored;
+		private final AtomicBoolean digestsScheduled;
+		private final AtomicBoolean applyScheduled;
+
+		Node(String redoTable, String redoIndex, String partition) {
+			this.id = HistoryGraph.getId(redoTable, redoIndex);
+			this.redoTable = redoTable;
+			this.redoIndex = redoIndex;
+			this.partition = partition;
+			this.parents = new LinkedHashSet<>();
+			this.children = new LinkedHashSet<>();
+			this.number = Integer.MAX_VALUE;
+			this.parentsDone = new AtomicInteger(0);
+			this.pendingDigests = new AtomicInteger(-1);
+			this.metadataDownloaded = false;
+			this.restored = false;
+			this.digestsScheduled = new AtomicBoolean(false);
+			this.applyScheduled = new AtomicBoolean(false);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getRedoTable() {
+			return redoTable;
+		}
+
+		public String getRedoIndex() {
+			return redoIndex;
+		}
+
+		public String getPartition() {
+			return partition;
+		}
+
+		/**
+		 * @return BFS number of the node, roots have the lowest numbers
+		 */
+		public int getNumber() {
+			return number;
+		}
+
+		public TitReference getTitReference() {
+			return new TitReference(redoTable, redoIndex);
+		}
+
+		public boolean isMetadataDownloaded() {
+			return metadataDownloaded;
+		}
+
+		/**
+		 * @return true if all the digests of the node were downloaded
+		 */
+		public boolean isDigestDownloaded() {
+			return pendingDigests.get() == 0;
+		}
+
+		public boolean isRestored() {
+			return restored;
+		}
+
+		/**
+		 * Marks the download of the digests of this node as scheduled
+		 * @return false if they were already scheduled
+		 */
+		boolean scheduleDigests() {
+			return digestsScheduled.compareAndSet(false, true);
+		}
+
+		/**
+		 * Marks the apply of this node as scheduled
+		 * @return false if it was already scheduled
+		 */
+		boolean scheduleApply() {
+			return applyScheduled.compareAndSet(false, true);
+		}
+
+		@Override
+		public String toString() {
+			return id + "#" + number;
+		}
+	}
+
+	private final Map<String, Node> nodes;
+	private final List<String[]> futureLinks;
+
+	public HistoryGraph() {
+		this.nodes = new LinkedHashMap<>();
+		this.futureLinks = new ArrayList<>();
+	}
+
+	/**
+	 * @return id used for the node of a TIT row
+	 */
+	public static String getId(String redoTable, String redoIndex) {
+		return redoTable + "/" + redoIndex;
+	}
+
+	public long getSize() {
+		return nodes.size();
+	}
+
+	/**
+	 * Adds a TIT row to the graph, if the row is already in the graph nothing changes
+	 * @param redoTable TIT table
+	 * @param redoIndex row in the TIT table
+	 * @param partition partition whose history contains the row
+	 * @return the node of the row
+	 */
+	public Node addNode(String redoTable, String redoIndex, String partition) {
+		Node node = nodes.get(getId(redoTable, redoIndex));
+		if (node == null) {
+			node = new Node(redoTable, redoIndex, partition);
+			nodes.put(node.getId(), node);
+		}
+		return node;
+	}
+
+	/**
+	 * Adds an edge from the previous TIT row to the current TIT row. The previous row doesn't need to be in the graph
+	 * yet, the edge is created by {@link #resolveLinks()}
+	 */
+	public void addFutureLink(String redoTable, String redoIndex, String previousRedoTable, String previousRedoIndex) {
+		futureLinks.add(new String[] { getId(redoTable, redoIndex), getId(previousRedoTable, previousRedoIndex) });
+	}
+
+	/**
+	 * Adds a row of the redo history table, with the links to its previous rows
+	 */
+	public void addHistory(RedoHistoryElement element) {
+		addNode(element.current.table, element.current.index, element.partition);
+		if (element.previous == null) {
+			return;
+		}
+		for (TitReference previous : element.previous) {
+			addFutureLink(element.current.table, element.current.index, previous.table, previous.index);
+		}
+	}
+
+	/**
+	 * Creates the edges added with {@link #addFutureLink}. Edges to rows that are not part of the downloaded history
+	 * (e.g. partitions that don't contain any of the recovered tables) are ignored.
+	 */
+	public void resolveLinks() {
+		for (String[] link : futureLinks) {
+			Node current = nodes.get(link[0]);
+			Node previous = nodes.get(link[1]);
+			if (current == null || previous == null) {
+				logger.debug(EELFLoggerDelegate.applicationLogger, "Ignoring link to a row outside of the history: " + link[1] + " -> " + link[0]);
+				continue;
+			}
+			previous.children.add(current);
+			current.parents.add(previous);
+		}
+		futureLinks.clear();
+	}
+
+	/**
+	 * Numbers the nodes using a breadth first search that starts in the roots
+	 * @return the nodes ordered by number
+	 */
+	public List<Node> numberNodes() {
+		List<Node> order = new ArrayList<>(nodes.size());
+		Deque<Node> pending = new ArrayDeque<>(getRoots());
+		Set<Node> visited = new LinkedHashSet<>(pending);
+		while (!pending.isEmpty()) {
+			Node node = pending.poll();
+			node.number = order.size();
+			order.add(node);
+			for (Node child : node.children) {
+				if (visited.add(child)) {
+					pending.add(child);
+				}
+			}
+		}
+		if (order.size() != nodes.size()) {
+			//Only possible if there is a cycle, the history is append only so this should never happen
+			logger.error(EELFLoggerDelegate.errorLogger, "Redo history contains nodes that are not reachable from the roots");
+		}
+		return order;
+	}
+
+	public List<Node> getRoots() {
+		List<Node> roots = new ArrayList<>();
+		for (Node node : nodes.values()) {
+			if (node.parents.isEmpty()) {
+				roots.add(node);
+			}
+		}
+		return roots;
+	}
+
+	public List<Node> getParents(Node node) {
+		return new ArrayList<>(node.parents);
+	}
+
+	public List<Node> getChildren(Node node) {
+		return new ArrayList<>(node.children);
+	}
+
+	/**
+	 * @return the children of all the nodes, without duplicates
+	 */
+	public List<Node> getChildren(List<Node> parents) {
+		Set<Node> children = new LinkedHashSet<>();
+		for (Node node : parents) {
+			children.addAll(node.children);
+		}
+		return new ArrayList<>(children);
+	}
+
+	public Iterator<Node> getAll() {
+		return Collections.unmodifiableCollection(nodes.values()).iterator();
+	}
+
+	public Node getNode(String id) {
+		return nodes.get(id);
+	}
+
+	/**
+	 * Records that one of the parents of the node was applied
+	 */
+	public void increaseParentCompleted(String id) {
+		nodes.get(id).parentsDone.incrementAndGet();
+	}
+
+	/**
+	 * @param id id of the node
+	 * @return true if the node was not applied yet and all its parents were applied, i.e. the node is in the frontier of the recovery
+	 */
+	public boolean parentsRestored(String id) {
+		Node node = nodes.get(id);
+		return !node.restored && node.parentsDone.get() >= node.parents.size();
+	}
+
+	/**
+	 * @param id id of the node
+	 * @param data data that was prefetched for the recovery
+	 * @return true if all the parents of the node were applied and all the data required to apply the node was prefetched
+	 */
+	public boolean readyToRun(String id, PrefetchedData data) {
+		Node node = nodes.get(id);
+		return parentsRestored(id)
+			&& node.metadataDownloaded
+			&& node.isDigestDownloaded()
+			&& data.getMetadata(id) != null;
+	}
+
+	public void setMetadataDownloaded(String id) {
+		nodes.get(id).metadataDownloaded = true;
+	}
+
+	/**
+	 * Sets the number of digests that need to be downloaded before the node can be applied
+	 */
+	public void setPendingDigests(String id, int count) {
+		nodes.get(id).pendingDigests.set(count);
+	}
+
+	/**
+	 * Records that one of the digests of the node was downloaded
+	 * @return true if all the digests of the node are now downloaded
+	 */
+	public boolean setDigestDownloaded(String id) {
+		return nodes.get(id).pendingDigests.decrementAndGet() == 0;
+	}
+
+	/**
+	 * Records that one of the digests of the node was deleted from the prefetched data, and needs to be downloaded again
+	 */
+	public void setDigestEvicted(String id) {
+		nodes.get(id).pendingDigests.incrementAndGet();
+	}
+
+	public void setRestored(String id) {
+		nodes.get(id).restored = true;
+	}
+}
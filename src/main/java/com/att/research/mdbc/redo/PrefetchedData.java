@@ -0,0 +1,232 @@
+package com.att.research.mdbc.redo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.att.research.mdbc.Range;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.StagingTable;
+import com.att.research.mdbc.tables.TransactionInformationElement;
+
+/**
+ * Data downloaded by the tasks of the redo recovery, that was not applied yet.
+ * <p>
+ * Each element remembers the task that downloaded it, such that when too much data is prefetched the least
+ * important digest (the one of the node with the highest BFS number, the furthest from the nodes being applied)
+ * can be deleted and its task added again to the {@link TaskPriorityQueue}.
+ * </p>
+ * <p>
+ * The memory used by the digests is estimated with {@link StagingTable#getEstimatedSize()} and compared against
+ * a maximum; the store itself never rejects a digest, it is the {@link RedoManager} that calls
+ * {@link #deleteLessImportant()} while {@link #isOverCapacity()} is true. The digests of pinned nodes (nodes that
+ * are next to be applied) are never deleted, so the recovery always makes progress, even if a single node is larger
+ * than the maximum.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class PrefetchedData {
+
+	private static final class Element<T> {
+		final T data;
+		final Task task;
+		final long bytes;
+
+		Element(T data, Task task, long bytes) {
+			this.data = data;
+			this.task = task;
+			this.bytes = bytes;
+		}
+	}
+
+	private final Map<String, Element<TransactionInformationElement>> metadata;
+	private final Map<String, Map<String, Element<HashMap<Range, StagingTable>>>> digests;
+	private final Set<String> pinned;
+	private final long maxBytes;
+	private final AtomicLong digestCount;
+	private final AtomicLong bytes;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+
+	/**
+	 * Creates a store without a memory bound
+	 */
+	public PrefetchedData() {
+		this(Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxBytes maximum estimated size of the prefetched digests
+	 */
+	public PrefetchedData(long maxBytes) {
+		this.metadata = new ConcurrentHashMap<>();
+		this.digests = new ConcurrentHashMap<>();
+		this.pinned = ConcurrentHashMap.newKeySet();
+		this.maxBytes = maxBytes;
+		this.digestCount = new AtomicLong(0);
+		this.bytes = new AtomicLong(0);
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+		this.evictions = new AtomicLong(0);
+	}
+
+	private static String getKey(RedoRecordId id) {
+		return id.leaseId + ":" + id.commitId;
+	}
+
+	/**
+	 * @return estimated heap used by a digest
+	 */
+	static long estimateSize(HashMap<Range, StagingTable> digest) {
+		long size = 64;
+		for (Map.Entry<Range, StagingTable> entry : digest.entrySet()) {
+			size += 64 + 2L * entry.getKey().table.length() + entry.getValue().getEstimatedSize();
+		}
+		return size;
+	}
+
+	/**
+	 * @param nodeId id of the node in the {@link HistoryGraph}
+	 * @return the row of the TIT associated with the node, or null if it was not downloaded
+	 */
+	public TransactionInformationElement getMetadata(String nodeId) {
+		Element<TransactionInformationElement> element = metadata.get(nodeId);
+		return (element == null) ? null : element.data;
+	}
+
+	public void addMetadata(String nodeId, TransactionInformationElement meta, Task task) {
+		metadata.put(nodeId, new Element<>(meta, task, 0));
+	}
+
+	/**
+	 * @param nodeId id of the node in the {@link HistoryGraph}
+	 * @param id redo record in the redo log of the node
+	 * @return the transaction digest, or null if it was not downloaded or it was deleted
+	 */
+	public HashMap<Range, StagingTable> getTransaction(String nodeId, RedoRecordId id) {
+		Map<String, Element<HashMap<Range, StagingTable>>> nodeDigests = digests.get(nodeId);
+		Element<HashMap<Range, StagingTable>> element = (nodeDigests == null) ? null : nodeDigests.get(getKey(id));
+		if (element == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return element.data;
+	}
+
+	public void addDigest(String nodeId, RedoRecordId id, HashMap<Range, StagingTable> digest, Task task) {
+		Element<HashMap<Range, StagingTable>> element = new Element<>(digest, task, estimateSize(digest));
+		Map<String, Element<HashMap<Range, StagingTable>>> nodeDigests = digests.computeIfAbsent(nodeId, (k) -> new ConcurrentHashMap<>());
+		Element<HashMap<Range, StagingTable>> previous = nodeDigests.put(getKey(id), element);
+		if (previous == null) {
+			digestCount.incrementAndGet();
+			bytes.addAndGet(element.bytes);
+		}
+		else {
+			bytes.addAndGet(element.bytes - previous.bytes);
+		}
+	}
+
+	/**
+	 * Deletes all the digests of a node, used after the node was applied
+	 */
+	public void removeDigests(String nodeId) {
+		pinned.remove(nodeId);
+		Map<String, Element<HashMap<Range, StagingTable>>> nodeDigests = digests.remove(nodeId);
+		if (nodeDigests == null) {
+			return;
+		}
+		for (Element<HashMap<Range, StagingTable>> element : nodeDigests.values()) {
+			digestCount.decrementAndGet();
+			bytes.addAndGet(-element.bytes);
+		}
+	}
+
+	/**
+	 * Protects the digests of a node from {@link #deleteLessImportant()}, used for the nodes whose parents were all
+	 * applied
+	 */
+	public void pin(String nodeId) {
+		pinned.add(nodeId);
+	}
+
+	/**
+	 * Deletes the digest of the node with the highest BFS number that is not pinned
+	 * @return the task that downloaded the deleted digest, or null if there was nothing to delete
+	 */
+	public synchronized Task deleteLessImportant() {
+		Task victim = null;
+		for (Map.Entry<String, Map<String, Element<HashMap<Range, StagingTable>>>> entry : digests.entrySet()) {
+			if (pinned.contains(entry.getKey())) {
+				continue;
+			}
+			for (Element<HashMap<Range, StagingTable>> element : entry.getValue().values()) {
+				if (victim == null || element.task.getNodeNumber() > victim.getNodeNumber()) {
+					victim = element.task;
+				}
+			}
+		}
+		if (victim == null) {
+			return null;
+		}
+		Map<String, Element<HashMap<Range, StagingTable>>> nodeDigests = digests.get(victim.getNodeId());
+		Element<HashMap<Range, StagingTable>> removed = (nodeDigests == null) ? null : nodeDigests.remove(getKey(victim.getRecord()));
+		if (removed == null) {
+			return null;
+		}
+		digestCount.decrementAndGet();
+		bytes.addAndGet(-removed.bytes);
+		evictions.incrementAndGet();
+		return victim;
+	}
+
+	/**
+	 * @return number of digests that are currently prefetched
+	 */
+	public long getSize() {
+		return digestCount.get();
+	}
+
+	/**
+	 * @return estimated size in bytes of the digests that are currently prefetched
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return true if the prefetched digests use more than the maximum
+	 */
+	public boolean isOverCapacity() {
+		return bytes.get() > maxBytes;
+	}
+
+	/**
+	 * @return number of digests requested with {@link #getTransaction} that were prefetched
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of digests requested with {@link #getTransaction} that were not prefetched
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of digests deleted by {@link #deleteLessImportant()}
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+}
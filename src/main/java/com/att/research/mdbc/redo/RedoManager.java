@@ -0,0 +1,389 @@
+package com.att.research.mdbc.redo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.logging.EELFLoggerDelegate;
+import com.att.research.mdbc.DatabasePartition;
+import com.att.research.mdbc.Range;
+import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.tables.RedoHistoryElement;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.StagingTable;
+import com.att.research.mdbc.tables.TablePartitionInformation;
+import com.att.research.mdbc.tables.TransactionInformationElement;
+
+/**
+ * Entity in charge of the REDO recovery of a set of tables, see docs/specs.md.
+ * <p>
+ * The recovery is decomposed in tasks that are executed by a pool of threads, in the order given by the
+ * {@link TaskPriorityQueue}:
+ * </p>
+ * <ol>
+ * <li>The redo history of all the partitions (current and previous) of the tables is downloaded in parallel, and
+ * used to create the {@link HistoryGraph}</li>
+ * <li>The metadata (TIT row) of all the nodes is downloaded in parallel</li>
+ * <li>The transaction digests are prefetched and applied in BFS order, following the {@link RedoManagerLogic}. A node
+ * is only applied after all its parents, nodes without dependencies between them are applied concurrently</li>
+ * </ol>
+ * <p>
+ * The memory used by the prefetched digests is bounded: when the {@link PrefetchedData} goes over its maximum, the
+ * least important digests are deleted and their download tasks are added again to the queue, and the downloads are
+ * frozen until enough digests were applied.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class RedoManager {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(RedoManager.class);
+
+	/**
+	 * Applies a transaction digest into the local SQL database
+	 */
+	public interface DigestApplier {
+		void apply(HashMap<Range, StagingTable> digest) throws MDBCServiceException;
+	}
+
+	private final MusicInterface mi;
+	private final DigestApplier applier;
+	private final RedoManagerLogic logic;
+	private final int numOfThreads;
+	private final long maxPrefetchBytes;
+	private final Object recovering = new Object();
+
+	private HistoryGraph history;
+	private PrefetchedData prefetched;
+	private TaskPriorityQueue tasks;
+	private Set<String> tables;
+	private int pendingDownloads;
+	private int pendingApplies;
+	private List<Task> deferred;
+	private MDBCServiceException failure;
+
+	/**
+	 * @param mi interface used to read the history, metadata and digests from MUSIC
+	 * @param applier used to apply the digests into the local database
+	 * @param logic logic used to select the next tasks
+	 * @param numOfThreads number of threads of the pool, if it is not positive the number of cores is used
+	 * @param maxPrefetchBytes maximum estimated memory used by the prefetched digests, if it is not positive the memory is not bounded
+	 */
+	public RedoManager(MusicInterface mi, DigestApplier applier, RedoManagerLogic logic, int numOfThreads, long maxPrefetchBytes) {
+		this.mi = mi;
+		this.applier = applier;
+		this.logic = logic;
+		this.numOfThreads = (numOfThreads > 0) ? numOfThreads : Runtime.getRuntime().availableProcessors();
+		this.maxPrefetchBytes = (maxPrefetchBytes > 0) ? maxPrefetchBytes : Long.MAX_VALUE;
+	}
+
+	public RedoManager(MusicInterface mi, DigestApplier applier, int numOfThreads, long maxPrefetchBytes) {
+		this(mi, applier, new DefaultRedoManagerLogic(), numOfThreads, maxPrefetchBytes);
+	}
+
+	public RedoManager(MusicInterface mi, DigestApplier applier, int numOfThreads) {
+		this(mi, applier, numOfThreads, 0);
+	}
+
+	/**
+	 * Applies all the redo records of the tables that were not applied to the data tables in MUSIC yet. This is a
+	 * blocking call.
+	 * <p>
+	 * It assumes that the data of the tables was already pulled from the data tables and that no archive process
+	 * is running while the recovery is performed.
+	 * </p>
+	 * @param tables tables to recover
+	 * @throws MDBCServiceException if any of the tasks failed
+	 */
+	public void recover(Set<String> tables) throws MDBCServiceException {
+		synchronized (recovering) {
+			doRecover(tables);
+		}
+	}
+
+	private void doRecover(Set<String> tables) throws MDBCServiceException {
+		synchronized (this) {
+			this.tables = tables;
+			this.history = new HistoryGraph();
+			this.prefetched = new PrefetchedData(maxPrefetchBytes);
+			this.tasks = new TaskPriorityQueue();
+			this.deferred = new ArrayList<>();
+			this.pendingApplies = 0;
+			this.failure = null;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numOfThreads);
+		for (int i = 0; i < numOfThreads; i++) {
+			pool.execute(this::runTasks);
+		}
+		try {
+			//1. Fetch the history of all the partitions, current and previous
+			Set<String> partitions = getAllPartitions(tables);
+			List<Task> historyTasks = new ArrayList<>();
+			for (String partition : partitions) {
+				historyTasks.add(Task.downloadHistory(partition));
+			}
+			runAndWait(historyTasks);
+			history.resolveLinks();
+			history.numberNodes();
+			logger.info(EELFLoggerDelegate.applicationLogger, "Redo recovery of " + tables + ": " + partitions.size()
+				+ " partitions, " + history.getSize() + " history nodes");
+
+			//2. Fetch the metadata of all the nodes
+			List<Task> metadataTasks = new ArrayList<>();
+			for (Iterator<HistoryGraph.Node> it = history.getAll(); it.hasNext();) {
+				metadataTasks.add(Task.forNode(Task.Type.DOWNLOAD_METADATA, it.next()));
+			}
+			runAndWait(metadataTasks);
+
+			//3. Download and apply the digests
+			startApplies();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MDBCServiceException("Interrupted during redo recovery");
+		} finally {
+			tasks.close();
+			pool.shutdown();
+		}
+		try {
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+		logger.info(EELFLoggerDelegate.applicationLogger, "Redo recovery of " + tables + " completed, prefetched digests: hits="
+			+ prefetched.getHits() + " misses=" + prefetched.getMisses() + " evictions=" + prefetched.getEvictions());
+	}
+
+	private Set<String> getAllPartitions(Set<String> tables) throws MDBCServiceException {
+		Set<String> partitions = new LinkedHashSet<>();
+		for (String table : tables) {
+			TablePartitionInformation info = mi.getTablePartitionInformation(table);
+			if (info == null) {
+				continue;
+			}
+			if (info.partition != null) {
+				partitions.add(info.partition);
+			}
+			if (info.oldPartitions != null) {
+				partitions.addAll(info.oldPartitions);
+			}
+		}
+		return partitions;
+	}
+
+	/**
+	 * Runs a set of independent tasks in the thread pool, and waits until all of them are completed
+	 */
+	private synchronized void runAndWait(List<Task> newTasks) throws InterruptedException, MDBCServiceException {
+		pendingDownloads = newTasks.size();
+		tasks.addOps(newTasks);
+		while (failure == null && pendingDownloads > 0) {
+			wait();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Adds the initial tasks of the logic, and waits until all the nodes are applied
+	 */
+	private synchronized void startApplies() throws InterruptedException, MDBCServiceException {
+		logic.init(history, prefetched);
+		addTasks(logic.getInitialTasks());
+		while (failure == null && !logic.isDone()) {
+			wait();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Records that a task was completed, and adds the new tasks to the queue
+	 */
+	private synchronized void setCompleted(Task task) {
+		if (task.getType() == Task.Type.DOWNLOAD_HISTORY || task.getType() == Task.Type.DOWNLOAD_METADATA) {
+			pendingDownloads--;
+			if (task.getType() == Task.Type.DOWNLOAD_METADATA) {
+				history.setMetadataDownloaded(task.getNodeId());
+			}
+			notifyAll();
+			return;
+		}
+		if (task.getType() == Task.Type.APPLY_DIGEST) {
+			pendingApplies--;
+		}
+		List<Task> newTasks = logic.setCompleted(task);
+		addTasks(newTasks);
+		boundPrefetchedData(task.getType() == Task.Type.APPLY_DIGEST);
+		if (newTasks.isEmpty() && logic.isDone()) {
+			notifyAll();
+		}
+	}
+
+	private void addTasks(List<Task> newTasks) {
+		for (Task task : newTasks) {
+			if (task.getType() == Task.Type.APPLY_DIGEST) {
+				pendingApplies++;
+			}
+		}
+		tasks.addOps(newTasks);
+	}
+
+	/**
+	 * Deletes the least important digests while the prefetched data is over its maximum, and freezes the downloads
+	 * until the applies release enough memory. The tasks of the deleted digests are deferred until an apply brings the
+	 * memory back under 3/4 of the maximum, or until their node reaches the frontier. If there is no apply to wait for
+	 * (the pinned digests of the frontier are over the maximum), the downloads are restarted without the deferred tasks.
+	 * @param applied true if the completed task applied a node, releasing its digests
+	 */
+	private void boundPrefetchedData(boolean applied) {
+		if (prefetched.isOverCapacity()) {
+			List<Task> evicted = new ArrayList<>();
+			while (prefetched.isOverCapacity()) {
+				Task victim = prefetched.deleteLessImportant();
+				if (victim == null) {
+					break;
+				}
+				history.setDigestEvicted(victim.getNodeId());
+				evicted.add(victim);
+			}
+			if (!evicted.isEmpty()) {
+				logger.debug(EELFLoggerDelegate.applicationLogger, "Deleted " + evicted.size() + " prefetched digests, "
+					+ prefetched.getBytes() + " bytes in use");
+				deferred.addAll(evicted);
+			}
+			tasks.freezeBelowLevel(Task.Type.DOWNLOAD_METADATA);
+		}
+		if (applied && prefetched.getBytes() <= prefetched.getMaxBytes() / 4 * 3) {
+			tasks.addOps(deferred);
+			deferred.clear();
+			tasks.restart();
+			return;
+		}
+		//The digests of the frontier are pinned, they can be downloaded again without being deleted
+		List<Task> frontier = new ArrayList<>();
+		for (Iterator<Task> it = deferred.iterator(); it.hasNext();) {
+			Task task = it.next();
+			if (history.parentsRestored(task.getNodeId())) {
+				frontier.add(task);
+				it.remove();
+			}
+		}
+		tasks.addOps(frontier);
+		if (tasks.isFrozen() && pendingApplies == 0) {
+			tasks.restart();
+		}
+	}
+
+	private synchronized void setFailed(Task task, Exception e) {
+		logger.error(EELFLoggerDelegate.errorLogger, "Redo recovery task " + task + " failed: " + e.getMessage());
+		if (failure == null) {
+			failure = (e instanceof MDBCServiceException) ? (MDBCServiceException) e
+				: new MDBCServiceException("Redo recovery task " + task + " failed: " + e.getMessage());
+		}
+		tasks.close();
+		notifyAll();
+	}
+
+	private synchronized void addHistory(List<RedoHistoryElement> elements) {
+		for (RedoHistoryElement element : elements) {
+			history.addHistory(element);
+		}
+	}
+
+	/**
+	 * Main loop of the threads of the pool
+	 */
+	private void runTasks() {
+		while (true) {
+			Task task;
+			try {
+				task = tasks.getNextTask();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (task == null) {
+				return;
+			}
+			try {
+				execute(task);
+				setCompleted(task);
+			} catch (MDBCServiceException | RuntimeException e) {
+				setFailed(task, e);
+			}
+		}
+	}
+
+	private void execute(Task task) throws MDBCServiceException {
+		switch (task.getType()) {
+			case DOWNLOAD_HISTORY: {
+				List<RedoHistoryElement> elements = mi.getHistory(new DatabasePartition(null, null, null, task.getPartition(), null, null));
+				if (elements != null) {
+					addHistory(elements);
+				}
+				break;
+			}
+			case DOWNLOAD_METADATA: {
+				HistoryGraph.Node node = history.getNode(task.getNodeId());
+				TransactionInformationElement meta = mi.getTransactionInformation(node.getTitReference());
+				if (meta == null) {
+					throw new MDBCServiceException("Transaction information row " + task.getNodeId() + " not found");
+				}
+				prefetched.addMetadata(task.getNodeId(), meta, task);
+				break;
+			}
+			case DOWNLOAD_DIGESTS: {
+				HashMap<Range, StagingTable> digest = mi.getTransactionDigest(task.getRecord());
+				prefetched.addDigest(task.getNodeId(), task.getRecord(), digest, task);
+				break;
+			}
+			case APPLY_DIGEST:
+				applyNode(task.getNodeId());
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Applies the pending digests of a node in the order of its redo log, only for the recovered tables
+	 */
+	private void applyNode(String nodeId) throws MDBCServiceException {
+		for (RedoRecordId record : DefaultRedoManagerLogic.pendingRecords(prefetched.getMetadata(nodeId))) {
+			HashMap<Range, StagingTable> digest = prefetched.getTransaction(nodeId, record);
+			if (digest == null) {
+				throw new MDBCServiceException("Digest " + record.leaseId + "," + record.commitId + " of " + nodeId + " was not prefetched");
+			}
+			HashMap<Range, StagingTable> filtered = new HashMap<>();
+			for (Map.Entry<Range, StagingTable> entry : digest.entrySet()) {
+				if (tables.contains(entry.getKey().table)) {
+					filtered.put(entry.getKey(), entry.getValue());
+				}
+			}
+			if (!filtered.isEmpty()) {
+				applier.apply(filtered);
+			}
+		}
+		prefetched.removeDigests(nodeId);
+	}
+
+	/**
+	 * @return the history of the last recovery, null if no recovery was performed
+	 */
+	public HistoryGraph getHistory() {
+		return history;
+	}
+}
@@ -0,0 +1,38 @@
+package com.att.research.mdbc.redo;
+
+import java.util.List;
+
+/**
+ * Logic used by the {@link RedoManager} to select the next tasks of the redo recovery. It is separated from the
+ * manager to allow different algorithms for selecting the tasks.
+ * <p>
+ * {@link #setCompleted(Task)} is called by a single thread at a time.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public interface RedoManagerLogic {
+	/**
+	 * Called once the history graph was created and numbered, and the metadata of all its nodes was downloaded
+	 * @param history history of the partitions that are recovered
+	 * @param data data that was prefetched for the recovery
+	 */
+	void init(HistoryGraph history, PrefetchedData data);
+
+	/**
+	 * @return the first tasks to execute after the metadata was downloaded
+	 */
+	List<Task> getInitialTasks();
+
+	/**
+	 * Records that a task was completed
+	 * @param completedTask task that was completed successfully
+	 * @return the new tasks that can be executed now
+	 */
+	List<Task> setCompleted(Task completedTask);
+
+	/**
+	 * @return true if all the nodes of the history were applied
+	 */
+	boolean isDone();
+}
@@ -0,0 +1,124 @@
+package com.att.research.mdbc.redo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.att.research.mdbc.tables.RedoRecordId;
+
+/**
+ * A unit of work of the redo recovery, executed by the thread pool of the {@link RedoManager}.
+ * <p>
+ * Tasks are ordered in the {@link TaskPriorityQueue} first by the priority of their type, then by the BFS number
+ * of the node of the {@link HistoryGraph} they are associated with (nodes closer to the roots first) and
+ * finally by creation order.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public final class Task {
+
+	/**
+	 * Types of tasks, a higher priority is executed first
+	 */
+	public enum Type {
+		DOWNLOAD_HISTORY(1),
+		DOWNLOAD_DIGESTS(2),
+		DOWNLOAD_METADATA(3),
+		APPLY_DIGEST(4);
+
+		private final int priority;
+
+		Type(int priority) {
+			this.priority = priority;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+	}
+
+	private static final AtomicLong sequence = new AtomicLong(0);
+
+	private final Type type;
+	private final String nodeId;
+	private final String partition;
+	private final int nodeNumber;
+	private final RedoRecordId record;
+	private final long seq;
+
+	private Task(Type type, String nodeId, String partition, int nodeNumber, RedoRecordId record) {
+		this.type = type;
+		this.nodeId = nodeId;
+		this.partition = partition;
+		this.nodeNumber = nodeNumber;
+		this.record = record;
+		this.seq = sequence.getAndIncrement();
+	}
+
+	/**
+	 * @param partition partition whose redo history is downloaded
+	 * @return a task that downloads the rows of the redo history table of a partition
+	 */
+	public static Task downloadHistory(String partition) {
+		return new Task(Type.DOWNLOAD_HISTORY, null, partition, Integer.MAX_VALUE, null);
+	}
+
+	/**
+	 * @param type either {@link Type#DOWNLOAD_METADATA} or {@link Type#APPLY_DIGEST}
+	 * @param node node of the history graph the task works on
+	 * @return a new task for the node
+	 */
+	public static Task forNode(Type type, HistoryGraph.Node node) {
+		return new Task(type, node.getId(), node.getPartition(), node.getNumber(), null);
+	}
+
+	/**
+	 * @param node node of the history graph that contains the redo record in its redo log
+	 * @param record redo record whose transaction digest is downloaded
+	 * @return a new task that downloads one transaction digest
+	 */
+	public static Task downloadDigest(HistoryGraph.Node node, RedoRecordId record) {
+		return new Task(Type.DOWNLOAD_DIGESTS, node.getId(), node.getPartition(), node.getNumber(), record);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return id of the node in the {@link HistoryGraph}, null for history downloads
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public String getPartition() {
+		return partition;
+	}
+
+	/**
+	 * @return BFS number of the node in the {@link HistoryGraph}, a lower number has a higher priority
+	 */
+	public int getNodeNumber() {
+		return nodeNumber;
+	}
+
+	/**
+	 * @return the redo record of a digest download, null for the other tasks
+	 */
+	public RedoRecordId getRecord() {
+		return record;
+	}
+
+	long getSequence() {
+		return seq;
+	}
+
+	@Override
+	public String toString() {
+		String target = (nodeId == null) ? partition : nodeId;
+		if (record != null) {
+			target += "," + record.leaseId + "," + record.commitId;
+		}
+		return type + "[" + target + "]";
+	}
+}
@@ -0,0 +1,114 @@
+package com.att.research.mdbc.redo;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Queue of the tasks that are waiting to be executed by the thread pool of the {@link RedoManager}.
+ * <p>
+ * The next task is the one with the highest {@link Task.Type} priority, ties are broken by the BFS number of the
+ * node (lowest first). Tasks below a priority level can be frozen, e.g. to stop the downloads when too much data
+ * was prefetched, they stay in the queue until {@link #restart()} is called.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class TaskPriorityQueue {
+
+	private static final Comparator<Task> ORDER = (a, b) -> {
+		int c = Integer.compare(b.getType().getPriority(), a.getType().getPriority());
+		if (c == 0) {
+			c = Integer.compare(a.getNodeNumber(), b.getNodeNumber());
+		}
+		if (c == 0) {
+			c = Long.compare(a.getSequence(), b.getSequence());
+		}
+		return c;
+	};
+
+	private final PriorityQueue<Task> queue;
+	private Task.Type frozenBelow;
+	private boolean closed;
+
+	public TaskPriorityQueue() {
+		this.queue = new PriorityQueue<>(ORDER);
+		this.frozenBelow = null;
+		this.closed = false;
+	}
+
+	public synchronized void addOp(Task task) {
+		queue.add(task);
+		notifyAll();
+	}
+
+	public synchronized void addOps(List<Task> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		queue.addAll(tasks);
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until there is a task that can be executed
+	 * @return the task with the highest priority, or null if the queue was closed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public synchronized Task getNextTask() throws InterruptedException {
+		while (!closed) {
+			Task head = queue.peek();
+			if (head != null && (frozenBelow == null || head.getType().getPriority() >= frozenBelow.getPriority())) {
+				return queue.poll();
+			}
+			wait();
+		}
+		return null;
+	}
+
+	/**
+	 * Stops returning tasks with a priority lower than <i>level</i>
+	 * @param level minimum priority of the tasks that are still executed
+	 * @return false if the queue was already frozen
+	 */
+	public synchronized boolean freezeBelowLevel(Task.Type level) {
+		if (frozenBelow != null) {
+			return false;
+		}
+		frozenBelow = level;
+		return true;
+	}
+
+	/**
+	 * Removes the freeze applied by {@link #freezeBelowLevel}
+	 * @return false if the queue was not frozen
+	 */
+	public synchronized boolean restart() {
+		if (frozenBelow == null) {
+			return false;
+		}
+		frozenBelow = null;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Wakes up all the threads waiting for tasks, {@link #getNextTask()} returns null after this call
+	 */
+	public synchronized void close() {
+		closed = true;
+		queue.clear();
+		notifyAll();
+	}
+
+	/**
+	 * @return true if a freeze was applied and the queue was not restarted yet
+	 */
+	public synchronized boolean isFrozen() {
+		return frozenBelow != null;
+	}
+
+	public synchronized int size() {
+		return queue.size();
+	}
+}
@@ -0,0 +1,14 @@
+/**
+ * <p>
+ * This package provides the REDO recovery used when a MDBC node takes over a partition, and needs to apply into its
+ * local database the transactions of the redo log that were not applied to the data tables in MUSIC yet.
+ * </p>
+ * <p>
+ * The entry point is {@link com.att.research.mdbc.redo.RedoManager}, which builds the
+ * {@link com.att.research.mdbc.redo.HistoryGraph} of the partitions and executes the download and apply
+ * {@link com.att.research.mdbc.redo.Task}s in a thread pool, in the order defined by the
+ * {@link com.att.research.mdbc.redo.TaskPriorityQueue} and the {@link com.att.research.mdbc.redo.RedoManagerLogic}.
+ * See docs/specs.md for the design.
+ * </p>
+ */
+package com.att.research.mdbc.redo;
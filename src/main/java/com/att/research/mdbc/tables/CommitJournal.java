@@ -0,0 +1,336 @@
+package com.att.research.mdbc.tables;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.att.research.logging.EELFLoggerDelegate;
+
+/**
+ * Local journal of the progress of the commits, used to finish them after a failure or a restart.
+ * <p>
+ * Every transition of a commit (see {@link TxCommitProgress}) is appended to a file as a small record with its length
+ * and a CRC32. Only the transitions that can not be recomputed are forced to disk: the redo record that was written
+ * into MUSIC, the local SQL commit, and the digest of a transaction that was committed locally before being sent to
+ * MUSIC, or the state of the capture that lets the digest be collected again. When a commit completes it is removed from the journal, and once the file grows over
+ * {@value #COMPACT_BYTES} bytes it is rewritten with only the commits that are still open.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class CommitJournal implements Closeable {
+	private static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(CommitJournal.class);
+
+	static final String JOURNAL_FILE = "commits.journal";
+	/** Size of the journal (bytes) after which it is rewritten with only the open commits */
+	static final long COMPACT_BYTES = 1024*1024;
+
+	private static final byte REQUESTED = 1;
+	private static final byte SQL_DONE = 2;
+	private static final byte MUSIC_DONE = 3;
+	private static final byte RECORD_ID = 4;
+	private static final byte DIGEST = 5;
+	private static final byte COMPLETED = 6;
+	private static final byte CAPTURE = 7;
+
+	/**
+	 * Progress of a commit that did not complete, as read from the journal
+	 */
+	public static class Entry {
+		public final String journalId;
+		public final String txId;
+		private boolean sqlDone;
+		private boolean musicDone;
+		private RedoRecordId recordId;
+		private byte[] digest;
+		private String captureState;
+
+		Entry(String journalId, String txId) {
+			this.journalId = journalId;
+			this.txId = txId;
+		}
+
+		public boolean isSQLDone() {
+			return sqlDone;
+		}
+
+		public boolean isMusicDone() {
+			return musicDone;
+		}
+
+		public RedoRecordId getRecordId() {
+			return recordId;
+		}
+
+		public byte[] getDigest() {
+			return digest;
+		}
+
+		public String getCaptureState() {
+			return captureState;
+		}
+	}
+
+	private final File directory;
+	private final Map<String,Entry> open;
+	private FileChannel channel;
+
+	/**
+	 * Opens the journal, the commits that were open when it was last closed are loaded
+	 * @param directory directory of the journal, it is created if it doesn't exist
+	 * @throws IOException if the journal can not be read or created
+	 */
+	public CommitJournal(File directory) throws IOException {
+		this.directory = directory;
+		this.open = new LinkedHashMap<>();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Directory "+directory+" for the commit journal could not be created");
+		}
+		File file = new File(directory, JOURNAL_FILE);
+		if (file.exists()) {
+			load(file);
+		}
+		// starts from a compact file, without the completed commits or a torn record at the end
+		rewrite();
+		if (!open.isEmpty()) {
+			logger.info(EELFLoggerDelegate.applicationLogger, "Commit journal in "+directory+" has "+open.size()+" commits that did not complete");
+		}
+	}
+
+	private void load(File file) throws IOException {
+		byte[] data = Files.readAllBytes(file.toPath());
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.remaining() >= 8) {
+			int length = buffer.getInt();
+			int crc = buffer.getInt();
+			if (length <= 0 || length > buffer.remaining()) {
+				break;
+			}
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			CRC32 check = new CRC32();
+			check.update(payload);
+			if ((int) check.getValue() != crc) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Invalid record in the commit journal at "+(buffer.position() - length - 8)+", the rest is ignored");
+				break;
+			}
+			apply(new DataInputStream(new ByteArrayInputStream(payload)));
+		}
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		String journalId = in.readUTF();
+		if (type == REQUESTED) {
+			open.put(journalId, new Entry(journalId, in.readUTF()));
+			return;
+		}
+		Entry entry = open.get(journalId);
+		if (entry == null) {
+			return;
+		}
+		switch (type) {
+			case SQL_DONE:
+				entry.sqlDone = true;
+				break;
+			case MUSIC_DONE:
+				entry.musicDone = true;
+				break;
+			case RECORD_ID:
+				entry.recordId = new RedoRecordId(in.readUTF(), in.readUTF());
+				break;
+			case DIGEST:
+				entry.digest = new byte[in.readInt()];
+				in.readFully(entry.digest);
+				break;
+			case CAPTURE:
+				entry.captureState = in.readUTF();
+				break;
+			case COMPLETED:
+				open.remove(journalId);
+				break;
+			default:
+				throw new IOException("Unknown record type "+type+" in the commit journal");
+		}
+	}
+
+	/**
+	 * Writes the open commits into a new file, that atomically replaces the journal
+	 */
+	private void rewrite() throws IOException {
+		File tmp = new File(directory, JOURNAL_FILE+".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			raf.setLength(0);
+			FileChannel out = raf.getChannel();
+			for (Entry entry : open.values()) {
+				write(out, encode(REQUESTED, entry.journalId, entry.txId));
+				if (entry.sqlDone) {
+					write(out, encode(SQL_DONE, entry.journalId));
+				}
+				if (entry.musicDone) {
+					write(out, encode(MUSIC_DONE, entry.journalId));
+				}
+				if (entry.recordId != null) {
+					write(out, encode(RECORD_ID, entry.journalId, entry.recordId.leaseId, entry.recordId.commitId));
+				}
+				if (entry.digest != null) {
+					write(out, encodeDigest(entry.journalId, entry.digest));
+				}
+				if (entry.captureState != null) {
+					write(out, encode(CAPTURE, entry.journalId, entry.captureState));
+				}
+			}
+			out.force(true);
+		}
+		if (channel != null) {
+			channel.close();
+		}
+		Files.move(tmp.toPath(), new File(directory, JOURNAL_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(new File(directory, JOURNAL_FILE).toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private static byte[] encode(byte type, String journalId, String... values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeUTF(journalId);
+		for (String value : values) {
+			out.writeUTF(value);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeDigest(String journalId, byte[] digest) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(DIGEST);
+		out.writeUTF(journalId);
+		out.writeInt(digest.length);
+		out.write(digest);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void write(FileChannel out, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+		record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+		record.flip();
+		while (record.hasRemaining()) {
+			out.write(record);
+		}
+	}
+
+	private synchronized void append(byte[] payload, boolean force) throws IOException {
+		write(channel, payload);
+		if (force) {
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * @param journalId unique id of the commit in the journal
+	 * @param txId transaction (connection) that requested the commit
+	 */
+	public synchronized void requested(String journalId, String txId) throws IOException {
+		open.put(journalId, new Entry(journalId, txId));
+		append(encode(REQUESTED, journalId, txId), false);
+	}
+
+	public synchronized void sqlDone(String journalId) throws IOException {
+		Entry entry = open.get(journalId);
+		if (entry != null) {
+			entry.sqlDone = true;
+			append(encode(SQL_DONE, journalId), true);
+		}
+	}
+
+	public synchronized void musicDone(String journalId) throws IOException {
+		Entry entry = open.get(journalId);
+		if (entry != null) {
+			entry.musicDone = true;
+			append(encode(MUSIC_DONE, journalId), false);
+		}
+	}
+
+	/**
+	 * The digest of the commit was written into MUSIC with this redo record
+	 */
+	public synchronized void recordId(String journalId, RedoRecordId recordId) throws IOException {
+		Entry entry = open.get(journalId);
+		if (entry != null) {
+			entry.recordId = recordId;
+			append(encode(RECORD_ID, journalId, recordId.leaseId, recordId.commitId), true);
+		}
+	}
+
+	/**
+	 * Stores the encoded digest of a commit that is not yet in MUSIC, so it can be sent again after a restart
+	 */
+	public synchronized void digest(String journalId, byte[] digest) throws IOException {
+		Entry entry = open.get(journalId);
+		if (entry != null) {
+			entry.digest = digest;
+			append(encodeDigest(journalId, digest), true);
+		}
+	}
+
+	/**
+	 * Stores where the changes of a commit that is done locally before MUSIC can be read again, it is written before
+	 * the local commit so the digest can be collected again after a restart
+	 */
+	public synchronized void captureState(String journalId, String captureState) throws IOException {
+		Entry entry = open.get(journalId);
+		if (entry != null) {
+			entry.captureState = captureState;
+			append(encode(CAPTURE, journalId, captureState), true);
+		}
+	}
+
+	/**
+	 * The commit completed, or was abandoned before any of its steps were done
+	 */
+	public synchronized void completed(String journalId) throws IOException {
+		if (open.remove(journalId) == null) {
+			return;
+		}
+		append(encode(COMPLETED, journalId), false);
+		if (channel.size() > COMPACT_BYTES) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * @return the commits that did not complete, in the order in which they were requested
+	 */
+	public synchronized Collection<Entry> getOpenEntries() {
+		return new ArrayList<>(open.values());
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Commit journal in "+directory+" could not be closed: "+e.getMessage());
+		}
+	}
+}
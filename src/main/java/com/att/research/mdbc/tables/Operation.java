@@ -1,6 +1,8 @@
 package com.att.research.mdbc.tables;
 
 import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -12,24 +14,89 @@ public final class Operation implements Serializable{
 	final OperationType TYPE;
 	final String OLD_VAL;
 	final String NEW_VAL;
+	// typed images of the row, used instead of the json strings when the mixin captures Java objects
+	final LinkedHashMap<String,Object> OLD_ROW;
+	final LinkedHashMap<String,Object> NEW_ROW;
 
 	public Operation(OperationType type, String newVal, String oldVal) {
 		TYPE = type;
 		NEW_VAL = newVal;
 		OLD_VAL = oldVal;
+		NEW_ROW = null;
+		OLD_ROW = null;
+	}
+
+	/**
+	 * Creates an operation from typed row images, the values should be Java objects as returned by JDBC
+	 * @param type type of the operation
+	 * @param newRow column name to value, in column order
+	 * @param oldRow column name to value of the key columns (all the columns if the table has no key) before the change
+	 */
+	public Operation(OperationType type, Map<String,Object> newRow, Map<String,Object> oldRow) {
+		TYPE = type;
+		NEW_VAL = null;
+		OLD_VAL = null;
+		NEW_ROW = (newRow == null) ? null : new LinkedHashMap<>(newRow);
+		OLD_ROW = (oldRow == null) ? null : new LinkedHashMap<>(oldRow);
+	}
+
+	/**
+	 * Creates an operation of the given type, taking the new value from one operation and the old value from another
+	 */
+	Operation(OperationType type, Operation newSource, Operation oldSource) {
+		TYPE = type;
+		NEW_VAL = newSource.NEW_VAL;
+		NEW_ROW = newSource.NEW_ROW;
+		OLD_VAL = oldSource.OLD_VAL;
+		OLD_ROW = oldSource.OLD_ROW;
 	}
 
 	public JSONObject getNewVal(){
+		if(NEW_ROW != null) {
+			return toJson(NEW_ROW);
+		}
         JSONObject newRow  = new JSONObject(new JSONTokener(NEW_VAL));
         return newRow;
     }
 
     public JSONObject getOldVal(){
+		if(OLD_ROW != null) {
+			return toJson(OLD_ROW);
+		}
         JSONObject keydata = new JSONObject(new JSONTokener(OLD_VAL));
         return keydata;
     }
-    
+
+	/**
+	 * @return true if the operation holds typed row images instead of json strings
+	 */
+	public boolean isTyped() {
+		return NEW_ROW != null || OLD_ROW != null;
+	}
+
+	/**
+	 * @return the typed new row image, or null if the operation was created from json strings
+	 */
+	public Map<String,Object> getNewRow() {
+		return NEW_ROW;
+	}
+
+	/**
+	 * @return the typed old row image, or null if the operation was created from json strings
+	 */
+	public Map<String,Object> getOldRow() {
+		return OLD_ROW;
+	}
+
     public OperationType getOperationType() {
     	return this.TYPE;
     }
+
+	private static JSONObject toJson(Map<String,Object> row) {
+		JSONObject json = new JSONObject();
+		for(Map.Entry<String,Object> e : row.entrySet()) {
+			json.put(e.getKey(), (e.getValue() == null) ? JSONObject.NULL : e.getValue());
+		}
+		return json;
+	}
 }
@@ -1,5 +1,7 @@
 package com.att.research.mdbc.tables;
 
+import java.util.Objects;
+
 public final class RedoRecordId {
 	public final String leaseId;
 	public final String commitId;
@@ -12,4 +14,21 @@ public final class RedoRecordId {
 	public boolean isEmpty() {
 		return (this.leaseId==null || this.leaseId.isEmpty())&&(this.commitId==null||this.commitId.isEmpty());
 	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof RedoRecordId)) {
+			return false;
+		}
+		RedoRecordId other = (RedoRecordId) o;
+		return Objects.equals(leaseId, other.leaseId) && Objects.equals(commitId, other.commitId);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(leaseId, commitId);
+	}
 }
@@ -4,7 +4,9 @@ import java.io.Serializable;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import org.apache.commons.lang3.tuple.Pair;
 import org.json.JSONObject;
 
@@ -18,16 +20,106 @@ public class StagingTable implements Serializable{
 	private transient static EELFLoggerDelegate logger = EELFLoggerDelegate.getLogger(StagingTable.class);
 	//primary key -> Operation
 	private HashMap<String,Deque<Operation>> operations;
+	//if true, only the net effect of the operations is kept for each key
+	private final boolean coalesce;
 	
 	public StagingTable() {
+		this(false);
+	}
+
+	/**
+	 * @param coalesce if true, the operations over the same key are folded into a single operation as they
+	 * arrive, keeping the old value of the first operation and the new value of the last one
+	 */
+	public StagingTable(boolean coalesce) {
 		operations = new HashMap<>();
+		this.coalesce = coalesce;
 	}
 	
 	synchronized public void addOperation(String key, OperationType type, String oldVal, String newVal) {
-		if(!operations.containsKey(key)) {
-			operations.put(key, new LinkedList<>());
+		add(key, new Operation(type,newVal,oldVal));
+	}
+
+	/**
+	 * Adds an operation with typed row images, see {@link Operation#Operation(OperationType, Map, Map)}
+	 */
+	synchronized public void addRowOperation(String key, OperationType type, Map<String,Object> oldRow, Map<String,Object> newRow) {
+		add(key, new Operation(type,newRow,oldRow));
+	}
+
+	/**
+	 * Adds all the operations of another table, in the order in which they were added to it. If this table
+	 * is coalescing, the result is the net effect of both tables for each key.
+	 * @param other operations that happened after the ones in this table
+	 */
+	synchronized public void addAll(StagingTable other) {
+		other.forEachOperation(this::add);
+	}
+
+	private void add(String key, Operation op) {
+		Deque<Operation> ops = operations.get(key);
+		if(ops == null) {
+			ops = new LinkedList<>();
+			operations.put(key, ops);
+		}
+		if(!coalesce || ops.isEmpty()) {
+			ops.add(op);
+			return;
+		}
+		Operation merged = merge(ops.getLast(), op);
+		ops.clear();
+		if(merged == null) {
+			operations.remove(key);
+		}
+		else {
+			ops.add(merged);
+		}
+	}
+
+	/**
+	 * Computes the net effect of two consecutive operations over the same key
+	 * @return the resulting operation, or null if the operations cancel each other
+	 */
+	private static Operation merge(Operation previous, Operation next) {
+		OperationType type = next.TYPE;
+		if(type == OperationType.SELECT) {
+			return previous;
+		}
+		switch(previous.TYPE) {
+			case INSERT:
+				if(type == OperationType.UPDATE) {
+					// the row didn't exist before the transaction, so it is still an insert
+					return new Operation(OperationType.INSERT, next, previous);
+				}
+				if(type == OperationType.DELETE) {
+					// the row was created and removed within the transaction
+					return null;
+				}
+				break;
+			case UPDATE:
+				if(type == OperationType.UPDATE || type == OperationType.DELETE) {
+					return new Operation(type, next, previous);
+				}
+				break;
+			case DELETE:
+				if(type == OperationType.INSERT) {
+					// the row existed before the transaction, so the delete and insert is an update
+					return new Operation(OperationType.UPDATE, next, previous);
+				}
+				break;
+			default:
+				break;
 		}
-		operations.get(key).add(new Operation(type,newVal,oldVal));
+		// Any other sequence is not valid for a single row, just keep the latest operation
+		logger.debug(EELFLoggerDelegate.applicationLogger, "Unexpected sequence of operations "+previous.TYPE+" -> "+type);
+		return next;
+	}
+
+	/**
+	 * @return true if the operations over the same key are coalesced
+	 */
+	public boolean isCoalescing() {
+		return coalesce;
 	}
 	
 	synchronized public Deque<Pair<String,Operation>> getIterableSnapshot() throws NoSuchFieldException{
@@ -45,6 +137,59 @@ public class StagingTable implements Serializable{
 		return response;
 	}
 	
+	/**
+	 * Visits all the operations, grouped by key and in the order in which they were added
+	 * @param consumer receives the key and the operation
+	 */
+	synchronized void forEachOperation(BiConsumer<String,Operation> consumer) {
+		for(Map.Entry<String,Deque<Operation>> entry : operations.entrySet()) {
+			for(Operation op : entry.getValue()) {
+				consumer.accept(entry.getKey(), op);
+			}
+		}
+	}
+	
+	/**
+	 * Estimates the heap used by the operations of this table. It is not exact, it is used to bound the memory
+	 * used by the digests that are kept in memory (e.g. during the redo recovery)
+	 * @return approximate size in bytes
+	 */
+	synchronized public long getEstimatedSize() {
+		long size = 64;
+		for(Map.Entry<String,Deque<Operation>> entry : operations.entrySet()) {
+			size += 64 + stringSize(entry.getKey());
+			for(Operation op : entry.getValue()) {
+				size += 48 + stringSize(op.NEW_VAL) + stringSize(op.OLD_VAL) + rowSize(op.NEW_ROW) + rowSize(op.OLD_ROW);
+			}
+		}
+		return size;
+	}
+
+	private static long stringSize(String s) {
+		return (s == null) ? 0 : 40 + 2L * s.length();
+	}
+
+	private static long rowSize(Map<String,Object> row) {
+		if(row == null) {
+			return 0;
+		}
+		long size = 64;
+		for(Map.Entry<String,Object> e : row.entrySet()) {
+			size += 48 + stringSize(e.getKey());
+			Object value = e.getValue();
+			if(value instanceof String) {
+				size += stringSize((String) value);
+			}
+			else if(value instanceof byte[]) {
+				size += 16 + ((byte[]) value).length;
+			}
+			else if(value != null) {
+				size += 24;
+			}
+		}
+		return size;
+	}
+
 	synchronized public void clean() {
 		operations.clear();
 	}
@@ -1,5 +1,7 @@
 package com.att.research.mdbc.tables;
 
+import java.util.Objects;
+
 public final class TitReference {
 	public final String table;
 	public final String index;
@@ -9,4 +11,25 @@ public final class TitReference {
 		this.index=  index;
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof TitReference)) {
+			return false;
+		}
+		TitReference other = (TitReference) o;
+		return Objects.equals(table, other.table) && Objects.equals(index, other.index);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(table, index);
+	}
+
+	@Override
+	public String toString() {
+		return table + "." + index;
+	}
 }
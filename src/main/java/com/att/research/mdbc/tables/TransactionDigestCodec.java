@@ -0,0 +1,737 @@
+package com.att.research.mdbc.tables;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.xerial.snappy.Snappy;
+
+import com.att.research.mdbc.Range;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Binary codec for transaction digests (the map from range to staging table that is pushed into the RRT).
+ * <p>
+ * Format (version 1):
+ * </p>
+ * <pre>
+ * header : 'M' 'D' version(1 byte) compression(1 byte) [uncompressed length (varint), only if compressed]
+ * body   : table count (varint) table*
+ * table  : name (string) column count (varint) column name (string)* entry count (varint) entry*
+ * entry  : key (string) operation type (1 byte: 0 delete, 1 update, 2 insert, 3 select) new row, old row
+ * row    : 0 (absent) | 1 field count (varint) [column index (varint) value]* | 2 raw string
+ * value  : type tag (1 byte) followed by a zig-zag varint, an 8 byte double, a string, a byte array (length
+ *          (varint) and bytes), a timestamp (zig-zag varint milliseconds and varint nanoseconds) or a uuid (16 bytes)
+ * </pre>
+ * <p>
+ * Column names are written once per table, and the rows only contain the index of the column. The encoder
+ * writes into a buffer that is reused across calls, so an instance of this class is not thread safe, and it
+ * should be used through a ThreadLocal or owned by a single thread.
+ * </p>
+ *
+ * @author Enrique Saurez
+ */
+public class TransactionDigestCodec {
+	/** Current version of the binary format */
+	public static final byte VERSION = 1;
+	/** Digests smaller than this are never compressed */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+	private static final byte MAGIC_0 = 'M';
+	private static final byte MAGIC_1 = 'D';
+	private static final int HEADER_SIZE = 4;
+
+	private static final byte ROW_ABSENT = 0;
+	private static final byte ROW_OBJECT = 1;
+	private static final byte ROW_RAW = 2;
+
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_FALSE = 1;
+	private static final byte TAG_TRUE = 2;
+	private static final byte TAG_INTEGER = 3;
+	private static final byte TAG_DOUBLE = 4;
+	private static final byte TAG_STRING = 5;
+	private static final byte TAG_DECIMAL = 6;
+	private static final byte TAG_BIGINTEGER = 7;
+	private static final byte TAG_JSON = 8;
+	private static final byte TAG_BYTES = 9;
+	private static final byte TAG_TIMESTAMP = 10;
+	private static final byte TAG_DATE = 11;
+	private static final byte TAG_TIME = 12;
+	private static final byte TAG_UUID = 13;
+
+	// codes of the operation types, they are part of the format and never change with the order of the enum
+	private static final byte OP_DELETE = 0;
+	private static final byte OP_UPDATE = 1;
+	private static final byte OP_INSERT = 2;
+	private static final byte OP_SELECT = 3;
+
+	/**
+	 * Block compression applied to the body of the digest
+	 */
+	public enum Compression {
+		NONE((byte)0), LZ4((byte)1), SNAPPY((byte)2);
+
+		private final byte id;
+
+		Compression(byte id) {
+			this.id = id;
+		}
+
+		static Compression fromId(byte id) throws IOException {
+			for(Compression c : values()) {
+				if(c.id == id) {
+					return c;
+				}
+			}
+			throw new IOException("Invalid compression in transaction digest: "+id);
+		}
+
+		/**
+		 * @param name name of the compression, as used in the configuration files (none, lz4, snappy)
+		 * @return the corresponding compression, NONE if the name is null or empty
+		 */
+		public static Compression fromName(String name) {
+			if(name == null || name.trim().isEmpty()) {
+				return NONE;
+			}
+			return valueOf(name.trim().toUpperCase());
+		}
+	}
+
+	private static final LZ4Factory lz4Factory = LZ4Factory.fastestInstance();
+
+	private final Compression compression;
+	private final int compressionThreshold;
+	private byte[] buffer;
+	private int position;
+	private byte[] compressed;
+
+	public TransactionDigestCodec() {
+		this(Compression.NONE, DEFAULT_COMPRESSION_THRESHOLD);
+	}
+
+	/**
+	 * @param compression compression used for digests bigger than the threshold
+	 * @param compressionThreshold minimum size (in bytes) of the body of a digest to be compressed
+	 */
+	public TransactionDigestCodec(Compression compression, int compressionThreshold) {
+		this.compression = compression;
+		this.compressionThreshold = compressionThreshold;
+		this.buffer = new byte[4096];
+		this.position = 0;
+		this.compressed = null;
+	}
+
+	/**
+	 * Encodes a transaction digest
+	 * @param transactionDigest digest to be encoded
+	 * @return a new array with the encoded digest
+	 * @throws IOException if a value has a type that can not be encoded, or the digest could not be compressed
+	 */
+	public byte[] encode(Map<Range,StagingTable> transactionDigest) throws IOException {
+		position = 0;
+		writeVarLong(transactionDigest.size());
+		for(Map.Entry<Range,StagingTable> entry : transactionDigest.entrySet()) {
+			writeTable(entry.getKey().table, entry.getValue());
+		}
+		return finish();
+	}
+
+	private void writeTable(String tableName, StagingTable table) throws IOException {
+		final List<String> keys = new ArrayList<>();
+		final List<Operation> operations = new ArrayList<>();
+		table.forEachOperation((key, op) -> {
+			keys.add(key);
+			operations.add(op);
+		});
+		// First pass: parse the rows and build the column dictionary
+		Map<String,Integer> columns = new LinkedHashMap<>();
+		Object[] newRows = new Object[operations.size()];
+		Object[] oldRows = new Object[operations.size()];
+		for(int i = 0; i < operations.size(); i++) {
+			Operation op = operations.get(i);
+			newRows[i] = parseRow((op.NEW_ROW != null) ? op.NEW_ROW : op.NEW_VAL, columns);
+			oldRows[i] = parseRow((op.OLD_ROW != null) ? op.OLD_ROW : op.OLD_VAL, columns);
+		}
+		writeString(tableName);
+		writeVarLong(columns.size());
+		for(String column : columns.keySet()) {
+			writeString(column);
+		}
+		// Second pass: write the entries
+		writeVarLong(operations.size());
+		for(int i = 0; i < operations.size(); i++) {
+			writeString(keys.get(i));
+			writeByte(operationCode(operations.get(i).TYPE));
+			writeRow(newRows[i], columns);
+			writeRow(oldRows[i], columns);
+		}
+	}
+
+	/**
+	 * @return a typed row or a JSONObject if the value is a valid JSON object, otherwise the raw string (or null)
+	 */
+	private static Object parseRow(Object value, Map<String,Integer> columns) {
+		if(value == null) {
+			return null;
+		}
+		if(value instanceof Map) {
+			for(Object column : ((Map<?,?>) value).keySet()) {
+				if(!columns.containsKey(column)) {
+					columns.put((String) column, columns.size());
+				}
+			}
+			return value;
+		}
+		String trimmed = ((String) value).trim();
+		if(!trimmed.startsWith("{")) {
+			return value;
+		}
+		JSONObject row;
+		try {
+			row = new JSONObject(new JSONTokener(trimmed));
+		} catch (JSONException e) {
+			return value;
+		}
+		for(String column : row.keySet()) {
+			if(!columns.containsKey(column)) {
+				columns.put(column, columns.size());
+			}
+		}
+		return row;
+	}
+
+	private void writeRow(Object row, Map<String,Integer> columns) throws IOException {
+		if(row == null) {
+			writeByte(ROW_ABSENT);
+		}
+		else if(row instanceof JSONObject) {
+			JSONObject obj = (JSONObject) row;
+			writeByte(ROW_OBJECT);
+			writeVarLong(obj.length());
+			for(String column : obj.keySet()) {
+				writeVarLong(columns.get(column));
+				writeValue(obj.get(column));
+			}
+		}
+		else if(row instanceof Map) {
+			Map<?,?> map = (Map<?,?>) row;
+			writeByte(ROW_OBJECT);
+			writeVarLong(map.size());
+			for(Map.Entry<?,?> e : map.entrySet()) {
+				writeVarLong(columns.get(e.getKey()));
+				writeValue(e.getValue());
+			}
+		}
+		else {
+			writeByte(ROW_RAW);
+			writeString((String) row);
+		}
+	}
+
+	private void writeValue(Object value) throws IOException {
+		if(value == null || JSONObject.NULL.equals(value)) {
+			writeByte(TAG_NULL);
+		}
+		else if(value instanceof Boolean) {
+			writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+		}
+		else if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			writeByte(TAG_INTEGER);
+			writeZigZag(((Number) value).longValue());
+		}
+		else if(value instanceof Double || value instanceof Float) {
+			writeByte(TAG_DOUBLE);
+			writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+		}
+		else if(value instanceof BigDecimal) {
+			writeByte(TAG_DECIMAL);
+			writeString(value.toString());
+		}
+		else if(value instanceof BigInteger) {
+			writeByte(TAG_BIGINTEGER);
+			writeString(value.toString());
+		}
+		else if(value instanceof JSONObject || value instanceof JSONArray) {
+			writeByte(TAG_JSON);
+			writeString(value.toString());
+		}
+		else if(value instanceof String || value instanceof Character) {
+			writeByte(TAG_STRING);
+			writeString(value.toString());
+		}
+		else if(value instanceof byte[]) {
+			writeByte(TAG_BYTES);
+			writeBytes((byte[]) value);
+		}
+		else if(value instanceof Timestamp) {
+			writeByte(TAG_TIMESTAMP);
+			writeZigZag(((Timestamp) value).getTime());
+			writeVarLong(((Timestamp) value).getNanos());
+		}
+		else if(value instanceof java.sql.Date) {
+			writeByte(TAG_DATE);
+			writeZigZag(((java.sql.Date) value).getTime());
+		}
+		else if(value instanceof Time) {
+			writeByte(TAG_TIME);
+			writeZigZag(((Time) value).getTime());
+		}
+		else if(value instanceof UUID) {
+			writeByte(TAG_UUID);
+			writeLong(((UUID) value).getMostSignificantBits());
+			writeLong(((UUID) value).getLeastSignificantBits());
+		}
+		else {
+			// a string would not be read back as the same type, so the value would be silently changed
+			throw new IOException("Transaction digest can not encode values of type "+value.getClass().getName());
+		}
+	}
+
+	private byte[] finish() throws IOException {
+		int bodyLength = position;
+		if(compression == Compression.NONE || bodyLength < compressionThreshold) {
+			byte[] out = new byte[HEADER_SIZE + bodyLength];
+			writeHeader(out, Compression.NONE);
+			System.arraycopy(buffer, 0, out, HEADER_SIZE, bodyLength);
+			return out;
+		}
+		// The header and the uncompressed length (max 5 bytes) go before the compressed block
+		int offset = HEADER_SIZE + varIntSize(bodyLength);
+		int maxLength;
+		if(compression == Compression.LZ4) {
+			maxLength = lz4Factory.fastCompressor().maxCompressedLength(bodyLength);
+		}
+		else {
+			maxLength = Snappy.maxCompressedLength(bodyLength);
+		}
+		if(compressed == null || compressed.length < offset + maxLength) {
+			compressed = new byte[offset + maxLength];
+		}
+		int compressedLength;
+		if(compression == Compression.LZ4) {
+			LZ4Compressor compressor = lz4Factory.fastCompressor();
+			compressedLength = compressor.compress(buffer, 0, bodyLength, compressed, offset, maxLength);
+		}
+		else {
+			compressedLength = Snappy.compress(buffer, 0, bodyLength, compressed, offset);
+		}
+		writeHeader(compressed, compression);
+		int pos = HEADER_SIZE;
+		long v = bodyLength;
+		while((v & ~0x7FL) != 0) {
+			compressed[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		compressed[pos] = (byte) v;
+		return Arrays.copyOf(compressed, offset + compressedLength);
+	}
+
+	private static void writeHeader(byte[] out, Compression c) {
+		out[0] = MAGIC_0;
+		out[1] = MAGIC_1;
+		out[2] = VERSION;
+		out[3] = c.id;
+	}
+
+	private static int varIntSize(long v) {
+		int size = 1;
+		while((v & ~0x7FL) != 0) {
+			size++;
+			v >>>= 7;
+		}
+		return size;
+	}
+
+	private void ensureCapacity(int extra) {
+		if(position + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+		}
+	}
+
+	private void writeByte(byte b) {
+		ensureCapacity(1);
+		buffer[position++] = b;
+	}
+
+	private void writeVarLong(long v) {
+		ensureCapacity(10);
+		while((v & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buffer[position++] = (byte) v;
+	}
+
+	private void writeZigZag(long v) {
+		writeVarLong((v << 1) ^ (v >> 63));
+	}
+
+	private void writeLong(long v) {
+		ensureCapacity(8);
+		for(int i = 7; i >= 0; i--) {
+			buffer[position++] = (byte) (v >>> (i * 8));
+		}
+	}
+
+	private static byte operationCode(OperationType type) throws IOException {
+		switch(type) {
+			case DELETE:
+				return OP_DELETE;
+			case UPDATE:
+				return OP_UPDATE;
+			case INSERT:
+				return OP_INSERT;
+			case SELECT:
+				return OP_SELECT;
+			default:
+				throw new IOException("Operation type without a code in the transaction digest: "+type);
+		}
+	}
+
+	private static OperationType operationType(byte code) throws IOException {
+		switch(code) {
+			case OP_DELETE:
+				return OperationType.DELETE;
+			case OP_UPDATE:
+				return OperationType.UPDATE;
+			case OP_INSERT:
+				return OperationType.INSERT;
+			case OP_SELECT:
+				return OperationType.SELECT;
+			default:
+				throw new IOException("Invalid operation type in transaction digest: "+code);
+		}
+	}
+
+	private void writeString(String s) {
+		writeBytes(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void writeBytes(byte[] bytes) {
+		writeVarLong(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	/**
+	 * Decodes a full transaction digest
+	 * @param data encoded digest
+	 * @return the transaction digest, with one staging table per range
+	 * @throws IOException if the digest is malformed
+	 */
+	public static HashMap<Range,StagingTable> decode(byte[] data) throws IOException {
+		HashMap<Range,StagingTable> digest = new HashMap<>();
+		Decoder decoder = decoder(data);
+		while(decoder.next()) {
+			Range range = decoder.getRange();
+			StagingTable table = digest.get(range);
+			if(table == null) {
+				table = new StagingTable();
+				digest.put(range, table);
+			}
+			if(decoder.newRaw == null && decoder.oldRaw == null && (decoder.newRow != null || decoder.oldRow != null)) {
+				// the typed values (e.g. binary or temporal) are kept, they would be lost in json
+				table.addRowOperation(decoder.getKey(), decoder.getOperationType(), decoder.getOldRow(), decoder.getNewRow());
+			}
+			else {
+				Operation op = decoder.getOperation();
+				table.addOperation(decoder.getKey(), op.TYPE, op.OLD_VAL, op.NEW_VAL);
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * Creates a streaming decoder, that returns one operation at a time without building the staging tables
+	 * @param data encoded digest
+	 * @return the decoder, positioned before the first operation
+	 * @throws IOException if the header is invalid or the body can not be decompressed
+	 */
+	public static Decoder decoder(byte[] data) throws IOException {
+		if(data == null || data.length < HEADER_SIZE || data[0] != MAGIC_0 || data[1] != MAGIC_1) {
+			throw new IOException("Invalid transaction digest header");
+		}
+		if(data[2] != VERSION) {
+			throw new IOException("Unsupported transaction digest version: "+data[2]);
+		}
+		Compression c = Compression.fromId(data[3]);
+		if(c == Compression.NONE) {
+			return new Decoder(data, HEADER_SIZE, data.length);
+		}
+		Decoder lengthReader = new Decoder(data, HEADER_SIZE, data.length);
+		int length = (int) lengthReader.readVarLong();
+		int offset = lengthReader.pos;
+		byte[] body = new byte[length];
+		if(c == Compression.LZ4) {
+			LZ4FastDecompressor decompressor = lz4Factory.fastDecompressor();
+			decompressor.decompress(data, offset, body, 0, length);
+		}
+		else {
+			Snappy.uncompress(data, offset, data.length - offset, body, 0);
+		}
+		return new Decoder(body, 0, length);
+	}
+
+	/**
+	 * Streaming decoder for a transaction digest, used when applying redo records. The typed rows can be used
+	 * directly, without going through JSON.
+	 */
+	public static class Decoder {
+		private final byte[] data;
+		private final int limit;
+		private int pos;
+		private boolean started;
+		private long tablesRemaining;
+		private long entriesRemaining;
+		private Range range;
+		private String[] columns;
+		private String key;
+		private OperationType type;
+		private Map<String,Object> newRow;
+		private Map<String,Object> oldRow;
+		private String newRaw;
+		private String oldRaw;
+		private String lastRaw;
+
+		Decoder(byte[] data, int offset, int limit) {
+			this.data = data;
+			this.pos = offset;
+			this.limit = limit;
+			this.started = false;
+		}
+
+		/**
+		 * Advances to the next operation in the digest
+		 * @return false if there are no more operations
+		 * @throws IOException if the digest is malformed
+		 */
+		public boolean next() throws IOException {
+			if(!started) {
+				tablesRemaining = readVarLong();
+				entriesRemaining = 0;
+				started = true;
+			}
+			while(entriesRemaining == 0) {
+				if(tablesRemaining == 0) {
+					return false;
+				}
+				readTableHeader();
+				tablesRemaining--;
+			}
+			key = readString();
+			type = operationType(readByte());
+			newRaw = null;
+			oldRaw = null;
+			newRow = readRow();
+			if(newRow == null) {
+				newRaw = lastRaw;
+			}
+			oldRow = readRow();
+			if(oldRow == null) {
+				oldRaw = lastRaw;
+			}
+			entriesRemaining--;
+			return true;
+		}
+
+		private void readTableHeader() throws IOException {
+			range = new Range(readString());
+			int count = (int) readVarLong();
+			columns = new String[count];
+			for(int i = 0; i < count; i++) {
+				columns[i] = readString();
+			}
+			entriesRemaining = readVarLong();
+		}
+
+		private Map<String,Object> readRow() throws IOException {
+			lastRaw = null;
+			byte flag = readByte();
+			switch(flag) {
+				case ROW_ABSENT:
+					return null;
+				case ROW_RAW:
+					lastRaw = readString();
+					return null;
+				case ROW_OBJECT:
+					int count = (int) readVarLong();
+					Map<String,Object> row = new LinkedHashMap<>();
+					for(int i = 0; i < count; i++) {
+						int idx = (int) readVarLong();
+						if(idx < 0 || idx >= columns.length) {
+							throw new IOException("Invalid column index in transaction digest: "+idx);
+						}
+						row.put(columns[idx], readValue());
+					}
+					return row;
+				default:
+					throw new IOException("Invalid row in transaction digest: "+flag);
+			}
+		}
+
+		private Object readValue() throws IOException {
+			byte tag = readByte();
+			switch(tag) {
+				case TAG_NULL:
+					return null;
+				case TAG_FALSE:
+					return Boolean.FALSE;
+				case TAG_TRUE:
+					return Boolean.TRUE;
+				case TAG_INTEGER:
+					long v = readZigZag();
+					if(v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+						return (int) v;
+					}
+					return v;
+				case TAG_DOUBLE:
+					return Double.longBitsToDouble(readLong());
+				case TAG_STRING:
+					return readString();
+				case TAG_DECIMAL:
+					return new BigDecimal(readString());
+				case TAG_BIGINTEGER:
+					return new BigInteger(readString());
+				case TAG_JSON:
+					return new JSONTokener(readString()).nextValue();
+				case TAG_BYTES:
+					return readBytes();
+				case TAG_TIMESTAMP:
+					Timestamp ts = new Timestamp(readZigZag());
+					ts.setNanos((int) readVarLong());
+					return ts;
+				case TAG_DATE:
+					return new java.sql.Date(readZigZag());
+				case TAG_TIME:
+					return new Time(readZigZag());
+				case TAG_UUID:
+					return new UUID(readLong(), readLong());
+				default:
+					throw new IOException("Invalid value tag in transaction digest: "+tag);
+			}
+		}
+
+		private byte readByte() throws IOException {
+			if(pos >= limit) {
+				throw new IOException("Transaction digest is truncated");
+			}
+			return data[pos++];
+		}
+
+		long readVarLong() throws IOException {
+			long result = 0;
+			int shift = 0;
+			while(shift < 64) {
+				byte b = readByte();
+				result |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0) {
+					return result;
+				}
+				shift += 7;
+			}
+			throw new IOException("Invalid varint in transaction digest");
+		}
+
+		private long readZigZag() throws IOException {
+			long raw = readVarLong();
+			return (raw >>> 1) ^ -(raw & 1);
+		}
+
+		private long readLong() throws IOException {
+			long v = 0;
+			for(int i = 0; i < 8; i++) {
+				v = (v << 8) | (readByte() & 0xFF);
+			}
+			return v;
+		}
+
+		private String readString() throws IOException {
+			int length = (int) readVarLong();
+			if(length < 0 || pos + length > limit) {
+				throw new IOException("Transaction digest is truncated");
+			}
+			String s = new String(data, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return s;
+		}
+
+		private byte[] readBytes() throws IOException {
+			int length = (int) readVarLong();
+			if(length < 0 || pos + length > limit) {
+				throw new IOException("Transaction digest is truncated");
+			}
+			byte[] bytes = Arrays.copyOfRange(data, pos, pos + length);
+			pos += length;
+			return bytes;
+		}
+
+		/**
+		 * @return range (table) of the current operation
+		 */
+		public Range getRange() {
+			return range;
+		}
+
+		/**
+		 * @return MUSIC key of the current operation
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		public OperationType getOperationType() {
+			return type;
+		}
+
+		/**
+		 * @return typed values of the new row, or null if the new value is not a row
+		 */
+		public Map<String,Object> getNewRow() {
+			return newRow;
+		}
+
+		/**
+		 * @return typed values of the old row (key data), or null if the old value is not a row
+		 */
+		public Map<String,Object> getOldRow() {
+			return oldRow;
+		}
+
+		/**
+		 * @return the current operation in the same representation used by the staging table
+		 */
+		public Operation getOperation() {
+			String newVal = (newRow != null) ? toJson(newRow) : newRaw;
+			String oldVal = (oldRow != null) ? toJson(oldRow) : oldRaw;
+			return new Operation(type, newVal, oldVal);
+		}
+
+		private static String toJson(Map<String,Object> row) {
+			JSONObject obj = new JSONObject();
+			for(Map.Entry<String,Object> e : row.entrySet()) {
+				obj.put(e.getKey(), (e.getValue() == null) ? JSONObject.NULL : e.getValue());
+			}
+			return obj.toString();
+		}
+	}
+}
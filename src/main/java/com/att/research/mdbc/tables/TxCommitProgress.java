@@ -1,7 +1,12 @@
 package com.att.research.mdbc.tables;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import com.att.research.logging.EELFLoggerDelegate;
@@ -15,10 +20,60 @@ public class TxCommitProgress{
 
 	private AtomicReference<BigInteger> nextCommitId;
 	private Map<String, CommitProgress> transactionInfo;
+	private final CommitJournal journal;
+	private final AtomicLong nextJournalId;
 
 	public TxCommitProgress(){
+		this(null);
+	}
+
+	/**
+	 * @param journal journal where the transitions of the commits are persisted, null to keep them only in memory.
+	 * The commits that did not complete before the journal was last closed are loaded, with their journal id as
+	 * transaction id and no connection, see {@link #getIncompleteCommits(long)}
+	 */
+	public TxCommitProgress(CommitJournal journal){
 		nextCommitId=new AtomicReference<>(BigInteger.ZERO);
 		transactionInfo = new ConcurrentHashMap<>();
+		this.journal = journal;
+		// journal ids need to be unique across restarts
+		nextJournalId = new AtomicLong(System.currentTimeMillis());
+		if(journal != null) {
+			for(CommitJournal.Entry entry : journal.getOpenEntries()) {
+				CommitProgress prog = new CommitProgress(entry.journalId, null);
+				prog.recover(entry);
+				transactionInfo.put(entry.journalId, prog);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the transitions of the commits are persisted
+	 */
+	public boolean isDurable() {
+		return journal != null;
+	}
+
+	/**
+	 * Persists a transition of a commit, a failure of the journal does not fail the commit
+	 */
+	private void journal(CommitProgress prog, String what, JournalWrite write) {
+		String journalId = prog.getJournalId();
+		if(journal == null || journalId == null) {
+			return;
+		}
+		try {
+			write.apply(journal, journalId);
+			if(prog.isComplete()) {
+				journal.completed(journalId);
+			}
+		} catch (IOException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Commit journal could not store "+what+" of "+prog.getId()+": "+e.getMessage());
+		}
+	}
+
+	private interface JournalWrite {
+		void apply(CommitJournal journal, String journalId) throws IOException;
 	}
 	
 	public boolean containsTx(String txId) {
@@ -35,6 +90,13 @@ public class TxCommitProgress{
 		return commitId;
 	}
 	
+	/**
+	 * @return the commit id that will be assigned to the next transaction, it only grows while there are commits
+	 */
+	public BigInteger getNextCommitId() {
+		return nextCommitId.get();
+	}
+	
 	public void createNewTransactionTracker(String id, Connection conn) {
 		transactionInfo.put(id, new CommitProgress(id,conn));
 	}
@@ -44,7 +106,15 @@ public class TxCommitProgress{
 		if(prog == null){
 			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when storing commit request",txId);
 		}
+		// a commit that is retried keeps its entry in the journal
+		boolean first = journal != null && prog.getJournalId() == null;
+		if(first) {
+			prog.setJournalId(txId+"#"+nextJournalId.getAndIncrement());
+		}
 		prog.setCommitRequested();
+		if(first) {
+			journal(prog, "commit request", (j, id) -> j.requested(id, txId));
+		}
 	}
 	
 	public void setSQLDone(String txId) {
@@ -53,6 +123,7 @@ public class TxCommitProgress{
 			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when storing saving completion of SQL",txId);
 		}
 		prog.setSQLCompleted();
+		journal(prog, "SQL commit", CommitJournal::sqlDone);
 	}
 
 	public void setMusicDone(String txId) {
@@ -61,6 +132,7 @@ public class TxCommitProgress{
 			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when storing saving completion of Music",txId);
 		}
 		prog.setMusicCompleted();
+		journal(prog, "MUSIC commit", CommitJournal::musicDone);
 	}
 	
 	public Connection getConnection(String txId){
@@ -77,6 +149,117 @@ public class TxCommitProgress{
 			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when setting record Id",txId);
 		}
 		prog.setRecordId(recordId);
+		journal(prog, "redo record", (j, id) -> j.recordId(id, recordId));
+	}
+
+	/**
+	 * Keeps the encoded digest of a transaction that was committed locally but not yet in MUSIC, so the commit can
+	 * be completed if the write into MUSIC fails
+	 */
+	public void setDigest(String txId, byte[] digest) {
+		CommitProgress prog = transactionInfo.get(txId);
+		if(prog == null){
+			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when setting digest",txId);
+		}
+		prog.setDigest(digest);
+		journal(prog, "digest", (j, id) -> j.digest(id, digest));
+	}
+
+	public byte[] getDigest(String txId) {
+		CommitProgress prog = transactionInfo.get(txId);
+		if(prog == null){
+			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when getting digest",txId);
+		}
+		return prog.getDigest();
+	}
+
+	/**
+	 * Keeps the state that is required to collect again the digest of a transaction that is committed locally before
+	 * it is committed into MUSIC, see {@link com.att.research.mdbc.mixins.DBInterface#preLocalCommitHook()}
+	 */
+	public void setCaptureState(String txId, String captureState) {
+		CommitProgress prog = transactionInfo.get(txId);
+		if(prog == null){
+			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when setting capture state",txId);
+		}
+		prog.setCaptureState(captureState);
+		journal(prog, "capture state", (j, id) -> j.captureState(id, captureState));
+	}
+
+	public String getCaptureState(String txId) {
+		CommitProgress prog = transactionInfo.get(txId);
+		if(prog == null){
+			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when getting capture state",txId);
+		}
+		return prog.getCaptureState();
+	}
+
+	public boolean isSQLDone(String txId) {
+		CommitProgress prog = transactionInfo.get(txId);
+		if(prog == null){
+			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when checking SQL commit",txId);
+		}
+		return prog.isSQLDone();
+	}
+
+	public boolean isMusicDone(String txId) {
+		CommitProgress prog = transactionInfo.get(txId);
+		if(prog == null){
+			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when checking MUSIC commit",txId);
+		}
+		return prog.isMusicDone();
+	}
+
+	/**
+	 * @param idleMillis minimum time since the last transition of the commit
+	 * @return the transactions whose commit was requested but did not complete, and were not updated for the given time
+	 */
+	public List<String> getIncompleteCommits(long idleMillis) {
+		long now = System.currentTimeMillis();
+		List<String> incomplete = new ArrayList<>();
+		for(Map.Entry<String, CommitProgress> entry : transactionInfo.entrySet()) {
+			CommitProgress prog = entry.getValue();
+			if(prog.isIncomplete() && now - prog.getTimestamInMillis() >= idleMillis) {
+				incomplete.add(entry.getKey());
+			}
+		}
+		return incomplete;
+	}
+
+	/**
+	 * @return the ids of all the transactions that are tracked, including the commits kept under their journal id
+	 */
+	public Set<String> getTransactionIds() {
+		return new HashSet<>(transactionInfo.keySet());
+	}
+
+	/**
+	 * @return last time (ms since the epoch) that the progress of the transaction changed, 0 if it is not tracked
+	 */
+	public long getLastUpdate(String txId) {
+		CommitProgress prog = transactionInfo.get(txId);
+		return (prog == null) ? 0 : prog.getTimestamInMillis();
+	}
+
+	/**
+	 * The commit was finished by someone else than the thread that requested it, see {@link #getIncompleteCommits(long)}
+	 */
+	public void completed(String txId) {
+		CommitProgress prog = transactionInfo.get(txId);
+		if(prog == null){
+			return;
+		}
+		if(prog.getConnection() == null) {
+			// recovered from the journal, there is no connection that uses it
+			transactionInfo.remove(txId);
+		}
+		if(journal != null && prog.getJournalId() != null) {
+			try {
+				journal.completed(prog.getJournalId());
+			} catch (IOException e) {
+				logger.error(EELFLoggerDelegate.errorLogger, "Commit journal could not store the completion of "+txId+": "+e.getMessage());
+			}
+		}
 	}
 	
 	public RedoRecordId getRecordId(String txId) {
@@ -108,11 +291,37 @@ public class TxCommitProgress{
 		if(prog == null){
 			logger.error(EELFLoggerDelegate.errorLogger, "Transaction doesn't exist: [%l], failure when reinitializing tx progress",txId);
 		}
+		handOver(prog);
 		prog.reinitialize();
 	}
 
 	public void deleteTxProgress(String txId){
-		transactionInfo.remove(txId);
+		CommitProgress prog = transactionInfo.remove(txId);
+		if(prog != null) {
+			handOver(prog);
+		}
+	}
+
+	/**
+	 * A commit that is abandoned after one of its steps was done can not be discarded, it is kept under its journal id
+	 * until it is completed in the background. Commits that did nothing yet are just removed from the journal.
+	 */
+	private void handOver(CommitProgress prog) {
+		if(journal == null || prog.getJournalId() == null || prog.isComplete()) {
+			return;
+		}
+		if(prog.isIncomplete() && (prog.isSQLDone() || prog.isMusicDone() || prog.isRedoRecordAssigned())) {
+			CommitProgress abandoned = new CommitProgress(prog.getJournalId(), null);
+			abandoned.copyFrom(prog);
+			transactionInfo.put(prog.getJournalId(), abandoned);
+			logger.info(EELFLoggerDelegate.applicationLogger, "Commit of "+prog.getId()+" was abandoned half done, it is completed in the background as "+prog.getJournalId());
+			return;
+		}
+		try {
+			journal.completed(prog.getJournalId());
+		} catch (IOException e) {
+			logger.error(EELFLoggerDelegate.errorLogger, "Commit journal could not remove the commit of "+prog.getId()+": "+e.getMessage());
+		}
 	}
 }
 
@@ -125,6 +334,9 @@ final class CommitProgress{
 	private Connection connection;// reference to a connection object. This is used to complete a commit if it failed in the original thread.
 	private Long timestamp; // last time this data structure was updated
 	private RedoRecordId redoRecordId;// record id for each partition
+	private String journalId; // id of the commit in the journal, unique across restarts
+	private byte[] digest; // encoded digest, only kept when the local commit is done before the commit into MUSIC
+	private String captureState; // where the digest can be collected again, when the local commit is done first
 
 	public CommitProgress(String id,Connection conn){
 		redoRecordId=null;
@@ -149,6 +361,9 @@ final class CommitProgress{
 	public synchronized void reinitialize() {
 		commitId = null;
 		redoRecordId=null;
+		journalId = null;
+		digest = null;
+		captureState = null;
 		commitRequested = false;
 		SQLDone = false;
 		MusicDone = false;
@@ -203,4 +418,74 @@ final class CommitProgress{
 	public synchronized boolean isCommitIdAssigned() {
 		return this.commitId!= null;
 	}
+
+	public synchronized void setJournalId(String journalId) {
+		this.journalId = journalId;
+	}
+
+	public synchronized String getJournalId() {
+		return journalId;
+	}
+
+	public synchronized void setDigest(byte[] digest) {
+		this.digest = digest;
+		timestamp = System.currentTimeMillis();
+	}
+
+	public synchronized byte[] getDigest() {
+		return digest;
+	}
+
+	public synchronized void setCaptureState(String captureState) {
+		this.captureState = captureState;
+		timestamp = System.currentTimeMillis();
+	}
+
+	public synchronized String getCaptureState() {
+		return captureState;
+	}
+
+	public synchronized boolean isSQLDone() {
+		return SQLDone;
+	}
+
+	public synchronized boolean isMusicDone() {
+		return MusicDone;
+	}
+
+	/**
+	 * @return true if the commit was requested but not all its steps are done
+	 */
+	public synchronized boolean isIncomplete() {
+		return commitRequested && !(SQLDone && MusicDone);
+	}
+
+	/**
+	 * Restores the progress of a commit read from the journal
+	 */
+	public synchronized void recover(CommitJournal.Entry entry) {
+		journalId = entry.journalId;
+		commitRequested = true;
+		SQLDone = entry.isSQLDone();
+		MusicDone = entry.isMusicDone();
+		redoRecordId = entry.getRecordId();
+		digest = entry.getDigest();
+		captureState = entry.getCaptureState();
+		// recovered commits are completed right away
+		timestamp = 0L;
+	}
+
+	public synchronized void copyFrom(CommitProgress other) {
+		synchronized(other) {
+			journalId = other.journalId;
+			commitId = other.commitId;
+			commitRequested = other.commitRequested;
+			SQLDone = other.SQLDone;
+			MusicDone = other.MusicDone;
+			redoRecordId = other.redoRecordId;
+			digest = other.digest;
+			captureState = other.captureState;
+			timestamp = other.timestamp;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,176 @@
+package com.att.research.mdbc;
+
+import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.tables.Operation;
+import com.att.research.mdbc.tables.OperationType;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.StagingTable;
+import com.att.research.mdbc.tables.TitReference;
+import com.att.research.mdbc.tables.TransactionInformationElement;
+import com.att.research.mdbc.tables.TxCommitProgress;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class ArchiveProcessTest {
+
+    private static final String TIT = "transactioninformation";
+    private static final String INDEX = "6f2c4e3a-0000-0000-0000-000000000001";
+
+    /**
+     * Fake MUSIC with a TIT row whose first redo record was already archived
+     */
+    private static class FakeMusic {
+        final List<RedoRecordId> redo = new ArrayList<>();
+        final Map<String, HashMap<Range, StagingTable>> digests = new HashMap<>();
+        final List<HashMap<Range, StagingTable>> written = new ArrayList<>();
+        final List<String> checkpoints = new ArrayList<>();
+        final Map<TitReference, String> closed = new HashMap<>();
+        final List<TitReference> released = new ArrayList<>();
+        int latestApplied = 0;
+        boolean applied = false;
+
+        FakeMusic() {
+            add("r0", "1", OperationType.INSERT, "{\"ID\":1,\"NAME\":\"old\"}");
+            add("r1", "2", OperationType.INSERT, "{\"ID\":2,\"NAME\":\"alice\"}");
+            add("r2", "2", OperationType.UPDATE, "{\"ID\":2,\"NAME\":\"bob\"}");
+            add("r3", "3", OperationType.INSERT, "{\"ID\":3,\"NAME\":\"carol\"}");
+            add("r4", "3", OperationType.DELETE, "{\"ID\":3,\"NAME\":\"carol\"}");
+        }
+
+        void add(String commit, String key, OperationType type, String row) {
+            redo.add(new RedoRecordId("lease", commit));
+            StagingTable persons = new StagingTable();
+            persons.addOperation(key, type, "{\"ID\":" + key + "}", row);
+            HashMap<Range, StagingTable> digest = new HashMap<>();
+            digest.put(new Range("PERSONS"), persons);
+            digests.put(commit, digest);
+        }
+
+        MusicInterface proxy() {
+            return (MusicInterface) Proxy.newProxyInstance(MusicInterface.class.getClassLoader(), new Class<?>[] {MusicInterface.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getTransactionInformation":
+                            return new TransactionInformationElement(((TitReference) args[0]).index, redo, "p", latestApplied, applied);
+                        case "getTransactionDigest":
+                            return digests.get(((RedoRecordId) args[0]).commitId);
+                        case "applyToDataTables":
+                            @SuppressWarnings("unchecked")
+                            HashMap<Range, StagingTable> digest = (HashMap<Range, StagingTable>) args[0];
+                            written.add(digest);
+                            return null;
+                        case "updateLatestApplied":
+                            latestApplied = (Integer) args[2];
+                            applied = (Boolean) args[3];
+                            checkpoints.add(args[1] + ":" + latestApplied + ":" + applied);
+                            return null;
+                        case "getClosedTransactionInformation":
+                            return new HashMap<>(closed);
+                        case "releaseTransactionInformation":
+                            closed.remove(args[0]);
+                            released.add((TitReference) args[0]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+        }
+    }
+
+    private static ArchiveProcess process(FakeMusic music, String lockId, int batchSize) {
+        Properties info = new Properties();
+        info.setProperty(Configuration.KEY_ARCHIVE_BATCH_SIZE, String.valueOf(batchSize));
+        DatabasePartition partition = new DatabasePartition(new HashSet<>(), INDEX, TIT, "p", lockId, "redorecords");
+        return new ArchiveProcess(music.proxy(), partition, new TxCommitProgress(), info);
+    }
+
+    private static Map<String, Operation> rows(HashMap<Range, StagingTable> digest) throws NoSuchFieldException {
+        Map<String, Operation> rows = new HashMap<>();
+        StagingTable persons = digest.get(new Range("PERSONS"));
+        if (persons != null) {
+            for (Pair<String, Operation> p : persons.getIterableSnapshot()) {
+                rows.put(p.getKey(), p.getValue());
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void foldsPendingRecordsAndMovesTheCheckpoint() throws Exception {
+        FakeMusic music = new FakeMusic();
+        ArchiveProcess archive = process(music, "lock", 10);
+        assertEquals(4, archive.archive());
+
+        assertEquals(1, music.written.size());
+        Map<String, Operation> rows = rows(music.written.get(0));
+        // r0 was already archived, and the insert and delete of 3 cancel each other
+        assertEquals(1, rows.size());
+        assertEquals(OperationType.INSERT, rows.get("2").getOperationType());
+        assertEquals("bob", rows.get("2").getNewVal().getString("NAME"));
+        assertEquals(4, music.latestApplied);
+        assertFalse(music.applied);
+
+        // nothing left to archive
+        assertEquals(0, archive.archive());
+        assertEquals(1, music.written.size());
+        assertEquals(4, archive.getArchivedRecords());
+    }
+
+    @Test
+    public void checkpointsAfterEachBatch() throws Exception {
+        FakeMusic music = new FakeMusic();
+        ArchiveProcess archive = process(music, "lock", 2);
+        assertEquals(4, archive.archive());
+        assertEquals(2, music.written.size());
+        assertEquals("bob", rows(music.written.get(0)).get("2").getNewVal().getString("NAME"));
+        assertTrue(rows(music.written.get(1)).isEmpty());
+        assertEquals(2, music.checkpoints.size());
+        assertEquals("lock:2:false", music.checkpoints.get(0));
+        assertEquals("lock:4:false", music.checkpoints.get(1));
+    }
+
+    @Test
+    public void onlyTheOwnerOfThePartitionArchives() throws Exception {
+        FakeMusic music = new FakeMusic();
+        assertEquals(0, process(music, null, 10).archive());
+        assertTrue(music.written.isEmpty());
+        assertTrue(music.checkpoints.isEmpty());
+    }
+
+    @Test
+    public void closedRowIsMarkedApplied() throws Exception {
+        FakeMusic music = new FakeMusic();
+        ArchiveProcess archive = process(music, null, 3);
+        TitReference tit = new TitReference(TIT, INDEX);
+        assertEquals(4, archive.archive(tit, "lock", true));
+        assertEquals("lock:3:false", music.checkpoints.get(0));
+        assertEquals("lock:4:true", music.checkpoints.get(1));
+        assertEquals(0, archive.archive(tit, "lock", true));
+        assertEquals(2, music.checkpoints.size());
+    }
+
+    @Test
+    public void rowReplacedByARolloverIsClosedAndReleased() throws Exception {
+        FakeMusic music = new FakeMusic();
+        TitReference old = new TitReference(TIT, INDEX);
+        music.closed.put(old, "oldlock");
+        // the node no longer holds a lease for the current row, only for the old one
+        ArchiveProcess archive = process(music, null, 10);
+        assertEquals(4, archive.archive());
+        assertEquals("oldlock:4:true", music.checkpoints.get(music.checkpoints.size() - 1));
+        assertEquals(1, music.released.size());
+        assertEquals(old, music.released.get(0));
+        assertTrue(music.closed.isEmpty());
+    }
+}
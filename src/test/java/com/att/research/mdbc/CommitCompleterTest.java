@@ -0,0 +1,301 @@
+package com.att.research.mdbc;
+
+import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.tables.CommitJournal;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.StagingTable;
+import com.att.research.mdbc.tables.TransactionDigestCodec;
+import com.att.research.mdbc.tables.TxCommitProgress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CommitCompleterTest {
+
+    private final DatabasePartition partition = new DatabasePartition(new HashSet<>(), "tit1", "transactioninformation", "p", "lock", "redorecords");
+    private final List<RedoRecordId> read = new ArrayList<>();
+    private final List<String> logged = new ArrayList<>();
+    private final List<HashMap<Range, StagingTable>> applied = new ArrayList<>();
+    private final AtomicInteger rollbacks = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final List<String> recaptured = new ArrayList<>();
+    // digest found in the binlog by the recapture, empty if the local commit did not happen
+    private final HashMap<Range, StagingTable> captured = new HashMap<>();
+    private File directory;
+    private CommitJournal journal;
+
+    private final MusicInterface mi = (MusicInterface) Proxy.newProxyInstance(MusicInterface.class.getClassLoader(),
+            new Class<?>[]{MusicInterface.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getTransactionDigest":
+                        read.add((RedoRecordId) args[0]);
+                        return new HashMap<Range, StagingTable>();
+                    case "commitLog":
+                        String txId = (String) args[3];
+                        TxCommitProgress progress = (TxCommitProgress) args[4];
+                        logged.add(txId);
+                        progress.setRecordId(txId, new RedoRecordId("lease", progress.getCommitId(txId).toString()));
+                        return null;
+                    default:
+                        return null;
+                }
+            });
+
+    private final Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                if (method.getName().equals("rollback")) {
+                    rollbacks.incrementAndGet();
+                }
+                if (method.getName().equals("isClosed")) {
+                    return closed.get();
+                }
+                return null;
+            });
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("mdbc-journal").toFile();
+        journal = new CommitJournal(directory);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private TxCommitProgress restart() throws Exception {
+        journal.close();
+        journal = new CommitJournal(directory);
+        return new TxCommitProgress(journal);
+    }
+
+    private CommitCompleter completer(TxCommitProgress progress) {
+        return new CommitCompleter(mi, partition, progress, applied::add, new Properties());
+    }
+
+    private CommitCompleter recapturingCompleter(TxCommitProgress progress) {
+        return new CommitCompleter(mi, partition, progress, applied::add, state -> {
+            recaptured.add(state);
+            return new HashMap<>(captured);
+        }, new Properties());
+    }
+
+    @Test
+    public void completedCommitsAreNotRecovered() throws Exception {
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        progress.setRecordId("c1", new RedoRecordId("lease", "0"));
+        progress.setMusicDone("c1");
+        progress.setSQLDone("c1");
+        assertTrue(progress.isComplete("c1"));
+        progress.reinitializeTxProgress("c1");
+        assertTrue(restart().getIncompleteCommits(0).isEmpty());
+    }
+
+    @Test
+    public void commitInMusicButNotInTheLocalDatabaseIsAppliedAfterARestart() throws Exception {
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        progress.setRecordId("c1", new RedoRecordId("lease", "7"));
+        // the node stops before the local commit
+        TxCommitProgress recovered = restart();
+        List<String> incomplete = recovered.getIncompleteCommits(0);
+        assertEquals(1, incomplete.size());
+        assertEquals(new RedoRecordId("lease", "7"), recovered.getRecordId(incomplete.get(0)));
+
+        assertEquals(1, completer(recovered).recover());
+        assertEquals(1, read.size());
+        assertEquals(new RedoRecordId("lease", "7"), read.get(0));
+        assertEquals(1, applied.size());
+        assertTrue(recovered.getIncompleteCommits(0).isEmpty());
+        assertTrue(restart().getIncompleteCommits(0).isEmpty());
+    }
+
+    @Test
+    public void localCommitThatIsNotInMusicIsSentAfterARestart() throws Exception {
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        progress.setSQLDone("c1");
+        progress.setDigest("c1", new TransactionDigestCodec().encode(new HashMap<>()));
+        TxCommitProgress recovered = restart();
+        String journalId = recovered.getIncompleteCommits(0).get(0);
+        assertTrue(recovered.isSQLDone(journalId));
+        assertNotNull(recovered.getDigest(journalId));
+
+        assertEquals(1, completer(recovered).recover());
+        assertEquals(1, logged.size());
+        assertEquals(journalId, logged.get(0));
+        assertTrue(applied.isEmpty());
+        assertTrue(restart().getIncompleteCommits(0).isEmpty());
+    }
+
+    @Test
+    public void localCommitWithoutDigestIsCapturedAgainAfterARestart() throws Exception {
+        captured.put(new Range("PERSONS"), new StagingTable());
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        progress.setCaptureState("c1", "7:mysql-bin.000001:120");
+        progress.setSQLDone("c1");
+        progress.setCaptureState("c1", "7:mysql-bin.000001:120:mysql-bin.000001:480");
+        // the node stops before the changes are read from the binlog
+        TxCommitProgress recovered = restart();
+        String journalId = recovered.getIncompleteCommits(0).get(0);
+        assertNull(recovered.getDigest(journalId));
+
+        assertEquals(1, recapturingCompleter(recovered).recover());
+        assertEquals(1, recaptured.size());
+        assertEquals("7:mysql-bin.000001:120:mysql-bin.000001:480", recaptured.get(0));
+        assertEquals(1, logged.size());
+        assertEquals(journalId, logged.get(0));
+        assertTrue(restart().getIncompleteCommits(0).isEmpty());
+    }
+
+    @Test
+    public void failedCommitIntoMusicIsHandedOverWithItsCaptureState() throws Exception {
+        captured.put(new Range("PERSONS"), new StagingTable());
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        progress.setCaptureState("c1", "7:mysql-bin.000001:120");
+        progress.setSQLDone("c1");
+        // the connection reports the commit as done and goes on with its next transaction
+        progress.reinitializeTxProgress("c1");
+        assertNull(progress.getCaptureState("c1"));
+
+        assertEquals(1, recapturingCompleter(progress).recover());
+        assertEquals("7:mysql-bin.000001:120", recaptured.get(0));
+        assertEquals(1, logged.size());
+        assertEquals(0, rollbacks.get());
+        assertTrue(progress.getIncompleteCommits(0).isEmpty());
+    }
+
+    @Test
+    public void commitStoppedDuringTheLocalCommitIsSentOnlyIfItWasCommitted() throws Exception {
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        progress.setCaptureState("c1", "7:mysql-bin.000001:120");
+        // the node stops before the local commit, the transaction is not in the binlog
+        TxCommitProgress recovered = restart();
+        assertEquals(1, recapturingCompleter(recovered).recover());
+        assertEquals(1, recaptured.size());
+        assertTrue(logged.isEmpty());
+        assertTrue(recovered.getIncompleteCommits(0).isEmpty());
+
+        progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c2", connection);
+        progress.commitRequested("c2");
+        progress.setCaptureState("c2", "8:mysql-bin.000001:480");
+        // the node stops right after the local commit, the transaction is in the binlog
+        captured.put(new Range("PERSONS"), new StagingTable());
+        recovered = restart();
+        assertEquals(1, recapturingCompleter(recovered).recover());
+        assertEquals(1, logged.size());
+        assertTrue(restart().getIncompleteCommits(0).isEmpty());
+    }
+
+    @Test
+    public void halfDoneCommitIsNotLostWhenTheConnectionRollsBack() throws Exception {
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        progress.setRecordId("c1", new RedoRecordId("lease", "3"));
+        // the local commit fails and the client rolls back, the connection is reused
+        progress.reinitializeTxProgress("c1");
+        assertFalse(progress.isRecordIdAssigned("c1"));
+        List<String> incomplete = progress.getIncompleteCommits(0);
+        assertEquals(1, incomplete.size());
+        assertNotEquals("c1", incomplete.get(0));
+
+        assertEquals(1, completer(progress).recover());
+        assertEquals(1, applied.size());
+        assertTrue(progress.getIncompleteCommits(0).isEmpty());
+        assertTrue(progress.containsTx("c1"));
+    }
+
+    @Test
+    public void idleCommitIsCompletedOnlyOnceItsConnectionIsClosed() throws Exception {
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        progress.setRecordId("c1", new RedoRecordId("lease", "5"));
+        CommitCompleter completer = completer(progress);
+        // not idle for long enough
+        assertEquals(0, completer.complete());
+        // the client may still be using its connection
+        assertEquals(0, completer.recover());
+        assertTrue(applied.isEmpty());
+        closed.set(true);
+        assertEquals(1, completer.recover());
+        // the local transaction was discarded by the close, the connection is not touched
+        assertEquals(0, rollbacks.get());
+        assertEquals(1, applied.size());
+        // a retry of the commit by the client finds it complete
+        assertTrue(progress.isComplete("c1"));
+        assertTrue(restart().getIncompleteCommits(0).isEmpty());
+    }
+
+    @Test
+    public void commitWithoutProgressIsLeftToItsConnection() throws Exception {
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        assertEquals(0, completer(progress).recover());
+        assertEquals(1, progress.getIncompleteCommits(0).size());
+        assertTrue(applied.isEmpty());
+        assertTrue(logged.isEmpty());
+        // after a restart nobody can finish it, it is dropped
+        TxCommitProgress recovered = restart();
+        assertEquals(1, completer(recovered).recover());
+        assertTrue(recovered.getIncompleteCommits(0).isEmpty());
+        assertTrue(applied.isEmpty());
+        assertTrue(logged.isEmpty());
+    }
+
+    @Test
+    public void tornRecordAtTheEndOfTheJournalIsIgnored() throws Exception {
+        TxCommitProgress progress = new TxCommitProgress(journal);
+        progress.createNewTransactionTracker("c1", connection);
+        progress.commitRequested("c1");
+        progress.setRecordId("c1", new RedoRecordId("lease", "1"));
+        journal.close();
+        try (FileOutputStream out = new FileOutputStream(new File(directory, "commits.journal"), true)) {
+            out.write(new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 5});
+        }
+        journal = new CommitJournal(directory);
+        TxCommitProgress recovered = new TxCommitProgress(journal);
+        assertEquals(1, recovered.getIncompleteCommits(0).size());
+        // the journal is still usable after the torn record
+        recovered.createNewTransactionTracker("c2", connection);
+        recovered.commitRequested("c2");
+        recovered.setSQLDone("c2");
+        assertEquals(2, restart().getIncompleteCommits(0).size());
+    }
+}
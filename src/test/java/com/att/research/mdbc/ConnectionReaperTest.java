@@ -0,0 +1,196 @@
+package com.att.research.mdbc;
+
+import com.att.research.mdbc.mixins.H2Mixin;
+import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.TxCommitProgress;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class ConnectionReaperTest {
+    private static final String URL = "jdbc:h2:mem:connectionreapertest;DB_CLOSE_DELAY=-1";
+
+    private final Map<String, MdbcConnection> connections = new ConcurrentHashMap<>();
+    private final TxCommitProgress progress = new TxCommitProgress();
+    private final MusicInterface mi = (MusicInterface) Proxy.newProxyInstance(MusicInterface.class.getClassLoader(),
+            new Class<?>[]{MusicInterface.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getMusicKeyFromRow":
+                        return String.valueOf(((JSONObject) args[2]).get("ID"));
+                    case "generateUniqueKey":
+                        return UUID.randomUUID().toString();
+                    case "getMusicDefaultPrimaryKeyName":
+                        return "MDBC_ID";
+                    default:
+                        return null;
+                }
+            });
+
+    private final ConnectionReaper.ConnectionRegistry registry = new ConnectionReaper.ConnectionRegistry() {
+        @Override
+        public Map<String, MdbcConnection> getConnections() {
+            return connections;
+        }
+
+        @Override
+        public void closeConnection(String id) {
+            MdbcConnection conn = connections.remove(id);
+            if (conn != null) {
+                progress.deleteTxProgress(id);
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    fail(e.getMessage());
+                }
+            }
+        }
+    };
+
+    private Connection admin;
+
+    private static Properties properties(String idleTimeout) {
+        Properties info = new Properties();
+        info.setProperty(Configuration.KEY_DB_MIXIN_NAME, H2Mixin.MIXIN_NAME);
+        info.setProperty(Configuration.KEY_CONNECTION_IDLE_TIMEOUT, idleTimeout);
+        return info;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        admin = DriverManager.getConnection(URL);
+        Statement stmt = admin.createStatement();
+        stmt.execute("CREATE TABLE PERSONS (ID INT PRIMARY KEY, NAME VARCHAR(255))");
+        stmt.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (String id : connections.keySet()) {
+            registry.closeConnection(id);
+        }
+        Statement stmt = admin.createStatement();
+        stmt.execute("DROP TABLE PERSONS");
+        stmt.close();
+        admin.close();
+    }
+
+    private MdbcConnection open(String id) throws Exception {
+        Connection sql = DriverManager.getConnection(URL);
+        sql.setAutoCommit(false);
+        MdbcConnection conn = new MdbcConnection(id, URL, sql, properties("0"), mi, progress, null);
+        progress.createNewTransactionTracker(id, sql);
+        connections.put(id, conn);
+        return conn;
+    }
+
+    private int persons() throws SQLException {
+        ResultSet rs = admin.createStatement().executeQuery("SELECT COUNT(*) FROM PERSONS");
+        rs.next();
+        int count = rs.getInt(1);
+        rs.close();
+        return count;
+    }
+
+    @Test
+    public void idleConnectionIsRolledBackAndClosed() throws Exception {
+        MdbcConnection conn = open("c1");
+        Statement stmt = conn.createStatement();
+        stmt.execute("INSERT INTO PERSONS VALUES (1, 'alice')");
+        stmt.close();
+        assertTrue(conn.hasPendingChanges());
+
+        ConnectionReaper reaper = new ConnectionReaper(registry, progress, Collections.emptySet(), properties("0"));
+        assertEquals(1, reaper.reap());
+        assertTrue(connections.isEmpty());
+        assertFalse(progress.containsTx("c1"));
+        assertFalse(conn.hasPendingChanges());
+        assertTrue(conn.isClosed());
+        assertEquals(0, persons());
+        assertEquals(1, reaper.getReapedConnections());
+        assertEquals(1, reaper.getRolledBackTransactions());
+    }
+
+    @Test
+    public void clientOfAReapedConnectionCanNotCommitPartOfItsTransaction() throws Exception {
+        MdbcConnection conn = open("c1");
+        Statement stmt = conn.createStatement();
+        stmt.execute("INSERT INTO PERSONS VALUES (1, 'alice')");
+        stmt.close();
+
+        ConnectionReaper reaper = new ConnectionReaper(registry, progress, Collections.emptySet(), properties("0"));
+        assertEquals(1, reaper.reap());
+        // the client comes back, the rest of its transaction fails instead of being committed alone
+        try {
+            Statement late = conn.createStatement();
+            late.execute("INSERT INTO PERSONS VALUES (2, 'bob')");
+            conn.commit();
+            fail("The connection was closed by the reaper");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(0, persons());
+    }
+
+    @Test
+    public void activeConnectionsAreKept() throws Exception {
+        MdbcConnection conn = open("c1");
+        ConnectionReaper reaper = new ConnectionReaper(registry, progress, Collections.emptySet(), properties("600000"));
+        assertEquals(0, reaper.reap());
+        assertSame(conn, connections.get("c1"));
+        assertTrue(progress.containsTx("c1"));
+    }
+
+    @Test
+    public void closedConnectionIsReapedBeforeItsTimeout() throws Exception {
+        MdbcConnection conn = open("c1");
+        conn.close();
+        ConnectionReaper reaper = new ConnectionReaper(registry, progress, Collections.emptySet(), properties("600000"));
+        assertEquals(1, reaper.reap());
+        assertTrue(connections.isEmpty());
+        assertFalse(progress.containsTx("c1"));
+        assertEquals(0, reaper.getRolledBackTransactions());
+    }
+
+    @Test
+    public void excludedConnectionsAreNeverReaped() throws Exception {
+        open("internal");
+        ConnectionReaper reaper = new ConnectionReaper(registry, progress, Collections.singleton("internal"), properties("0"));
+        assertEquals(0, reaper.reap());
+        assertTrue(connections.containsKey("internal"));
+        assertTrue(progress.containsTx("internal"));
+    }
+
+    @Test
+    public void abandonedProgressEntriesAreRemovedButIncompleteCommitsAreKept() throws Exception {
+        // tracker left behind by a connection that was never registered
+        progress.createNewTransactionTracker("orphan", null);
+        // commit that is in MUSIC but not in the local database, it belongs to the commit completer
+        progress.createNewTransactionTracker("half", null);
+        progress.commitRequested("half");
+        progress.setRecordId("half", new RedoRecordId("lease", "1"));
+
+        ConnectionReaper reaper = new ConnectionReaper(registry, progress, Collections.emptySet(), properties("0"));
+        assertEquals(0, reaper.reap());
+        assertFalse(progress.containsTx("orphan"));
+        assertTrue(progress.containsTx("half"));
+        assertEquals(1, reaper.getRemovedProgressEntries());
+    }
+}
@@ -0,0 +1,38 @@
+package com.att.research.mdbc;
+
+import com.att.research.exceptions.MDBCServiceException;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class DatabaseOperationsTest {
+
+    private static Map<String, String> columns(String digestType, boolean chunked) {
+        Map<String, String> columns = new HashMap<>();
+        columns.put("leaseid", "text");
+        columns.put("leasecounter", "varint");
+        if (chunked) {
+            columns.put("chunk", "int");
+            columns.put("chunks", "int");
+        }
+        columns.put("transactiondigest", digestType);
+        return columns;
+    }
+
+    @Test
+    public void chunkedRedoRecordsTableIsAccepted() throws MDBCServiceException {
+        DatabaseOperations.checkRedoRecordsTable("ns", "redorecords", columns("blob", true));
+    }
+
+    @Test(expected = MDBCServiceException.class)
+    public void redoRecordsTableWithTextDigestsIsRejected() throws MDBCServiceException {
+        DatabaseOperations.checkRedoRecordsTable("ns", "redorecords", columns("text", false));
+    }
+
+    @Test(expected = MDBCServiceException.class)
+    public void redoRecordsTableWithoutChunksIsRejected() throws MDBCServiceException {
+        DatabaseOperations.checkRedoRecordsTable("ns", "redorecords", columns("blob", false));
+    }
+}
@@ -0,0 +1,211 @@
+package com.att.research.mdbc;
+
+import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.tables.RedoHistoryElement;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.TitReference;
+import com.att.research.mdbc.tables.TransactionInformationElement;
+import com.att.research.mdbc.tables.TxCommitProgress;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RedoGarbageCollectorTest {
+
+    private static final String TIT = "transactioninformation";
+    private static final String PARTITION = "8a3c2b10-0000-0000-0000-000000000000";
+    private static final TitReference OLD = new TitReference(TIT, "8a3c2b10-0000-0000-0000-000000000001");
+    private static final TitReference CURRENT = new TitReference(TIT, "8a3c2b10-0000-0000-0000-000000000002");
+
+    /**
+     * Fake MUSIC with an old TIT row that was completely applied, and the current row of the partition
+     */
+    private static class FakeMusic {
+        final Map<TitReference, TransactionInformationElement> tit = new HashMap<>();
+        final Map<TitReference, Set<TitReference>> history = new LinkedHashMap<>();
+        final Set<RedoRecordId> rrt = new HashSet<>();
+        final List<Integer> batches = new ArrayList<>();
+        final List<String> calls = new ArrayList<>();
+        final Map<TitReference, String> closed = new HashMap<>();
+        int existsQueries = 0;
+
+        FakeMusic() {
+            tit.put(OLD, new TransactionInformationElement(OLD.index, records("old", 5), PARTITION, 4, true));
+            tit.put(CURRENT, new TransactionInformationElement(CURRENT.index, records("new", 6), PARTITION, 2, false));
+            history.put(OLD, new HashSet<>());
+            history.put(CURRENT, new HashSet<>(Collections.singletonList(OLD)));
+        }
+
+        List<RedoRecordId> records(String lease, int count) {
+            List<RedoRecordId> records = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                RedoRecordId id = new RedoRecordId(lease, String.valueOf(i));
+                records.add(id);
+                rrt.add(id);
+            }
+            return records;
+        }
+
+        MusicInterface proxy() {
+            return (MusicInterface) Proxy.newProxyInstance(MusicInterface.class.getClassLoader(), new Class<?>[] {MusicInterface.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getHistory":
+                            List<RedoHistoryElement> elements = new ArrayList<>();
+                            for (Map.Entry<TitReference, Set<TitReference>> e : history.entrySet()) {
+                                elements.add(new RedoHistoryElement(PARTITION, e.getKey(), new ArrayList<>(e.getValue())));
+                            }
+                            return elements;
+                        case "getTransactionInformation":
+                            return tit.get(args[0]);
+                        case "getClosedTransactionInformation":
+                            return new HashMap<>(closed);
+                        case "redoRecordExists":
+                            existsQueries++;
+                            return rrt.contains(args[0]);
+                        case "deleteRedoRecords":
+                            @SuppressWarnings("unchecked")
+                            List<RedoRecordId> batch = (List<RedoRecordId>) args[0];
+                            rrt.removeAll(batch);
+                            batches.add(batch.size());
+                            return null;
+                        case "removeRedoHistoryLink":
+                            history.get(args[1]).remove(args[2]);
+                            calls.add("unlink " + ((TitReference) args[2]).index);
+                            return null;
+                        case "deleteTransactionInformation":
+                            tit.remove(args[0]);
+                            calls.add("tit " + ((TitReference) args[0]).index);
+                            return null;
+                        case "deleteRedoHistory":
+                            history.remove(args[1]);
+                            calls.add("history " + ((TitReference) args[1]).index);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+        }
+    }
+
+    private static RedoGarbageCollector collector(FakeMusic music, String lockId, int batchSize) {
+        return collector(music, lockId, batchSize, new TxCommitProgress());
+    }
+
+    private static RedoGarbageCollector collector(FakeMusic music, String lockId, int batchSize, TxCommitProgress progress) {
+        Properties info = new Properties();
+        info.setProperty(Configuration.KEY_GC_BATCH_SIZE, String.valueOf(batchSize));
+        info.setProperty(Configuration.KEY_GC_MAX_DELETES_PER_SECOND, "0");
+        DatabasePartition partition = new DatabasePartition(new HashSet<>(), CURRENT.index, TIT, PARTITION, lockId, "redorecords");
+        return new RedoGarbageCollector(music.proxy(), partition, progress, info);
+    }
+
+    @Test
+    public void deletesAppliedRecordsAndRetiresAppliedRows() throws Exception {
+        FakeMusic music = new FakeMusic();
+        RedoGarbageCollector gc = collector(music, "lock", 2);
+        // 5 records of the old row, and the 3 records of the current row up to latestapplied
+        assertEquals(8, gc.collect());
+        assertEquals(Arrays.asList(2, 2, 1, 2, 1), music.batches);
+        assertEquals(3, music.rrt.size());
+        for (int i = 3; i < 6; i++) {
+            assertTrue(music.rrt.contains(new RedoRecordId("new", String.valueOf(i))));
+        }
+        // the link is removed before the rows are deleted
+        assertEquals(Arrays.asList("unlink " + OLD.index, "tit " + OLD.index, "history " + OLD.index), music.calls);
+        assertFalse(music.tit.containsKey(OLD));
+        assertTrue(music.history.get(CURRENT).isEmpty());
+        assertEquals(1, gc.getRetiredRows());
+
+        // the current row is never retired, and the deleted prefix is remembered
+        int queries = music.existsQueries;
+        music.tit.put(CURRENT, new TransactionInformationElement(CURRENT.index, music.tit.get(CURRENT).redoLog, PARTITION, 5, true));
+        assertEquals(3, gc.collect());
+        assertTrue(music.rrt.isEmpty());
+        assertTrue(music.tit.containsKey(CURRENT));
+        assertEquals(queries, music.existsQueries);
+        assertEquals(11, gc.getDeletedRecords());
+    }
+
+    @Test
+    public void resumesFromTheFirstRecordThatExists() throws Exception {
+        FakeMusic music = new FakeMusic();
+        for (int i = 0; i < 4; i++) {
+            music.rrt.remove(new RedoRecordId("old", String.valueOf(i)));
+        }
+        RedoGarbageCollector gc = collector(music, "lock", 1);
+        gc.collect();
+        // the last deleted record is sent again, in case its batch was partially applied
+        assertEquals(Arrays.asList(1, 1, 1, 1, 1), music.batches);
+        assertTrue(music.calls.contains("tit " + OLD.index));
+    }
+
+    @Test
+    public void finishesARetirementThatFailedHalfway() throws Exception {
+        FakeMusic music = new FakeMusic();
+        music.tit.remove(OLD);
+        for (int i = 0; i < 5; i++) {
+            music.rrt.remove(new RedoRecordId("old", String.valueOf(i)));
+        }
+        collector(music, "lock", 10).collect();
+        assertEquals(Arrays.asList("unlink " + OLD.index, "history " + OLD.index), music.calls);
+        assertFalse(music.history.containsKey(OLD));
+    }
+
+    @Test
+    public void closedRowIsNotRetiredWhileItsLeaseIsHeld() throws Exception {
+        FakeMusic music = new FakeMusic();
+        music.closed.put(OLD, "oldlock");
+        RedoGarbageCollector gc = collector(music, "lock", 10);
+        assertEquals(8, gc.collect());
+        assertTrue(music.calls.isEmpty());
+        music.closed.clear();
+        assertEquals(0, gc.collect());
+        assertEquals(Arrays.asList("unlink " + OLD.index, "tit " + OLD.index, "history " + OLD.index), music.calls);
+    }
+
+    @Test
+    public void onlyTheOwnerOfThePartitionCollects() throws Exception {
+        FakeMusic music = new FakeMusic();
+        assertEquals(0, collector(music, null, 10).collect());
+        assertTrue(music.batches.isEmpty());
+        assertEquals(11, music.rrt.size());
+    }
+
+    @Test
+    public void recordsOfIncompleteCommitsAreKept() throws Exception {
+        FakeMusic music = new FakeMusic();
+        // the digest of the commit is in MUSIC, but the local commit did not happen yet
+        TxCommitProgress progress = new TxCommitProgress();
+        RedoRecordId record = new RedoRecordId("old", "2");
+        progress.createNewTransactionTracker("tx1", null);
+        progress.commitRequested("tx1");
+        progress.setRecordId("tx1", record);
+        progress.setMusicDone("tx1");
+        RedoGarbageCollector gc = collector(music, "lock", 10, progress);
+        // the records of the old row before the pending one, and the records of the current row
+        assertEquals(5, gc.collect());
+        assertTrue(music.rrt.contains(record));
+        assertTrue(music.rrt.contains(new RedoRecordId("old", "3")));
+        assertTrue(music.calls.isEmpty());
+
+        // once the commit completer applied the digest, the rest of the old row is deleted and the row is retired
+        progress.setSQLDone("tx1");
+        assertEquals(3, gc.collect());
+        assertFalse(music.rrt.contains(record));
+        assertEquals(Arrays.asList("unlink " + OLD.index, "tit " + OLD.index, "history " + OLD.index), music.calls);
+    }
+}
@@ -0,0 +1,95 @@
+package com.att.research.mdbc;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SchemaCatalogTest {
+
+    private static class CountingLoader implements SchemaCatalog.Loader {
+        int tableSetLoads = 0;
+        int tableInfoLoads = 0;
+        String checksum = "a";
+
+        @Override
+        public Set<String> loadTableSet() {
+            tableSetLoads++;
+            return Collections.singleton("PERSONS");
+        }
+
+        @Override
+        public TableInfo loadTableInfo(String tableName) {
+            tableInfoLoads++;
+            if (!tableName.equals("PERSONS")) {
+                return null;
+            }
+            TableInfo ti = new TableInfo();
+            ti.columns.add("ID");
+            ti.coltype.add(java.sql.Types.INTEGER);
+            ti.iskey.add(true);
+            return ti;
+        }
+
+        @Override
+        public String loadChecksum() {
+            return checksum;
+        }
+    }
+
+    @Test
+    public void entriesAreCached() {
+        SchemaCatalog catalog = new SchemaCatalog("cached", 0);
+        CountingLoader loader = new CountingLoader();
+        TableInfo ti = catalog.getTableInfo("PERSONS", loader);
+        assertSame(ti, catalog.getTableInfo("PERSONS", loader));
+        assertEquals(1, loader.tableInfoLoads);
+        assertTrue(catalog.getTableSet(loader).contains("PERSONS"));
+        catalog.getTableSet(loader);
+        assertEquals(1, loader.tableSetLoads);
+        // missing tables are not cached, they may be created later
+        assertNull(catalog.getTableInfo("OTHER", loader));
+        assertNull(catalog.getTableInfo("OTHER", loader));
+        assertEquals(3, loader.tableInfoLoads);
+    }
+
+    @Test
+    public void invalidateReloadsEntries() {
+        SchemaCatalog catalog = new SchemaCatalog("invalidate", 0);
+        CountingLoader loader = new CountingLoader();
+        TableInfo ti = catalog.getTableInfo("PERSONS", loader);
+        long version = catalog.getVersion();
+        catalog.invalidate();
+        assertEquals(version + 1, catalog.getVersion());
+        assertNotSame(ti, catalog.getTableInfo("PERSONS", loader));
+        assertEquals(2, loader.tableInfoLoads);
+    }
+
+    @Test
+    public void checksumChangeInvalidates() throws InterruptedException {
+        SchemaCatalog catalog = new SchemaCatalog("checksum", 1);
+        CountingLoader loader = new CountingLoader();
+        catalog.getTableSet(loader);
+        Thread.sleep(5);
+        catalog.getTableSet(loader);
+        assertEquals(1, loader.tableSetLoads);
+        assertEquals(0, catalog.getVersion());
+        loader.checksum = "b";
+        Thread.sleep(5);
+        catalog.getTableSet(loader);
+        assertEquals(2, loader.tableSetLoads);
+        assertEquals(1, catalog.getVersion());
+    }
+
+    @Test
+    public void detectsSchemaChanges() {
+        assertTrue(SchemaCatalog.isSchemaChange("  CREATE TABLE T (ID INT)"));
+        assertTrue(SchemaCatalog.isSchemaChange("alter table T add column X int"));
+        assertTrue(SchemaCatalog.isSchemaChange("DROP TABLE T"));
+        assertTrue(SchemaCatalog.isSchemaChange("RENAME TABLE T TO U"));
+        assertFalse(SchemaCatalog.isSchemaChange("INSERT INTO T VALUES (1)"));
+        assertFalse(SchemaCatalog.isSchemaChange(null));
+    }
+}
@@ -0,0 +1,110 @@
+package com.att.research.mdbc;
+
+import com.att.research.mdbc.tables.OperationType;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StatementCacheTest {
+
+    @Test
+    public void classifiesParsedStatements() {
+        StatementInfo info = StatementCache.get("SELECT p.NAME FROM PERSONS p JOIN `test`.`ACCOUNTS` a ON p.ID = a.OWNER");
+        assertEquals(OperationType.SELECT, info.getOperation());
+        assertTrue(info.isReadOnly());
+        assertFalse(info.isWrite());
+        assertTrue(info.getTables().contains("PERSONS"));
+        assertTrue(info.getTables().contains("ACCOUNTS"));
+
+        info = StatementCache.get("UPDATE PERSONS SET NAME = ? WHERE ID = ?");
+        assertEquals(OperationType.UPDATE, info.getOperation());
+        assertTrue(info.isWrite());
+        assertFalse(info.isReadOnly());
+        assertTrue(info.getTables().contains("PERSONS"));
+
+        info = StatementCache.get("REPLACE INTO PERSONS (ID, NAME) VALUES (1, 'alice')");
+        assertEquals(OperationType.INSERT, info.getOperation());
+
+        info = StatementCache.get("DELETE FROM PERSONS WHERE ID = 1");
+        assertEquals(OperationType.DELETE, info.getOperation());
+
+        info = StatementCache.get("CREATE TABLE PERSONS (ID INT PRIMARY KEY, NAME VARCHAR(255))");
+        assertTrue(info.isDDL());
+        assertNull(info.getOperation());
+        assertTrue(info.getTables().contains("PERSONS"));
+    }
+
+    @Test
+    public void skipsLeadingComments() {
+        StatementInfo info = StatementCache.get("  /* app=orders */\n-- reporting\nINSERT INTO PERSONS VALUES (1, 'alice')");
+        assertEquals(OperationType.INSERT, info.getOperation());
+        assertTrue(info.isWrite());
+        info = StatementCache.get("# maintenance\n  DROP TABLE PERSONS");
+        assertTrue(info.isDDL());
+    }
+
+    @Test
+    public void fallsBackToFirstKeyword() {
+        StatementInfo info = StatementCache.get("RENAME TABLE PERSONS TO PEOPLE");
+        assertTrue(info.isDDL());
+        info = StatementCache.get("SHOW MASTER STATUS");
+        assertTrue(info.isReadOnly());
+        assertNull(info.getOperation());
+        info = StatementCache.get(null);
+        assertFalse(info.isDDL());
+        assertFalse(info.isWrite());
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        StatementCache.clear();
+        String sql = "SELECT NAME FROM PERSONS WHERE ID = 1";
+        StatementInfo info = StatementCache.get(sql);
+        assertSame(info, StatementCache.get(sql));
+        // the eviction is approximate, a statement that is not used is evicted within two sweeps of the cache
+        for (int i = 0; i < 3 * StatementCache.MAX_ENTRIES; i++) {
+            StatementCache.get("SELECT NAME FROM PERSONS WHERE ID = " + (i + 2));
+        }
+        assertEquals(StatementCache.MAX_ENTRIES, StatementCache.size());
+        assertNotSame(info, StatementCache.get(sql));
+    }
+
+    @Test
+    public void statementsInUseAreNotEvicted() {
+        StatementCache.clear();
+        String sql = "SELECT NAME FROM PERSONS WHERE ID = 1";
+        StatementInfo info = StatementCache.get(sql);
+        for (int i = 0; i < 3 * StatementCache.MAX_ENTRIES; i++) {
+            StatementCache.get("SELECT NAME FROM PERSONS WHERE ID = " + (i + 2));
+            assertSame(info, StatementCache.get(sql));
+        }
+        assertEquals(StatementCache.MAX_ENTRIES, StatementCache.size());
+    }
+
+    @Test
+    public void concurrentLookupsKeepTheCacheBounded() throws InterruptedException {
+        StatementCache.clear();
+        final AtomicInteger misclassified = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * StatementCache.MAX_ENTRIES;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < StatementCache.MAX_ENTRIES; i++) {
+                    if (!StatementCache.get("DELETE FROM PERSONS WHERE ID = " + (offset + i)).isWrite()) {
+                        misclassified.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, misclassified.get());
+        // a thread that finds another one sweeping does not wait for it, the cache may be over by a few entries
+        assertTrue("size: " + StatementCache.size(), StatementCache.size() <= StatementCache.MAX_ENTRIES + threads.length);
+    }
+}
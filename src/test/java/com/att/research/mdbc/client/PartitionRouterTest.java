@@ -0,0 +1,122 @@
+package com.att.research.mdbc.client;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.mdbc.tables.TablePartitionInformation;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PartitionRouterTest {
+
+    private final Map<String, String> tableToPartition = new HashMap<>();
+    private final Map<String, String> partitionOwner = new HashMap<>();
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private final PartitionRouter.MetadataSource source = new PartitionRouter.MetadataSource() {
+        @Override
+        public TablePartitionInformation getTablePartition(String table) {
+            reads.incrementAndGet();
+            String partition = tableToPartition.get(table);
+            return (partition == null) ? null : new TablePartitionInformation(table, partition, Collections.emptyList());
+        }
+
+        @Override
+        public String getPartitionOwner(String partition) {
+            reads.incrementAndGet();
+            return partitionOwner.get(partition);
+        }
+    };
+
+    private PartitionRouter router(long ttl) {
+        Map<String, String> urls = new HashMap<>();
+        urls.put("node1", "http://node1:30000");
+        urls.put("node2", "http://node2:30000");
+        return new PartitionRouter(source, urls, "http://default:30000", ttl);
+    }
+
+    @Test
+    public void tablesAreRoutedToTheUrlOfTheirOwner() throws SQLException {
+        tableToPartition.put("Persons", "p1");
+        partitionOwner.put("p1", "node2");
+        PartitionRouter router = router(60000);
+        assertEquals("http://node2:30000", router.route(Collections.singletonList("Persons")));
+        assertEquals("http://default:30000", router.route(Collections.singletonList("Unassigned")));
+        partitionOwner.put("p1", "http://node3:30000");
+        router.invalidate(Collections.singletonList("Persons"));
+        assertEquals("http://node3:30000", router.route(Collections.singletonList("Persons")));
+    }
+
+    @Test
+    public void ownersAreCachedUntilInvalidated() throws SQLException {
+        tableToPartition.put("Persons", "p1");
+        partitionOwner.put("p1", "node1");
+        PartitionRouter router = router(60000);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("http://node1:30000", router.route(Collections.singletonList("Persons")));
+        }
+        assertEquals(2, reads.get());
+        partitionOwner.put("p1", "node2");
+        // the ownership change is not seen until the cache expires or the server reports it
+        assertEquals("http://node1:30000", router.route(Collections.singletonList("Persons")));
+        router.invalidate(Collections.singletonList("Persons"));
+        assertEquals("http://node2:30000", router.route(Collections.singletonList("Persons")));
+        assertEquals(4, reads.get());
+    }
+
+    @Test
+    public void expiredOwnersAreReadAgain() throws SQLException {
+        tableToPartition.put("Persons", "p1");
+        partitionOwner.put("p1", "node1");
+        PartitionRouter router = router(0);
+        assertEquals("http://node1:30000", router.route(Collections.singletonList("Persons")));
+        partitionOwner.put("p1", "node2");
+        assertEquals("http://node2:30000", router.route(Collections.singletonList("Persons")));
+    }
+
+    @Test
+    public void mostOfTheTablesDecideTheOwner() throws SQLException {
+        tableToPartition.put("A", "p1");
+        tableToPartition.put("B", "p2");
+        tableToPartition.put("C", "p2");
+        partitionOwner.put("p1", "node1");
+        partitionOwner.put("p2", "node2");
+        assertEquals("http://node2:30000", router(60000).route(Arrays.asList("A", "B", "C")));
+    }
+
+    @Test
+    public void metadataErrorsAreReported() {
+        PartitionRouter router = new PartitionRouter(new PartitionRouter.MetadataSource() {
+            @Override
+            public TablePartitionInformation getTablePartition(String table) throws MDBCServiceException {
+                throw new MDBCServiceException("MUSIC is not reachable");
+            }
+
+            @Override
+            public String getPartitionOwner(String partition) {
+                return null;
+            }
+        }, new HashMap<>(), null, 60000);
+        try {
+            router.route(Collections.singletonList("Persons"));
+            fail("the owner can not be known");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().contains("MUSIC is not reachable"));
+        }
+    }
+
+    @Test
+    public void ownershipErrorsAreRecognized() {
+        assertTrue(PartitionRouter.isOwnershipError(new SQLException("Failure commiting to MUSIC: lease lost")));
+        assertTrue(PartitionRouter.isOwnershipError(new SQLException("remote error",
+                new Exception("Lease of ns.tit.1 could not be acquired, it is held by node1"))));
+        assertFalse(PartitionRouter.isOwnershipError(new SQLException("Table PERSONS not found")));
+    }
+}
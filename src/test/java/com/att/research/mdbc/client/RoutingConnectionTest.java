@@ -0,0 +1,113 @@
+package com.att.research.mdbc.client;
+
+import com.att.research.mdbc.tables.TablePartitionInformation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RoutingConnectionTest {
+
+    private static final String NODE1 = "jdbc:h2:mem:routing_node1;DB_CLOSE_DELAY=-1";
+    private static final String NODE2 = "jdbc:h2:mem:routing_node2;DB_CLOSE_DELAY=-1";
+
+    private volatile String owner = "node1";
+    private final List<String> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() throws ClassNotFoundException {
+        Class.forName("org.h2.Driver");
+    }
+
+    private PartitionRouter router() {
+        Map<String, String> urls = new HashMap<>();
+        urls.put("node1", NODE1);
+        urls.put("node2", NODE2);
+        return new PartitionRouter(new PartitionRouter.MetadataSource() {
+            @Override
+            public TablePartitionInformation getTablePartition(String table) {
+                return new TablePartitionInformation(table, "p1", Collections.emptyList());
+            }
+
+            @Override
+            public String getPartitionOwner(String partition) {
+                return owner;
+            }
+        }, urls, null, 60000);
+    }
+
+    private RoutingConnection connect(PartitionRouter router) throws SQLException {
+        return new RoutingConnection(router, Collections.singletonList("Persons"), url -> {
+            opened.add(url);
+            return DriverManager.getConnection(url);
+        });
+    }
+
+    private static String database(Connection c) throws SQLException {
+        try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("SELECT DATABASE()")) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+    @Test
+    public void connectionIsOpenedToTheOwner() throws SQLException {
+        owner = "node2";
+        try (RoutingConnection c = connect(router())) {
+            assertEquals(NODE2, c.getUrl());
+            assertEquals("ROUTING_NODE2", database(c));
+        }
+    }
+
+    @Test
+    public void ownershipErrorsMoveTheNextTransaction() throws SQLException {
+        PartitionRouter router = router();
+        try (RoutingConnection c = connect(router)) {
+            c.setAutoCommit(false);
+            assertEquals("ROUTING_NODE1", database(c));
+            owner = "node2";
+            // the cached owner is still used
+            c.commit();
+            assertEquals(NODE1, c.getUrl());
+            try (Statement s = c.createStatement()) {
+                s.execute("CALL 'Lease of ns.tit.1 could not be acquired, it is held by node2' / 0");
+                fail("the statement should fail");
+            } catch (SQLException e) {
+                // the server reported that it does not own the tables
+            }
+            c.rollback();
+            assertEquals(NODE2, c.getUrl());
+            assertFalse(c.getAutoCommit());
+            assertEquals("ROUTING_NODE2", database(c));
+        }
+        assertEquals(2, opened.size());
+    }
+
+    @Test
+    public void otherErrorsKeepTheConnection() throws SQLException {
+        try (RoutingConnection c = connect(router())) {
+            try (Statement s = c.createStatement()) {
+                s.execute("SELECT * FROM MISSING_TABLE");
+                fail("the table does not exist");
+            } catch (SQLException e) {
+                assertFalse(PartitionRouter.isOwnershipError(e));
+            }
+            owner = "node2";
+            assertEquals(NODE1, c.getUrl());
+            assertEquals("ROUTING_NODE1", database(c));
+        }
+        assertEquals(1, opened.size());
+    }
+}
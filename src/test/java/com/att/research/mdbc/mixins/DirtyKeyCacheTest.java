@@ -0,0 +1,110 @@
+package com.att.research.mdbc.mixins;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DirtyKeyCacheTest {
+
+    private final Map<String, List<Map<String, Object>>> dirty = new HashMap<>();
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private final DirtyKeyCache.Source source = (ti, tableName) -> {
+        reads.incrementAndGet();
+        List<Map<String, Object>> rows = dirty.get(tableName);
+        if (rows == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(rows);
+    };
+
+    private static Map<String, Object> key(int id) {
+        Map<String, Object> key = new HashMap<>();
+        key.put("ID", id);
+        return key;
+    }
+
+    @Test
+    public void cleanTablesAreOnlyReadFromMusicTheFirstTime() {
+        DirtyKeyCache cache = new DirtyKeyCache(source, 0);
+        assertTrue(cache.getDirtyKeys(null, "persons").isEmpty());
+        assertEquals(1, reads.get());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cache.getDirtyKeys(null, "PERSONS").isEmpty());
+        }
+        assertEquals(1, reads.get());
+        assertEquals(11, cache.getLocalReads());
+        assertEquals(0, cache.getRemoteReads());
+    }
+
+    @Test
+    public void pollFindsTheRowsMarkedByOtherReplicas() {
+        DirtyKeyCache cache = new DirtyKeyCache(source, 0);
+        assertTrue(cache.getDirtyKeys(null, "persons").isEmpty());
+        dirty.put("persons", new ArrayList<>(Collections.singletonList(key(1))));
+        // not seen until the next poll
+        assertTrue(cache.getDirtyKeys(null, "persons").isEmpty());
+        cache.poll();
+        List<Map<String, Object>> keys = cache.getDirtyKeys(null, "persons");
+        assertEquals(1, keys.size());
+        assertEquals(1, keys.get(0).get("ID"));
+        assertEquals(1, cache.getRemoteReads());
+    }
+
+    @Test
+    public void appliedRowsAreNoLongerDirty() {
+        dirty.put("persons", new ArrayList<>(Arrays.asList(key(1), key(2))));
+        DirtyKeyCache cache = new DirtyKeyCache(source, 0);
+        List<Map<String, Object>> keys = cache.getDirtyKeys(null, "persons");
+        assertEquals(2, keys.size());
+        cache.applied("persons", Collections.singletonList(key(1)));
+        keys = cache.getDirtyKeys(null, "persons");
+        assertEquals(1, keys.size());
+        assertEquals(2, keys.get(0).get("ID"));
+        cache.applied("PERSONS", keys);
+        assertTrue(cache.getDirtyKeys(null, "persons").isEmpty());
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void failedPollKeepsThePreviousRows() {
+        dirty.put("persons", new ArrayList<>(Collections.singletonList(key(1))));
+        final AtomicInteger calls = new AtomicInteger();
+        DirtyKeyCache cache = new DirtyKeyCache((ti, tableName) -> {
+            if (calls.incrementAndGet() > 1) {
+                throw new IllegalStateException("MUSIC is not reachable");
+            }
+            return source.getDirtyRows(ti, tableName);
+        }, 0);
+        assertEquals(1, cache.getDirtyKeys(null, "persons").size());
+        cache.poll();
+        assertEquals(2, calls.get());
+        assertEquals(1, cache.getDirtyKeys(null, "persons").size());
+    }
+
+    @Test
+    public void pollerRunsInTheBackground() throws Exception {
+        final CountDownLatch polled = new CountDownLatch(3);
+        DirtyKeyCache cache = new DirtyKeyCache((ti, tableName) -> {
+            polled.countDown();
+            return new ArrayList<>();
+        }, 10);
+        cache.getDirtyKeys(null, "persons");
+        cache.start();
+        try {
+            assertTrue(polled.await(5, TimeUnit.SECONDS));
+        } finally {
+            cache.stop();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.att.research.mdbc.mixins;
+
+import org.junit.Test;
+import org.onap.music.datastore.PreparedQueryObject;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DirtyRowBatchTest {
+
+    private static PreparedQueryObject marker(String replica, Object key) {
+        PreparedQueryObject query = new PreparedQueryObject();
+        query.appendQueryString("INSERT INTO ns.DIRTY_T (REPLICA__, ID) VALUES (?, ?);");
+        query.addValue(replica);
+        query.addValue(key);
+        return query;
+    }
+
+    @Test
+    public void markersOfAllTheReplicasGoInASingleBatch() {
+        DirtyRowBatch batch = new DirtyRowBatch();
+        for (int r = 0; r < 8; r++) {
+            batch.add("replica" + r, marker("replica" + r, 1));
+        }
+        List<List<PreparedQueryObject>> batches = batch.getBatches();
+        assertEquals(1, batches.size());
+        assertEquals(8, batches.get(0).size());
+    }
+
+    @Test
+    public void markersOfAPartitionAreNotSplitWhenTheyFit() {
+        DirtyRowBatch batch = new DirtyRowBatch(4);
+        for (int key = 0; key < 3; key++) {
+            batch.add("a", marker("a", key));
+            batch.add("b", marker("b", key));
+        }
+        assertEquals(6, batch.size());
+        List<List<PreparedQueryObject>> batches = batch.getBatches();
+        assertEquals(2, batches.size());
+        for (List<PreparedQueryObject> markers : batches) {
+            assertEquals(3, markers.size());
+            Object partition = markers.get(0).getValues().get(0);
+            for (PreparedQueryObject marker : markers) {
+                assertEquals(partition, marker.getValues().get(0));
+            }
+        }
+    }
+
+    @Test
+    public void bigPartitionsAreSplit() {
+        DirtyRowBatch batch = new DirtyRowBatch(4);
+        for (int key = 0; key < 10; key++) {
+            batch.add("tablename", marker("r", key));
+        }
+        List<List<PreparedQueryObject>> batches = batch.getBatches();
+        assertEquals(3, batches.size());
+        assertEquals(4, batches.get(0).size());
+        assertEquals(4, batches.get(1).size());
+        assertEquals(2, batches.get(2).size());
+        assertEquals(0, batches.get(0).get(0).getValues().get(1));
+        assertEquals(9, batches.get(2).get(1).getValues().get(1));
+    }
+
+    @Test
+    public void markersAreGroupedByPartition() {
+        DirtyRowBatch batch = new DirtyRowBatch();
+        assertTrue(batch.isEmpty());
+        assertTrue(batch.getBatches().isEmpty());
+        batch.add("a", marker("a", 1));
+        batch.add("b", marker("b", 1));
+        batch.add("a", marker("a", 2));
+        List<PreparedQueryObject> markers = batch.getMarkers();
+        assertEquals(3, markers.size());
+        assertEquals("a", markers.get(0).getValues().get(0));
+        assertEquals("a", markers.get(1).getValues().get(0));
+        assertEquals("b", markers.get(2).getValues().get(0));
+    }
+}
@@ -0,0 +1,94 @@
+package com.att.research.mdbc.mixins;
+
+import com.att.research.mdbc.TableInfo;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.onap.music.datastore.PreparedQueryObject;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DirtyRowMarkersTest {
+
+    private static final String[] REPLICAS = {"r1", "r2", "r3"};
+
+    // rows of ns.DIRTY_PERSONS, as the bound values (REPLICA__, ID)
+    private final Set<List<Object>> dirtyTable = new LinkedHashSet<>();
+
+    private static TableInfo persons() {
+        TableInfo ti = new TableInfo();
+        ti.columns.add("ID");
+        ti.coltype.add(Types.INTEGER);
+        ti.iskey.add(true);
+        ti.columns.add("NAME");
+        ti.coltype.add(Types.VARCHAR);
+        ti.iskey.add(false);
+        return ti;
+    }
+
+    private void execute(PreparedQueryObject query) {
+        if (query.getQuery().startsWith("INSERT")) {
+            dirtyTable.add(new ArrayList<>(query.getValues()));
+        } else {
+            assertTrue(query.getQuery().startsWith("DELETE FROM ns.DIRTY_PERSONS WHERE REPLICA__=? AND ID=?"));
+            assertTrue("the delete matches no marker: "+query.getValues(), dirtyTable.remove(new ArrayList<>(query.getValues())));
+        }
+    }
+
+    private DirtyKeyCache.Source dirtyRowsOf(String replica) {
+        return (ti, tableName) -> {
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (List<Object> row : dirtyTable) {
+                if (row.get(0).equals(replica)) {
+                    rows.add(Collections.singletonMap("ID", row.get(1)));
+                }
+            }
+            return rows;
+        };
+    }
+
+    @Test
+    public void markedRowIsCleanedAndNotPolledAgain() {
+        TableInfo ti = persons();
+        CassandraMixin writer = new CassandraMixin("ns", "r1", REPLICAS);
+        CassandraMixin reader = new CassandraMixin("ns", "r2", REPLICAS);
+        DirtyKeyCache cache = new DirtyKeyCache(dirtyRowsOf("r2"), 0);
+        assertTrue(cache.getDirtyKeys(ti, "PERSONS").isEmpty());
+
+        JSONObject row = new JSONObject();
+        row.put("ID", 7);
+        row.put("NAME", "alice");
+        DirtyRowBatch batch = new DirtyRowBatch();
+        writer.addDirtyRowMarkers(batch, ti, "PERSONS", row);
+        // the replica that made the change has no marker
+        assertEquals(2, batch.size());
+        for (PreparedQueryObject marker : batch.getMarkers()) {
+            assertNotEquals("r1", marker.getValues().get(0));
+            execute(marker);
+        }
+
+        cache.poll();
+        List<Map<String, Object>> keys = cache.getDirtyKeys(ti, "PERSONS");
+        assertEquals(1, keys.size());
+        assertEquals(7, keys.get(0).get("ID"));
+
+        // the reader updates its database and removes its own marker, with the key columns of the row
+        Map<String, Object> key = new HashMap<>(keys.get(0));
+        execute(reader.createCleanDirtyRowQuery(ti, "PERSONS", new JSONObject(key)));
+        cache.applied("PERSONS", keys);
+        cache.poll();
+        assertTrue(cache.getDirtyKeys(ti, "PERSONS").isEmpty());
+        // the marker of the third replica is still there
+        assertEquals(1, dirtyTable.size());
+        assertEquals("r3", dirtyTable.iterator().next().get(0));
+    }
+}
@@ -0,0 +1,144 @@
+package com.att.research.mdbc.mixins;
+
+import com.att.research.exceptions.MDBCServiceException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest {
+
+    @Test
+    public void singleCommit() throws MDBCServiceException {
+        List<List<String>> flushed = new ArrayList<>();
+        GroupCommit stage = new GroupCommit((batch) -> {
+            List<String> ids = new ArrayList<>();
+            for(GroupCommit.PendingCommit c : batch) {
+                ids.add(c.getCommitId());
+            }
+            flushed.add(ids);
+        }, 16, 0);
+        stage.commit(new GroupCommit.PendingCommit("1", "digest".getBytes()));
+        assertEquals(1, flushed.size());
+        assertEquals(Collections.singletonList("1"), flushed.get(0));
+    }
+
+    @Test
+    public void concurrentCommitsAreGrouped() throws InterruptedException {
+        final int threads = 8;
+        final AtomicInteger flushes = new AtomicInteger(0);
+        final AtomicInteger committed = new AtomicInteger(0);
+        final CountDownLatch firstFlushStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirstFlush = new CountDownLatch(1);
+        final GroupCommit stage = new GroupCommit((batch) -> {
+            if(flushes.getAndIncrement() == 0) {
+                firstFlushStarted.countDown();
+                try {
+                    releaseFirstFlush.await();
+                } catch (InterruptedException e) {
+                    throw new MDBCServiceException("interrupted");
+                }
+            }
+            committed.addAndGet(batch.size());
+        }, 64, 0);
+        List<Thread> workers = new ArrayList<>();
+        for(int i = 0; i < threads; i++) {
+            final String id = Integer.toString(i);
+            workers.add(new Thread(() -> {
+                try {
+                    stage.commit(new GroupCommit.PendingCommit(id, ("digest"+id).getBytes()));
+                } catch (MDBCServiceException e) {
+                    fail();
+                }
+            }));
+        }
+        workers.get(0).start();
+        firstFlushStarted.await();
+        for(int i = 1; i < threads; i++) {
+            workers.get(i).start();
+        }
+        // give the rest of the threads time to enqueue behind the first flush
+        Thread.sleep(200);
+        releaseFirstFlush.countDown();
+        for(Thread t : workers) {
+            t.join();
+        }
+        assertEquals(threads, committed.get());
+        assertEquals(2, flushes.get());
+    }
+
+    @Test
+    public void followerInterruptedDuringTheFlushGetsTheResultAndKeepsTheInterrupt() throws InterruptedException {
+        final AtomicInteger flushes = new AtomicInteger(0);
+        final CountDownLatch firstFlushStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirstFlush = new CountDownLatch(1);
+        final CountDownLatch secondFlushStarted = new CountDownLatch(1);
+        final CountDownLatch releaseSecondFlush = new CountDownLatch(1);
+        final Thread[] leader = new Thread[1];
+        final GroupCommit stage = new GroupCommit((batch) -> {
+            int flush = flushes.incrementAndGet();
+            CountDownLatch started = (flush == 1) ? firstFlushStarted : secondFlushStarted;
+            CountDownLatch release = (flush == 1) ? releaseFirstFlush : releaseSecondFlush;
+            leader[0] = Thread.currentThread();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new MDBCServiceException("interrupted");
+            }
+        }, 64, 0);
+        final List<Thread> failed = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> keptInterrupt = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> workers = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            final String id = Integer.toString(i);
+            workers.add(new Thread(() -> {
+                try {
+                    stage.commit(new GroupCommit.PendingCommit(id, ("digest"+id).getBytes()));
+                    if(Thread.currentThread().isInterrupted()) {
+                        keptInterrupt.add(Thread.currentThread());
+                    }
+                } catch (MDBCServiceException e) {
+                    failed.add(Thread.currentThread());
+                }
+            }));
+        }
+        workers.get(0).start();
+        firstFlushStarted.await();
+        workers.get(1).start();
+        workers.get(2).start();
+        // both commits are queued behind the first flush, the next leader takes them together
+        Thread.sleep(200);
+        releaseFirstFlush.countDown();
+        secondFlushStarted.await();
+        Thread follower = (leader[0] == workers.get(1)) ? workers.get(2) : workers.get(1);
+        follower.interrupt();
+        Thread.sleep(100);
+        releaseSecondFlush.countDown();
+        for(Thread t : workers) {
+            t.join();
+        }
+        assertEquals(2, flushes.get());
+        assertTrue(failed.isEmpty());
+        assertEquals(Collections.singletonList(follower), keptInterrupt);
+    }
+
+    @Test
+    public void failedFlushFailsAllCommits() {
+        GroupCommit stage = new GroupCommit((batch) -> {
+            throw new MDBCServiceException("music unavailable");
+        }, 16, 0);
+        try {
+            stage.commit(new GroupCommit.PendingCommit("1", "digest".getBytes()));
+            fail();
+        } catch (MDBCServiceException e) {
+            assertEquals("music unavailable", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.att.research.mdbc.mixins;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.mdbc.Configuration;
+import com.att.research.mdbc.MusicSqlManager;
+import com.att.research.mdbc.Range;
+import com.att.research.mdbc.tables.Operation;
+import com.att.research.mdbc.tables.OperationType;
+import com.att.research.mdbc.tables.StagingTable;
+import com.att.research.mdbc.tables.TransactionDigestCodec;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class H2MixinTest {
+    private static final String URL = "jdbc:h2:mem:h2mixintest;DB_CLOSE_DELAY=-1";
+
+    private Connection conn;
+    private MusicSqlManager msm;
+
+    /**
+     * MUSIC interface that only generates keys, the rest of the methods are not used by the mixin
+     */
+    private static MusicInterface keysOnly() {
+        return (MusicInterface) Proxy.newProxyInstance(MusicInterface.class.getClassLoader(),
+                new Class<?>[] {MusicInterface.class}, (proxy, method, args) -> {
+                    switch(method.getName()) {
+                        case "getMusicKeyFromRow":
+                            return String.valueOf(((JSONObject) args[2]).get("ID"));
+                        case "generateUniqueKey":
+                            return UUID.randomUUID().toString();
+                        case "getMusicDefaultPrimaryKeyName":
+                            return "MDBC_ID";
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private Properties properties() {
+        Properties info = new Properties();
+        info.setProperty(Configuration.KEY_DB_MIXIN_NAME, H2Mixin.MIXIN_NAME);
+        return info;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        conn = DriverManager.getConnection(URL);
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE PERSONS (ID INT PRIMARY KEY, NAME VARCHAR(255), BALANCE DECIMAL(10,2))");
+        stmt.execute("CREATE TABLE FILES (ID INT PRIMARY KEY, DATA BINARY(16), CREATED TIMESTAMP)");
+        stmt.close();
+        msm = new MusicSqlManager(URL, conn, properties(), keysOnly());
+        msm.synchronizeTables();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        msm.close();
+        Statement stmt = conn.createStatement();
+        stmt.execute("DROP TABLE PERSONS");
+        stmt.execute("DROP TABLE FILES");
+        stmt.close();
+        conn.close();
+    }
+
+    private Operation operation(String key) throws NoSuchFieldException {
+        StagingTable table = msm.getTransactionDigest().get(new Range("PERSONS"));
+        assertNotNull(table);
+        Deque<Pair<String,Operation>> snapshot = table.getIterableSnapshot();
+        for(Pair<String,Operation> p : snapshot) {
+            if(p.getKey().equals(key)) {
+                return p.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void triggersCaptureTypedRows() throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.execute("INSERT INTO PERSONS VALUES (1, 'alice', 10.50)");
+        stmt.execute("UPDATE PERSONS SET NAME='bob' WHERE ID=1");
+        stmt.execute("INSERT INTO PERSONS VALUES (2, 'carol', 1.00)");
+        stmt.execute("DELETE FROM PERSONS WHERE ID=2");
+        stmt.close();
+        Operation op = operation("1");
+        assertEquals(OperationType.INSERT, op.getOperationType());
+        assertTrue(op.isTyped());
+        assertEquals("bob", op.getNewRow().get("NAME"));
+        assertEquals(1, op.getNewRow().get("ID"));
+        assertEquals(1, op.getOldRow().size());
+        // insert and delete in the same transaction cancel each other
+        assertNull(operation("2"));
+        // the typed rows are encoded without going through json
+        HashMap<Range,StagingTable> decoded = TransactionDigestCodec.decode(new TransactionDigestCodec().encode(msm.getTransactionDigest()));
+        Operation decodedOp = decoded.get(new Range("PERSONS")).getIterableSnapshot().getFirst().getValue();
+        assertEquals("bob", decodedOp.getNewVal().getString("NAME"));
+    }
+
+    @Test
+    public void rowsFromMusicAreNotCaptured() throws Exception {
+        Connection other = DriverManager.getConnection(URL);
+        H2Mixin mixin = new H2Mixin(msm, URL, other, properties());
+        Map<String,Object> row = new HashMap<>();
+        row.put("ID", 5);
+        row.put("NAME", "dave");
+        row.put("BALANCE", 3);
+        mixin.insertRowIntoSqlDb("PERSONS", row);
+        row.put("NAME", "erin");
+        mixin.insertRowIntoSqlDb("PERSONS", row);
+        assertNull(msm.getTransactionDigest().get(new Range("PERSONS")));
+        ResultSet rs = other.createStatement().executeQuery("SELECT NAME FROM PERSONS WHERE ID=5");
+        assertTrue(rs.next());
+        assertEquals("erin", rs.getString(1));
+        rs.close();
+        mixin.deleteRowFromSqlDb("PERSONS", row);
+        rs = other.createStatement().executeQuery("SELECT COUNT(*) FROM PERSONS");
+        rs.next();
+        assertEquals(0, rs.getInt(1));
+        assertNull(msm.getTransactionDigest().get(new Range("PERSONS")));
+        mixin.close();
+        other.close();
+    }
+
+    private static Map<String,Object> person(int id, String name) {
+        Map<String,Object> row = new HashMap<>();
+        row.put("ID", id);
+        row.put("NAME", name);
+        row.put("BALANCE", 1);
+        return row;
+    }
+
+    private String name(Connection c, int id) throws Exception {
+        ResultSet rs = c.createStatement().executeQuery("SELECT NAME FROM PERSONS WHERE ID="+id);
+        String name = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        return name;
+    }
+
+    @Test
+    public void digestIsAppliedInBulkWithoutCapture() throws Exception {
+        Connection other = DriverManager.getConnection(URL);
+        H2Mixin mixin = new H2Mixin(msm, URL, other, properties());
+        mixin.insertRowIntoSqlDb("PERSONS", person(2, "bob"));
+        mixin.insertRowIntoSqlDb("PERSONS", person(3, "carol"));
+        mixin.insertRowIntoSqlDb("PERSONS", person(4, "dave"));
+
+        StagingTable persons = new StagingTable();
+        persons.addRowOperation("1", OperationType.INSERT, Collections.singletonMap("ID", 1), person(1, "alice"));
+        persons.addRowOperation("2", OperationType.UPDATE, Collections.singletonMap("ID", 2), person(2, "bobby"));
+        persons.addRowOperation("3", OperationType.DELETE, Collections.singletonMap("ID", 3), person(3, "carol"));
+        // the key of dave changed from 4 to 5
+        persons.addRowOperation("5", OperationType.UPDATE, Collections.singletonMap("ID", 4), person(5, "dave"));
+        // rows encoded as json, as downloaded from MUSIC
+        persons.addOperation("6", OperationType.INSERT, "{\"ID\":6}", "{\"ID\":6,\"NAME\":\"erin\",\"BALANCE\":2.5}");
+        HashMap<Range,StagingTable> digest = new HashMap<>();
+        digest.put(new Range("PERSONS"), persons);
+        mixin.applyTxDigest(digest);
+
+        assertEquals("alice", name(other, 1));
+        assertEquals("bobby", name(other, 2));
+        assertNull(name(other, 3));
+        assertNull(name(other, 4));
+        assertEquals("dave", name(other, 5));
+        assertEquals("erin", name(other, 6));
+        assertTrue(other.getAutoCommit());
+        assertNull(msm.getTransactionDigest().get(new Range("PERSONS")));
+
+        // the second statement fails, so the delete of the first one is rolled back
+        StagingTable invalid = new StagingTable();
+        invalid.addRowOperation("1", OperationType.DELETE, Collections.singletonMap("ID", 1), person(1, "alice"));
+        invalid.addRowOperation("7", OperationType.INSERT, Collections.singletonMap("ID", 7), person(7, new String(new char[300]).replace('\0', 'x')));
+        digest.put(new Range("PERSONS"), invalid);
+        try {
+            mixin.applyTxDigest(digest);
+            fail("The digest should not be applied");
+        } catch (MDBCServiceException e) {
+            // expected
+        }
+        assertEquals("alice", name(other, 1));
+        assertNull(name(other, 7));
+        assertNull(msm.getTransactionDigest().get(new Range("PERSONS")));
+
+        // the capture works again after the digest was applied
+        Statement stmt = other.createStatement();
+        stmt.execute("DELETE FROM PERSONS");
+        stmt.close();
+        mixin.close();
+        other.close();
+    }
+
+    @Test
+    public void rowsOfFailedStatementsAreNotCaptured() throws Exception {
+        Statement stmt = conn.createStatement();
+        msm.preStatementHook("INSERT INTO PERSONS VALUES (1, 'alice', 1.00)");
+        stmt.execute("INSERT INTO PERSONS VALUES (1, 'alice', 1.00)");
+        // the rows are added to the transaction when the statement completes
+        assertNull(msm.getTransactionDigest().get(new Range("PERSONS")));
+        msm.postStatementHook("INSERT INTO PERSONS VALUES (1, 'alice', 1.00)");
+        assertNotNull(operation("1"));
+
+        // the first row is captured, then the statement fails on the duplicated key and H2 undoes it
+        String failing = "INSERT INTO PERSONS VALUES (2, 'bob', 1.00), (1, 'carol', 1.00)";
+        msm.preStatementHook(failing);
+        try {
+            stmt.execute(failing);
+            fail("The statement should fail");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertNull(operation("2"));
+
+        msm.preStatementHook("UPDATE PERSONS SET NAME='dave' WHERE ID=1");
+        stmt.execute("UPDATE PERSONS SET NAME='dave' WHERE ID=1");
+        msm.postStatementHook("UPDATE PERSONS SET NAME='dave' WHERE ID=1");
+        stmt.close();
+        assertNull(operation("2"));
+        assertEquals(1, msm.getTransactionDigest().get(new Range("PERSONS")).getIterableSnapshot().size());
+        assertEquals("dave", operation("1").getNewRow().get("NAME"));
+    }
+
+    @Test
+    public void binaryAndTemporalValuesRoundTrip() throws Exception {
+        byte[] data = new byte[16];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 17 - 100);
+        }
+        Timestamp created = Timestamp.valueOf("2018-03-01 12:30:45.123456789");
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO FILES VALUES (?, ?, ?)");
+        ps.setInt(1, 1);
+        ps.setBytes(2, data);
+        ps.setTimestamp(3, created);
+        ps.execute();
+        ps.close();
+        byte[] encoded = new TransactionDigestCodec().encode(msm.getTransactionDigest());
+
+        // the row is removed without capture, then restored from the encoded digest
+        Connection other = DriverManager.getConnection(URL);
+        H2Mixin mixin = new H2Mixin(msm, URL, other, properties());
+        mixin.deleteRowFromSqlDb("FILES", Collections.singletonMap("ID", 1));
+        msm.getTransactionDigest().clear();
+        HashMap<Range,StagingTable> decoded = TransactionDigestCodec.decode(encoded);
+        Operation op = decoded.get(new Range("FILES")).getIterableSnapshot().getFirst().getValue();
+        assertTrue(op.getNewRow().get("DATA") instanceof byte[]);
+        assertEquals(created, op.getNewRow().get("CREATED"));
+        mixin.applyTxDigest(decoded);
+
+        ResultSet rs = other.createStatement().executeQuery("SELECT DATA, CREATED FROM FILES WHERE ID=1");
+        assertTrue(rs.next());
+        assertTrue(Arrays.equals(data, rs.getBytes(1)));
+        assertEquals(created, rs.getTimestamp(2));
+        rs.close();
+        assertNull(msm.getTransactionDigest().get(new Range("FILES")));
+        mixin.close();
+        other.close();
+    }
+}
@@ -0,0 +1,219 @@
+package com.att.research.mdbc.mixins;
+
+import com.att.research.exceptions.MDBCServiceException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LeaseManagerTest {
+
+    /**
+     * Lock queue of a single key in memory, the head of the queue holds the lock
+     */
+    private static class FakeLocks implements LeaseManager.LockService {
+        final LinkedList<String> queue = new LinkedList<>();
+        final List<String> forced = new ArrayList<>();
+        final Map<String, Long> heartbeats = new HashMap<>();
+        final AtomicInteger acquires = new AtomicInteger();
+        final AtomicInteger peeks = new AtomicInteger();
+        int next = 0;
+
+        @Override
+        public synchronized String createLockReference(String fullyQualifiedKey) {
+            String lockId = "ref" + (next++);
+            queue.add(lockId);
+            return lockId;
+        }
+
+        @Override
+        public synchronized boolean acquireLock(String fullyQualifiedKey, String lockId) {
+            acquires.incrementAndGet();
+            return lockId.equals(queue.peekFirst());
+        }
+
+        @Override
+        public synchronized String peekLockQueue(String keyspace, String table, String key) {
+            peeks.incrementAndGet();
+            return queue.peekFirst();
+        }
+
+        @Override
+        public synchronized void releaseLock(String fullyQualifiedKey, String lockId, boolean voluntary) {
+            queue.remove(lockId);
+            heartbeats.remove(lockId);
+            if (!voluntary) {
+                forced.add(lockId);
+            }
+        }
+
+        @Override
+        public synchronized void publishHeartbeat(String keyspace, String table, String key, String lockId, long heartbeat) throws MDBCServiceException {
+            heartbeats.put(lockId, heartbeat);
+        }
+
+        @Override
+        public synchronized Long readHeartbeat(String keyspace, String table, String key, String lockId) {
+            return heartbeats.get(lockId);
+        }
+    }
+
+    private FakeLocks locks;
+    private ScheduledExecutorService renewer;
+
+    @Before
+    public void setUp() {
+        locks = new FakeLocks();
+        renewer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        renewer.shutdownNow();
+    }
+
+    private LeaseManager lease(String lockId, long leasePeriod, long timeout) {
+        return new LeaseManager(locks, renewer, "ns", "transactioninformation", "tit1", lockId, leasePeriod, timeout);
+    }
+
+    @Test
+    public void noRoundTripsWhileTheLeaseIsValid() throws Exception {
+        LeaseManager lease = lease(null, 60000, 1000);
+        assertFalse(lease.isValid());
+        String lockId = lease.acquire();
+        assertEquals("ref0", lockId);
+        assertTrue(lease.isValid());
+        assertTrue(lease.getExpiry() > System.currentTimeMillis());
+        int acquires = locks.acquires.get();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(lockId, lease.acquire());
+        }
+        assertEquals(acquires, locks.acquires.get());
+        assertEquals(0, locks.peeks.get());
+    }
+
+    @Test
+    public void leaseIsRenewedInTheBackground() throws Exception {
+        LeaseManager lease = lease(null, 150, 1000);
+        lease.acquire();
+        Thread.sleep(400);
+        assertTrue(lease.isValid());
+        assertTrue(locks.acquires.get() > 2);
+    }
+
+    @Test
+    public void lostLeaseIsDetectedByTheRenewal() throws Exception {
+        LeaseManager lease = lease(null, 150, 1000);
+        String lockId = lease.acquire();
+        synchronized (locks) {
+            locks.queue.remove(lockId);
+            locks.queue.add("other");
+        }
+        Thread.sleep(300);
+        assertFalse(lease.isValid());
+        assertEquals(0, lease.getExpiry());
+    }
+
+    @Test
+    public void waitsWithBackoffAndRemovesAHolderThatDoesNotMove() throws Exception {
+        locks.queue.add("dead");
+        LeaseManager lease = lease(null, 300, 5000);
+        long start = System.currentTimeMillis();
+        String lockId = lease.acquire();
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals("ref0", lockId);
+        assertEquals(1, locks.forced.size());
+        assertEquals("dead", locks.forced.get(0));
+        assertTrue(elapsed >= 300);
+        // with exponential backoff the queue is checked only a few times during the lease period
+        assertTrue("peeks: " + locks.peeks.get(), locks.peeks.get() < 15);
+    }
+
+    @Test
+    public void holderThatReleasesTheLockIsNotForced() throws Exception {
+        locks.queue.add("alive");
+        LeaseManager lease = lease(null, 5000, 5000);
+        Thread release = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            locks.releaseLock("ns.transactioninformation.tit1", "alive", true);
+        });
+        release.start();
+        assertEquals("ref0", lease.acquire());
+        release.join();
+        assertTrue(locks.forced.isEmpty());
+    }
+
+    @Test
+    public void holderThatRenewsItsLeaseIsNotForced() throws Exception {
+        LeaseManager holder = lease(null, 150, 1000);
+        String holderId = holder.acquire();
+        assertNotNull(locks.heartbeats.get(holderId));
+        // the contender does not renew, only the holder publishes heartbeats
+        LeaseManager contender = new LeaseManager(locks, null, "ns", "transactioninformation", "tit1", null, 150, 600);
+        try {
+            contender.acquire();
+            fail("The lock is held by a live node");
+        } catch (MDBCServiceException e) {
+            assertTrue(e.getMessage().contains(holderId));
+        }
+        assertTrue(locks.forced.isEmpty());
+        assertTrue(holder.isValid());
+    }
+
+    @Test
+    public void leaseIsNotExtendedWithoutAHeartbeat() throws Exception {
+        LeaseManager lease = new LeaseManager(new FakeLocks() {
+            @Override
+            public synchronized void publishHeartbeat(String keyspace, String table, String key, String lockId, long heartbeat) throws MDBCServiceException {
+                if (heartbeats.containsKey(lockId)) {
+                    throw new MDBCServiceException("MUSIC is not reachable");
+                }
+                super.publishHeartbeat(keyspace, table, key, lockId, heartbeat);
+            }
+        }, renewer, "ns", "transactioninformation", "tit1", null, 150, 1000);
+        lease.acquire();
+        assertTrue(lease.isValid());
+        Thread.sleep(300);
+        assertFalse(lease.isValid());
+    }
+
+    @Test
+    public void timesOutWhenTheHolderKeepsMoving() throws Exception {
+        locks.queue.add("holder");
+        LeaseManager lease = lease(null, 60000, 200);
+        try {
+            lease.acquire();
+            fail("The lock is held by someone else");
+        } catch (MDBCServiceException e) {
+            assertTrue(e.getMessage().contains("holder"));
+        }
+        assertFalse(lease.isValid());
+    }
+
+    @Test
+    public void existingReferenceIsReusedAndReleased() throws Exception {
+        locks.createLockReference("ns.transactioninformation.tit1");
+        LeaseManager lease = lease("ref0", 60000, 1000);
+        assertEquals("ref0", lease.acquire());
+        assertEquals(1, locks.queue.size());
+        lease.release();
+        assertFalse(lease.isValid());
+        assertTrue(locks.queue.isEmpty());
+        assertTrue(locks.forced.isEmpty());
+    }
+}
@@ -0,0 +1,88 @@
+package com.att.research.mdbc.mixins;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MusicAsyncExecutorTest {
+
+    /**
+     * Session that never completes the requests by itself, the test completes them through the pending list
+     */
+    private static Session session(final List<SettableFuture<ResultSet>> pending) {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] {Session.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("executeAsync")) {
+                        SettableFuture<ResultSet> future = SettableFuture.create();
+                        pending.add(future);
+                        return resultSetFuture(future);
+                    }
+                    return null;
+                });
+    }
+
+    private static ResultSetFuture resultSetFuture(final SettableFuture<ResultSet> future) {
+        return (ResultSetFuture) Proxy.newProxyInstance(ResultSetFuture.class.getClassLoader(), new Class<?>[] {ResultSetFuture.class},
+                (proxy, method, args) -> {
+                    try {
+                        return method.invoke(future, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    @Test
+    public void requestsInFlightAreBounded() throws Exception {
+        List<SettableFuture<ResultSet>> pending = new ArrayList<>();
+        MusicAsyncExecutor executor = new MusicAsyncExecutor(session(pending), null, 2, 10);
+        assertEquals(2, executor.getMaxInFlight());
+        ListenableFuture<ResultSet> first = executor.executeAsync(new SimpleStatement("SELECT 1"));
+        executor.executeAsync(new SimpleStatement("SELECT 2"));
+        assertEquals(2, executor.getInFlight());
+        try {
+            executor.executeAsync(new SimpleStatement("SELECT 3"));
+            fail("The third request should wait for one of the others");
+        } catch (MDBCServiceException e) {
+            // expected
+        }
+        pending.get(0).set(null);
+        assertTrue(first.isDone());
+        assertEquals(1, executor.getInFlight());
+        executor.executeAsync(new SimpleStatement("SELECT 3"));
+        assertEquals(2, executor.getInFlight());
+        assertEquals(3, pending.size());
+    }
+
+    @Test
+    public void waitAllReportsFailures() throws Exception {
+        List<SettableFuture<ResultSet>> pending = new ArrayList<>();
+        MusicAsyncExecutor executor = new MusicAsyncExecutor(session(pending), null, 4, 10);
+        ListenableFuture<ResultSet> ok = executor.executeAsync(new SimpleStatement("INSERT 1"));
+        ListenableFuture<ResultSet> failed = executor.executeAsync(new SimpleStatement("INSERT 2"));
+        pending.get(0).set(null);
+        pending.get(1).setException(new RuntimeException("write timeout"));
+        assertEquals(0, executor.getInFlight());
+        assertEquals(1, MusicAsyncExecutor.waitAll(Arrays.asList(ok), "test").size());
+        try {
+            MusicAsyncExecutor.waitAll(Arrays.asList(ok, failed), "test");
+            fail("The failed request should be reported");
+        } catch (MDBCServiceException e) {
+            assertTrue(e.getMessage().contains("write timeout"));
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package com.att.research.mdbc.mixins;
+
+import com.att.research.mdbc.tables.OperationType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class MySQLBinlogReaderTest {
+
+    private File folder;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("binlog").toFile();
+    }
+
+    @After
+    public void deleteFolder() {
+        for(File f : folder.listFiles()) {
+            f.delete();
+        }
+        folder.delete();
+    }
+
+    /**
+     * Writes binlog events the same way the server does
+     */
+    static class BinlogWriter {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final boolean checksum;
+
+        BinlogWriter(boolean checksum) {
+            this(checksum, "5.7.20-log");
+        }
+
+        BinlogWriter(boolean checksum, String serverVersion) {
+            this.checksum = checksum;
+            out.write(0xfe);
+            out.write('b');
+            out.write('i');
+            out.write('n');
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 4, 2);
+            byte[] version = new byte[50];
+            byte[] name = serverVersion.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(name, 0, version, 0, name.length);
+            body.write(version, 0, version.length);
+            le(body, 0, 4);
+            body.write(19);
+            body.write(new byte[38], 0, 38);
+            body.write(checksum ? 1 : 0);
+            event(MySQLBinlogReader.FORMAT_DESCRIPTION_EVENT, body, true);
+        }
+
+        static void le(ByteArrayOutputStream out, long value, int bytes) {
+            for(int i = 0; i < bytes; i++) {
+                out.write((int) (value >> (8 * i)) & 0xFF);
+            }
+        }
+
+        static void be(ByteArrayOutputStream out, long value, int bytes) {
+            for(int i = bytes - 1; i >= 0; i--) {
+                out.write((int) (value >> (8 * i)) & 0xFF);
+            }
+        }
+
+        static void str(ByteArrayOutputStream out, String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.write(b, 0, b.length);
+        }
+
+        void event(int type, ByteArrayOutputStream body, boolean withChecksum) {
+            int size = MySQLBinlogReader.HEADER_SIZE + body.size() + (withChecksum ? 4 : 0);
+            ByteArrayOutputStream ev = new ByteArrayOutputStream();
+            le(ev, 0, 4);
+            ev.write(type);
+            le(ev, 1, 4);
+            le(ev, size, 4);
+            le(ev, out.size() + size, 4);
+            le(ev, 0, 2);
+            byte[] b = body.toByteArray();
+            ev.write(b, 0, b.length);
+            if(withChecksum) {
+                CRC32 crc = new CRC32();
+                crc.update(ev.toByteArray());
+                le(ev, crc.getValue(), 4);
+            }
+            byte[] e = ev.toByteArray();
+            out.write(e, 0, e.length);
+        }
+
+        void event(int type, ByteArrayOutputStream body) {
+            event(type, body, checksum);
+        }
+
+        void query(long threadId, String query) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, threadId, 4);
+            le(body, 0, 4);
+            body.write(4);
+            le(body, 0, 2);
+            le(body, 0, 2);
+            str(body, "test");
+            body.write(0);
+            str(body, query);
+            event(MySQLBinlogReader.QUERY_EVENT, body);
+        }
+
+        /** PERSONS (ID INT, NAME VARCHAR(255), BALANCE DECIMAL(10,2), CREATED DATETIME) */
+        void tableMap() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 7, 6);
+            le(body, 0, 2);
+            body.write(4);
+            str(body, "test");
+            body.write(0);
+            body.write(7);
+            str(body, "PERSONS");
+            body.write(0);
+            body.write(4);
+            body.write(MySQLBinlogReader.TYPE_LONG);
+            body.write(MySQLBinlogReader.TYPE_VARCHAR);
+            body.write(MySQLBinlogReader.TYPE_NEWDECIMAL);
+            body.write(MySQLBinlogReader.TYPE_DATETIME2);
+            body.write(5);
+            le(body, 255, 2);
+            body.write(10);
+            body.write(2);
+            body.write(0);
+            body.write(0x0e);
+            event(MySQLBinlogReader.TABLE_MAP_EVENT, body);
+        }
+
+        void row(ByteArrayOutputStream body, int id, String name) {
+            body.write(name == null ? 0x02 : 0x00);
+            le(body, id, 4);
+            if(name != null) {
+                body.write(name.length());
+                str(body, name);
+            }
+            // 1234.56
+            body.write(new byte[] {(byte) 0x80, 0x00, 0x04, (byte) 0xd2, 0x38}, 0, 5);
+            // 2018-03-04 05:06:07
+            long ymd = ((2018L * 13 + 3) << 5) | 4;
+            long hms = (5L << 12) | (6L << 6) | 7;
+            be(body, ((ymd << 17) | hms) + 0x8000000000L, 5);
+        }
+
+        void insert(int id, String name) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 7, 6);
+            le(body, 0, 2);
+            le(body, 2, 2);
+            body.write(4);
+            body.write(0x0f);
+            row(body, id, name);
+            event(MySQLBinlogReader.WRITE_ROWS_EVENT, body);
+        }
+
+        void update(int id, String before, String after) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 7, 6);
+            le(body, 0, 2);
+            body.write(4);
+            body.write(0x0f);
+            body.write(0x0f);
+            row(body, id, before);
+            row(body, id, after);
+            event(MySQLBinlogReader.UPDATE_ROWS_EVENT_V1, body);
+        }
+
+        /** MariaDB 10 starts the transactions with this event instead of a BEGIN query */
+        void gtid(long sequence) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, sequence, 8);
+            le(body, 0, 4);
+            body.write(0x01);
+            body.write(new byte[6], 0, 6);
+            event(MySQLBinlogReader.MARIADB_GTID_EVENT, body);
+        }
+
+        /** FILES (ID INT, DATA BLOB, NOTE TEXT), the TEXT columns are written as blobs too */
+        void filesTableMap() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 8, 6);
+            le(body, 0, 2);
+            body.write(4);
+            str(body, "test");
+            body.write(0);
+            body.write(5);
+            str(body, "FILES");
+            body.write(0);
+            body.write(3);
+            body.write(MySQLBinlogReader.TYPE_LONG);
+            body.write(MySQLBinlogReader.TYPE_BLOB);
+            body.write(MySQLBinlogReader.TYPE_BLOB);
+            body.write(2);
+            body.write(2);
+            body.write(2);
+            body.write(0x06);
+            event(MySQLBinlogReader.TABLE_MAP_EVENT, body);
+        }
+
+        void insertFile(int id, byte[] data, String note) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 8, 6);
+            le(body, 0, 2);
+            le(body, 2, 2);
+            body.write(3);
+            body.write(0x07);
+            body.write(0x00);
+            le(body, id, 4);
+            le(body, data.length, 2);
+            body.write(data, 0, data.length);
+            byte[] text = note.getBytes(StandardCharsets.UTF_8);
+            le(body, text.length, 2);
+            body.write(text, 0, text.length);
+            event(MySQLBinlogReader.WRITE_ROWS_EVENT, body);
+        }
+
+        /** COUNTERS (ID TINYINT UNSIGNED, HITS BIGINT UNSIGNED) */
+        void countersTableMap(boolean signedness) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 9, 6);
+            le(body, 0, 2);
+            body.write(4);
+            str(body, "test");
+            body.write(0);
+            body.write(8);
+            str(body, "COUNTERS");
+            body.write(0);
+            body.write(2);
+            body.write(MySQLBinlogReader.TYPE_TINY);
+            body.write(MySQLBinlogReader.TYPE_LONGLONG);
+            body.write(0);
+            body.write(0x02);
+            if(signedness) {
+                body.write(MySQLBinlogReader.METADATA_SIGNEDNESS);
+                body.write(1);
+                body.write(0xc0);
+            }
+            event(MySQLBinlogReader.TABLE_MAP_EVENT, body);
+        }
+
+        void insertCounter(int id, long hits) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 9, 6);
+            le(body, 0, 2);
+            le(body, 2, 2);
+            body.write(2);
+            body.write(0x03);
+            body.write(0x00);
+            body.write(id);
+            le(body, hits, 8);
+            event(MySQLBinlogReader.WRITE_ROWS_EVENT, body);
+        }
+
+        void xid() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 99, 8);
+            event(MySQLBinlogReader.XID_EVENT, body);
+        }
+
+        void rotate(String next) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            le(body, 4, 8);
+            str(body, next);
+            event(MySQLBinlogReader.ROTATE_EVENT, body);
+        }
+
+        void transaction(long threadId, int id) {
+            query(threadId, "BEGIN");
+            tableMap();
+            insert(id, "name-"+id);
+            xid();
+        }
+
+        File write(File file) throws IOException {
+            try(FileOutputStream fos = new FileOutputStream(file)) {
+                fos.write(out.toByteArray());
+            }
+            return file;
+        }
+    }
+
+    private static class Collector implements MySQLBinlogReader.Listener {
+        final List<String> events = new ArrayList<>();
+        final List<Object[]> rows = new ArrayList<>();
+
+        @Override
+        public void onRows(long threadId, String database, String table, OperationType type, List<Object[]> before, List<Object[]> after) {
+            events.add(threadId+":"+database+"."+table+":"+type+":"+before.size()+":"+after.size());
+            rows.addAll(before);
+            rows.addAll(after);
+        }
+
+        @Override
+        public void onCommit(long threadId) {
+            events.add(threadId+":COMMIT");
+        }
+    }
+
+    private void readAll(boolean checksum) throws IOException {
+        BinlogWriter w = new BinlogWriter(checksum);
+        w.query(42, "BEGIN");
+        w.tableMap();
+        w.insert(1, "alice");
+        w.insert(2, null);
+        w.update(1, "alice", "bob");
+        w.xid();
+        File file = w.write(new File(folder, "mysql-bin.000001"));
+        Collector collector = new Collector();
+        try(MySQLBinlogReader reader = new MySQLBinlogReader(file, collector)) {
+            while(reader.next());
+            assertEquals(file.length(), reader.getPosition());
+        }
+        assertEquals(4, collector.events.size());
+        assertEquals("42:test.PERSONS:INSERT:0:1", collector.events.get(0));
+        assertEquals("42:test.PERSONS:UPDATE:1:1", collector.events.get(2));
+        assertEquals("42:COMMIT", collector.events.get(3));
+        Object[] row = collector.rows.get(0);
+        assertEquals(1, row[0]);
+        assertArrayEquals("alice".getBytes(StandardCharsets.UTF_8), (byte[]) row[1]);
+        assertEquals(new BigDecimal("1234.56"), row[2]);
+        assertEquals("2018-03-04 05:06:07", row[3]);
+        assertNull(collector.rows.get(1)[1]);
+        assertArrayEquals("bob".getBytes(StandardCharsets.UTF_8), (byte[]) collector.rows.get(3)[1]);
+    }
+
+    @Test
+    public void readsRowEvents() throws IOException {
+        readAll(false);
+    }
+
+    @Test
+    public void readsRowEventsWithChecksum() throws IOException {
+        readAll(true);
+    }
+
+    @Test
+    public void blobsAreReadAsBytes() throws IOException {
+        byte[] data = {(byte) 0xff, 0x00, (byte) 0x80, (byte) 0xc3};
+        BinlogWriter w = new BinlogWriter(true);
+        w.query(42, "BEGIN");
+        w.filesTableMap();
+        w.insertFile(1, data, "h\u00e9llo");
+        w.xid();
+        File file = w.write(new File(folder, "mysql-bin.000001"));
+        Collector collector = new Collector();
+        try(MySQLBinlogReader reader = new MySQLBinlogReader(file, collector)) {
+            while(reader.next());
+        }
+        Object[] row = collector.rows.get(0);
+        assertArrayEquals(data, (byte[]) row[1]);
+        assertEquals("h\u00e9llo", new String((byte[]) row[2], StandardCharsets.UTF_8));
+    }
+
+    private Object[] readCounter(boolean signedness) throws IOException {
+        BinlogWriter w = new BinlogWriter(true);
+        w.query(42, "BEGIN");
+        w.countersTableMap(signedness);
+        w.insertCounter(200, -1L);
+        w.xid();
+        File file = w.write(new File(folder, "mysql-bin.000001"));
+        Collector collector = new Collector();
+        try(MySQLBinlogReader reader = new MySQLBinlogReader(file, collector)) {
+            while(reader.next());
+        }
+        return collector.rows.get(0);
+    }
+
+    @Test
+    public void unsignedColumnsAreReadWithTheSignednessOfTheTableMap() throws IOException {
+        Object[] row = readCounter(true);
+        assertEquals(200, row[0]);
+        assertEquals(new BigInteger("18446744073709551615"), row[1]);
+    }
+
+    @Test
+    public void integersAreSignedWithoutTheSignednessOfTheTableMap() throws IOException {
+        Object[] row = readCounter(false);
+        assertEquals(-56, row[0]);
+        assertEquals(-1L, row[1]);
+    }
+
+    @Test
+    public void incompleteEventIsNotConsumed() throws IOException {
+        BinlogWriter w = new BinlogWriter(true);
+        w.transaction(42, 1);
+        byte[] data = w.out.toByteArray();
+        File file = new File(folder, "mysql-bin.000001");
+        try(FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(data, 0, data.length - 3);
+        }
+        Collector collector = new Collector();
+        try(MySQLBinlogReader reader = new MySQLBinlogReader(file, collector)) {
+            while(reader.next());
+            assertFalse(collector.events.contains("42:COMMIT"));
+            try(FileOutputStream fos = new FileOutputStream(file, true)) {
+                fos.write(data, data.length - 3, 3);
+            }
+            while(reader.next());
+            assertTrue(collector.events.contains("42:COMMIT"));
+        }
+    }
+
+    @Test
+    public void captureRoutesCommittedChangesByThread() throws IOException {
+        BinlogWriter first = new BinlogWriter(true);
+        first.transaction(42, 1);
+        first.transaction(43, 2);
+        first.rotate("mysql-bin.000002");
+        first.write(new File(folder, "mysql-bin.000001"));
+        BinlogWriter second = new BinlogWriter(true);
+        second.transaction(42, 3);
+        File last = second.write(new File(folder, "mysql-bin.000002"));
+
+        MySQLBinlogCapture capture = new MySQLBinlogCapture(folder, 1);
+        capture.register(42);
+        capture.start("mysql-bin.000001", 4);
+        try {
+            assertTrue(capture.awaitPosition("mysql-bin.000002", last.length(), 5000));
+            List<MySQLBinlogCapture.RowChange> changes = capture.drain(42);
+            assertEquals(2, changes.size());
+            assertEquals(1, changes.get(0).after[0]);
+            assertEquals(3, changes.get(1).after[0]);
+            assertNull(changes.get(0).before);
+            assertTrue(capture.drain(42).isEmpty());
+            assertTrue(capture.drain(43).isEmpty());
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Test
+    public void changesOfACommitAreReadAgainFromItsPosition() throws IOException {
+        BinlogWriter w = new BinlogWriter(true);
+        w.transaction(43, 1);
+        long start = w.out.size();
+        w.transaction(42, 2);
+        w.transaction(43, 3);
+        long end = w.out.size();
+        w.transaction(42, 4);
+        w.write(new File(folder, "mysql-bin.000001"));
+
+        List<MySQLBinlogCapture.RowChange> changes = MySQLBinlogCapture.read(folder, 42, "mysql-bin.000001", start, "mysql-bin.000001", end);
+        assertEquals(1, changes.size());
+        assertEquals(2, changes.get(0).after[0]);
+        // without the end position only the first transaction of the connection is read
+        changes = MySQLBinlogCapture.read(folder, 42, "mysql-bin.000001", start, null, 0);
+        assertEquals(1, changes.size());
+        assertEquals(2, changes.get(0).after[0]);
+        // the transaction was not committed
+        assertTrue(MySQLBinlogCapture.read(folder, 43, "mysql-bin.000001", end, null, 0).isEmpty());
+    }
+
+    @Test
+    public void changesOfAFailedCommitAreNotAddedToTheNextOne() throws IOException {
+        BinlogWriter w = new BinlogWriter(true);
+        w.transaction(42, 1);
+        long end = w.out.size();
+        w.transaction(42, 2);
+        File file = w.write(new File(folder, "mysql-bin.000001"));
+
+        MySQLBinlogCapture capture = new MySQLBinlogCapture(folder, 1);
+        capture.register(42);
+        // the commit of the first transaction failed before the capture read it
+        capture.discard(42, "mysql-bin.000001", end);
+        capture.start("mysql-bin.000001", 4);
+        try {
+            assertTrue(capture.awaitPosition("mysql-bin.000001", file.length(), 5000));
+            List<MySQLBinlogCapture.RowChange> changes = capture.drain(42);
+            assertEquals(1, changes.size());
+            assertEquals(2, changes.get(0).after[0]);
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Test
+    public void mariadbTransactionsFailTheCapture() throws IOException {
+        BinlogWriter w = new BinlogWriter(true, "10.3.8-MariaDB-log");
+        w.gtid(1);
+        w.tableMap();
+        w.insert(1, "alice");
+        w.xid();
+        File file = w.write(new File(folder, "mysql-bin.000001"));
+
+        Collector collector = new Collector();
+        try(MySQLBinlogReader reader = new MySQLBinlogReader(file, collector)) {
+            while(reader.next());
+        }
+        assertEquals("-1:test.PERSONS:INSERT:0:1", collector.events.get(0));
+        assertEquals("-1:COMMIT", collector.events.get(1));
+
+        MySQLBinlogCapture capture = new MySQLBinlogCapture(folder, 1);
+        capture.register(42);
+        capture.start("mysql-bin.000001", 4);
+        try {
+            capture.awaitPosition("mysql-bin.000001", file.length(), 5000);
+            fail("the changes of the MariaDB transaction were dropped");
+        } catch(IOException e) {
+            assertTrue(e.getMessage().contains("can not be routed"));
+        } finally {
+            capture.stop();
+        }
+        assertTrue(capture.drain(42).isEmpty());
+    }
+
+    @Test
+    public void comparesPositionsAcrossFiles() {
+        assertTrue(MySQLBinlogCapture.compare("mysql-bin.000002", 4, "mysql-bin.000001", 5000) > 0);
+        assertTrue(MySQLBinlogCapture.compare("mysql-bin.000001", 120, "mysql-bin.000001", 154) < 0);
+        assertEquals("mysql-bin.000010", MySQLBinlogCapture.nextFileName("mysql-bin.000009"));
+    }
+}
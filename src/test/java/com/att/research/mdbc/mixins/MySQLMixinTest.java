@@ -0,0 +1,333 @@
+package com.att.research.mdbc.mixins;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.mdbc.Configuration;
+import com.att.research.mdbc.MusicSqlManager;
+import com.att.research.mdbc.Range;
+import com.att.research.mdbc.tables.Operation;
+import com.att.research.mdbc.tables.StagingTable;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class MySQLMixinTest {
+    private static final String URL = "jdbc:mysql://localhost:3306/mysqlmixintest";
+    private static final String DRAIN = "SELECT IX, TABLENAME, OP, KEYDATA, NEWROWDATA FROM " + MySQLMixin.TRANS_TBL;
+    private static final String RANGE_DELETE = "DELETE FROM " + MySQLMixin.TRANS_TBL + " WHERE CONNECTION_ID = ? AND IX <= ?";
+
+    // rows written into the translog by the triggers of the open transaction
+    private final List<Map<String, Object>> translog = new ArrayList<>();
+    // statements executed by the mixin in the database
+    private final List<String> executed = new ArrayList<>();
+    // digests committed into MUSIC
+    private final List<Map<Range, StagingTable>> committed = new ArrayList<>();
+    private int nextIx = 1;
+    // the drain of the translog fails while it is set
+    private boolean failDrain;
+    private MusicSqlManager msm;
+    // binlog files of the server, in binlog capture mode
+    private File binlogFolder;
+
+    @After
+    public void tearDown() {
+        if (msm != null) {
+            msm.close();
+        }
+        if (binlogFolder != null) {
+            for (File f : binlogFolder.listFiles()) {
+                f.delete();
+            }
+            binlogFolder.delete();
+        }
+    }
+
+    private static Object proxy(Class<?> type, java.lang.reflect.InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static ResultSet resultSet(List<Map<String, Object>> rows) {
+        final Iterator<Map<String, Object>> it = new ArrayList<>(rows).iterator();
+        final Map<?, ?>[] current = new Map<?, ?>[1];
+        return (ResultSet) proxy(ResultSet.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    current[0] = it.hasNext() ? it.next() : null;
+                    return current[0] != null;
+                case "getString":
+                    return String.valueOf(current[0].get(args[0]));
+                case "getInt":
+                    return ((Number) current[0].get(args[0])).intValue();
+                case "getLong":
+                    return ((Number) current[0].get(args[0])).longValue();
+                case "getStatement":
+                    return proxy(Statement.class, (s, m, a) -> null);
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static Map<String, Object> row(Object... values) {
+        Map<String, Object> row = new HashMap<>();
+        for (int i = 0; i < values.length; i += 2) {
+            row.put((String) values[i], values[i + 1]);
+        }
+        return row;
+    }
+
+    /**
+     * Queries of the mixin about the connection and the schema, PERSONS (ID, NAME) is the only table that is listed,
+     * FILES (ID, DATA, NOTE) and COUNTERS (ID, HITS) are only used in binlog capture mode
+     */
+    private ResultSet query(String sql) throws SQLException {
+        if (sql.contains("@@binlog_format")) {
+            return resultSet(Collections.singletonList(row("FMT", "ROW", "BASENAME", new File(binlogFolder, "mysql-bin").getPath(), "VERSION", "5.7.20-log")));
+        }
+        if (sql.equals("SHOW MASTER STATUS")) {
+            File last = new File(binlogFolder, "mysql-bin.000001");
+            return resultSet(Collections.singletonList(row("File", last.getName(), "Position", last.length())));
+        }
+        if (sql.contains("TABLE_NAME='FILES'")) {
+            List<Map<String, Object>> columns = new ArrayList<>();
+            columns.add(row("COLUMN_NAME", "ID", "DATA_TYPE", "int", "COLUMN_KEY", "PRI"));
+            columns.add(row("COLUMN_NAME", "DATA", "DATA_TYPE", "blob", "COLUMN_KEY", ""));
+            columns.add(row("COLUMN_NAME", "NOTE", "DATA_TYPE", "text", "COLUMN_KEY", ""));
+            return resultSet(columns);
+        }
+        if (sql.contains("TABLE_NAME='COUNTERS'")) {
+            List<Map<String, Object>> columns = new ArrayList<>();
+            columns.add(row("COLUMN_NAME", "ID", "DATA_TYPE", "tinyint", "COLUMN_TYPE", "tinyint(3) unsigned", "COLUMN_KEY", "PRI"));
+            columns.add(row("COLUMN_NAME", "HITS", "DATA_TYPE", "bigint", "COLUMN_TYPE", "bigint(20) unsigned", "COLUMN_KEY", ""));
+            return resultSet(columns);
+        }
+        if (sql.contains("CONNECTION_ID()")) {
+            return resultSet(Collections.singletonList(row("IX", 7)));
+        }
+        if (sql.contains("DATABASE() AS DB")) {
+            return resultSet(Collections.singletonList(row("DB", "test")));
+        }
+        if (sql.contains("INFORMATION_SCHEMA.TABLES")) {
+            return resultSet(Collections.singletonList(row("TABLE_NAME", "PERSONS")));
+        }
+        if (sql.contains("INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=")) {
+            List<Map<String, Object>> columns = new ArrayList<>();
+            columns.add(row("COLUMN_NAME", "ID", "DATA_TYPE", "int", "COLUMN_KEY", "PRI"));
+            columns.add(row("COLUMN_NAME", "NAME", "DATA_TYPE", "varchar", "COLUMN_KEY", ""));
+            return resultSet(columns);
+        }
+        if (sql.contains("INFORMATION_SCHEMA.COLUMNS")) {
+            return resultSet(Collections.singletonList(row("N", 2, "S", 1)));
+        }
+        throw new SQLException("Unexpected query " + sql);
+    }
+
+    private Connection connection() {
+        return (Connection) proxy(Connection.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "getAutoCommit":
+                    return false;
+                case "createStatement":
+                    return proxy(Statement.class, (s, m, a) -> m.getName().equals("executeQuery") ? query((String) a[0]) : null);
+                case "prepareStatement":
+                    final String sql = (String) args[0];
+                    executed.add(sql);
+                    return proxy(PreparedStatement.class, (s, m, a) -> {
+                        switch (m.getName()) {
+                            case "executeQuery":
+                                if (failDrain) {
+                                    throw new SQLException("Lost connection to the server");
+                                }
+                                return resultSet(translog);
+                            case "execute":
+                                translog.clear();
+                                return false;
+                            default:
+                                return null;
+                        }
+                    });
+                case "rollback":
+                    translog.clear();
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private MusicInterface music() {
+        return (MusicInterface) proxy(MusicInterface.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "getMusicKeyFromRow":
+                    return String.valueOf(((JSONObject) args[2]).get("ID"));
+                case "commitLog":
+                    @SuppressWarnings("unchecked")
+                    Map<Range, StagingTable> digest = (Map<Range, StagingTable>) args[2];
+                    committed.add(new HashMap<>(digest));
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private MusicSqlManager create(int threshold) throws Exception {
+        Properties info = new Properties();
+        info.setProperty(Configuration.KEY_DB_MIXIN_NAME, MySQLMixin.MIXIN_NAME);
+        info.setProperty(MySQLMixin.KEY_TRANSLOG_DRAIN, MySQLMixin.TRANSLOG_DRAIN_COMMIT);
+        info.setProperty(MySQLMixin.KEY_TRANSLOG_DRAIN_THRESHOLD, String.valueOf(threshold));
+        msm = new MusicSqlManager(URL, connection(), info, music());
+        return msm;
+    }
+
+    private MusicSqlManager createWithBinlog(MySQLBinlogReaderTest.BinlogWriter binlog) throws Exception {
+        binlogFolder = Files.createTempDirectory("binlog").toFile();
+        binlog.write(new File(binlogFolder, "mysql-bin.000001"));
+        Properties info = new Properties();
+        info.setProperty(Configuration.KEY_DB_MIXIN_NAME, MySQLMixin.MIXIN_NAME);
+        info.setProperty(MySQLMixin.KEY_CAPTURE_MODE, MySQLMixin.CAPTURE_MODE_BINLOG);
+        msm = new MusicSqlManager(URL, connection(), info, music());
+        assertTrue(msm.capturesOnLocalCommit());
+        return msm;
+    }
+
+    /**
+     * Executes an INSERT, its trigger writes the row into the translog
+     */
+    private void insert(int id) {
+        String sql = "INSERT INTO PERSONS (ID, NAME) VALUES (" + id + ", 'name" + id + "')";
+        msm.preStatementHook(sql);
+        translog.add(row("IX", nextIx++, "TABLENAME", "PERSONS", "OP", "I",
+                "KEYDATA", "{\"ID\":" + id + "}", "NEWROWDATA", "{\"ID\":" + id + ",\"NAME\":\"name" + id + "\"}"));
+        msm.postStatementHook(sql);
+    }
+
+    private int count(String prefix) {
+        int n = 0;
+        for (String sql : executed) {
+            if (sql.startsWith(prefix)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void translogIsDrainedOnceAtCommit() throws Exception {
+        create(500);
+        for (int i = 0; i < 20; i++) {
+            insert(i);
+        }
+        assertTrue(executed.isEmpty());
+        msm.commit("tx1", null, null);
+        assertEquals(1, count(DRAIN));
+        assertEquals(1, count(RANGE_DELETE));
+        assertEquals(2, executed.size());
+        assertEquals(1, committed.size());
+        assertEquals(20, committed.get(0).get(new Range("PERSONS")).getIterableSnapshot().size());
+    }
+
+    @Test
+    public void binaryColumnsReadFromTheBinlogAreNotDecodedAsText() throws Exception {
+        byte[] data = {(byte) 0xff, 0x00, (byte) 0x80};
+        MySQLBinlogReaderTest.BinlogWriter binlog = new MySQLBinlogReaderTest.BinlogWriter(true);
+        long start = binlog.out.size();
+        binlog.query(7, "BEGIN");
+        binlog.filesTableMap();
+        binlog.insertFile(1, data, "h\u00e9llo");
+        binlog.xid();
+        createWithBinlog(binlog);
+
+        HashMap<Range, StagingTable> digest = msm.recaptureTxDigest("7:mysql-bin.000001:" + start);
+        Deque<Pair<String, Operation>> operations = digest.get(new Range("FILES")).getIterableSnapshot();
+        assertEquals(1, operations.size());
+        JSONObject row = operations.getFirst().getValue().getNewVal();
+        assertEquals(1, row.getInt("ID"));
+        assertEquals("base64:type252:" + Base64.getEncoder().encodeToString(data), row.getString("DATA"));
+        assertEquals("h\u00e9llo", row.getString("NOTE"));
+    }
+
+    @Test
+    public void unsignedColumnsReadFromTheBinlogAsSignedAreConverted() throws Exception {
+        MySQLBinlogReaderTest.BinlogWriter binlog = new MySQLBinlogReaderTest.BinlogWriter(true);
+        long start = binlog.out.size();
+        binlog.query(7, "BEGIN");
+        // MySQL 5.7 does not write the signedness of the columns
+        binlog.countersTableMap(false);
+        binlog.insertCounter(200, -1L);
+        binlog.xid();
+        createWithBinlog(binlog);
+
+        HashMap<Range, StagingTable> digest = msm.recaptureTxDigest("7:mysql-bin.000001:" + start);
+        JSONObject row = digest.get(new Range("COUNTERS")).getIterableSnapshot().getFirst().getValue().getNewVal();
+        assertEquals(200, row.getInt("ID"));
+        assertEquals("18446744073709551615", row.get("HITS").toString());
+    }
+
+    @Test
+    public void failedDrainAfterAStatementFailsTheCommit() throws Exception {
+        create(2);
+        failDrain = true;
+        insert(0);
+        insert(1);
+        assertEquals(1, count(DRAIN));
+        failDrain = false;
+        try {
+            msm.commit("tx1", null, null);
+            fail("The changes of the transaction were not copied into the digest");
+        } catch (MDBCServiceException e) {
+            assertTrue(e.getMessage().contains("Lost connection"));
+        }
+        assertTrue(committed.isEmpty());
+        msm.rollback();
+        translog.clear();
+        insert(2);
+        insert(3);
+        msm.commit("tx2", null, null);
+        assertEquals(1, committed.size());
+        assertEquals(2, committed.get(0).get(new Range("PERSONS")).getIterableSnapshot().size());
+    }
+
+    @Test
+    public void rolledBackStatementsAreNotCounted() throws Exception {
+        create(5);
+        for (int i = 0; i < 3; i++) {
+            insert(i);
+        }
+        msm.rollback();
+        translog.clear();
+        // an empty transaction does not read the translog
+        msm.commit("tx1", null, null);
+        assertTrue(executed.isEmpty());
+        // the statements of the rolled back transaction do not count towards the threshold
+        for (int i = 3; i < 7; i++) {
+            insert(i);
+        }
+        assertTrue(executed.isEmpty());
+        msm.commit("tx2", null, null);
+        assertEquals(1, count(DRAIN));
+        assertEquals(1, count(RANGE_DELETE));
+        assertEquals(4, committed.get(1).get(new Range("PERSONS")).getIterableSnapshot().size());
+    }
+}
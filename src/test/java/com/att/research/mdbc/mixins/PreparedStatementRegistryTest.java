@@ -0,0 +1,102 @@
+package com.att.research.mdbc.mixins;
+
+import com.att.research.mdbc.DatabaseOperations;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.TupleValue;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PreparedStatementRegistryTest {
+
+    private final AtomicInteger prepared = new AtomicInteger();
+
+    private PreparedStatement prepare(String cql) {
+        prepared.incrementAndGet();
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("toString")) {
+                        return cql;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    @Test
+    public void statementsArePreparedOnce() {
+        PreparedStatementRegistry registry = new PreparedStatementRegistry(this::prepare);
+        String cql = "UPDATE ns.tit SET redo = redo + ? WHERE id = ?;";
+        PreparedStatement ps = registry.get(cql);
+        for (int i = 0; i < 10; i++) {
+            assertSame(ps, registry.get(cql));
+        }
+        assertNotSame(ps, registry.get("DELETE FROM ns.tit WHERE id = ?;"));
+        assertEquals(2, prepared.get());
+        assertEquals(2, registry.size());
+        assertEquals(2, registry.getPrepares());
+        assertEquals(10, registry.getHits());
+    }
+
+    @Test
+    public void concurrentUsersShareASinglePrepare() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final PreparedStatementRegistry registry = new PreparedStatementRegistry(cql -> {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return prepare(cql);
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<PreparedStatement>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(pool.submit(() -> registry.get("INSERT INTO ns.rrt (leaseid) VALUES (?);")));
+            }
+            start.countDown();
+            PreparedStatement first = futures.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<PreparedStatement> future : futures) {
+                assertSame(first, future.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, prepared.get());
+    }
+
+    @Test
+    public void metadataTuplesAreBoundAsValues() {
+        UUID index = UUID.randomUUID();
+        TupleValue parent = DatabaseOperations.createRedoHistoryEntry("transactioninformation", index.toString());
+        assertEquals("transactioninformation", parent.getString(0));
+        assertEquals(index, parent.getUUID(1));
+
+        TupleValue redo = DatabaseOperations.createTitRedoEntry("musicrrt", new RedoRecordId("lease", "42"));
+        assertEquals("musicrrt", redo.getString(0));
+        TupleValue record = redo.getTupleValue(1);
+        assertEquals("lease", record.getString(0));
+        assertEquals(BigInteger.valueOf(42), record.getVarint(1));
+        // the values are serialized by the driver, as for a bound statement
+        ByteBuffer bytes = CodecRegistry.DEFAULT_INSTANCE.codecFor(redo.getType())
+                .serialize(redo, ProtocolVersion.NEWEST_SUPPORTED);
+        assertTrue(bytes.remaining() > 0);
+    }
+}
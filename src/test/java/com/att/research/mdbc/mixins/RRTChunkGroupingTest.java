@@ -0,0 +1,44 @@
+package com.att.research.mdbc.mixins;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RRTChunkGroupingTest {
+
+    private static CassandraMixin.RRTChunk chunk(String lease, String commit, int chunk, int chunks, int bytes) {
+        return new CassandraMixin.RRTChunk(lease, commit, chunk, chunks, ByteBuffer.allocate(bytes));
+    }
+
+    @Test
+    public void digestsOfDifferentCommitsAreNotBatchedTogether() {
+        List<CassandraMixin.RRTChunk> chunks = new ArrayList<>();
+        chunks.add(chunk("lease", "1", 0, 1, 10));
+        chunks.add(chunk("lease", "2", 0, 1, 10));
+        chunks.add(chunk("other", "2", 0, 1, 10));
+        List<List<CassandraMixin.RRTChunk>> writes = CassandraMixin.groupRRTChunks(chunks, 1024);
+        assertEquals(3, writes.size());
+        for (List<CassandraMixin.RRTChunk> write : writes) {
+            assertEquals(1, write.size());
+        }
+    }
+
+    @Test
+    public void chunksOfADigestAreBatchedUnderTheLimit() {
+        List<CassandraMixin.RRTChunk> chunks = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            chunks.add(chunk("lease", "1", i, 5, 400));
+        }
+        chunks.add(chunk("lease", "2", 0, 1, 10));
+        List<List<CassandraMixin.RRTChunk>> writes = CassandraMixin.groupRRTChunks(chunks, 1024);
+        assertEquals(4, writes.size());
+        assertEquals(2, writes.get(0).size());
+        assertEquals(2, writes.get(1).size());
+        assertEquals(1, writes.get(2).size());
+        assertEquals("2", writes.get(3).get(0).commitId);
+    }
+}
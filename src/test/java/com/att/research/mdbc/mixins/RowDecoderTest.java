@@ -0,0 +1,89 @@
+package com.att.research.mdbc.mixins;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Row;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RowDecoderTest {
+
+    private static final String[] NAMES = {"replica__", "id", "name", "balance", "version", "mdbc_cuid"};
+    private static final DataType.Name[] TYPES = {DataType.Name.VARCHAR, DataType.Name.INT, DataType.Name.VARCHAR,
+            DataType.Name.DECIMAL, DataType.Name.BIGINT, DataType.Name.UUID};
+
+    /**
+     * Row that only answers the getters by position, a lookup by name fails the test
+     */
+    private static Row row(final Object... values) {
+        return (Row) Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[]{Row.class},
+                (proxy, method, args) -> {
+                    if (args == null || args.length != 1 || !(args[0] instanceof Integer)) {
+                        throw new AssertionError(method.getName() + " is not a lookup by position");
+                    }
+                    Object value = values[(Integer) args[0]];
+                    switch (method.getName()) {
+                        case "getInt":
+                            return (Integer) value;
+                        case "getLong":
+                            return (Long) value;
+                        case "getString":
+                            return (String) value;
+                        case "getDecimal":
+                            return (BigDecimal) value;
+                        case "getUUID":
+                            return (UUID) value;
+                        default:
+                            throw new AssertionError("unexpected getter " + method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void allColumnsButTheExcludedOnesAreDecodedByPosition() {
+        RowDecoder decoder = RowDecoder.compileAll(null, NAMES, TYPES, Collections.singleton("REPLICA__"));
+        assertArrayEquals(new String[]{"ID", "NAME", "BALANCE", "VERSION", "MDBC_CUID"}, decoder.getNames());
+        UUID uuid = UUID.randomUUID();
+        Map<String, Object> values = decoder.decode(row("r1", 7, "alice", new BigDecimal("10.50"), 3L, uuid));
+        assertEquals(5, values.size());
+        assertEquals(7, values.get("ID"));
+        assertEquals("alice", values.get("NAME"));
+        assertEquals(new BigDecimal("10.50"), values.get("BALANCE"));
+        assertEquals(3L, values.get("VERSION"));
+        assertEquals(uuid, values.get("MDBC_CUID"));
+        // the same decoder is reused for every row
+        assertEquals("bob", decoder.decode(row("r1", 8, "bob", BigDecimal.ONE, 4L, uuid)).get("NAME"));
+    }
+
+    @Test
+    public void tableColumnsKeepTheirNames() {
+        List<String> columns = Arrays.asList("NAME", "ID");
+        RowDecoder decoder = RowDecoder.compile(null, NAMES, TYPES, columns);
+        Map<String, Object> values = decoder.decode(row("r1", 7, "alice", BigDecimal.ZERO, 1L, UUID.randomUUID()));
+        assertEquals(2, values.size());
+        assertEquals("alice", values.get("NAME"));
+        assertEquals(7, values.get("ID"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownColumnsAreRejectedWhenCompiled() {
+        RowDecoder.compile(null, NAMES, TYPES, Collections.singletonList("MISSING"));
+    }
+
+    @Test
+    public void gettersFollowTheColumnType() {
+        Row r = row(null, 5, "x", null, 9L, null);
+        assertEquals(5, RowDecoder.getter(DataType.Name.INT, "id").get(r, 1));
+        assertEquals("x", RowDecoder.getter(DataType.Name.TEXT, "name").get(r, 2));
+        assertEquals(9L, RowDecoder.getter(DataType.Name.BIGINT, "version").get(r, 4));
+    }
+}
@@ -0,0 +1,104 @@
+package com.att.research.mdbc.mixins;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.mdbc.DatabasePartition;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TitRolloverTest {
+
+    private final DatabasePartition partition = new DatabasePartition(new HashSet<>(), "tit1", "transactioninformation", "p", "lock", "redorecords");
+    private final List<String> rolled = new CopyOnWriteArrayList<>();
+    private final Semaphore calls = new Semaphore(0);
+    private TitRollover rollover;
+
+    @After
+    public void tearDown() {
+        if (rollover != null) {
+            rollover.shutdown();
+        }
+    }
+
+    private TitRollover create(long maxRecords, long maxBytes, TitRollover.Roller roller) {
+        rollover = new TitRollover((p, index) -> {
+            try {
+                roller.rollover(p, index);
+            } finally {
+                calls.release();
+            }
+        }, maxRecords, maxBytes);
+        return rollover;
+    }
+
+    @Test
+    public void rollsOverOnceWhenTheRecordLimitIsPassed() throws Exception {
+        TitRollover r = create(10, 0, (p, index) -> rolled.add(index));
+        r.appended(partition, "tit1", 9, 100);
+        assertFalse(calls.tryAcquire(100, TimeUnit.MILLISECONDS));
+        r.appended(partition, "tit1", 1, 10);
+        assertTrue(calls.tryAcquire(5, TimeUnit.SECONDS));
+        // commits that keep arriving before the switch don't start more rollovers
+        r.appended(partition, "tit1", 5, 50);
+        assertFalse(calls.tryAcquire(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, rolled.size());
+        assertEquals("tit1", rolled.get(0));
+    }
+
+    @Test
+    public void rollsOverWhenTheByteLimitIsPassed() throws Exception {
+        TitRollover r = create(0, 1000, (p, index) -> rolled.add(index));
+        r.track("tit1", 3, 990);
+        r.appended(partition, "tit1", 1, TitRollover.recordBytes("redorecords", "lock", "12345"));
+        assertTrue(calls.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(1, rolled.size());
+    }
+
+    @Test
+    public void failedRolloverIsRetriedOnTheNextAppend() throws Exception {
+        CountDownLatch failures = new CountDownLatch(1);
+        TitRollover r = create(1, 0, (p, index) -> {
+            if (failures.getCount() > 0) {
+                failures.countDown();
+                throw new MDBCServiceException("music unavailable");
+            }
+            rolled.add(index);
+        });
+        r.appended(partition, "tit1", 1, 10);
+        assertTrue(calls.tryAcquire(5, TimeUnit.SECONDS));
+        assertTrue(rolled.isEmpty());
+        // the failure is recorded right after the roller returns
+        long deadline = System.currentTimeMillis() + 5000;
+        while (rolled.isEmpty() && System.currentTimeMillis() < deadline) {
+            r.appended(partition, "tit1", 1, 10);
+            calls.tryAcquire(50, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(1, rolled.size());
+    }
+
+    @Test
+    public void rowIsDrainedWhenAllItsCommitsFinished() {
+        TitRollover r = create(0, 0, (p, index) -> rolled.add(index));
+        assertTrue(r.isDrained("tit1"));
+        r.enter("tit1");
+        r.enter("tit1");
+        r.enter("tit2");
+        r.exit("tit1");
+        assertFalse(r.isDrained("tit1"));
+        r.exit("tit1");
+        assertTrue(r.isDrained("tit1"));
+        assertFalse(r.isDrained("tit2"));
+        // no limits, it never rolls over
+        r.appended(partition, "tit1", 1000000, 1000000000);
+        assertTrue(rolled.isEmpty());
+    }
+}
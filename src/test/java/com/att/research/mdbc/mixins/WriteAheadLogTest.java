@@ -0,0 +1,179 @@
+package com.att.research.mdbc.mixins;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("mdbc-wal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static WriteAheadLog.Record record(int i) {
+        return new WriteAheadLog.Record("lease", Integer.toString(i), ("digest" + i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertRecord(int i, WriteAheadLog.Record r) {
+        assertEquals("lease", r.leaseId);
+        assertEquals(Integer.toString(i), r.commitId);
+        assertEquals("digest" + i, new String(r.digest, StandardCharsets.UTF_8));
+    }
+
+    private int segments() {
+        return directory.list((d, name) -> name.startsWith(WriteAheadLog.SEGMENT_PREFIX)).length;
+    }
+
+    @Test
+    public void appendedRecordsAreRecoveredInOrderAfterARestart() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(directory, 4096, 100);
+        for (int i = 0; i < 3; i++) {
+            log.append(record(i));
+        }
+        log.close();
+        WriteAheadLog reopened = new WriteAheadLog(directory, 4096, 100);
+        List<WriteAheadLog.Record> pending = reopened.peek(10, 0);
+        assertEquals(3, pending.size());
+        for (int i = 0; i < 3; i++) {
+            assertRecord(i, pending.get(i));
+        }
+        // new records go after the recovered ones
+        reopened.append(record(3));
+        reopened.close();
+        assertEquals(4, new WriteAheadLog(directory, 4096, 100).getPendingCount());
+    }
+
+    @Test
+    public void shippedRecordsAreNotReplayed() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(directory, 4096, 100);
+        for (int i = 0; i < 3; i++) {
+            log.append(record(i));
+        }
+        List<WriteAheadLog.Record> batch = log.peek(2, 0);
+        assertEquals(2, batch.size());
+        // peeked records stay pending until they are shipped
+        assertEquals(3, log.getPendingCount());
+        log.shipped(batch);
+        assertEquals(1, log.getPendingCount());
+        log.close();
+        List<WriteAheadLog.Record> pending = new WriteAheadLog(directory, 4096, 100).peek(10, 0);
+        assertEquals(1, pending.size());
+        assertRecord(2, pending.get(0));
+    }
+
+    @Test
+    public void tornRecordIsIgnoredAndOverwritten() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(directory, 4096, 100);
+        log.append(record(0));
+        log.append(record(1));
+        log.close();
+        File segment = directory.listFiles((d, name) -> name.startsWith(WriteAheadLog.SEGMENT_PREFIX))[0];
+        int secondRecordEnd = 2 * (8 + 12 + "lease".length() + 1 + "digest0".length());
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(secondRecordEnd - 1);
+            raf.write('x');
+        }
+        WriteAheadLog reopened = new WriteAheadLog(directory, 4096, 100);
+        List<WriteAheadLog.Record> pending = reopened.peek(10, 0);
+        assertEquals(1, pending.size());
+        assertRecord(0, pending.get(0));
+        reopened.append(record(2));
+        reopened.close();
+        pending = new WriteAheadLog(directory, 4096, 100).peek(10, 0);
+        assertEquals(2, pending.size());
+        assertRecord(0, pending.get(0));
+        assertRecord(2, pending.get(1));
+    }
+
+    @Test
+    public void segmentsRollOverAndAreDeletedOnceShipped() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(directory, 128, 100);
+        for (int i = 0; i < 20; i++) {
+            log.append(record(i));
+        }
+        assertTrue(segments() > 2);
+        log.shipped(log.peek(100, 0));
+        assertEquals(1, segments());
+        assertEquals(0, log.getPendingCount());
+        // a record bigger than a segment gets a segment of its own
+        log.append(new WriteAheadLog.Record("lease", "20", new byte[1024]));
+        log.close();
+        List<WriteAheadLog.Record> pending = new WriteAheadLog(directory, 128, 100).peek(10, 0);
+        assertEquals(1, pending.size());
+        assertEquals(1024, pending.get(0).digest.length);
+    }
+
+    @Test
+    public void appendBlocksWhenTheShipperFallsBehind() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(directory, 4096, 2);
+        log.append(record(0));
+        log.append(record(1));
+        CountDownLatch appended = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try {
+                log.append(record(2));
+                appended.countDown();
+            } catch (Exception e) {
+                // the latch is never released
+            }
+        });
+        writer.start();
+        assertFalse(appended.await(200, TimeUnit.MILLISECONDS));
+        log.shipped(log.peek(1, 0));
+        assertTrue(appended.await(5, TimeUnit.SECONDS));
+        writer.join();
+        List<WriteAheadLog.Record> pending = log.peek(10, 0);
+        assertEquals(2, pending.size());
+        assertRecord(1, pending.get(0));
+        assertRecord(2, pending.get(1));
+        log.close();
+    }
+
+    @Test
+    public void concurrentAppendsAreAllDurable() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(directory, 1024, 1000);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int base = t * 50;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    try {
+                        log.append(record(base + i));
+                    } catch (Exception e) {
+                        return;
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread w : writers) {
+            w.join();
+        }
+        log.close();
+        assertEquals(200, new WriteAheadLog(directory, 1024, 1000).getPendingCount());
+    }
+}
@@ -0,0 +1,110 @@
+package com.att.research.mdbc.redo;
+
+import com.att.research.mdbc.Range;
+import com.att.research.mdbc.tables.OperationType;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.StagingTable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class PrefetchedDataTest {
+
+    private static final String TIT = "transactioninformation";
+
+    private HistoryGraph graph;
+    private HistoryGraph.Node root;
+    private HistoryGraph.Node child;
+    private HistoryGraph.Node grandchild;
+
+    @Before
+    public void createGraph() {
+        graph = new HistoryGraph();
+        root = graph.addNode(TIT, "r", "p");
+        child = graph.addNode(TIT, "c", "p");
+        grandchild = graph.addNode(TIT, "g", "p");
+        graph.addFutureLink(TIT, "c", TIT, "r");
+        graph.addFutureLink(TIT, "g", TIT, "c");
+        graph.resolveLinks();
+        graph.numberNodes();
+    }
+
+    private static HashMap<Range, StagingTable> digest(int rows) {
+        StagingTable table = new StagingTable();
+        for (int i = 0; i < rows; i++) {
+            table.addOperation("key" + i, OperationType.INSERT, null, "{\"ID\":" + i + ",\"NAME\":\"name of the row " + i + "\"}");
+        }
+        HashMap<Range, StagingTable> digest = new HashMap<>();
+        digest.put(new Range("PERSONS"), table);
+        return digest;
+    }
+
+    private static void add(PrefetchedData data, HistoryGraph.Node node, String commit, int rows) {
+        RedoRecordId id = new RedoRecordId("lease", commit);
+        data.addDigest(node.getId(), id, digest(rows), Task.downloadDigest(node, id));
+    }
+
+    @Test
+    public void tracksEstimatedSize() {
+        PrefetchedData data = new PrefetchedData();
+        assertEquals(0, data.getBytes());
+        add(data, root, "1", 10);
+        long small = data.getBytes();
+        assertTrue(small > 0);
+        add(data, child, "2", 100);
+        long large = data.getBytes() - small;
+        assertTrue("A digest with more rows should use more memory", large > 5 * small);
+        assertFalse(data.isOverCapacity());
+        data.removeDigests(child.getId());
+        assertEquals(small, data.getBytes());
+        data.removeDigests(root.getId());
+        assertEquals(0, data.getBytes());
+        assertEquals(0, data.getSize());
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        PrefetchedData data = new PrefetchedData();
+        add(data, root, "1", 1);
+        assertNotNull(data.getTransaction(root.getId(), new RedoRecordId("lease", "1")));
+        assertNull(data.getTransaction(root.getId(), new RedoRecordId("lease", "2")));
+        assertNull(data.getTransaction(child.getId(), new RedoRecordId("lease", "1")));
+        assertEquals(1, data.getHits());
+        assertEquals(2, data.getMisses());
+    }
+
+    @Test
+    public void evictsFurthestNodesFirstUntilUnderCapacity() {
+        PrefetchedData sizing = new PrefetchedData();
+        add(sizing, root, "0", 10);
+        long digestSize = sizing.getBytes();
+
+        PrefetchedData data = new PrefetchedData(2 * digestSize);
+        add(data, root, "1", 10);
+        add(data, child, "2", 10);
+        add(data, grandchild, "3", 10);
+        add(data, grandchild, "4", 10);
+        assertTrue(data.isOverCapacity());
+        data.pin(root.getId());
+
+        Task first = data.deleteLessImportant();
+        Task second = data.deleteLessImportant();
+        assertEquals(grandchild.getId(), first.getNodeId());
+        assertEquals(grandchild.getId(), second.getNodeId());
+        assertFalse(data.isOverCapacity());
+        assertEquals(2, data.getEvictions());
+
+        // The evicted task downloads the same record again
+        assertEquals(Task.Type.DOWNLOAD_DIGESTS, first.getType());
+        assertNull(data.getTransaction(grandchild.getId(), first.getRecord()));
+
+        assertEquals(child.getId(), data.deleteLessImportant().getNodeId());
+        // Only the pinned root is left
+        assertNull(data.deleteLessImportant());
+        assertEquals(1, data.getSize());
+    }
+}
@@ -0,0 +1,236 @@
+package com.att.research.mdbc.redo;
+
+import com.att.research.exceptions.MDBCServiceException;
+import com.att.research.mdbc.DatabasePartition;
+import com.att.research.mdbc.Range;
+import com.att.research.mdbc.mixins.MusicInterface;
+import com.att.research.mdbc.tables.Operation;
+import com.att.research.mdbc.tables.OperationType;
+import com.att.research.mdbc.tables.RedoHistoryElement;
+import com.att.research.mdbc.tables.RedoRecordId;
+import com.att.research.mdbc.tables.StagingTable;
+import com.att.research.mdbc.tables.TablePartitionInformation;
+import com.att.research.mdbc.tables.TitReference;
+import com.att.research.mdbc.tables.TransactionInformationElement;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RedoManagerTest {
+
+    private static final String TIT = "transactioninformation";
+
+    /**
+     * Fake MUSIC with the history of two partitions:
+     * old partition p0: z (already applied)
+     * current partition p1: a (after z), then b and c, then d (after b and c)
+     */
+    private static class FakeMusic {
+        final Map<String, List<RedoHistoryElement>> history = new HashMap<>();
+        final Map<String, TransactionInformationElement> tit = new HashMap<>();
+        final Map<String, HashMap<Range, StagingTable>> digests = new HashMap<>();
+        String failingCommit;
+
+        FakeMusic() {
+            addNode("p0", "z", Collections.<String>emptyList(), -1, true, "z0");
+            addNode("p1", "a", Arrays.asList("z"), 0, false, "a0", "a1", "a2");
+            addNode("p1", "b", Arrays.asList("a"), -1, false, "b0");
+            addNode("p1", "c", Arrays.asList("a"), -1, false, "c0", "c1");
+            addNode("p1", "d", Arrays.asList("b", "c"), -1, false, "d0");
+        }
+
+        void addNode(String partition, String index, List<String> previous, int latestApplied, boolean applied, String... commits) {
+            List<TitReference> prev = new ArrayList<>();
+            for (String p : previous) {
+                prev.add(new TitReference(TIT, p));
+            }
+            history.computeIfAbsent(partition, (k) -> new ArrayList<>())
+                .add(new RedoHistoryElement(partition, new TitReference(TIT, index), prev));
+            List<RedoRecordId> redo = new ArrayList<>();
+            for (String commit : commits) {
+                redo.add(new RedoRecordId("lease", commit));
+                HashMap<Range, StagingTable> digest = new HashMap<>();
+                StagingTable persons = new StagingTable();
+                persons.addOperation(commit, OperationType.INSERT, null, "{\"ID\":\"" + commit + "\"}");
+                digest.put(new Range("PERSONS"), persons);
+                StagingTable other = new StagingTable();
+                other.addOperation(commit, OperationType.INSERT, null, "{\"ID\":\"" + commit + "\"}");
+                digest.put(new Range("OTHER"), other);
+                digests.put(commit, digest);
+            }
+            tit.put(index, new TransactionInformationElement(index, redo, partition, latestApplied, applied));
+        }
+
+        MusicInterface proxy() {
+            return (MusicInterface) Proxy.newProxyInstance(MusicInterface.class.getClassLoader(), new Class<?>[] {MusicInterface.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getTablePartitionInformation":
+                            return new TablePartitionInformation((String) args[0], "p1", Arrays.asList("p0"));
+                        case "getHistory":
+                            return history.get(((DatabasePartition) args[0]).getPartitionId());
+                        case "getTransactionInformation":
+                            return tit.get(((TitReference) args[0]).index);
+                        case "getTransactionDigest": {
+                            RedoRecordId id = (RedoRecordId) args[0];
+                            if (id.commitId.equals(failingCommit)) {
+                                throw new MDBCServiceException("Redo record " + id.commitId + " is incomplete");
+                            }
+                            return digests.get(id.commitId);
+                        }
+                        default:
+                            return null;
+                    }
+                });
+        }
+    }
+
+    @Test
+    public void appliesPendingDigestsInHistoryOrder() throws Exception {
+        FakeMusic music = new FakeMusic();
+        final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        final Set<String> tables = new HashSet<>();
+        RedoManager redo = new RedoManager(music.proxy(), (digest) -> {
+            for (Map.Entry<Range, StagingTable> entry : digest.entrySet()) {
+                tables.add(entry.getKey().table);
+                try {
+                    for (Pair<String, Operation> op : entry.getValue().getIterableSnapshot()) {
+                        applied.add(op.getKey());
+                    }
+                } catch (NoSuchFieldException e) {
+                    throw new MDBCServiceException(e.getMessage());
+                }
+            }
+        }, 4);
+        redo.recover(new HashSet<>(Arrays.asList("PERSONS")));
+
+        assertEquals(5, redo.getHistory().getSize());
+        assertEquals(new HashSet<>(Arrays.asList("PERSONS")), tables);
+        // z was already applied, and the first record of a too
+        assertEquals(new HashSet<>(Arrays.asList("a1", "a2", "b0", "c0", "c1", "d0")), new HashSet<>(applied));
+        assertEquals("Each digest is applied once", 6, applied.size());
+        assertTrue(applied.indexOf("a1") < applied.indexOf("a2"));
+        assertTrue(applied.indexOf("a2") < applied.indexOf("b0"));
+        assertTrue(applied.indexOf("a2") < applied.indexOf("c0"));
+        assertTrue(applied.indexOf("c0") < applied.indexOf("c1"));
+        assertTrue(applied.indexOf("b0") < applied.indexOf("d0"));
+        assertTrue(applied.indexOf("c1") < applied.indexOf("d0"));
+
+        HistoryGraph history = redo.getHistory();
+        assertEquals(0, history.getNode(HistoryGraph.getId(TIT, "z")).getNumber());
+        assertEquals(1, history.getNode(HistoryGraph.getId(TIT, "a")).getNumber());
+        assertEquals(4, history.getNode(HistoryGraph.getId(TIT, "d")).getNumber());
+        for (java.util.Iterator<HistoryGraph.Node> it = history.getAll(); it.hasNext();) {
+            assertTrue(it.next().isRestored());
+        }
+    }
+
+    @Test
+    public void boundedPrefetchStillAppliesEverything() throws Exception {
+        FakeMusic music = new FakeMusic();
+        final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        // Every digest is over the bound, only the pinned frontier can be kept in memory
+        RedoManager redo = new RedoManager(music.proxy(), (digest) -> {
+            try {
+                for (Pair<String, Operation> op : digest.get(new Range("PERSONS")).getIterableSnapshot()) {
+                    applied.add(op.getKey());
+                }
+            } catch (NoSuchFieldException e) {
+                throw new MDBCServiceException(e.getMessage());
+            }
+        }, 3, 1);
+        redo.recover(new HashSet<>(Arrays.asList("PERSONS")));
+        assertEquals(Arrays.asList("a1", "a2"), applied.subList(0, 2));
+        assertEquals(new HashSet<>(Arrays.asList("a1", "a2", "b0", "c0", "c1", "d0")), new HashSet<>(applied));
+        assertEquals(6, applied.size());
+        assertEquals("d0", applied.get(5));
+    }
+
+    @Test
+    public void failedDownloadStopsTheRecovery() {
+        FakeMusic music = new FakeMusic();
+        music.failingCommit = "c1";
+        final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        RedoManager redo = new RedoManager(music.proxy(), (digest) -> applied.add("digest"), 2);
+        try {
+            redo.recover(new HashSet<>(Arrays.asList("PERSONS")));
+            fail("The recovery should report the failed download");
+        } catch (MDBCServiceException e) {
+            assertTrue(e.getMessage().contains("c1"));
+        }
+        // d can never be applied without c
+        assertTrue(applied.size() < 6);
+    }
+
+    @Test
+    public void queueOrdersByTypeThenNodeNumber() throws Exception {
+        HistoryGraph graph = new HistoryGraph();
+        HistoryGraph.Node root = graph.addNode(TIT, "r", "p");
+        HistoryGraph.Node child = graph.addNode(TIT, "c", "p");
+        graph.addFutureLink(TIT, "c", TIT, "r");
+        graph.resolveLinks();
+        graph.numberNodes();
+
+        TaskPriorityQueue queue = new TaskPriorityQueue();
+        queue.addOp(Task.downloadHistory("p"));
+        queue.addOp(Task.downloadDigest(child, new RedoRecordId("lease", "1")));
+        queue.addOp(Task.downloadDigest(root, new RedoRecordId("lease", "2")));
+        queue.addOp(Task.forNode(Task.Type.DOWNLOAD_METADATA, child));
+        queue.addOp(Task.forNode(Task.Type.APPLY_DIGEST, child));
+        assertEquals(5, queue.size());
+
+        assertEquals(Task.Type.APPLY_DIGEST, queue.getNextTask().getType());
+        assertEquals(Task.Type.DOWNLOAD_METADATA, queue.getNextTask().getType());
+        Task digest = queue.getNextTask();
+        assertEquals(Task.Type.DOWNLOAD_DIGESTS, digest.getType());
+        assertEquals(root.getId(), digest.getNodeId());
+
+        assertTrue(queue.freezeBelowLevel(Task.Type.DOWNLOAD_METADATA));
+        assertFalse(queue.freezeBelowLevel(Task.Type.DOWNLOAD_METADATA));
+        queue.addOp(Task.forNode(Task.Type.APPLY_DIGEST, root));
+        assertEquals(Task.Type.APPLY_DIGEST, queue.getNextTask().getType());
+        assertTrue(queue.restart());
+        assertEquals(child.getId(), queue.getNextTask().getNodeId());
+        assertEquals(Task.Type.DOWNLOAD_HISTORY, queue.getNextTask().getType());
+        queue.close();
+        assertNull(queue.getNextTask());
+    }
+
+    @Test
+    public void deletesDigestOfTheLeastImportantNode() {
+        HistoryGraph graph = new HistoryGraph();
+        HistoryGraph.Node root = graph.addNode(TIT, "r", "p");
+        HistoryGraph.Node child = graph.addNode(TIT, "c", "p");
+        graph.addFutureLink(TIT, "c", TIT, "r");
+        graph.resolveLinks();
+        graph.numberNodes();
+
+        PrefetchedData data = new PrefetchedData();
+        RedoRecordId first = new RedoRecordId("lease", "1");
+        RedoRecordId second = new RedoRecordId("lease", "2");
+        data.addDigest(root.getId(), first, new HashMap<>(), Task.downloadDigest(root, first));
+        data.addDigest(child.getId(), second, new HashMap<>(), Task.downloadDigest(child, second));
+        assertEquals(2, data.getSize());
+
+        data.pin(child.getId());
+        Task deleted = data.deleteLessImportant();
+        assertEquals(root.getId(), deleted.getNodeId());
+        assertNull(data.getTransaction(root.getId(), first));
+        assertNotNull(data.getTransaction(child.getId(), second));
+        assertNull(data.deleteLessImportant());
+        data.removeDigests(child.getId());
+        assertEquals(0, data.getSize());
+    }
+}
@@ -0,0 +1,74 @@
+package com.att.research.mdbc.tables;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import java.util.Deque;
+
+import static org.junit.Assert.*;
+
+public class StagingTableTest {
+
+    private Operation single(StagingTable table, String key) throws NoSuchFieldException {
+        Deque<Pair<String,Operation>> snapshot = table.getIterableSnapshot();
+        Operation result = null;
+        for(Pair<String,Operation> p : snapshot) {
+            if(p.getKey().equals(key)) {
+                assertNull(result);
+                result = p.getValue();
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void insertUpdateUpdateIsInsert() throws NoSuchFieldException {
+        StagingTable table = new StagingTable(true);
+        table.addOperation("k", OperationType.INSERT, "{\"ID\":1}", "{\"ID\":1,\"V\":1}");
+        table.addOperation("k", OperationType.UPDATE, "{\"ID\":1}", "{\"ID\":1,\"V\":2}");
+        table.addOperation("k", OperationType.UPDATE, "{\"ID\":1}", "{\"ID\":1,\"V\":3}");
+        Operation op = single(table, "k");
+        assertEquals(OperationType.INSERT, op.getOperationType());
+        assertEquals(3, op.getNewVal().getInt("V"));
+    }
+
+    @Test
+    public void insertThenDeleteCancels() throws NoSuchFieldException {
+        StagingTable table = new StagingTable(true);
+        table.addOperation("k", OperationType.INSERT, "{\"ID\":1}", "{\"ID\":1,\"V\":1}");
+        table.addOperation("k", OperationType.UPDATE, "{\"ID\":1}", "{\"ID\":1,\"V\":2}");
+        table.addOperation("k", OperationType.DELETE, "{\"ID\":1}", "{\"ID\":1,\"V\":2}");
+        assertTrue(table.getIterableSnapshot().isEmpty());
+    }
+
+    @Test
+    public void updatesKeepFirstPreImage() throws NoSuchFieldException {
+        StagingTable table = new StagingTable(true);
+        table.addOperation("k", OperationType.UPDATE, "{\"ID\":1,\"V\":0}", "{\"ID\":1,\"V\":1}");
+        table.addOperation("k", OperationType.UPDATE, "{\"ID\":1,\"V\":1}", "{\"ID\":1,\"V\":2}");
+        table.addOperation("k", OperationType.DELETE, "{\"ID\":1,\"V\":2}", "{\"ID\":1,\"V\":2}");
+        Operation op = single(table, "k");
+        assertEquals(OperationType.DELETE, op.getOperationType());
+        assertEquals(0, op.getOldVal().getInt("V"));
+    }
+
+    @Test
+    public void deleteThenInsertIsUpdate() throws NoSuchFieldException {
+        StagingTable table = new StagingTable(true);
+        table.addOperation("k", OperationType.DELETE, "{\"ID\":1,\"V\":0}", "{\"ID\":1,\"V\":0}");
+        table.addOperation("k", OperationType.INSERT, "{\"ID\":1}", "{\"ID\":1,\"V\":5}");
+        Operation op = single(table, "k");
+        assertEquals(OperationType.UPDATE, op.getOperationType());
+        assertEquals(5, op.getNewVal().getInt("V"));
+        assertEquals(0, op.getOldVal().getInt("V"));
+    }
+
+    @Test
+    public void nonCoalescingKeepsLastOperation() throws NoSuchFieldException {
+        StagingTable table = new StagingTable();
+        table.addOperation("k", OperationType.INSERT, "{\"ID\":1}", "{\"ID\":1,\"V\":1}");
+        table.addOperation("k", OperationType.DELETE, "{\"ID\":1}", "{\"ID\":1,\"V\":1}");
+        Operation op = single(table, "k");
+        assertEquals(OperationType.DELETE, op.getOperationType());
+    }
+}
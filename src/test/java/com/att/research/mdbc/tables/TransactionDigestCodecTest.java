@@ -0,0 +1,194 @@
+package com.att.research.mdbc.tables;
+
+import com.att.research.mdbc.MDBCUtils;
+import com.att.research.mdbc.Range;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class TransactionDigestCodecTest {
+
+    private HashMap<Range,StagingTable> createDigest(int rows) {
+        HashMap<Range,StagingTable> digest = new HashMap<>();
+        StagingTable table = new StagingTable();
+        for(int i = 0; i < rows; i++) {
+            JSONObject newRow = new JSONObject();
+            newRow.put("ID", i);
+            newRow.put("NAME", "name-"+i);
+            newRow.put("BALANCE", 10.5 * i);
+            newRow.put("BIG", 5000000000L + i);
+            newRow.put("ACTIVE", i % 2 == 0);
+            newRow.put("NOTES", JSONObject.NULL);
+            JSONObject key = new JSONObject();
+            key.put("ID", i);
+            table.addOperation(Integer.toString(i), OperationType.UPDATE, key.toString(), newRow.toString());
+        }
+        digest.put(new Range("PERSONS"), table);
+        StagingTable other = new StagingTable();
+        other.addOperation("raw", OperationType.DELETE, "not a json object", null);
+        digest.put(new Range("OTHER"), other);
+        return digest;
+    }
+
+    private void assertSameDigest(HashMap<Range,StagingTable> expected, HashMap<Range,StagingTable> actual) throws NoSuchFieldException {
+        assertEquals(expected.size(), actual.size());
+        Map<String,Map<String,Operation>> expectedOps = byTable(expected);
+        Map<String,Map<String,Operation>> actualOps = byTable(actual);
+        assertEquals(expectedOps.keySet(), actualOps.keySet());
+        for(String table : expectedOps.keySet()) {
+            Map<String,Operation> e = expectedOps.get(table);
+            Map<String,Operation> a = actualOps.get(table);
+            assertEquals(e.keySet(), a.keySet());
+            for(String key : e.keySet()) {
+                assertEquals(e.get(key).getOperationType(), a.get(key).getOperationType());
+                if(e.get(key).NEW_VAL == null) {
+                    assertNull(a.get(key).NEW_VAL);
+                }
+                else {
+                    assertTrue(e.get(key).getNewVal().similar(a.get(key).getNewVal()));
+                }
+                if(e.get(key).OLD_VAL.startsWith("{")) {
+                    assertTrue(e.get(key).getOldVal().similar(a.get(key).getOldVal()));
+                }
+                else {
+                    assertEquals(e.get(key).OLD_VAL, a.get(key).OLD_VAL);
+                }
+            }
+        }
+    }
+
+    private Map<String,Map<String,Operation>> byTable(HashMap<Range,StagingTable> digest) throws NoSuchFieldException {
+        Map<String,Map<String,Operation>> result = new HashMap<>();
+        for(Map.Entry<Range,StagingTable> entry : digest.entrySet()) {
+            Map<String,Operation> ops = new HashMap<>();
+            Deque<Pair<String,Operation>> snapshot = entry.getValue().getIterableSnapshot();
+            for(Pair<String,Operation> p : snapshot) {
+                ops.put(p.getKey(), p.getValue());
+            }
+            result.put(entry.getKey().table, ops);
+        }
+        return result;
+    }
+
+    @Test
+    public void roundTripUncompressed() throws IOException, NoSuchFieldException {
+        HashMap<Range,StagingTable> digest = createDigest(20);
+        TransactionDigestCodec codec = new TransactionDigestCodec();
+        byte[] encoded = codec.encode(digest);
+        assertSameDigest(digest, TransactionDigestCodec.decode(encoded));
+    }
+
+    @Test
+    public void roundTripLZ4() throws IOException, NoSuchFieldException {
+        HashMap<Range,StagingTable> digest = createDigest(500);
+        TransactionDigestCodec codec = new TransactionDigestCodec(TransactionDigestCodec.Compression.LZ4, 64);
+        byte[] encoded = codec.encode(digest);
+        byte[] uncompressed = new TransactionDigestCodec().encode(digest);
+        assertTrue(encoded.length < uncompressed.length);
+        assertSameDigest(digest, TransactionDigestCodec.decode(encoded));
+    }
+
+    @Test
+    public void reusedBufferAndStreamingDecoder() throws IOException {
+        TransactionDigestCodec codec = new TransactionDigestCodec();
+        codec.encode(createDigest(1000));
+        byte[] encoded = codec.encode(createDigest(3));
+        TransactionDigestCodec.Decoder decoder = TransactionDigestCodec.decoder(encoded);
+        int count = 0;
+        while(decoder.next()) {
+            if(decoder.getRange().table.equals("PERSONS")) {
+                Map<String,Object> row = decoder.getNewRow();
+                assertEquals(Integer.parseInt(decoder.getKey()), row.get("ID"));
+                assertEquals(5000000000L + (Integer) row.get("ID"), row.get("BIG"));
+                assertTrue(row.containsKey("NOTES"));
+                assertNull(row.get("NOTES"));
+            }
+            count++;
+        }
+        assertEquals(4, count);
+    }
+
+    @Test
+    public void operationTypesHaveStableCodes() throws IOException, NoSuchFieldException {
+        OperationType[] types = {OperationType.DELETE, OperationType.UPDATE, OperationType.INSERT, OperationType.SELECT};
+        for(int code = 0; code < types.length; code++) {
+            StagingTable table = new StagingTable();
+            table.addOperation("k", types[code], "raw", null);
+            HashMap<Range,StagingTable> digest = new HashMap<>();
+            digest.put(new Range("T"), table);
+            byte[] encoded = new TransactionDigestCodec().encode(digest);
+            // header (4), table count (1), name (2), column count (1), entry count (1), key (2)
+            assertEquals(code, encoded[11]);
+            assertEquals(types[code], TransactionDigestCodec.decode(encoded).get(new Range("T"))
+                    .getIterableSnapshot().getFirst().getValue().getOperationType());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownOperationCodeIsRejected() throws IOException {
+        StagingTable table = new StagingTable();
+        table.addOperation("k", OperationType.DELETE, "raw", null);
+        HashMap<Range,StagingTable> digest = new HashMap<>();
+        digest.put(new Range("T"), table);
+        byte[] encoded = new TransactionDigestCodec().encode(digest);
+        encoded[11] = 9;
+        TransactionDigestCodec.decode(encoded);
+    }
+
+    @Test
+    public void smallerThanJavaSerialization() throws IOException {
+        HashMap<Range,StagingTable> digest = createDigest(200);
+        byte[] encoded = new TransactionDigestCodec().encode(digest);
+        assertTrue(encoded.length < MDBCUtils.toString(digest).length());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidHeader() throws IOException {
+        TransactionDigestCodec.decode("rO0ABXNyABFqYXZh".getBytes());
+    }
+
+    @Test
+    public void typedValuesKeepTheirType() throws IOException, NoSuchFieldException {
+        Map<String,Object> row = new LinkedHashMap<>();
+        row.put("ID", UUID.fromString("123e4567-e89b-12d3-a456-426655440000"));
+        row.put("DATA", new byte[]{0, -1, 42});
+        row.put("DAY", java.sql.Date.valueOf("2018-03-01"));
+        row.put("HOUR", Time.valueOf("12:30:45"));
+        row.put("CREATED", Timestamp.valueOf("2018-03-01 12:30:45.000000001"));
+        StagingTable table = new StagingTable();
+        table.addRowOperation("1", OperationType.INSERT, Collections.singletonMap("ID", row.get("ID")), row);
+        HashMap<Range,StagingTable> digest = new HashMap<>();
+        digest.put(new Range("FILES"), table);
+        Operation op = TransactionDigestCodec.decode(new TransactionDigestCodec().encode(digest))
+                .get(new Range("FILES")).getIterableSnapshot().getFirst().getValue();
+        Map<String,Object> decoded = op.getNewRow();
+        assertEquals(row.get("ID"), decoded.get("ID"));
+        assertArrayEquals((byte[]) row.get("DATA"), (byte[]) decoded.get("DATA"));
+        assertEquals(row.get("DAY"), decoded.get("DAY"));
+        assertEquals(row.get("HOUR"), decoded.get("HOUR"));
+        assertEquals(row.get("CREATED"), decoded.get("CREATED"));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownTypesAreRejected() throws IOException {
+        StagingTable table = new StagingTable();
+        table.addRowOperation("1", OperationType.INSERT, Collections.singletonMap("ID", 1),
+                Collections.singletonMap("VALUE", new Object()));
+        HashMap<Range,StagingTable> digest = new HashMap<>();
+        digest.put(new Range("OTHER"), table);
+        new TransactionDigestCodec().encode(digest);
+    }
+}